@@ -0,0 +1,235 @@
+package xyz.arwhite.net.loadgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import xyz.arwhite.net.proxit.Metrics;
+
+/**
+ * One run of the load, in two phases. First the tunnels are opened, at most connecting
+ * CONNECTs in flight and, if a rate is given, started no faster than that. Then every
+ * tunnel that opened runs the workload for the duration, after which they're all closed.
+ *
+ * Each tunnel is a virtual thread, so the number of tunnels is limited by file
+ * descriptors rather than threads.
+ *
+ * @author Alan R. White
+ *
+ */
+public class LoadRun {
+
+	private static final int MAX_RESPONSE_HEAD = 4096;
+	private static final int STREAM_CHUNK = 64 * 1024;
+
+	private final Main.Builder config;
+	private final InetSocketAddress proxy;
+	private final int targetPort;
+	private final String authorization;
+
+	private final Queue<Socket> open = new ConcurrentLinkedQueue<>();
+
+	// why tunnels didn't open, by response status or exception
+	private final Map<String,LongAdder> refused = new ConcurrentHashMap<>();
+	private final Map<String,LongAdder> failed = new ConcurrentHashMap<>();
+
+	private final Metrics.Histogram handshakes = new Metrics.Histogram();
+	private final Metrics.Histogram latencies = new Metrics.Histogram();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder exchanges = new LongAdder();
+	private final LongAdder broken = new LongAdder();
+
+	private volatile boolean stopping;
+
+	public LoadRun(Main.Builder config, String proxy, int targetPort) throws URISyntaxException {
+		this.config = config;
+		this.targetPort = targetPort;
+
+		var uri = new URI(null, proxy, null, null, null);
+		this.proxy = new InetSocketAddress(uri.getHost(), uri.getPort());
+
+		if ( config.token != null )
+			authorization = "Bearer " + config.token;
+		else
+			authorization = "Basic " + Base64.getEncoder().encodeToString(
+					(config.proxyUser + ":" + config.proxyPass).getBytes(StandardCharsets.UTF_8));
+	}
+
+	public Report run() throws InterruptedException {
+		long openStart = System.nanoTime();
+		openTunnels();
+		long openNanos = System.nanoTime() - openStart;
+
+		long runStart = System.nanoTime();
+		runWorkload();
+		long runNanos = System.nanoTime() - runStart;
+
+		return new Report(config.tunnels, open.size(), Report.counts(refused), Report.counts(failed), openNanos,
+				handshakes, config.workload, config.size, exchanges.sum(), bytes.sum(), broken.sum(), runNanos,
+				latencies);
+	}
+
+	private void openTunnels() throws InterruptedException {
+		var connecting = new Semaphore(config.connecting);
+		long interval = config.rate > 0 ? TimeUnit.SECONDS.toNanos(1) / config.rate : 0;
+		long next = System.nanoTime();
+
+		try (var openers = Executors.newVirtualThreadPerTaskExecutor()) {
+			for ( int i = 0; i < config.tunnels; i++ ) {
+				if ( interval > 0 ) {
+					LockSupport.parkNanos(next - System.nanoTime());
+					next += interval;
+				}
+
+				connecting.acquire();
+				openers.execute(() -> {
+					try {
+						openTunnel();
+					} finally {
+						connecting.release();
+					}
+				});
+			}
+		}
+	}
+
+	private void openTunnel() {
+		long start = System.nanoTime();
+		var conn = new Socket();
+
+		try {
+			int timeout = (int) TimeUnit.SECONDS.toMillis(config.timeout);
+			conn.connect(proxy, timeout);
+			conn.setSoTimeout(timeout);
+			conn.setTcpNoDelay(true);
+
+			var request = "CONNECT 127.0.0.1:" + targetPort + " HTTP/1.1\r\n"
+					+ "Host: 127.0.0.1:" + targetPort + "\r\n"
+					+ "Proxy-Authorization: " + authorization + "\r\n\r\n";
+			conn.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+
+			int status = readStatus(conn.getInputStream());
+			if ( status != 200 ) {
+				count(refused, status < 0 ? "closed" : Integer.toString(status));
+				conn.close();
+				return;
+			}
+
+			handshakes.recordSince(start);
+			open.add(conn);
+
+		} catch (IOException e) {
+			count(failed, e.getClass().getSimpleName());
+			try {
+				conn.close();
+			} catch (IOException e1) {}
+		}
+	}
+
+	/*
+	 * Reads the response head a byte at a time, so nothing after it is consumed, returning
+	 * its status or -1 if the proxy closed first
+	 */
+	private static int readStatus(InputStream in) throws IOException {
+		var head = new StringBuilder();
+		int c;
+		while ( (c = in.read()) >= 0 && head.length() < MAX_RESPONSE_HEAD ) {
+			head.append((char) c);
+			int length = head.length();
+			if ( length >= 2 && head.charAt(length - 1) == '\n'
+					&& (head.charAt(length - 2) == '\n' || head.lastIndexOf("\r\n\r\n") == length - 4) )
+				break;
+		}
+
+		var words = head.toString().split(" ", 3);
+		if ( words.length < 2 || !words[0].startsWith("HTTP/") )
+			return -1;
+
+		try {
+			return Integer.parseInt(words[1].strip());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void runWorkload() throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.duration);
+
+		try (var workers = Executors.newVirtualThreadPerTaskExecutor()) {
+			for ( var conn : open )
+				workers.execute(() -> work(conn, deadline));
+
+			TimeUnit.NANOSECONDS.sleep(deadline - System.nanoTime());
+
+			// anything still blocked is woken by its tunnel closing
+			stopping = true;
+			for ( var conn : open ) {
+				try {
+					conn.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	private void work(Socket conn, long deadline) {
+		try {
+			var in = conn.getInputStream();
+			var out = conn.getOutputStream();
+
+			switch ( config.workload ) {
+			case RR -> {
+				var request = new byte[config.size];
+				var response = new byte[config.size];
+				while ( System.nanoTime() < deadline ) {
+					long start = System.nanoTime();
+					out.write(request);
+					if ( in.readNBytes(response, 0, response.length) < response.length )
+						throw new IOException("tunnel closed");
+					latencies.recordSince(start);
+					exchanges.increment();
+					bytes.add(2L * config.size);
+				}
+			}
+			case UP -> {
+				var chunk = new byte[STREAM_CHUNK];
+				while ( System.nanoTime() < deadline ) {
+					out.write(chunk);
+					bytes.add(chunk.length);
+				}
+			}
+			case DOWN -> {
+				var chunk = new byte[STREAM_CHUNK];
+				while ( System.nanoTime() < deadline ) {
+					int n = in.read(chunk);
+					if ( n < 0 )
+						throw new IOException("tunnel closed");
+					bytes.add(n);
+				}
+			}
+			}
+
+		} catch (IOException e) {
+			if ( !stopping )
+				broken.increment();
+		}
+	}
+
+	private static void count(Map<String,LongAdder> counts, String key) {
+		counts.computeIfAbsent(key, k -> new LongAdder()).increment();
+	}
+
+}
@@ -0,0 +1,113 @@
+package xyz.arwhite.net.loadgen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Load generator for proxit, driving many CONNECT tunnels at once to a target it runs
+ * itself, so nothing outside the machine is needed.
+ *
+ * With no proxy given it starts proxit, xyz.arwhite.net.proxit.Main, in a jvm of its own,
+ * once with platform threads and once with -vt, running the same load through each and
+ * reporting them side by side.
+ *
+ * @author Alan R. White
+ *
+ */
+public class Main {
+
+	public enum Workload { 
+		/** each tunnel sends size bytes and waits for them to be echoed back, over and over */
+		RR, 
+		/** each tunnel streams to a sink */
+		UP, 
+		/** a source streams down each tunnel */
+		DOWN 
+	}
+
+	public static class Builder {
+		String proxy;
+		String proxit = "both";
+		int proxitPort = 2580;
+		int tunnels = 1000;
+		int connecting = 256;
+		int rate = 0;
+		Workload workload = Workload.RR;
+		int size = 1024;
+		int duration = 10;
+		int timeout = 10;
+		String proxyUser = "loadgen";
+		String proxyPass = "loadgen";
+		String token;
+
+		public Builder validate() {
+			if ( tunnels < 1 || connecting < 1 || size < 1 || duration < 1 || timeout < 1 || rate < 0 )
+				throw new IllegalArgumentException("tunnels, connecting, size, duration and timeout must be positive");
+
+			if ( proxy == null && !List.of("platform", "virtual", "both").contains(proxit) )
+				throw new IllegalArgumentException("proxit must be platform, virtual or both");
+
+			return this;
+		}
+	}
+
+	private static void usage() {
+		System.out.println("loadgen OPTIONS\n");
+		System.out.println("OPTIONS proxy=<proxy address:port> | proxit=platform|virtual|both proxitport=<port>");
+		System.out.println("        tunnels=<n> connecting=<n> rate=<tunnels/s>");
+		System.out.println("        workload=rr|up|down size=<bytes> duration=<seconds> timeout=<seconds>");
+		System.out.println("        proxyuser=<name> proxypass=<password> | token=<jwt>");
+	}
+
+	public static void main(String[] args) throws Exception {
+		var config = new Builder();
+
+		for ( String arg : args ) {
+			var words = arg.split("=", 2);
+			if ( words.length != 2 ) {
+				usage();
+				throw new IllegalArgumentException(arg);
+			}
+
+			switch( words[0] ) {
+			case "proxy" -> config.proxy = words[1];
+			case "proxit" -> config.proxit = words[1];
+			case "proxitport" -> config.proxitPort = Integer.parseInt(words[1]);
+			case "tunnels" -> config.tunnels = Integer.parseInt(words[1]);
+			case "connecting" -> config.connecting = Integer.parseInt(words[1]);
+			case "rate" -> config.rate = Integer.parseInt(words[1]);
+			case "workload" -> config.workload = Workload.valueOf(words[1].toUpperCase());
+			case "size" -> config.size = Integer.parseInt(words[1]);
+			case "duration" -> config.duration = Integer.parseInt(words[1]);
+			case "timeout" -> config.timeout = Integer.parseInt(words[1]);
+			case "proxyuser" -> config.proxyUser = words[1];
+			case "proxypass" -> config.proxyPass = words[1];
+			case "token" -> config.token = words[1];
+			default -> { usage(); throw new IllegalArgumentException(words[0]); }
+			}
+		}
+		config.validate();
+
+		try (var target = new Target(config.workload, config.size)) {
+			if ( config.proxy != null ) {
+				new LoadRun(config, config.proxy, target.port()).run().print(config.proxy);
+				return;
+			}
+
+			var modes = "both".equals(config.proxit) ? List.of("platform", "virtual") : List.of(config.proxit);
+			var reports = new ArrayList<Report>();
+
+			for ( var mode : modes ) {
+				try (var proxit = new ProxitProcess(mode.equals("virtual"), config.proxitPort)) {
+					var report = new LoadRun(config, "127.0.0.1:"+config.proxitPort, target.port()).run();
+					report.print("proxit with "+mode+" threads, output in "+proxit.log());
+					reports.add(report);
+				}
+			}
+
+			if ( reports.size() > 1 )
+				Report.compare(modes, reports);
+		}
+	}
+
+}
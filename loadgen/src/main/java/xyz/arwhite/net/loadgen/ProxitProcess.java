@@ -0,0 +1,78 @@
+package xyz.arwhite.net.loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * proxit's Main started in a jvm of its own, on this jvm's classpath, so the load
+ * generator and the proxy aren't competing for the same heap and GC. The environment
+ * is passed on, so any PROXIT_ setting applies to it as usual.
+ *
+ * @author Alan R. White
+ *
+ */
+public class ProxitProcess implements AutoCloseable {
+
+	private static final long STARTUP_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+	private final Process process;
+	private final Path log;
+
+	public ProxitProcess(boolean virtualThreads, int port) throws IOException, InterruptedException {
+		var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+
+		var command = new ArrayList<String>();
+		command.add(java);
+		command.add("--enable-preview");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("xyz.arwhite.net.proxit.Main");
+		if ( virtualThreads )
+			command.add("-vt");
+
+		log = Files.createTempFile("loadgen-proxit-", ".log");
+
+		var builder = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile());
+		builder.environment().put("PROXIT_PORT", Integer.toString(port));
+		process = builder.start();
+
+		awaitListening(port);
+	}
+
+	/*
+	 * Connects until proxit accepts, or gives up if it dies or takes too long
+	 */
+	private void awaitListening(int port) throws IOException, InterruptedException {
+		long giveUp = System.currentTimeMillis() + STARTUP_TIMEOUT;
+
+		while ( true ) {
+			try (var probe = new Socket(InetAddress.getLoopbackAddress(), port)) {
+				return;
+			} catch (IOException e) {
+				if ( !process.isAlive() || System.currentTimeMillis() > giveUp ) {
+					close();
+					throw new IOException("proxit didn't start listening on "+port+", see "+log, e);
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	public File log() {
+		return log.toFile();
+	}
+
+	@Override
+	public void close() throws InterruptedException {
+		process.destroy();
+		if ( !process.waitFor(5, TimeUnit.SECONDS) )
+			process.destroyForcibly().waitFor();
+	}
+
+}
@@ -0,0 +1,116 @@
+package xyz.arwhite.net.loadgen;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import xyz.arwhite.net.proxit.Metrics;
+
+/**
+ * What a load run measured, handshake latency from connecting to the proxy to its 200
+ * and workload latency from writing a request to reading its echo. Latencies are to
+ * within an eighth of themselves, the resolution of the histograms.
+ *
+ * @author Alan R. White
+ *
+ */
+public record Report(int tunnels, int opened, Map<String,Long> refused, Map<String,Long> failed, long openNanos,
+		Metrics.Histogram handshakes, Main.Workload workload, int size, long exchanges, long bytes, long broken,
+		long runNanos, Metrics.Histogram latencies) {
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	static Map<String,Long> counts(Map<String,LongAdder> adders) {
+		var counts = new TreeMap<String,Long>();
+		adders.forEach((k, v) -> counts.put(k, v.sum()));
+		return counts;
+	}
+
+	public double tunnelsPerSecond() {
+		return perSecond(opened, openNanos);
+	}
+
+	public double exchangesPerSecond() {
+		return perSecond(exchanges, runNanos);
+	}
+
+	public double mibPerSecond() {
+		return perSecond(bytes, runNanos) / (1024 * 1024);
+	}
+
+	private static double perSecond(long count, long nanos) {
+		return nanos == 0 ? 0 : count * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+	}
+
+	public void print(String title) {
+		System.out.println();
+		System.out.println(title);
+		System.out.printf("  tunnels    %d of %d opened in %.2fs, %.0f/s%n", opened, tunnels,
+				openNanos / 1e9, tunnelsPerSecond());
+		if ( !refused.isEmpty() )
+			System.out.println("  refused    " + refused);
+		if ( !failed.isEmpty() )
+			System.out.println("  failed     " + failed);
+		System.out.println("  handshake  " + percentiles(handshakes));
+
+		if ( workload == Main.Workload.RR ) {
+			System.out.printf("  workload   rr, %d bytes, %.1fs%n", size, runNanos / 1e9);
+			System.out.printf("  exchanges  %d, %.0f/s%n", exchanges, exchangesPerSecond());
+			System.out.println("  latency    " + percentiles(latencies));
+		} else
+			System.out.printf("  workload   %s, %.1fs%n", workload.name().toLowerCase(), runNanos / 1e9);
+		System.out.printf("  throughput %.1f MiB/s%n", mibPerSecond());
+		if ( broken > 0 )
+			System.out.println("  broken     " + broken + " tunnels failed during the run");
+	}
+
+	private static String percentiles(Metrics.Histogram histogram) {
+		if ( histogram.count() == 0 )
+			return "-";
+
+		var line = new StringBuilder();
+		for ( var q : QUANTILES )
+			line.append(String.format("p%s %s  ", trim(q * 100), millis(histogram.quantile(q))));
+		line.append("max ").append(millis(histogram.quantile(1.0)));
+		return line.toString();
+	}
+
+	private static String trim(double percent) {
+		return percent == Math.rint(percent) ? Long.toString((long) percent) : Double.toString(percent);
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.3fms", nanos / 1e6);
+	}
+
+	/**
+	 * Side by side summary of runs of the same load
+	 */
+	public static void compare(List<String> names, List<Report> reports) {
+		System.out.println();
+		System.out.printf("%-22s", "");
+		names.forEach(n -> System.out.printf("%16s", n));
+		System.out.println();
+
+		row("tunnels opened", reports, r -> Integer.toString(r.opened()));
+		row("tunnels/s", reports, r -> String.format("%.0f", r.tunnelsPerSecond()));
+		row("handshake p99", reports, r -> millis(r.handshakes().quantile(0.99)));
+		if ( reports.get(0).workload() == Main.Workload.RR ) {
+			row("exchanges/s", reports, r -> String.format("%.0f", r.exchangesPerSecond()));
+			row("latency p50", reports, r -> millis(r.latencies().quantile(0.5)));
+			row("latency p99", reports, r -> millis(r.latencies().quantile(0.99)));
+		}
+		row("MiB/s", reports, r -> String.format("%.1f", r.mibPerSecond()));
+		row("broken", reports, r -> Long.toString(r.broken()));
+	}
+
+	private static void row(String label, List<Report> reports, Function<Report,String> value) {
+		System.out.printf("%-22s", label);
+		reports.forEach(r -> System.out.printf("%16s", value.apply(r)));
+		System.out.println();
+	}
+
+}
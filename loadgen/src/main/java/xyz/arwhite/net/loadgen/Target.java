@@ -0,0 +1,90 @@
+package xyz.arwhite.net.loadgen;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * The far end of the tunnels, on an ephemeral loopback port. It echoes, throws away or
+ * streams out bytes depending on the workload, with a virtual thread per connection so
+ * tens of thousands of tunnels cost it next to nothing.
+ *
+ * @author Alan R. White
+ *
+ */
+public class Target implements AutoCloseable {
+
+	private static final int BACKLOG = 4096;
+	private static final int STREAM_CHUNK = 64 * 1024;
+
+	private final ServerSocket server;
+	private final Main.Workload workload;
+	private final int size;
+
+	public Target(Main.Workload workload, int size) throws IOException {
+		this.workload = workload;
+		this.size = size;
+
+		server = new ServerSocket(0, BACKLOG, InetAddress.getLoopbackAddress());
+		Thread.ofVirtual().name("loadgen-target").start(this::accept);
+	}
+
+	public int port() {
+		return server.getLocalPort();
+	}
+
+	private void accept() {
+		while ( !server.isClosed() ) {
+			try {
+				var conn = server.accept();
+				Thread.ofVirtual().start(() -> serve(conn));
+			} catch (IOException e) {
+				if ( server.isClosed() )
+					return;
+
+				// most likely out of file descriptors, give the tunnels a moment to close
+				System.out.println("Target accept failed, "+e.getMessage());
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e1) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void serve(Socket conn) {
+		try (conn) {
+			var in = conn.getInputStream();
+			var out = conn.getOutputStream();
+
+			switch ( workload ) {
+			case RR -> {
+				var bytes = new byte[Math.max(size, 8192)];
+				int n;
+				while ( (n = in.read(bytes)) >= 0 )
+					out.write(bytes, 0, n);
+			}
+			case UP -> {
+				var bytes = new byte[STREAM_CHUNK];
+				while ( in.read(bytes) >= 0 );
+			}
+			case DOWN -> {
+				var bytes = new byte[STREAM_CHUNK];
+				while ( true )
+					out.write(bytes);
+			}
+			}
+
+		} catch (IOException e) {
+			// the load run ending closes tunnels mid stream
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+	}
+
+}
@@ -1,12 +1,12 @@
 package xyz.arwhite.net.port2proxy;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
@@ -15,6 +15,12 @@ import java.util.concurrent.Executors;
 
 public class ProxyRunner implements Runnable {
 
+	/*
+	 * Largest response head we expect back from the proxy
+	 */
+	private static final int MAX_RESPONSE_HEAD = 4096;
+	private static final int RELAY_BUFFER_SIZE = 8192;
+
 	Socket localSocket;
 	String proxy, proxyUser, proxyPass, remoteHost;
 
@@ -31,10 +37,13 @@ public class ProxyRunner implements Runnable {
 
 		try {
 			var proxyUri = new URI(null,proxy,null,null,null);
-			try (var remoteSocket = new Socket(proxyUri.getHost(),proxyUri.getPort())) {
+			try (var remoteSocket = connectToProxy(proxyUri)) {
 
 				var uri = new URI(null,remoteHost,null,null,null);
 
+				var openEvent = new TunnelEvents.TunnelOpen();
+				openEvent.begin();
+
 				String connect = "CONNECT " + uri.getHost() + ":" + uri.getPort() + " HTTP/1.1\n";
 				remoteSocket.getOutputStream().write(connect.getBytes());
 
@@ -47,26 +56,32 @@ public class ProxyRunner implements Runnable {
 
 				remoteSocket.getOutputStream().write("\n".getBytes());
 
-				var reader = new BufferedReader(
-						new InputStreamReader(remoteSocket.getInputStream(), "US-ASCII"));
-				var httpResponse = reader.readLine();
-				var words = httpResponse.split(" ");
+				var responseHead = readResponseHead(remoteSocket.getInputStream());
+				if ( responseHead == null ) {
+					opened(openEvent, 0);
+					System.err.println("No usable response from proxy");
+					return;
+				}
+
+				// any response headers are ignored
+				var httpResponse = responseHead.split("\r?\n", 2)[0];
+				var words = httpResponse.split(" ", 3);
+				opened(openEvent, words.length == 3 ? statusOf(words[1]) : 0);
 				if ( words.length != 3 || !"200".equals(words[1]) ) {
 					System.err.println("Unhandled response from proxy "+httpResponse);
 					return;
 				}
-				
-				// drain and ignore any response headers
-				int len = -1;
-				while ( len != 0 ) {
-					var line = reader.readLine();
-					len = line.length();
-				}
-				
+
+				var closeEvent = new TunnelEvents.TunnelClose();
+				closeEvent.begin();
+
 				// bi-directionally relay data between sockets
+				var upstream = new IORelay(localSocket,remoteSocket,"upstream");
+				var downstream = new IORelay(remoteSocket,localSocket,"downstream");
+
 				List<Callable<Object>> tasks = new ArrayList<>(2);
-				tasks.add(Executors.callable(new IORelay(localSocket,remoteSocket)));
-				tasks.add(Executors.callable(new IORelay(remoteSocket,localSocket)));
+				tasks.add(Executors.callable(upstream));
+				tasks.add(Executors.callable(downstream));
 				var exec = Executors.newVirtualThreadPerTaskExecutor();
 
 				// not much we can do with error during relaying 
@@ -79,6 +94,14 @@ public class ProxyRunner implements Runnable {
 					localSocket.close();
 				} catch (IOException e) {}
 
+				closeEvent.end();
+				if ( closeEvent.shouldCommit() ) {
+					closeEvent.target = remoteHost;
+					closeEvent.bytesUp = upstream.total;
+					closeEvent.bytesDown = downstream.total;
+					closeEvent.commit();
+				}
+
 			}			
 
 		} catch (URISyntaxException e) {
@@ -91,26 +114,137 @@ public class ProxyRunner implements Runnable {
 
 	}
 
+	private Socket connectToProxy(URI proxyUri) throws IOException {
+		var connectEvent = new TunnelEvents.ProxyConnect();
+		connectEvent.begin();
+
+		boolean connected = false;
+		try {
+			var socket = new Socket(proxyUri.getHost(),proxyUri.getPort());
+			connected = true;
+			return socket;
+		} finally {
+			connectEvent.end();
+			if ( connectEvent.shouldCommit() ) {
+				connectEvent.proxy = proxy;
+				connectEvent.connected = connected;
+				connectEvent.commit();
+			}
+		}
+	}
+
+	private void opened(TunnelEvents.TunnelOpen openEvent, int status) {
+		openEvent.end();
+		if ( openEvent.shouldCommit() ) {
+			openEvent.target = remoteHost;
+			openEvent.status = status;
+			openEvent.commit();
+		}
+	}
+
+	private static int statusOf(String word) {
+		try {
+			return Integer.parseInt(word);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Reads the proxy's response head a byte at a time, so nothing the target sends
+	 * straight after the tunnel opens ends up read ahead into a buffer and lost.
+	 * 
+	 * @param input from the proxy
+	 * @return the response head, or null if the stream ended or the head is too big
+	 * @throws IOException
+	 */
+	private String readResponseHead(InputStream input) throws IOException {
+		var head = new byte[MAX_RESPONSE_HEAD];
+		int length = 0, lineStart = 0;
+
+		while ( length < head.length ) {
+			int b = input.read();
+			if ( b < 0 )
+				return null;
+
+			head[length++] = (byte) b;
+			if ( b != '\n' )
+				continue;
+
+			int lineLength = length - 1 - lineStart;
+			if ( lineLength == 0 || (lineLength == 1 && head[lineStart] == '\r') )
+				return new String(head, 0, length, StandardCharsets.US_ASCII);
+
+			lineStart = length;
+		}
+
+		return null;
+	}
+
 	private class IORelay implements Runnable {
 
 		Socket in, out;
+		String direction;
+
+		// bytes relayed, and chunks written for sampling
+		long total;
+		int chunks;
 
-		public IORelay(Socket in, Socket out) {
+		public IORelay(Socket in, Socket out, String direction) {
 			this.in = in;
 			this.out = out;
+			this.direction = direction;
 		}
 
+		/**
+		 * Relays until in reaches end of stream, then shuts down output on out so the
+		 * other side sees it too, leaving the other direction to finish. If the relay fails
+		 * both sockets are closed so the other direction doesn't wait on a dead tunnel.
+		 */
 		@Override
 		public void run() {
 			try {
 				var input = in.getInputStream();
 				var output = out.getOutputStream();
 
-				input.transferTo(output);
-				
+				// as input.transferTo(output), counting as we go
+				var buffer = new byte[RELAY_BUFFER_SIZE];
+				int bytesRead;
+				while ( (bytesRead = input.read(buffer)) >= 0 ) {
+					TunnelEvents.RelayChunk chunk = null;
+					if ( ++chunks % TunnelEvents.CHUNK_SAMPLE == 0 ) {
+						chunk = new TunnelEvents.RelayChunk();
+						chunk.begin();
+					}
+
+					output.write(buffer, 0, bytesRead);
+					total += bytesRead;
+
+					if ( chunk != null ) {
+						chunk.end();
+						if ( chunk.shouldCommit() ) {
+							chunk.direction = direction;
+							chunk.bytes = bytesRead;
+							chunk.sampleInterval = TunnelEvents.CHUNK_SAMPLE;
+							chunk.commit();
+						}
+					}
+				}
+
+				out.shutdownOutput();
+
 			} catch (IOException e) {
-				if ( !e.getMessage().equals("Connection reset") ) 
+				// the other direction may have already closed the tunnel
+				if ( in.isClosed() || out.isClosed() )
+					return;
+
+				if ( !"Connection reset".equals(e.getMessage()) ) 
 					e.printStackTrace();
+
+				try {
+					in.close();
+					out.close();
+				} catch (IOException e1) {}
 			}
 		}
 
@@ -0,0 +1,90 @@
+package xyz.arwhite.net.port2proxy;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder events for each forwarded connection, from connecting to the proxy
+ * through to both sides closing. Enable them with port2proxy.jfc, eg
+ *
+ * -XX:StartFlightRecording:settings=default,settings=port2proxy.jfc
+ *
+ * @author Alan R. White
+ *
+ */
+class TunnelEvents {
+
+	/*
+	 * One relay chunk in this many is recorded
+	 */
+	static final int CHUNK_SAMPLE = 64;
+
+	@Name("xyz.arwhite.port2proxy.ProxyConnect")
+	@Label("Proxy Connect")
+	@Category({ "port2proxy", "Tunnel" })
+	@Description("Connecting to the proxy")
+	@StackTrace(false)
+	static final class ProxyConnect extends Event {
+		@Label("Proxy")
+		String proxy;
+
+		@Label("Connected")
+		boolean connected;
+	}
+
+	@Name("xyz.arwhite.port2proxy.TunnelOpen")
+	@Label("Tunnel Open")
+	@Category({ "port2proxy", "Tunnel" })
+	@Description("Asking the proxy for a tunnel, the status being its decision")
+	@StackTrace(false)
+	static final class TunnelOpen extends Event {
+		@Label("Target")
+		String target;
+
+		@Label("Status")
+		@Description("HTTP status the proxy answered with, 0 if it didn't")
+		int status;
+	}
+
+	@Name("xyz.arwhite.port2proxy.RelayChunk")
+	@Label("Relay Chunk")
+	@Category({ "port2proxy", "Relay" })
+	@Description("Writing one chunk of a tunnel's bytes, sampled")
+	@StackTrace(false)
+	static final class RelayChunk extends Event {
+		@Label("Direction")
+		@Description("upstream from the local side to the proxy, downstream back")
+		String direction;
+
+		@Label("Bytes")
+		@DataAmount
+		int bytes;
+
+		@Label("Sample Interval")
+		int sampleInterval;
+	}
+
+	@Name("xyz.arwhite.port2proxy.TunnelClose")
+	@Label("Tunnel Close")
+	@Category({ "port2proxy", "Tunnel" })
+	@Description("Life of a tunnel from the proxy's 200 to both sides closing")
+	@StackTrace(false)
+	static final class TunnelClose extends Event {
+		@Label("Target")
+		String target;
+
+		@Label("Bytes Up")
+		@DataAmount
+		long bytesUp;
+
+		@Label("Bytes Down")
+		@DataAmount
+		long bytesDown;
+	}
+
+}
@@ -0,0 +1,116 @@
+package xyz.arwhite.net.proxit.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.fusionauth.jwt.JWTUtils;
+import io.fusionauth.jwt.domain.JWT;
+import io.fusionauth.jwt.rsa.RSASigner;
+import io.fusionauth.jwt.rsa.RSAVerifier;
+import xyz.arwhite.net.auth.CertsCache;
+import xyz.arwhite.net.auth.TokenCache;
+
+/**
+ * The cost of checking a Proxy-Authorization header.
+ *
+ * ProxyConnection.authorize is private, so these do what it does with the same pieces,
+ * splitting the header and decoding Basic credentials, then verifying the JWT against a
+ * CertsCache holding an RS256 key. bearerUncached is every token being new, RSA
+ * verification each time, bearerCached is a client reusing its token through the
+ * TokenCache, and basicPasswordUncached is a JWT carried as the Basic password.
+ *
+ * @author Alan R. White
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = "--enable-preview")
+public class Authorization {
+
+	private CertsCache certs;
+	private TokenCache tokenCache;
+
+	private String basicHeader;
+	private String bearerHeader;
+	private String basicJwtHeader;
+
+	@Setup
+	public void setup() {
+		var keyPair = JWTUtils.generate2048_RSAKeyPair();
+		certs = new CertsCache();
+		certs.put("k1", RSAVerifier.newVerifier(keyPair.publicKey));
+		tokenCache = new TokenCache(certs, 1000, Duration.ofMinutes(5));
+
+		var jwt = new JWT().setSubject("fred")
+				.setExpiration(ZonedDateTime.now(ZoneOffset.UTC).plusHours(1));
+		var token = JWT.getEncoder().encode(jwt, RSASigner.newSHA256Signer(keyPair.privateKey, "k1"));
+
+		basicHeader = "Basic " + base64("fred:flintstone");
+		bearerHeader = "Bearer " + token;
+		basicJwtHeader = "Basic " + base64("fred:" + token);
+	}
+
+	private static String base64(String s) {
+		return Base64.getEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/*
+	 * As authorize does it, the Basic user and password or the Bearer token
+	 */
+	private static String[] credentials(String header) {
+		String[] words = header.split(" ");
+		if ( words.length != 2 )
+			throw new IllegalStateException("benchmark header malformed");
+
+		if ( "Basic".equals(words[0]) ) {
+			String[] creds = new String(Base64.getDecoder().decode(words[1])).split(":");
+			if ( creds.length != 2 )
+				throw new IllegalStateException("benchmark credentials malformed");
+			return creds;
+		}
+
+		return new String[] { "", words[1] };
+	}
+
+	@Benchmark
+	public String basic() {
+		return credentials(basicHeader)[0];
+	}
+
+	@Benchmark
+	public String bearerUncached() {
+		var token = credentials(bearerHeader)[1];
+		return JWT.getDecoder().decode(token, certs::verifierFor).subject;
+	}
+
+	@Benchmark
+	public String bearerCached() {
+		var token = credentials(bearerHeader)[1];
+		return tokenCache.verify(token).subject;
+	}
+
+	@Benchmark
+	public String basicPasswordUncached() {
+		var token = credentials(basicJwtHeader)[1];
+		return JWT.getDecoder().decode(token, certs::verifierFor).subject;
+	}
+
+}
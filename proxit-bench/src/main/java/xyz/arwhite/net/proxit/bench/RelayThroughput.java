@@ -0,0 +1,231 @@
+package xyz.arwhite.net.proxit.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import xyz.arwhite.net.proxit.ProxyServer;
+
+/**
+ * Bytes through a tunnel over loopback, proxit running in the benchmark jvm with
+ * platform or virtual threads as Main would start it.
+ *
+ * Each benchmark thread opens its own tunnel, to a target that either streams bytes
+ * down it as fast as it can or throws away whatever comes up it. One operation is one
+ * MiB relayed, so the score in ops/s is MiB/s.
+ *
+ * proxit takes its configuration from the environment as usual, so the other relay
+ * engines are measured by setting PROXIT_RELAY_ENGINE before running. It listens on
+ * PROXIT_PORT, 2580 if that isn't set, which must be free.
+ *
+ * @author Alan R. White
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "--enable-preview")
+public class RelayThroughput {
+
+	private static final int MIB = 1024 * 1024;
+	private static final int CHUNK = 64 * 1024;
+
+	/*
+	 * proxit has no way to stop, so it's started once per jvm, JMH giving each
+	 * combination of parameters a fork of its own
+	 */
+	private static String running;
+
+	@Param({ "platform", "virtual" })
+	public String threads;
+
+	private int proxyPort;
+	private ServerSocket source;
+	private ServerSocket sink;
+
+	@Setup(Level.Trial)
+	public void startServers() throws Exception {
+		source = serve(out -> {
+			var bytes = new byte[CHUNK];
+			try {
+				while ( true )
+					out.getOutputStream().write(bytes);
+			} catch (IOException e) {}
+		});
+
+		sink = serve(in -> {
+			var bytes = new byte[CHUNK];
+			try {
+				var input = in.getInputStream();
+				while ( input.read(bytes) >= 0 );
+			} catch (IOException e) {}
+		});
+
+		proxyPort = Integer.parseInt(Objects.requireNonNullElse(System.getenv("PROXIT_PORT"), "2580"));
+		startProxit(threads);
+	}
+
+	private static synchronized void startProxit(String threads) throws Exception {
+		if ( running != null ) {
+			if ( !running.equals(threads) )
+				throw new IllegalStateException("proxit already running with "+running+" threads, run with forks");
+			return;
+		}
+
+		if ( "virtual".equals(threads) )
+			Thread.startVirtualThread(new ProxyServer(10, true));
+		else {
+			var server = new Thread(new ProxyServer(10), "proxit");
+			server.setDaemon(true);
+			server.start();
+		}
+		running = threads;
+	}
+
+	/*
+	 * Accepts on an ephemeral loopback port, handing each connection to its own thread
+	 */
+	private static ServerSocket serve(Consumer<Socket> handler) throws IOException {
+		var server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		var acceptor = new Thread(() -> {
+			while ( !server.isClosed() ) {
+				try {
+					var conn = server.accept();
+					var worker = new Thread(() -> {
+						try (conn) {
+							handler.accept(conn);
+						} catch (IOException e) {}
+					});
+					worker.setDaemon(true);
+					worker.start();
+				} catch (IOException e) {}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return server;
+	}
+
+	@TearDown(Level.Trial)
+	public void stopServers() throws IOException {
+		source.close();
+		sink.close();
+	}
+
+	/**
+	 * A tunnel for each benchmark thread
+	 */
+	@State(Scope.Thread)
+	public static class Tunnel {
+		Socket down;
+		Socket up;
+		byte[] bytes = new byte[CHUNK];
+
+		@Setup(Level.Trial)
+		public void open(RelayThroughput bench) throws Exception {
+			down = connect(bench.proxyPort, bench.source.getLocalPort());
+			up = connect(bench.proxyPort, bench.sink.getLocalPort());
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			down.close();
+			up.close();
+		}
+	}
+
+	/*
+	 * CONNECTs through proxit to the loopback port, retrying while proxit starts up
+	 */
+	private static Socket connect(int proxyPort, int targetPort) throws Exception {
+		long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while ( true ) {
+			var conn = new Socket();
+			try {
+				conn.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), proxyPort));
+			} catch (IOException e) {
+				conn.close();
+				if ( System.nanoTime() > giveUp )
+					throw e;
+				Thread.sleep(100);
+				continue;
+			}
+
+			var credentials = Base64.getEncoder().encodeToString("bench:bench".getBytes(StandardCharsets.UTF_8));
+			var request = "CONNECT 127.0.0.1:"+targetPort+" HTTP/1.1\r\n"
+					+ "Host: 127.0.0.1:"+targetPort+"\r\n"
+					+ "Proxy-Authorization: Basic "+credentials+"\r\n\r\n";
+			conn.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+
+			var status = readResponseHead(conn.getInputStream());
+			if ( !status.startsWith("HTTP/1.1 200") ) {
+				conn.close();
+				throw new IOException("proxit refused the tunnel, "+status);
+			}
+			return conn;
+		}
+	}
+
+	/*
+	 * Reads up to the blank line ending the response head, returning its status line
+	 */
+	private static String readResponseHead(InputStream in) throws IOException {
+		var head = new StringBuilder();
+		int c;
+		while ( (c = in.read()) >= 0 ) {
+			head.append((char) c);
+			if ( head.length() >= 4 && head.lastIndexOf("\r\n\r\n") == head.length() - 4 )
+				break;
+		}
+
+		int lineEnd = head.indexOf("\r\n");
+		return lineEnd < 0 ? head.toString() : head.substring(0, lineEnd);
+	}
+
+	@Benchmark
+	public int download(Tunnel tunnel) throws IOException {
+		InputStream in = tunnel.down.getInputStream();
+		int total = 0;
+		while ( total < MIB ) {
+			int n = in.read(tunnel.bytes, 0, Math.min(tunnel.bytes.length, MIB - total));
+			if ( n < 0 )
+				throw new IOException("tunnel closed");
+			total += n;
+		}
+		return total;
+	}
+
+	@Benchmark
+	public int upload(Tunnel tunnel) throws IOException {
+		OutputStream out = tunnel.up.getOutputStream();
+		for ( int sent = 0; sent < MIB; sent += CHUNK )
+			out.write(tunnel.bytes);
+		return MIB;
+	}
+
+}
@@ -14,6 +14,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
@@ -25,18 +26,53 @@ import java.util.concurrent.TimeUnit;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManagerFactory;
 
+import io.fusionauth.jwt.domain.JWT;
+
 public class AuthServer {
 
+	/*
+	 * Keys are fetched on demand for an unknown k-id no more often than this, and
+	 * connections wait this long at most for the fetch
+	 */
+	private static final Duration KEY_FETCH_INTERVAL = Duration.ofSeconds(30);
+	private static final Duration KEY_FETCH_WAIT = Duration.ofSeconds(20);
+
+	/*
+	 * How soon to try again if a snapshot we started from can't be checked
+	 */
+	private static final Duration SNAPSHOT_RETRY = Duration.ofMinutes(1);
+
 	private URI authServerURI;
 
-	private OpenIDConfiguration oidConfig;
+	private volatile OpenIDConfiguration oidConfig;
+
+	/*
+	 * Where the last good discovery document and JWKS are kept, if anywhere, and whether
+	 * what we're running on came from there and still needs checking with the Auth Server
+	 */
+	private Optional<AuthSnapshot> snapshot;
+	private volatile boolean fromSnapshot = false;
+	private volatile String discoveryJson;
 
 	private CertsCache sigVerifiers = new CertsCache();
 
+	private TokenCache tokenCache;
+
 	private SSLContext sslContext;
 
-	public AuthServer(URI authServerURI, Optional<String> cacertFile) throws Exception {
+	/**
+	 * @param authServerURI base URI of the Auth Server, its OpenID configuration is fetched from here
+	 * @param cacertFile optional PEM file containing the CA Root cert the Auth Server's TLS cert is issued by
+	 * @param tokenCacheSize maximum number of verified tokens to cache
+	 * @param tokenCacheTtl maximum time a verified token is cached for, if it doesn't expire sooner
+	 * @param snapshot optional local copy of the Auth Server's metadata and keys to start from
+	 * @throws Exception
+	 */
+	public AuthServer(URI authServerURI, Optional<String> cacertFile, 
+			int tokenCacheSize, Duration tokenCacheTtl, Optional<AuthSnapshot> snapshot) throws Exception {
 		this.authServerURI = authServerURI;
+		this.snapshot = snapshot;
+		this.tokenCache = new TokenCache(sigVerifiers, tokenCacheSize, tokenCacheTtl);
 
 		/*
 		 * Use any provided cert to establish trust with the Auth Server
@@ -44,26 +80,65 @@ public class AuthServer {
 		sslContext = AuthServer.createSSLContext(cacertFile);
 
 		/*
-		 * Obtain the metadata that defines how this Auth Server operates
+		 * Start from the snapshot if there's a good one, checking it with the Auth Server
+		 * in the background, so a slow or absent Auth Server doesn't hold up a restart
 		 */
-		oidConfig = OpenIDConfiguration.fetchFrom(this.authServerURI, sslContext);
+		snapshot.flatMap(s -> s.load(authServerURI)).ifPresent(saved -> {
+			try {
+				var config = OpenIDConfiguration.fromJson(saved.discovery());
+				CertsCache.refresh(sigVerifiers, OpenIDConnectCerts.fromJson(saved.jwks()));
+				oidConfig = config;
+				fromSnapshot = true;
+				System.out.println("Using Auth Server snapshot taken at "+saved.savedAt());
+
+			} catch (Exception e) {
+				System.out.println("unable to use the Auth Server snapshot");
+				e.printStackTrace();
+			}
+		});
+
+		/*
+		 * Otherwise obtain the metadata that defines how this Auth Server operates
+		 */
+		if ( !fromSnapshot ) {
+			discoveryJson = OpenIDConfiguration.fetchJsonFrom(this.authServerURI, sslContext);
+			oidConfig = OpenIDConfiguration.fromJson(discoveryJson);
+		}
 
 		/*
 		 * Cache the public keys this Auth Server uses to sign certs, update every 6 hours
-		 * Alternatively/additionally we could refresh if we get a cache miss on a k-id 
-		 * and queue missed k-ids until done (proxit.later)
+		 * and additionally whenever we see a k-id we don't have, so a key rotation costs
+		 * one fetch rather than failing every connection until the next scheduled refresh
 		 */
+		sigVerifiers.fetchOnMiss(() -> OpenIDConnectCerts.fetchFrom(URI.create(oidConfig.jwksUri), sslContext),
+				KEY_FETCH_INTERVAL, KEY_FETCH_WAIT);
+
 		ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor();
 		ses.scheduleAtFixedRate(new Runnable() {
+			// only touched on the scheduler's one thread
+			private boolean retryPending = false;
+
 			@Override
 			public void run() {
 				try {
-					CertsCache.refresh(sigVerifiers, oidConfig, sslContext);
+					refreshFromAuthServer();
 				} catch (Exception e) {
 					// report this with whatever logger we use
 					e.printStackTrace();
+
+					// don't run on an unchecked snapshot for 6 hours if the first check fails,
+					// but keep to one retry however many scheduled refreshes fail meanwhile
+					if ( fromSnapshot && !retryPending ) {
+						retryPending = true;
+						ses.schedule(this::retry, SNAPSHOT_RETRY.toSeconds(), TimeUnit.SECONDS);
+					}
 				}
 			}
+
+			private void retry() {
+				retryPending = false;
+				run();
+			}
 		}, 0, 6, TimeUnit.HOURS);
 
 	}
@@ -174,8 +249,54 @@ public class AuthServer {
 
 	}
 
+	/*
+	 * Fetches the current keys, and the discovery document too if we started from a
+	 * snapshot, then saves them as the new snapshot
+	 */
+	private synchronized void refreshFromAuthServer() throws Exception {
+		if ( fromSnapshot ) {
+			var json = OpenIDConfiguration.fetchJsonFrom(authServerURI, sslContext);
+			oidConfig = OpenIDConfiguration.fromJson(json);
+			discoveryJson = json;
+		}
+
+		var jwks = OpenIDConnectCerts.fetchJsonFrom(URI.create(oidConfig.jwksUri), sslContext);
+		CertsCache.refresh(sigVerifiers, OpenIDConnectCerts.fromJson(jwks));
+		tokenCache.purge();
+
+		if ( fromSnapshot ) {
+			System.out.println("Auth Server snapshot revalidated");
+			fromSnapshot = false;
+		}
+
+		if ( snapshot.isPresent() ) {
+			try {
+				snapshot.get().save(authServerURI, discoveryJson, jwks);
+			} catch (Exception e) {
+				System.out.println("unable to save the Auth Server snapshot");
+				e.printStackTrace();
+			}
+		}
+	}
+
 	public CertsCache getSigVerifiers() {
 		return sigVerifiers;
 	}
 
+	/**
+	 * Verifies the token was signed by this Auth Server, only checking the signature the
+	 * first time a token is seen
+	 * 
+	 * @param token encoded JWT
+	 * @return the decoded JWT
+	 * @throws io.fusionauth.jwt.JWTException if the token is not valid
+	 */
+	public JWT verify(String token) {
+		return tokenCache.verify(token);
+	}
+
+	public TokenCache getTokenCache() {
+		return tokenCache;
+	}
+
 }
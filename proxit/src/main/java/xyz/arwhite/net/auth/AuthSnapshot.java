@@ -0,0 +1,190 @@
+package xyz.arwhite.net.auth;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Optional;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategies;
+import com.fasterxml.jackson.databind.annotation.JsonNaming;
+
+/**
+ * The last good discovery document and JWKS fetched from an Auth Server, kept in a local
+ * file so proxit can start validating tokens straight away on a restart rather than wait
+ * on, or fail because of, the Auth Server.
+ *
+ * Both documents are stored exactly as served. The file carries an HMAC-SHA256 over its
+ * contents if a key is supplied, otherwise a plain SHA-256 checksum which only guards
+ * against corruption. A snapshot is ignored if that doesn't match, if it was taken from a
+ * different Auth Server, or if it is older than the maximum age.
+ *
+ * @author Alan R. White
+ *
+ */
+public class AuthSnapshot {
+
+	public record Contents(Instant savedAt, String discovery, String jwks) {}
+
+	private static final String HMAC = "HmacSHA256";
+	private static final String CHECKSUM = "SHA-256";
+
+	@JsonNaming(PropertyNamingStrategies.SnakeCaseStrategy.class)
+	public static class SnapshotFile {
+		public long savedAt;
+		public String authServer;
+		public String discovery;
+		public String jwks;
+		public String alg;
+		public String mac;
+	}
+
+	private final Path file;
+	private final Duration maxAge;
+	private final Optional<SecretKeySpec> key;
+
+	/**
+	 * @param file where the snapshot is kept
+	 * @param maxAge oldest snapshot that will be loaded
+	 * @param key optional secret the snapshot is signed with
+	 */
+	public AuthSnapshot(Path file, Duration maxAge, Optional<String> key) {
+		this.file = file;
+		this.maxAge = maxAge;
+		this.key = key.map(k -> new SecretKeySpec(k.getBytes(StandardCharsets.UTF_8), HMAC));
+	}
+
+	/**
+	 * Loads the snapshot, if there is a usable one for the Auth Server
+	 *
+	 * @param authServer URI the snapshot must have been taken from
+	 * @return the snapshot, empty if there's none or it can't be trusted
+	 */
+	public Optional<Contents> load(URI authServer) {
+		SnapshotFile snapshot;
+		try {
+			snapshot = new ObjectMapper()
+					.readerFor(SnapshotFile.class)
+					.readValue(Files.readString(file));
+
+		} catch (NoSuchFileException e) {
+			return Optional.empty();
+
+		} catch (Exception e) {
+			System.out.println("unable to read auth snapshot "+file);
+			e.printStackTrace();
+			return Optional.empty();
+		}
+
+		if ( snapshot.discovery == null || snapshot.jwks == null || snapshot.mac == null ) {
+			System.out.println("ignoring incomplete auth snapshot "+file);
+			return Optional.empty();
+		}
+
+		if ( !algorithm().equals(snapshot.alg) ) {
+			System.out.println("ignoring auth snapshot "+file+" protected by "+snapshot.alg+" not "+algorithm());
+			return Optional.empty();
+		}
+
+		if ( !authServer.toString().equals(snapshot.authServer) ) {
+			System.out.println("ignoring auth snapshot "+file+" taken from "+snapshot.authServer);
+			return Optional.empty();
+		}
+
+		byte[] expected = mac(snapshot);
+		byte[] actual;
+		try {
+			actual = Base64.getDecoder().decode(snapshot.mac);
+		} catch (IllegalArgumentException e) {
+			actual = new byte[0];
+		}
+
+		if ( !MessageDigest.isEqual(expected, actual) ) {
+			System.out.println("ignoring auth snapshot "+file+" that fails its integrity check");
+			return Optional.empty();
+		}
+
+		var savedAt = Instant.ofEpochMilli(snapshot.savedAt);
+		if ( savedAt.plus(maxAge).isBefore(Instant.now()) ) {
+			System.out.println("ignoring auth snapshot "+file+" taken at "+savedAt);
+			return Optional.empty();
+		}
+
+		return Optional.of(new Contents(savedAt, snapshot.discovery, snapshot.jwks));
+	}
+
+	/**
+	 * Replaces the snapshot, atomically so a crash part way through never leaves a
+	 * half written file to be loaded next time
+	 *
+	 * @param authServer URI the documents were fetched from
+	 * @param discovery OpenID configuration as served
+	 * @param jwks JWKS as served
+	 */
+	public void save(URI authServer, String discovery, String jwks) throws Exception {
+		var snapshot = new SnapshotFile();
+		snapshot.savedAt = System.currentTimeMillis();
+		snapshot.authServer = authServer.toString();
+		snapshot.discovery = discovery;
+		snapshot.jwks = jwks;
+		snapshot.alg = algorithm();
+		snapshot.mac = Base64.getEncoder().encodeToString(mac(snapshot));
+
+		var dir = file.toAbsolutePath().getParent();
+		var tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+		try {
+			new ObjectMapper().writeValue(tmp.toFile(), snapshot);
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private String algorithm() {
+		return key.isPresent() ? HMAC : CHECKSUM;
+	}
+
+	/*
+	 * Each field is length prefixed so no two different snapshots hash the same input
+	 */
+	private byte[] mac(SnapshotFile snapshot) {
+		var fields = new String[] { snapshot.authServer, snapshot.discovery, snapshot.jwks };
+
+		int length = Long.BYTES;
+		var bytes = new byte[fields.length][];
+		for ( int i = 0; i < fields.length; i++ ) {
+			bytes[i] = Optional.ofNullable(fields[i]).orElse("").getBytes(StandardCharsets.UTF_8);
+			length += Integer.BYTES + bytes[i].length;
+		}
+
+		var input = ByteBuffer.allocate(length).putLong(snapshot.savedAt);
+		for ( byte[] field : bytes )
+			input.putInt(field.length).put(field);
+
+		try {
+			if ( key.isEmpty() )
+				return MessageDigest.getInstance(CHECKSUM).digest(input.array());
+
+			var mac = Mac.getInstance(HMAC);
+			mac.init(key.get());
+			return mac.doFinal(input.array());
+
+		} catch (GeneralSecurityException e) {
+			// every jvm is required to provide both
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -1,43 +1,219 @@
 package xyz.arwhite.net.auth;
 
 import java.net.URI;
-import java.util.concurrent.ConcurrentHashMap;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.net.ssl.SSLContext;
 
 import io.fusionauth.jwt.Verifier;
 import io.fusionauth.jwt.rsa.RSAVerifier;
 
-@SuppressWarnings("serial")
-public class CertsCache extends ConcurrentHashMap<String, Verifier>{
+/**
+ * The verifiers for the keys an Auth Server signs tokens with, indexed by k-id.
+ * 
+ * The keys are held as an immutable snapshot that is replaced in one go whenever they
+ * change, so a lookup is a single volatile read and never sees a rotation part way 
+ * through being applied. Each snapshot carries a version, bumped on every change, 
+ * which lets anything derived from the keys tell cheaply whether it is still current.
+ * 
+ * @author Alan R. White
+ *
+ */
+public class CertsCache {
+
+	public record Snapshot(long version, Map<String, Verifier> verifiers) {}
+
+	private volatile Snapshot snapshot = new Snapshot(0, Map.of());
 
 	/*
-	 * Testable method to update a key cache based on required list of keys.
-	 * We cannot completely renew the concurrent hashmap based on a list without
-	 * causing potential for inaccurate JWT signature validation, hence this
-	 * piecemeal approach.
+	 * Serialises writers, readers never take it
 	 */
-	public static void refresh(CertsCache cache, OpenIDConnectCerts certs) {
-		// add or refresh existing entries
-		certs.keys.forEach(key -> { 
+	private final Object updating = new Object();
+
+	/*
+	 * If set, used to fetch the current keys when asked for a k-id we don't have
+	 */
+	private Callable<OpenIDConnectCerts> fetcher;
+
+	/*
+	 * At most one on-demand fetch is made per interval, so tokens carrying made up 
+	 * k-ids can't turn into a stampede against the Auth Server
+	 */
+	private long minFetchIntervalNanos;
+	private long lastFetchNanos;
+
+	/*
+	 * The fetch currently being made, if any, for others missing a k-id to wait on
+	 */
+	private AtomicReference<CompletableFuture<Void>> inFlight = new AtomicReference<>();
+
+	private Duration fetchWait;
+
+	/**
+	 * Enables refreshing the cache on a miss
+	 * 
+	 * @param fetcher obtains the current set of keys
+	 * @param minInterval least time between on-demand fetches
+	 * @param maxWait longest a caller waits on a fetch someone else is making
+	 */
+	public void fetchOnMiss(Callable<OpenIDConnectCerts> fetcher, Duration minInterval, Duration maxWait) {
+		this.minFetchIntervalNanos = minInterval.toNanos();
+		this.lastFetchNanos = System.nanoTime() - minFetchIntervalNanos;
+		this.fetchWait = maxWait;
+		this.fetcher = fetcher;
+	}
+
+	/**
+	 * Returns the verifier for a k-id, refreshing the cache if we don't know the k-id,
+	 * as happens when the Auth Server rotates its keys.
+	 * 
+	 * Only one fetch is ever in flight, everyone else missing a k-id at the same time 
+	 * waits for it rather than making their own.
+	 * 
+	 * @param kid from the JWT header
+	 * @return the verifier, or null if the k-id is still unknown
+	 */
+	public Verifier verifierFor(String kid) {
+		var verifier = kid == null ? null : get(kid);
+		if ( verifier != null || fetcher == null )
+			return verifier;
+
+		var flight = inFlight.get();
+		if ( flight == null ) {
+			var ours = new CompletableFuture<Void>();
+			if ( inFlight.compareAndSet(null, ours) ) {
+				try {
+					// only the thread holding the flight touches lastFetchNanos
+					long now = System.nanoTime();
+					if ( now - lastFetchNanos >= minFetchIntervalNanos ) {
+						lastFetchNanos = now;
+						System.out.println("Refreshing keys for unknown k-id "+kid);
+						refresh(this, fetcher.call());
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					inFlight.set(null);
+					ours.complete(null);
+				}
+				return get(kid);
+			}
+
+			flight = inFlight.get();
+		}
+
+		if ( flight != null ) {
 			try {
-				String pub = "-----BEGIN CERTIFICATE-----\n"
-						+ key.x5c.get(0)+"\n"
-						+ "-----END CERTIFICATE-----";
-
-				cache.putIfAbsent(key.kid, RSAVerifier.newVerifier(pub)); 
-			} catch(Exception e) {
-				e.printStackTrace();
-				System.out.println("ignoring public key for "+key.kid);
+				flight.get(fetchWait.toMillis(), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				System.out.println("Timed out waiting on key refresh for k-id "+kid);
+			} catch (Exception e) {
+				// failure is reported by the fetching thread
 			}
+		}
+
+		return get(kid);
+	}
+
+	public Snapshot snapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * @return version of the current snapshot, changes whenever the keys do
+	 */
+	public long version() {
+		return snapshot.version;
+	}
+
+	public Verifier get(String kid) {
+		return snapshot.verifiers.get(kid);
+	}
+
+	public boolean containsKey(String kid) {
+		return snapshot.verifiers.containsKey(kid);
+	}
+
+	public int size() {
+		return snapshot.verifiers.size();
+	}
+
+	public Set<Entry<String, Verifier>> entrySet() {
+		return snapshot.verifiers.entrySet();
+	}
+
+	public Verifier put(String kid, Verifier verifier) {
+		synchronized(updating) {
+			var verifiers = new HashMap<>(snapshot.verifiers);
+			var previous = verifiers.put(kid, verifier);
+			replace(verifiers);
+			return previous;
+		}
+	}
+
+	public Verifier remove(String kid) {
+		synchronized(updating) {
+			if ( !snapshot.verifiers.containsKey(kid) )
+				return null;
+
+			var verifiers = new HashMap<>(snapshot.verifiers);
+			var previous = verifiers.remove(kid);
+			replace(verifiers);
+			return previous;
+		}
+	}
+
+	/*
+	 * Caller must hold updating
+	 */
+	private void replace(Map<String, Verifier> verifiers) {
+		snapshot = new Snapshot(snapshot.version + 1, Map.copyOf(verifiers));
+	}
+
+	/*
+	 * Testable method to update a key cache based on required list of keys.
+	 * The new set of verifiers is built aside, reusing those we already have for keys
+	 * that are still listed, and then swapped in whole. If nothing changed the current
+	 * snapshot, and its version, are kept.
+	 */
+	public static void refresh(CertsCache cache, OpenIDConnectCerts certs) {
+		synchronized(cache.updating) {
+			var current = cache.snapshot.verifiers;
+			var verifiers = new HashMap<String, Verifier>();
+
+			certs.keys.forEach(key -> { 
+				var existing = current.get(key.kid);
+				if ( existing != null ) {
+					verifiers.put(key.kid, existing);
+					return;
+				}
+
+				try {
+					String pub = "-----BEGIN CERTIFICATE-----\n"
+							+ key.x5c.get(0)+"\n"
+							+ "-----END CERTIFICATE-----";
+
+					verifiers.put(key.kid, RSAVerifier.newVerifier(pub)); 
+				} catch(Exception e) {
+					e.printStackTrace();
+					System.out.println("ignoring public key for "+key.kid);
+				}
 
-		});
+			});
 
-		// remove any entries that are not in the refreshed certs list of keys
-		cache.entrySet().removeIf(e -> certs.keys.stream()
-				.filter(key -> key.kid == e.getKey())
-				.findFirst()
-				.isEmpty() );
+			// same keys means same verifiers, as existing ones are reused
+			if ( !verifiers.equals(current) )
+				cache.replace(verifiers);
+		}
 	}
 
 	public static void refresh(CertsCache cache, OpenIDConfiguration oidConfig, SSLContext sslContext) throws Exception {
@@ -96,6 +96,13 @@ public class OpenIDConfiguration {
     }
 	
 	public static OpenIDConfiguration fetchFrom(URI authServerURI, SSLContext sslContext) throws Exception {
+		return fromJson(fetchJsonFrom(authServerURI, sslContext));
+	}
+
+	/**
+	 * @return the Auth Server's discovery document as served, for keeping in an AuthSnapshot
+	 */
+	public static String fetchJsonFrom(URI authServerURI, SSLContext sslContext) throws Exception {
 		
 		HttpClient client = HttpClient.newBuilder()
 				.version(Version.HTTP_1_1)
@@ -115,12 +122,13 @@ public class OpenIDConfiguration {
 		if ( response.statusCode() != HttpURLConnection.HTTP_OK )
 			throw new Exception("Failed to retrieve Auth Server config "+response.statusCode());
 		
-		OpenIDConfiguration config = new ObjectMapper()
+		return response.body();
+	}
+
+	public static OpenIDConfiguration fromJson(String json) throws Exception {
+		return new ObjectMapper()
 				.readerFor(OpenIDConfiguration.class)
-				.readValue(response.body());
-				
-		return config;
-		
+				.readValue(json);
 	}
 
 }
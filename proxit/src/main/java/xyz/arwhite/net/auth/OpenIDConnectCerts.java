@@ -23,6 +23,13 @@ public class OpenIDConnectCerts {
 	public List<OpenIDConnectKey> keys;
 	
 	public static OpenIDConnectCerts fetchFrom(URI jwksURI, SSLContext sslContext) throws Exception {
+		return fromJson(fetchJsonFrom(jwksURI, sslContext));
+	}
+
+	/**
+	 * @return the JWKS document as served, for keeping in an AuthSnapshot
+	 */
+	public static String fetchJsonFrom(URI jwksURI, SSLContext sslContext) throws Exception {
 		
 		HttpClient client = HttpClient.newBuilder()
 				.version(Version.HTTP_1_1)
@@ -41,11 +48,13 @@ public class OpenIDConnectCerts {
 		if ( response.statusCode() != HttpURLConnection.HTTP_OK )
 			throw new Exception("Failed to retrieve Auth Server cert keys "+response.statusCode());
 		
-		OpenIDConnectCerts certs = new ObjectMapper()
+		return response.body();
+	}
+
+	public static OpenIDConnectCerts fromJson(String json) throws Exception {
+		return new ObjectMapper()
 				.readerFor(OpenIDConnectCerts.class)
-				.readValue(response.body());
-		
-		return certs;
+				.readValue(json);
 	}
 
 
@@ -0,0 +1,197 @@
+package xyz.arwhite.net.auth;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.fusionauth.jwt.domain.JWT;
+
+/**
+ * Cache of JWTs that have already had their signature verified, so clients opening many
+ * tunnels with the same token only pay for the RSA check once.
+ *
+ * Entries are keyed by the SHA-256 digest of the encoded token, so the cache never holds
+ * the tokens themselves, and live no longer than the token's own expiry, or maxTtl if it
+ * has none. A cached token is only honoured while the key it was signed with is still in
+ * the CertsCache, so a key dropped by the Auth Server takes its tokens with it. That is
+ * only rechecked when the CertsCache version moves on, so a hit normally costs no more
+ * than comparing two longs.
+ *
+ * Lookups are lock free. When the cache grows past maxEntries a single thread trims it
+ * back, first of anything expired or signed by a departed key and then of the least
+ * recently used entries.
+ *
+ * @author Alan R. White
+ *
+ */
+public class TokenCache {
+
+	public record Stats(int size, long hits, long misses, long evictions) {}
+
+	/*
+	 * Trimming takes the cache down to this fraction of maxEntries, so it happens in
+	 * batches rather than on every insert once full
+	 */
+	private static final double TRIM_TO = 0.9;
+
+	private record Digest(long a, long b, long c, long d) {}
+
+	private static class Entry {
+		final JWT jwt;
+		final String kid;
+		final long expiresAt;
+		volatile long lastUsed;
+		volatile long keysVersion;
+
+		Entry(JWT jwt, String kid, long expiresAt, long keysVersion) {
+			this.jwt = jwt;
+			this.kid = kid;
+			this.expiresAt = expiresAt;
+			this.keysVersion = keysVersion;
+			this.lastUsed = System.nanoTime();
+		}
+	}
+
+	private final Map<Digest,Entry> entries = new ConcurrentHashMap<>();
+	private final CertsCache verifiers;
+	private final int maxEntries;
+	private final long maxTtlMillis;
+
+	private final ReentrantLock trimming = new ReentrantLock();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public TokenCache(CertsCache verifiers, int maxEntries, Duration maxTtl) {
+		if ( maxEntries < 1 )
+			throw new IllegalArgumentException("Token cache must allow at least one entry");
+
+		this.verifiers = verifiers;
+		this.maxEntries = maxEntries;
+		this.maxTtlMillis = maxTtl.toMillis();
+	}
+
+	/**
+	 * Returns the verified JWT for the token, from the cache if it's been seen before,
+	 * otherwise by decoding and verifying it against the CertsCache.
+	 *
+	 * @param token encoded JWT
+	 * @return the decoded JWT
+	 * @throws io.fusionauth.jwt.JWTException if the token is invalid, expired or not signed by a known key
+	 */
+	public JWT verify(String token) {
+		var digest = digest(token);
+		long now = System.currentTimeMillis();
+
+		var entry = entries.get(digest);
+		if ( entry != null ) {
+			if ( isValid(entry, now) ) {
+				entry.lastUsed = System.nanoTime();
+				hits.increment();
+				return entry.jwt;
+			}
+
+			if ( entries.remove(digest, entry) )
+				evictions.increment();
+		}
+
+		misses.increment();
+
+		// read before decoding, so a rotation during the decode forces a recheck later
+		long keysVersion = verifiers.version();
+
+		// an unknown k-id makes the CertsCache fetch the latest keys before giving up
+		var jwt = JWT.getDecoder().decode(token, verifiers::verifierFor);
+
+		long expiresAt = now + maxTtlMillis;
+		if ( jwt.expiration != null )
+			expiresAt = Math.min(expiresAt, jwt.expiration.toInstant().toEpochMilli());
+
+		entries.put(digest, new Entry(jwt, jwt.header.getString("kid"), expiresAt, keysVersion));
+
+		if ( entries.size() > maxEntries )
+			trim();
+
+		return jwt;
+	}
+
+	private boolean isValid(Entry entry, long now) {
+		if ( entry.expiresAt <= now || entry.kid == null )
+			return false;
+
+		var keys = verifiers.snapshot();
+		if ( entry.keysVersion == keys.version() )
+			return true;
+
+		if ( !keys.verifiers().containsKey(entry.kid) )
+			return false;
+
+		entry.keysVersion = keys.version();
+		return true;
+	}
+
+	/**
+	 * Drops every entry that has expired or whose signing key has left the CertsCache,
+	 * for use after the CertsCache is refreshed
+	 */
+	public void purge() {
+		long now = System.currentTimeMillis();
+		entries.entrySet().removeIf(e -> {
+			if ( isValid(e.getValue(), now) )
+				return false;
+			evictions.increment();
+			return true;
+		});
+	}
+
+	private void trim() {
+		if ( !trimming.tryLock() )
+			return;
+
+		try {
+			purge();
+
+			int excess = entries.size() - (int) (maxEntries * TRIM_TO);
+			if ( excess <= 0 )
+				return;
+
+			var oldest = new ArrayList<>(entries.entrySet());
+			oldest.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+
+			for ( int i = 0; i < excess && i < oldest.size(); i++ ) {
+				var e = oldest.get(i);
+				if ( entries.remove(e.getKey(), e.getValue()) )
+					evictions.increment();
+			}
+
+		} finally {
+			trimming.unlock();
+		}
+	}
+
+	private static Digest digest(String token) {
+		try {
+			var hash = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256")
+					.digest(token.getBytes(StandardCharsets.US_ASCII)));
+			return new Digest(hash.getLong(), hash.getLong(), hash.getLong(), hash.getLong());
+
+		} catch (NoSuchAlgorithmException e) {
+			// every jvm is required to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public Stats stats() {
+		return new Stats(entries.size(), hits.sum(), misses.sum(), evictions.sum());
+	}
+
+}
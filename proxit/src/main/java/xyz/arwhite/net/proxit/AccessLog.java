@@ -0,0 +1,365 @@
+package xyz.arwhite.net.proxit;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Binary access log, one record per tunnel, written off the connection threads.
+ *
+ * Connection threads put their entry into a bounded lock free ring and carry on, they
+ * never wait on the log. If the writer has fallen so far behind that the ring is full the
+ * entry is dropped and counted, losing a log record being better than stalling tunnels.
+ *
+ * A single writer thread drains the ring in batches and appends the records to a memory
+ * mapped segment file, leaving the page cache to get them to disk. When a segment fills
+ * a new one is started and the oldest beyond the number to keep are deleted.
+ *
+ * A segment starts with MAGIC and VERSION, then each record is its length followed by
+ * that many bytes, a zero length marking the end of what's been written. AccessLogReader
+ * turns segments back into text or JSON.
+ *
+ * @author Alan R. White
+ *
+ */
+public class AccessLog {
+
+	static final int MAGIC = 0x50584c47; // PXLG
+	static final short VERSION = 1;
+	static final int HEADER_SIZE = 8;
+
+	static final String SEGMENT_PREFIX = "access-";
+	static final String SEGMENT_SUFFIX = ".seg";
+
+	/*
+	 * Entries the ring holds, the writer is woken once a batch's worth are waiting and
+	 * otherwise looks every FLUSH_INTERVAL
+	 */
+	private static final int RING_SIZE = 8192;
+	private static final int BATCH_SIZE = 256;
+	private static final long FLUSH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+
+	// strings are cut short beyond this many characters
+	private static final int MAX_STRING = 512;
+
+	/**
+	 * Why a tunnel ended
+	 */
+	public enum Reason {
+		/** both sides finished */
+		COMPLETED,
+		/** the handshake didn't succeed, the status says why */
+		REFUSED,
+		/** either side reset the connection */
+		RESET,
+		/** either side was idle for too long */
+		TIMEOUT,
+		/** anything else that went wrong */
+		ERROR
+	}
+
+	/**
+	 * One tunnel, all times in nanoseconds
+	 *
+	 * @param closedAt when the tunnel was closed, milliseconds since the epoch
+	 * @param client address of the proxy client
+	 * @param target host:port the client asked for
+	 * @param subject who the client authorized as
+	 * @param status of the response to the CONNECT
+	 * @param reason the tunnel ended
+	 * @param parse accept to the request head being parsed, later requests on a kept
+	 * connection from the first byte of their own head
+	 * @param auth checking the credentials
+	 * @param connect connecting to the target
+	 * @param respond writing the 200
+	 * @param handshake accept to the 200 being written
+	 * @param duration the tunnel was open for
+	 * @param bytesIn relayed from the client to the target
+	 * @param bytesOut relayed from the target to the client
+	 */
+	public record Entry(long closedAt, String client, String target, String subject, int status, Reason reason,
+			long parse, long auth, long connect, long respond, long handshake, long duration,
+			long bytesIn, long bytesOut) {}
+
+	private final Path directory;
+	private final long segmentSize;
+	private final int segmentsKept;
+
+	/*
+	 * Producers claim a slot by moving tail on, the writer empties slots from head. A
+	 * claimed slot is null until its producer has filled it.
+	 */
+	private final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(RING_SIZE);
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head;
+
+	private final LongAdder written = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	private final Thread writer;
+	private volatile boolean closing;
+
+	private final ByteBuffer scratch = ByteBuffer.allocate(8192);
+	private FileChannel channel;
+	private MappedByteBuffer segment;
+
+	/**
+	 * @param directory where the segments go, created if need be
+	 * @param segmentSize bytes in each segment
+	 * @param segmentsKept number of segments kept, the oldest being deleted beyond that
+	 */
+	public AccessLog(Path directory, long segmentSize, int segmentsKept) throws IOException {
+		if ( segmentSize < scratch.capacity() || segmentsKept < 1 )
+			throw new IllegalArgumentException("Access log segments must be at least 8KB and at least one kept");
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.segmentsKept = segmentsKept;
+
+		Files.createDirectories(directory);
+		roll();
+
+		writer = new Thread(this::write, "proxit-access-log");
+		writer.setDaemon(true);
+		writer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+	}
+
+	/**
+	 * Hands an entry to the writer without waiting
+	 *
+	 * @return false if the log is too far behind and the entry was dropped
+	 */
+	public boolean log(Entry entry) {
+		long slot;
+		do {
+			slot = tail.get();
+			if ( slot - head >= RING_SIZE ) {
+				dropped.increment();
+				return false;
+			}
+		} while ( !tail.compareAndSet(slot, slot + 1) );
+
+		ring.set((int) (slot & (RING_SIZE - 1)), entry);
+
+		if ( slot - head == BATCH_SIZE )
+			LockSupport.unpark(writer);
+
+		return true;
+	}
+
+	public long written() {
+		return written.sum();
+	}
+
+	public long dropped() {
+		return dropped.sum();
+	}
+
+	private void write() {
+		var batch = new ArrayList<Entry>(BATCH_SIZE);
+
+		while ( !closing ) {
+			drain(batch);
+			if ( batch.isEmpty() ) {
+				LockSupport.parkNanos(FLUSH_INTERVAL);
+				continue;
+			}
+
+			append(batch);
+		}
+	}
+
+	/*
+	 * Takes up to a batch of filled slots, stopping at one claimed but not yet filled
+	 */
+	private void drain(List<Entry> batch) {
+		batch.clear();
+
+		long next = head;
+		while ( batch.size() < BATCH_SIZE ) {
+			int index = (int) (next & (RING_SIZE - 1));
+			var entry = ring.get(index);
+			if ( entry == null )
+				break;
+
+			ring.set(index, null);
+			batch.add(entry);
+			next++;
+		}
+
+		// only now are the slots free for producers to claim again
+		head = next;
+	}
+
+	private synchronized void append(List<Entry> batch) {
+		for ( var entry : batch ) {
+			try {
+				scratch.clear();
+				encode(entry, scratch);
+				scratch.flip();
+
+				// room for this record and the zero length ending the segment
+				if ( segment.remaining() < 4 + scratch.remaining() + 4 )
+					roll();
+
+				segment.putInt(scratch.remaining());
+				segment.put(scratch);
+				written.increment();
+
+			} catch (BufferOverflowException e) {
+				dropped.increment();
+			} catch (IOException e) {
+				e.printStackTrace();
+				dropped.increment();
+			}
+		}
+	}
+
+	static void encode(Entry entry, ByteBuffer buffer) {
+		buffer.putLong(entry.closedAt());
+		buffer.put((byte) entry.reason().ordinal());
+		buffer.putShort((short) entry.status());
+		buffer.putLong(entry.parse());
+		buffer.putLong(entry.auth());
+		buffer.putLong(entry.connect());
+		buffer.putLong(entry.respond());
+		buffer.putLong(entry.handshake());
+		buffer.putLong(entry.duration());
+		buffer.putLong(entry.bytesIn());
+		buffer.putLong(entry.bytesOut());
+		putString(buffer, entry.client());
+		putString(buffer, entry.target());
+		putString(buffer, entry.subject());
+	}
+
+	static Entry decode(ByteBuffer buffer) {
+		long closedAt = buffer.getLong();
+		var reasons = Reason.values();
+		int ordinal = buffer.get();
+		var reason = ordinal >= 0 && ordinal < reasons.length ? reasons[ordinal] : Reason.ERROR;
+		int status = buffer.getShort();
+
+		long parse = buffer.getLong();
+		long auth = buffer.getLong();
+		long connect = buffer.getLong();
+		long respond = buffer.getLong();
+		long handshake = buffer.getLong();
+		long duration = buffer.getLong();
+		long bytesIn = buffer.getLong();
+		long bytesOut = buffer.getLong();
+
+		var client = getString(buffer);
+		var target = getString(buffer);
+		var subject = getString(buffer);
+
+		return new Entry(closedAt, client, target, subject, status, reason,
+				parse, auth, connect, respond, handshake, duration, bytesIn, bytesOut);
+	}
+
+	private static void putString(ByteBuffer buffer, String string) {
+		if ( string == null ) {
+			buffer.putShort((short) -1);
+			return;
+		}
+
+		var bytes = (string.length() > MAX_STRING ? string.substring(0, MAX_STRING) : string)
+				.getBytes(StandardCharsets.UTF_8);
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		int length = buffer.getShort();
+		if ( length < 0 )
+			return null;
+
+		var bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Finishes the current segment, if any, and maps a new one
+	 */
+	private void roll() throws IOException {
+		if ( segment != null ) {
+			segment.force();
+			channel.close();
+		}
+
+		// named by time so they sort oldest first, nudged on if two arrive in the same millisecond
+		long now = System.currentTimeMillis();
+		Path path;
+		while ( Files.exists(path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, now, SEGMENT_SUFFIX))) )
+			now++;
+
+		channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		segment.putInt(MAGIC);
+		segment.putShort(VERSION);
+		segment.position(HEADER_SIZE);
+
+		prune();
+	}
+
+	private void prune() throws IOException {
+		List<Path> segments = segments(directory);
+		for ( int i = 0; i < segments.size() - segmentsKept; i++ )
+			Files.deleteIfExists(segments.get(i));
+	}
+
+	/**
+	 * @return the segments in a directory, oldest first
+	 */
+	static List<Path> segments(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files
+					.filter(p -> p.getFileName().toString().startsWith(SEGMENT_PREFIX))
+					.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+					.sorted()
+					.toList();
+		}
+	}
+
+	/**
+	 * Writes out whatever is waiting and forces the current segment to disk
+	 */
+	public void close() {
+		if ( closing )
+			return;
+		closing = true;
+		LockSupport.unpark(writer);
+
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {}
+
+		var batch = new ArrayList<Entry>(BATCH_SIZE);
+		synchronized (this) {
+			do {
+				drain(batch);
+				append(batch);
+			} while ( !batch.isEmpty() );
+
+			segment.force();
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+package xyz.arwhite.net.proxit;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Turns access log segments back into something readable, a line of text or JSON per
+ * tunnel
+ *
+ * java -cp proxit.jar:... xyz.arwhite.net.proxit.AccessLogReader [--json] segment|directory ...
+ *
+ * Directories are read a segment at a time, oldest first. Segments can be read while
+ * proxit is still writing them, reading stops at the last complete record.
+ *
+ * @author Alan R. White
+ *
+ */
+public class AccessLogReader {
+
+	private static final ObjectMapper json = new ObjectMapper();
+
+	/**
+	 * @return the records in a segment, in the order they were written
+	 */
+	public static List<AccessLog.Entry> read(Path segment) throws IOException {
+		var buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+		if ( buffer.remaining() < AccessLog.HEADER_SIZE || buffer.getInt() != AccessLog.MAGIC )
+			throw new IOException(segment+" is not an access log segment");
+
+		short version = buffer.getShort();
+		if ( version != AccessLog.VERSION )
+			throw new IOException(segment+" is access log version "+version+", not "+AccessLog.VERSION);
+		buffer.position(AccessLog.HEADER_SIZE);
+
+		var entries = new ArrayList<AccessLog.Entry>();
+		while ( buffer.remaining() >= 4 ) {
+			int length = buffer.getInt();
+			if ( length <= 0 || length > buffer.remaining() )
+				break;
+
+			var record = buffer.slice(buffer.position(), length);
+			buffer.position(buffer.position() + length);
+
+			try {
+				entries.add(AccessLog.decode(record));
+			} catch (BufferUnderflowException e) {
+				System.err.println("Skipping damaged record in "+segment);
+			}
+		}
+
+		return entries;
+	}
+
+	static String text(AccessLog.Entry entry) {
+		return Instant.ofEpochMilli(entry.closedAt())
+				+ " " + entry.client()
+				+ " " + (entry.subject() == null ? "-" : entry.subject())
+				+ " " + (entry.target() == null ? "-" : entry.target())
+				+ " " + entry.status()
+				+ " " + entry.reason()
+				+ " in=" + entry.bytesIn()
+				+ " out=" + entry.bytesOut()
+				+ " parse=" + millis(entry.parse())
+				+ " auth=" + millis(entry.auth())
+				+ " connect=" + millis(entry.connect())
+				+ " respond=" + millis(entry.respond())
+				+ " handshake=" + millis(entry.handshake())
+				+ " duration=" + millis(entry.duration());
+	}
+
+	static String json(AccessLog.Entry entry) throws JsonProcessingException {
+		var fields = new LinkedHashMap<String,Object>();
+		fields.put("closed_at", Instant.ofEpochMilli(entry.closedAt()).toString());
+		fields.put("client", entry.client());
+		fields.put("subject", entry.subject());
+		fields.put("target", entry.target());
+		fields.put("status", entry.status());
+		fields.put("reason", entry.reason().name());
+		fields.put("bytes_in", entry.bytesIn());
+		fields.put("bytes_out", entry.bytesOut());
+		fields.put("parse_ns", entry.parse());
+		fields.put("auth_ns", entry.auth());
+		fields.put("connect_ns", entry.connect());
+		fields.put("respond_ns", entry.respond());
+		fields.put("handshake_ns", entry.handshake());
+		fields.put("duration_ns", entry.duration());
+		return json.writeValueAsString(fields);
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.3fms", (double) nanos / TimeUnit.MILLISECONDS.toNanos(1));
+	}
+
+	public static void main(String[] args) {
+		boolean asJson = false;
+		var paths = new ArrayList<Path>();
+
+		for ( var arg : args ) {
+			if ( "--json".equals(arg) )
+				asJson = true;
+			else
+				paths.add(Path.of(arg));
+		}
+
+		if ( paths.isEmpty() ) {
+			System.out.println("AccessLogReader [--json] segment|directory ...");
+			return;
+		}
+
+		try {
+			for ( var path : paths ) {
+				var segments = Files.isDirectory(path) ? AccessLog.segments(path) : List.of(path);
+				for ( var segment : segments )
+					for ( var entry : read(segment) )
+						System.out.println(asJson ? json(entry) : text(entry));
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+package xyz.arwhite.net.proxit;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether proxit takes on a connection, so that under overload clients are told
+ * promptly to come back later rather than everything slowing down until it times out.
+ *
+ * A connection passes three gates. Once accepted it joins the backlog, which is bounded,
+ * to wait for a handshake slot. Handshakes, reading and authorizing the request and then
+ * connecting to the target, are limited by a Limiter which may adapt to their latency.
+ * A connection that gets as far as needing a tunnel must then fit under the limit on
+ * live tunnels. Failing any of these it gets a 503.
+ *
+ * @author Alan R. White
+ *
+ */
+public class AdmissionController {
+
+	public record Stats(int backlog, long shedAtAccept, long shedAtHandshake, long shedAtTunnel,
+			Limiter.Stats handshakes, Limiter.Stats tunnels) {}
+
+	private final Limiter handshakes;
+	private final Limiter tunnels;
+	private final int maxBacklog;
+	private final long maxWaitNanos;
+
+	private final AtomicInteger backlog = new AtomicInteger();
+
+	private final LongAdder shedAtAccept = new LongAdder();
+	private final LongAdder shedAtHandshake = new LongAdder();
+	private final LongAdder shedAtTunnel = new LongAdder();
+
+	/**
+	 * @param handshakes limits handshakes in progress
+	 * @param tunnels limits tunnels open
+	 * @param maxBacklog most connections waiting to start their handshake
+	 * @param maxWait longest a connection waits for a handshake slot
+	 */
+	public AdmissionController(Limiter handshakes, Limiter tunnels, int maxBacklog, Duration maxWait) {
+		this.handshakes = handshakes;
+		this.tunnels = tunnels;
+		this.maxBacklog = maxBacklog;
+		this.maxWaitNanos = maxWait.toNanos();
+	}
+
+	/**
+	 * Called as a connection is accepted
+	 *
+	 * @return true if it has joined the backlog, false if it should be shed
+	 */
+	public boolean accept() {
+		if ( backlog.incrementAndGet() > maxBacklog ) {
+			backlog.decrementAndGet();
+			shedAtAccept.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Takes the connection off the backlog and waits for a handshake slot
+	 *
+	 * @return true if the handshake may go ahead, in which case endHandshake() must be called
+	 */
+	public boolean startHandshake() {
+		backlog.decrementAndGet();
+
+		try {
+			if ( handshakes.acquire(maxWaitNanos, TimeUnit.NANOSECONDS) )
+				return true;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		shedAtHandshake.increment();
+		return false;
+	}
+
+	/**
+	 * @param startNanos when the handshake started
+	 * @param dropped true if it failed in a way that suggests overload, such as a timeout
+	 */
+	public void endHandshake(long startNanos, boolean dropped) {
+		handshakes.release(System.nanoTime() - startNanos, dropped);
+	}
+
+	/**
+	 * @return true if a tunnel may be opened, in which case endTunnel() must be called once it closes
+	 */
+	public boolean startTunnel() {
+		if ( tunnels.tryAcquire() )
+			return true;
+
+		shedAtTunnel.increment();
+		return false;
+	}
+
+	public void endTunnel() {
+		tunnels.release();
+	}
+
+	public Stats stats() {
+		return new Stats(backlog.get(), shedAtAccept.sum(), shedAtHandshake.sum(), shedAtTunnel.sum(),
+				handshakes.stats(), tunnels.stats());
+	}
+
+}
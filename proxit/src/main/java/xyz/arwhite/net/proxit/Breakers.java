@@ -0,0 +1,336 @@
+package xyz.arwhite.net.proxit;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the health of every destination proxit connects to, so a target that is down
+ * is refused straight away rather than tying up a thread in connect for each CONNECT
+ * made to it, and no one destination can take all the threads.
+ *
+ * Each host:port has a circuit breaker over its last window of connects, a connect
+ * failing, or taking longer than the slow connect time, counting against it.
+ *
+ * - closed, connects go ahead. Once at least half the window has been seen and the
+ *   share of failures in it reaches the failure rate the circuit opens.
+ * - open, CONNECTs get a 502 without trying. After the open time it goes half open.
+ * - half open, a few probe connects are let through. If they all succeed the circuit
+ *   closes with a clean window, if any fails it opens again.
+ *
+ * Separately each destination has caps on the connects in progress to it and on the
+ * tunnels open to it, including those connecting, past which CONNECTs get a 503.
+ *
+ * Destinations nobody has used for a while are dropped, so the map doesn't grow with
+ * every host ever visited.
+ *
+ * @author Alan R. White
+ *
+ */
+public class Breakers {
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	// connects let through to test a half open circuit
+	static final int HALF_OPEN_PROBES = 3;
+
+	private static final Duration SWEEP_INTERVAL = Duration.ofMinutes(1);
+	private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+	/**
+	 * @param failureRate percentage of failed connects in the window that opens the
+	 * circuit, 0 for never
+	 * @param window how many of the most recent connects are judged, up to 64
+	 * @param openFor how long an open circuit refuses connects before probing
+	 * @param slowConnect connects taking longer count as failures, zero for none
+	 * @param maxConnects connects in progress to one destination, 0 for no cap
+	 * @param maxTunnels tunnels open or opening to one destination, 0 for no cap
+	 */
+	public record Config(int failureRate, int window, Duration openFor, Duration slowConnect,
+			int maxConnects, int maxTunnels) {
+
+		public Config {
+			if ( failureRate < 0 || failureRate > 100 || window < 1 || window > 64 || maxConnects < 0
+					|| maxTunnels < 0 || openFor.isNegative() || slowConnect.isNegative() )
+				throw new IllegalArgumentException("Breaker needs a 0-100% failure rate, a window of 1-64 connects "
+						+ "and caps and times that aren't negative");
+		}
+	}
+
+	/**
+	 * What a CONNECT may do, the destination to report back to if it can go ahead
+	 *
+	 * @param destination to report the connect and tunnel to, null if refused
+	 * @param status 200 to go ahead, else the status to refuse with
+	 */
+	public record Permit(Destination destination, int status) {}
+
+	static final Permit CIRCUIT_OPEN = new Permit(null, 502);
+	static final Permit AT_CAPACITY = new Permit(null, 503);
+
+	/**
+	 * How one destination is faring
+	 */
+	public record Stats(String destination, State state, int connecting, int tunnels, int failures,
+			int outcomes, long meanConnectNanos) {}
+
+	private final Config config;
+	private final TimingWheel wheel;
+	private final long openNanos;
+	private final long slowNanos;
+	private final int minimumOutcomes;
+	private final ConcurrentHashMap<String,Destination> destinations = new ConcurrentHashMap<>();
+
+	private final LongAdder refusedOpen = new LongAdder();
+	private final LongAdder refusedCapacity = new LongAdder();
+	private final LongAdder opened = new LongAdder();
+
+	public Breakers(Config config, TimingWheel wheel) {
+		this.config = config;
+		this.wheel = wheel;
+		this.openNanos = config.openFor().toNanos();
+		this.slowNanos = config.slowConnect().toNanos();
+		this.minimumOutcomes = (config.window() + 1) / 2;
+
+		sweepLater();
+	}
+
+	public Config config() {
+		return config;
+	}
+
+	/**
+	 * @param target host:port from the CONNECT
+	 * @return a permit to connect, or the refusal if the circuit is open or the
+	 * destination at capacity
+	 */
+	public Permit acquire(String target) {
+		long now = System.nanoTime();
+
+		while ( true ) {
+			var destination = destinations.computeIfAbsent(target.toLowerCase(), Destination::new);
+			var permit = destination.tryAcquire(now);
+
+			// swept away under us, get a new one
+			if ( permit == null )
+				continue;
+
+			if ( permit == CIRCUIT_OPEN )
+				refusedOpen.increment();
+			else if ( permit == AT_CAPACITY )
+				refusedCapacity.increment();
+
+			return permit;
+		}
+	}
+
+	public long refusedOpen() {
+		return refusedOpen.sum();
+	}
+
+	public long refusedCapacity() {
+		return refusedCapacity.sum();
+	}
+
+	/**
+	 * @return times any circuit has opened
+	 */
+	public long opened() {
+		return opened.sum();
+	}
+
+	/**
+	 * @return destinations whose circuits are open or half open right now
+	 */
+	public int open() {
+		int open = 0;
+		for ( var destination : destinations.values() )
+			if ( destination.state != State.CLOSED )
+				open++;
+		return open;
+	}
+
+	public int tracked() {
+		return destinations.size();
+	}
+
+	public List<Stats> stats() {
+		var stats = new ArrayList<Stats>();
+		for ( var destination : destinations.values() )
+			stats.add(destination.stats());
+		return stats;
+	}
+
+	Stats stats(String target) {
+		var destination = destinations.get(target.toLowerCase());
+		return destination == null ? null : destination.stats();
+	}
+
+	/*
+	 * The wheel sweeps up destinations gone quiet, going back on it each time
+	 */
+	private void sweepLater() {
+		wheel.schedule(SWEEP_INTERVAL, () -> {
+			sweep();
+			sweepLater();
+		});
+	}
+
+	void sweep() {
+		long now = System.nanoTime();
+		for ( var destination : destinations.values() ) {
+			if ( destination.retire(now) )
+				destinations.remove(destination.name, destination);
+		}
+	}
+
+	/**
+	 * One host:port and its circuit. Everything is under the destination's lock, taken
+	 * a few times per CONNECT and only by connections to the same destination.
+	 */
+	public final class Destination {
+		private final String name;
+		private final Permit admitted = new Permit(this, 200);
+
+		private volatile State state = State.CLOSED;
+		private long openUntil;
+		private int probes, probeSuccesses;
+
+		// ring of the last window outcomes, a set bit being a failure
+		private long outcomes;
+		private int count, failures, next;
+
+		private int connecting, tunnels;
+		private long meanConnectNanos;
+		private long lastUsed;
+		private boolean retired;
+
+		private Destination(String name) {
+			this.name = name;
+			this.lastUsed = System.nanoTime();
+		}
+
+		private synchronized Permit tryAcquire(long now) {
+			if ( retired )
+				return null;
+
+			if ( (config.maxConnects() > 0 && connecting >= config.maxConnects())
+					|| (config.maxTunnels() > 0 && connecting + tunnels >= config.maxTunnels()) )
+				return AT_CAPACITY;
+
+			if ( state == State.OPEN ) {
+				if ( now - openUntil < 0 )
+					return CIRCUIT_OPEN;
+
+				state = State.HALF_OPEN;
+				probes = probeSuccesses = 0;
+				System.out.println("Circuit to "+name+" half open, probing");
+			}
+
+			if ( state == State.HALF_OPEN ) {
+				if ( probes >= HALF_OPEN_PROBES )
+					return CIRCUIT_OPEN;
+				probes++;
+			}
+
+			connecting++;
+			lastUsed = now;
+			return admitted;
+		}
+
+		/**
+		 * The connect succeeded, in nanos, and the tunnel is open
+		 */
+		public synchronized void connected(long nanos) {
+			connecting--;
+			tunnels++;
+			meanConnectNanos = meanConnectNanos == 0 ? nanos : meanConnectNanos + (nanos - meanConnectNanos) / 8;
+			record(slowNanos > 0 && nanos > slowNanos);
+		}
+
+		/**
+		 * The connect failed, or timed out, after nanos
+		 */
+		public synchronized void failed(long nanos) {
+			connecting--;
+			record(true);
+		}
+
+		/**
+		 * The connect didn't happen for reasons that say nothing about the destination's
+		 * health, such as its name not resolving
+		 */
+		public synchronized void abandoned() {
+			connecting--;
+			if ( state == State.HALF_OPEN && probes > 0 )
+				probes--;
+		}
+
+		/**
+		 * A tunnel from connected has closed
+		 */
+		public synchronized void closed() {
+			tunnels--;
+			lastUsed = System.nanoTime();
+		}
+
+		private void record(boolean failure) {
+			switch( state ) {
+			case HALF_OPEN -> {
+				if ( failure )
+					open("a probe failed");
+				else if ( ++probeSuccesses >= HALF_OPEN_PROBES ) {
+					state = State.CLOSED;
+					outcomes = 0;
+					count = failures = next = 0;
+					System.out.println("Circuit to "+name+" closed");
+				}
+			}
+			case CLOSED -> {
+				long bit = 1L << next;
+				if ( count == config.window() ) {
+					if ( (outcomes & bit) != 0 )
+						failures--;
+				} else
+					count++;
+
+				if ( failure ) {
+					outcomes |= bit;
+					failures++;
+				} else
+					outcomes &= ~bit;
+				next = (next + 1) % config.window();
+
+				if ( config.failureRate() > 0 && count >= minimumOutcomes
+						&& failures * 100 >= config.failureRate() * count )
+					open(failures+" of the last "+count+" connects failed");
+			}
+			// outcomes of connects started before the circuit opened
+			case OPEN -> {}
+			}
+		}
+
+		private void open(String why) {
+			state = State.OPEN;
+			openUntil = System.nanoTime() + openNanos;
+			opened.increment();
+			System.out.println("Circuit to "+name+" open for "+config.openFor().toSeconds()+"s, "+why);
+		}
+
+		private synchronized boolean retire(long now) {
+			if ( state != State.CLOSED || connecting > 0 || tunnels > 0 || now - lastUsed < IDLE_NANOS )
+				return false;
+
+			retired = true;
+			return true;
+		}
+
+		private synchronized Stats stats() {
+			return new Stats(name, state, connecting, tunnels, failures, count, meanConnectNanos);
+		}
+	}
+
+}
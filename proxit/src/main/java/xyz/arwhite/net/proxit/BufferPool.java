@@ -0,0 +1,130 @@
+package xyz.arwhite.net.proxit;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size classed pool of ByteBuffers shared by all connections, so tunnel churn doesn't
+ * churn the heap or the off-heap allocator.
+ *
+ * Buffers come in power of two size classes from 4KB to 64KB. Memory the pool allocates
+ * is kept for reuse and never exceeds the ceiling it was created with, if a take would
+ * go over the ceiling the caller gets a plain, unpooled, heap buffer instead, so callers
+ * never have to wait for a buffer but the pool's footprint stays fixed.
+ *
+ * A pool hands out either direct buffers, for channel IO, or heap buffers, for the
+ * stream IO that needs a backing array.
+ *
+ * @author Alan R. White
+ *
+ */
+public class BufferPool {
+
+	public record Stats(boolean direct, long ceiling, long allocated, long pooled,
+			long takes, long reuses, long overflows) {
+
+		public long inUse() {
+			return allocated - pooled;
+		}
+	}
+
+	private static final int MIN_CLASS_SHIFT = 12; // 4KB
+	private static final int MAX_CLASS_SHIFT = 16; // 64KB
+
+	public static final int MAX_BUFFER_SIZE = 1 << MAX_CLASS_SHIFT;
+
+	private final boolean direct;
+	private final long ceiling;
+
+	private final ArrayBlockingQueue<ByteBuffer>[] free;
+
+	private final AtomicLong allocated = new AtomicLong();
+	private final LongAdder takes = new LongAdder();
+	private final LongAdder reuses = new LongAdder();
+	private final LongAdder overflows = new LongAdder();
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(long ceiling, boolean direct) {
+		if ( ceiling < MAX_BUFFER_SIZE )
+			throw new IllegalArgumentException("Buffer pool ceiling must be at least "+MAX_BUFFER_SIZE+" bytes");
+
+		this.ceiling = ceiling;
+		this.direct = direct;
+
+		/*
+		 * Free lists are sized so every buffer the ceiling allows of a class can be
+		 * returned, array backed so returning one doesn't allocate
+		 */
+		free = new ArrayBlockingQueue[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+		for ( int i = 0; i < free.length; i++ )
+			free[i] = new ArrayBlockingQueue<>((int) Math.max(1, ceiling >> (MIN_CLASS_SHIFT + i)));
+	}
+
+	private static int sizeClass(int size) {
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+		return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+	}
+
+	/**
+	 * Returns a cleared buffer with at least size bytes of capacity, which should be
+	 * handed back with release() once the caller is done with it
+	 *
+	 * @param size minimum capacity needed, up to MAX_BUFFER_SIZE
+	 * @return a buffer from the pool, or a throwaway heap buffer if the pool is at its ceiling
+	 */
+	public ByteBuffer take(int size) {
+		if ( size > MAX_BUFFER_SIZE )
+			throw new IllegalArgumentException("Pooled buffers are at most "+MAX_BUFFER_SIZE+" bytes");
+
+		takes.increment();
+
+		int sizeClass = sizeClass(size);
+		var buffer = free[sizeClass].poll();
+		if ( buffer != null ) {
+			reuses.increment();
+			return buffer.clear();
+		}
+
+		/*
+		 * Overflow buffers are made one byte bigger than their size class, so that
+		 * release() can recognise and drop them even when they're the same type as ours
+		 */
+		int capacity = 1 << (sizeClass + MIN_CLASS_SHIFT);
+		if ( allocated.addAndGet(capacity) > ceiling ) {
+			allocated.addAndGet(-capacity);
+			overflows.increment();
+			return ByteBuffer.allocate(capacity + 1);
+		}
+
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * Hands a buffer obtained from take() back to the pool, overflow buffers are
+	 * simply dropped for the garbage collector. A buffer must only be released once.
+	 *
+	 * @param buffer no longer referenced by the caller
+	 */
+	public void release(ByteBuffer buffer) {
+		if ( buffer == null || buffer.isDirect() != direct )
+			return;
+
+		int sizeClass = sizeClass(buffer.capacity());
+		if ( sizeClass >= free.length || buffer.capacity() != 1 << (sizeClass + MIN_CLASS_SHIFT) )
+			return;
+
+		free[sizeClass].offer(buffer);
+	}
+
+	public Stats stats() {
+		long pooled = 0;
+		for ( int i = 0; i < free.length; i++ )
+			pooled += (long) free[i].size() << (MIN_CLASS_SHIFT + i);
+
+		return new Stats(direct, ceiling, allocated.get(), pooled,
+				takes.sum(), reuses.sum(), overflows.sum());
+	}
+
+}
@@ -0,0 +1,77 @@
+package xyz.arwhite.net.proxit;
+
+/**
+ * The Cache-Control directives of a request or response that matter to a shared cache,
+ * RFC 9111 section 5.2. Directives it doesn't know are ignored, as the RFC asks, and a
+ * request's Pragma: no-cache counts as no-cache when it has no Cache-Control.
+ *
+ * @param maxAge seconds, -1 if not given
+ * @param sMaxAge seconds, -1 if not given
+ * @param staleWhileRevalidate seconds, -1 if not given
+ *
+ * @author Alan R. White
+ *
+ */
+record CacheControl(boolean noStore, boolean noCache, boolean isPrivate, boolean isPublic,
+		boolean mustRevalidate, long maxAge, long sMaxAge, long staleWhileRevalidate) {
+
+	static final CacheControl NONE = new CacheControl(false, false, false, false, false, -1, -1, -1);
+
+	/**
+	 * @param head a parsed request or response head
+	 */
+	static CacheControl of(RequestHead head) {
+		if ( head.indexOf("cache-control") < 0 )
+			return head.lists("pragma", "no-cache")
+					? new CacheControl(false, true, false, false, false, -1, -1, -1)
+					: NONE;
+
+		boolean noStore = false, noCache = false, isPrivate = false, isPublic = false, mustRevalidate = false;
+		long maxAge = -1, sMaxAge = -1, staleWhileRevalidate = -1;
+
+		for ( int i = 0; i < head.headerCount(); i++ ) {
+			if ( !"cache-control".equalsIgnoreCase(head.name(i)) )
+				continue;
+
+			for ( var directive : head.value(i).split(",") ) {
+				int equals = directive.indexOf('=');
+				var name = (equals < 0 ? directive : directive.substring(0, equals)).strip().toLowerCase();
+				var argument = equals < 0 ? "" : directive.substring(equals + 1).strip();
+
+				switch( name ) {
+				case "no-store" -> noStore = true;
+				// with field names it's only those fields, but we'd rather revalidate than pick them out
+				case "no-cache" -> noCache = true;
+				case "private" -> isPrivate = true;
+				case "public" -> isPublic = true;
+				case "must-revalidate", "proxy-revalidate" -> mustRevalidate = true;
+				case "max-age" -> maxAge = seconds(argument, maxAge);
+				case "s-maxage" -> sMaxAge = seconds(argument, sMaxAge);
+				case "stale-while-revalidate" -> staleWhileRevalidate = seconds(argument, staleWhileRevalidate);
+				default -> {}
+				}
+			}
+		}
+
+		return new CacheControl(noStore, noCache, isPrivate, isPublic, mustRevalidate, maxAge, sMaxAge,
+				staleWhileRevalidate);
+	}
+
+	/*
+	 * Delta seconds, quoted or not, an invalid value leaving what was there and a huge one
+	 * taken as 2^31, RFC 9111 section 1.2.2
+	 */
+	private static long seconds(String argument, long otherwise) {
+		if ( argument.length() > 1 && argument.startsWith("\"") && argument.endsWith("\"") )
+			argument = argument.substring(1, argument.length() - 1);
+
+		try {
+			long seconds = Long.parseLong(argument);
+			return seconds < 0 ? otherwise : Math.min(seconds, 1L << 31);
+		} catch (NumberFormatException e) {
+			// too many digits to be anything but huge
+			return argument.chars().allMatch(Character::isDigit) && !argument.isEmpty() ? 1L << 31 : otherwise;
+		}
+	}
+
+}
@@ -0,0 +1,214 @@
+package xyz.arwhite.net.proxit;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens connections to targets trying every address the host resolves to, in the
+ * manner of Happy Eyeballs (RFC 8305), so one unreachable address doesn't stall a
+ * tunnel for the OS connect timeout.
+ *
+ * Addresses are tried in the resolver's order, alternating between IPv6 and IPv4. Each
+ * attempt is started ATTEMPT_DELAY after the previous one, or as soon as the previous
+ * one fails, without waiting for earlier attempts to finish. The first connection made
+ * is used and all the other attempts are abandoned and their sockets closed. Every
+ * attempt has its own timeout, and the whole connect an overall deadline.
+ *
+ * @author Alan R. White
+ *
+ */
+public class Connector {
+
+	/*
+	 * The Connection Attempt Delay RFC 8305 recommends
+	 */
+	public static final Duration ATTEMPT_DELAY = Duration.ofMillis(250);
+
+	/**
+	 * Makes the unconnected sockets attempts connect with, so the caller decides whether
+	 * they have channels
+	 */
+	public interface SocketFactory {
+		Socket create() throws IOException;
+	}
+
+	private record Result(Socket socket, IOException failure) {}
+
+	private final Resolver resolver;
+	private final int attemptTimeoutMillis;
+	private final long timeoutNanos;
+
+	/*
+	 * Attempts spend nearly all their time blocked in connect
+	 */
+	private final ExecutorService attempts = Executors.newVirtualThreadPerTaskExecutor();
+
+	/**
+	 * @param resolver to look target hosts up with
+	 * @param attemptTimeout longest a single address is given to connect
+	 * @param timeout longest a connect takes over all the addresses
+	 */
+	public Connector(Resolver resolver, Duration attemptTimeout, Duration timeout) {
+		this.resolver = resolver;
+		this.attemptTimeoutMillis = (int) attemptTimeout.toMillis();
+		this.timeoutNanos = timeout.toNanos();
+	}
+
+	/**
+	 * Connects to the host, trying all its addresses
+	 *
+	 * @param host name or address literal
+	 * @param port to connect to
+	 * @param factory to make the sockets with
+	 * @return the first socket to connect
+	 * @throws java.net.UnknownHostException if the host doesn't resolve
+	 * @throws SocketTimeoutException if no address connected in time
+	 * @throws IOException the last failure, if every address failed
+	 */
+	public Socket connect(String host, int port, SocketFactory factory) throws IOException {
+		return connect(host, resolver.resolve(host), port, factory);
+	}
+
+	Socket connect(String host, InetAddress[] resolved, int port, SocketFactory factory) throws IOException {
+		var addresses = interleave(resolved);
+
+		if ( addresses.size() == 1 )
+			return connect(new InetSocketAddress(addresses.get(0), port), factory,
+					(int) Math.min(attemptTimeoutMillis, TimeUnit.NANOSECONDS.toMillis(timeoutNanos)));
+
+		var race = new Race();
+		long deadline = System.nanoTime() + timeoutNanos;
+		int next = 0, outstanding = 0;
+		IOException lastFailure = null;
+
+		try {
+			while ( true ) {
+				if ( next < addresses.size() ) {
+					var target = new InetSocketAddress(addresses.get(next++), port);
+					attempts.execute(() -> race.attempt(target, factory, attemptTimeoutMillis));
+					outstanding++;
+
+				} else if ( outstanding == 0 ) {
+					throw lastFailure;
+				}
+
+				long remaining = deadline - System.nanoTime();
+				if ( remaining <= 0 )
+					throw new SocketTimeoutException("Connect to "+host+" timed out");
+
+				// wait for a result, but only until the next attempt is due if there is one
+				long wait = next < addresses.size() ? Math.min(ATTEMPT_DELAY.toNanos(), remaining) : remaining;
+				var result = race.results.poll(wait, TimeUnit.NANOSECONDS);
+				if ( result == null )
+					continue;
+
+				outstanding--;
+				if ( result.failure == null ) {
+					race.winner = result.socket;
+					return result.socket;
+				}
+
+				lastFailure = result.failure;
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted connecting to "+host);
+
+		} finally {
+			race.closeLosers();
+		}
+	}
+
+	private static Socket connect(InetSocketAddress target, SocketFactory factory, int timeoutMillis) throws IOException {
+		var socket = factory.create();
+		try {
+			socket.connect(target, timeoutMillis);
+			return socket;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * The attempts making up one connect, and their sockets so the ones that lose can
+	 * be closed, which also aborts any still connecting
+	 */
+	private static class Race {
+		final LinkedBlockingQueue<Result> results = new LinkedBlockingQueue<>();
+		final List<Socket> sockets = new ArrayList<>();
+		Socket winner;
+		boolean over;
+
+		void attempt(InetSocketAddress target, SocketFactory factory, int timeoutMillis) {
+			Socket socket = null;
+			try {
+				socket = factory.create();
+				synchronized(this) {
+					if ( over ) {
+						socket.close();
+						return;
+					}
+					sockets.add(socket);
+				}
+
+				socket.connect(target, timeoutMillis);
+				results.add(new Result(socket, null));
+
+			} catch (IOException e) {
+				if ( socket != null )
+					try { socket.close(); } catch (IOException ignored) {}
+				results.add(new Result(null, e));
+			}
+		}
+
+		synchronized void closeLosers() {
+			over = true;
+			for ( var socket : sockets )
+				if ( socket != winner )
+					try { socket.close(); } catch (IOException ignored) {}
+		}
+	}
+
+	/*
+	 * Keeps the resolver's order within each family, but alternates families starting
+	 * with whichever the resolver put first
+	 */
+	static List<InetAddress> interleave(InetAddress[] addresses) {
+		if ( addresses.length == 0 )
+			throw new IllegalArgumentException("No addresses to connect to");
+
+		var v6 = new ArrayDeque<InetAddress>();
+		var v4 = new ArrayDeque<InetAddress>();
+		for ( var address : addresses )
+			(address instanceof Inet6Address ? v6 : v4).add(address);
+
+		var first = addresses[0] instanceof Inet6Address ? v6 : v4;
+		var second = first == v6 ? v4 : v6;
+
+		var ordered = new ArrayList<InetAddress>(addresses.length);
+		while ( !first.isEmpty() || !second.isEmpty() ) {
+			if ( !first.isEmpty() )
+				ordered.add(first.poll());
+			if ( !second.isEmpty() )
+				ordered.add(second.poll());
+		}
+
+		return ordered;
+	}
+
+}
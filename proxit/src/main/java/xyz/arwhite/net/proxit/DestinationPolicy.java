@@ -0,0 +1,134 @@
+package xyz.arwhite.net.proxit;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The destination rules proxit is running with, loaded from a file and reloaded whenever
+ * it changes.
+ *
+ * The file is polled rather than watched, as watching misses the symlink swap Kubernetes
+ * does when a mounted config map is updated. A changed file is compiled off to the side
+ * and swapped in with a single volatile write, so a CONNECT sees either the old rules or
+ * the new, never a mixture. If the new file doesn't compile the old rules stay in place.
+ *
+ * @author Alan R. White
+ *
+ */
+public class DestinationPolicy {
+
+	private final Path file;
+	private volatile DestinationRules rules;
+
+	private FileTime loadedModified;
+	private long loadedSize;
+
+	private final LongAdder reloads = new LongAdder();
+	private final LongAdder reloadFailures = new LongAdder();
+
+	/**
+	 * @param file of rules, see DestinationRules
+	 * @param reloadInterval how often to check the file for changes, zero never to
+	 * @throws IOException if the file can't be read or compiled at the start
+	 */
+	public DestinationPolicy(Path file, Duration reloadInterval) throws IOException {
+		this.file = file;
+
+		try {
+			load();
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid destination rules in "+file+", "+e.getMessage(), e);
+		}
+
+		if ( !reloadInterval.isZero() ) {
+			var reloader = new Thread(() -> watch(reloadInterval), "proxit-acl-reload");
+			reloader.setDaemon(true);
+			reloader.start();
+		}
+	}
+
+	/**
+	 * For the rules to be used as they are, without a file behind them
+	 */
+	public DestinationPolicy(DestinationRules rules) {
+		this.file = null;
+		this.rules = rules;
+	}
+
+	/**
+	 * @param claims from the JWT the connection was authorized with, empty if none
+	 * @param target host:port from the CONNECT
+	 * @return true if the rules let the connection reach the target
+	 */
+	public boolean allows(Map<String,Object> claims, String target) {
+		var current = rules;
+		return current.allows(current.rolesOf(claims), target);
+	}
+
+	public DestinationRules rules() {
+		return rules;
+	}
+
+	public long reloads() {
+		return reloads.sum();
+	}
+
+	public long reloadFailures() {
+		return reloadFailures.sum();
+	}
+
+	/**
+	 * Reloads the rules if the file has changed since they were loaded
+	 *
+	 * @return true if new rules were swapped in
+	 */
+	public synchronized boolean reload() {
+		try {
+			if ( Files.getLastModifiedTime(file).equals(loadedModified) && Files.size(file) == loadedSize )
+				return false;
+
+			load();
+			reloads.increment();
+			System.out.println("Reloaded "+rules.names().size()+" destination rules from "+file);
+			return true;
+
+		} catch (IOException | IllegalArgumentException e) {
+			reloadFailures.increment();
+			System.out.println("Keeping the current destination rules, unable to reload "+file+", "+e.getMessage());
+
+			// don't try the same broken file again until it changes
+			try {
+				loadedModified = Files.getLastModifiedTime(file);
+				loadedSize = Files.size(file);
+			} catch (IOException e2) {}
+
+			return false;
+		}
+	}
+
+	private synchronized void load() throws IOException {
+		var modified = Files.getLastModifiedTime(file);
+		var size = Files.size(file);
+
+		rules = DestinationRules.load(file);
+		loadedModified = modified;
+		loadedSize = size;
+	}
+
+	private void watch(Duration interval) {
+		while ( true ) {
+			try {
+				Thread.sleep(interval.toMillis());
+			} catch (InterruptedException e) {
+				return;
+			}
+			reload();
+		}
+	}
+
+}
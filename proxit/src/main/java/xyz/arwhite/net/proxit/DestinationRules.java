@@ -0,0 +1,218 @@
+package xyz.arwhite.net.proxit;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A set of destination rules compiled for checking CONNECT targets against, each rule
+ * granting the holders of some JWT roles access to some hosts, address ranges and ports.
+ *
+ * {
+ *   "rules": [
+ *     { "name": "connectors", "roles": [ "connector-role" ],
+ *       "hosts": [ "*.arwhite.xyz", "example.com" ], "ports": [ 443, "8000-8099" ] },
+ *     { "clientRoles": { "proxit": [ "connect" ] }, "cidrs": [ "10.0.0.0/8", "2001:db8::/32" ] }
+ *   ]
+ * }
+ *
+ * Roles are the realm_access.roles Keycloak puts in its tokens, with "*" meaning anyone
+ * proxit lets in, and clientRoles are the resource_access roles for each client. Hosts
+ * are either exact names, "*.example.com" for any name under example.com, ".example.com"
+ * for it and any name under it, or "*" for any destination at all. Cidrs match targets
+ * given as IP literals, not the addresses names resolve to. Without ports a rule allows
+ * any.
+ *
+ * Each rule is a bit, so there can be at most 64. What a token's roles are granted is a
+ * mask worked out once per connection, and a TargetMatcher gives the mask of rules
+ * matching the destination. Anything left after anding the two has its port checked
+ * against the rule's bitset. So a check is linear in the labels or bits of the target
+ * and, other than for IPv6 literals, allocates nothing.
+ *
+ * @author Alan R. White
+ *
+ */
+public final class DestinationRules {
+
+	public static final int MAX_RULES = 64;
+	public static final String ANYONE = "*";
+
+	private static final ObjectMapper json = new ObjectMapper();
+
+	private final List<String> names;
+
+	// rules granted by role
+	private final long everyone;
+	private final Map<String,Long> realmRoles;
+	private final Map<String,Map<String,Long>> clientRoles;
+
+	// rules granted by destination
+	private final TargetMatcher targets = new TargetMatcher();
+
+	// ports for each rule, null for any
+	private final BitSet[] ports;
+
+	private DestinationRules(JsonNode rules) {
+		if ( !rules.isArray() )
+			throw new IllegalArgumentException("Destination rules need a rules array");
+		if ( rules.size() > MAX_RULES )
+			throw new IllegalArgumentException("At most "+MAX_RULES+" destination rules, not "+rules.size());
+
+		names = new ArrayList<>(rules.size());
+		realmRoles = new HashMap<>();
+		clientRoles = new HashMap<>();
+		ports = new BitSet[rules.size()];
+
+		long everyone = 0;
+
+		for ( int i = 0; i < rules.size(); i++ ) {
+			var rule = rules.get(i);
+			var name = rule.path("name").asText("rule "+(i + 1));
+			long bit = 1L << i;
+			names.add(name);
+
+			boolean granted = false;
+			for ( var role : TargetMatcher.strings(rule, "roles", name) ) {
+				if ( ANYONE.equals(role) )
+					everyone |= bit;
+				else
+					realmRoles.merge(role, bit, (a, b) -> a | b);
+				granted = true;
+			}
+
+			var clients = rule.path("clientRoles");
+			for ( var fields = clients.fields(); fields.hasNext(); ) {
+				var client = fields.next();
+				var roles = clientRoles.computeIfAbsent(client.getKey(), c -> new HashMap<>());
+				for ( var role : TargetMatcher.strings(clients, client.getKey(), name) ) {
+					roles.merge(role, bit, (a, b) -> a | b);
+					granted = true;
+				}
+			}
+
+			if ( !granted )
+				throw new IllegalArgumentException(name+" grants no roles");
+
+			boolean reaches = false;
+			for ( var host : TargetMatcher.strings(rule, "hosts", name) ) {
+				targets.addHost(host, bit, name);
+				reaches = true;
+			}
+
+			for ( var cidr : TargetMatcher.strings(rule, "cidrs", name) ) {
+				targets.addCidr(cidr, bit, name);
+				reaches = true;
+			}
+
+			if ( !reaches )
+				throw new IllegalArgumentException(name+" has no hosts or cidrs");
+
+			if ( rule.has("ports") )
+				ports[i] = ports(rule.get("ports"), name);
+		}
+
+		this.everyone = everyone;
+	}
+
+	public static DestinationRules parse(byte[] rules) throws IOException {
+		return new DestinationRules(json.readTree(rules).path("rules"));
+	}
+
+	public static DestinationRules load(Path file) throws IOException {
+		return parse(Files.readAllBytes(file));
+	}
+
+	/**
+	 * @return the rule names, in order
+	 */
+	public List<String> names() {
+		return names;
+	}
+
+	/**
+	 * @param claims from the JWT a connection was authorized with, empty if it had none
+	 * @return mask of the rules its roles are granted
+	 */
+	public long rolesOf(Map<String,Object> claims) {
+		long granted = everyone;
+
+		if ( claims.get("realm_access") instanceof Map<?,?> realmAccess
+				&& realmAccess.get("roles") instanceof List<?> roles ) {
+			for ( var role : roles ) {
+				var rules = realmRoles.get(role);
+				if ( rules != null )
+					granted |= rules;
+			}
+		}
+
+		if ( !clientRoles.isEmpty() && claims.get("resource_access") instanceof Map<?,?> resourceAccess ) {
+			for ( var client : clientRoles.entrySet() ) {
+				if ( resourceAccess.get(client.getKey()) instanceof Map<?,?> access
+						&& access.get("roles") instanceof List<?> roles ) {
+					for ( var role : roles ) {
+						var rules = client.getValue().get(role);
+						if ( rules != null )
+							granted |= rules;
+					}
+				}
+			}
+		}
+
+		return granted;
+	}
+
+	/**
+	 * @param granted the rules a connection's roles are granted, from rolesOf
+	 * @param target host:port, or [address]:port for IPv6, from the CONNECT
+	 * @return true if one of the granted rules allows the target
+	 */
+	public boolean allows(long granted, String target) {
+		if ( granted == 0 )
+			return false;
+
+		int colon = target.lastIndexOf(':');
+		if ( colon <= 0 )
+			return false;
+
+		int port = TargetMatcher.port(target, colon + 1, target.length());
+		if ( port < 0 )
+			return false;
+
+		long matched = targets.match(target, colon);
+
+		// anything left is down to the port
+		for ( long candidates = granted & matched; candidates != 0; candidates &= candidates - 1 ) {
+			var allowed = ports[Long.numberOfTrailingZeros(candidates)];
+			if ( allowed == null || allowed.get(port) )
+				return true;
+		}
+
+		return false;
+	}
+
+	private static BitSet ports(JsonNode node, String name) {
+		if ( !node.isArray() )
+			throw new IllegalArgumentException(name+" ports should be an array");
+
+		var allowed = new BitSet(65536);
+		for ( var entry : node ) {
+			var range = entry.asText().split("-", 2);
+			int from = TargetMatcher.port(range[0], 0, range[0].length());
+			int to = range.length == 2 ? TargetMatcher.port(range[1], 0, range[1].length()) : from;
+			if ( from < 0 || to < from )
+				throw new IllegalArgumentException(name+" has an invalid port range "+entry);
+
+			allowed.set(from, to + 1);
+		}
+		return allowed;
+	}
+
+}
@@ -0,0 +1,151 @@
+package xyz.arwhite.net.proxit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The response cache's cold tier, bodies the memory tier has no room for written out to
+ * files of their own and mapped back in, so they're served from the page cache while
+ * the operating system has room for them and read from disk when it doesn't.
+ *
+ * The tier is bounded by the bytes on disk, the least recently read bodies being
+ * deleted to make room. Bodies don't outlive proxit, the headers they go with are only
+ * held in memory, so whatever a previous run left in the directory is cleared out.
+ *
+ * Writing a body out is done without holding anything, keeping track of them by the
+ * caller's lock.
+ *
+ * @author Alan R. White
+ *
+ */
+final class DiskTier<K> {
+
+	private static final String PREFIX = "proxit-";
+	private static final String SUFFIX = ".body";
+
+	/**
+	 * A body written out, mapped read only
+	 */
+	record Stored(Path path, ByteBuffer body) {}
+
+	private final Path dir;
+	private final long maximum;
+
+	// least recently read first
+	private final LinkedHashMap<K,Stored> stored = new LinkedHashMap<>(16, 0.75f, true);
+	private long weight;
+
+	DiskTier(Path dir, long maximum) throws IOException {
+		this.dir = dir;
+		this.maximum = maximum;
+
+		Files.createDirectories(dir);
+		try ( var leftovers = Files.newDirectoryStream(dir, PREFIX+"*"+SUFFIX) ) {
+			for ( var leftover : leftovers )
+				Files.deleteIfExists(leftover);
+		}
+	}
+
+	/**
+	 * Writes a body to a file of its own, without any lock held
+	 *
+	 * @return the file and the body mapped from it
+	 */
+	Stored write(ByteBuffer body) throws IOException {
+		var path = Files.createTempFile(dir, PREFIX, SUFFIX);
+		try ( var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE) ) {
+			var from = body.duplicate();
+			while ( from.hasRemaining() )
+				channel.write(from);
+
+			// the mapping outlives the channel
+			return new Stored(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, body.remaining()));
+
+		} catch (IOException e) {
+			delete(path);
+			throw e;
+		}
+	}
+
+	/**
+	 * Keeps track of a body once written
+	 *
+	 * @return keys whose bodies were deleted to make room, which can include this one
+	 */
+	List<K> add(K key, Stored body) {
+		var evicted = new ArrayList<K>();
+		long size = body.body().capacity();
+		if ( size > maximum ) {
+			delete(body.path());
+			evicted.add(key);
+			return evicted;
+		}
+
+		remove(key);
+		stored.put(key, body);
+		weight += size;
+
+		var oldest = stored.entrySet().iterator();
+		while ( weight > maximum ) {
+			var victim = oldest.next();
+			oldest.remove();
+			weight -= victim.getValue().body().capacity();
+			delete(victim.getValue().path());
+			evicted.add(victim.getKey());
+		}
+
+		return evicted;
+	}
+
+	/**
+	 * The body has been read, making it the last to go
+	 */
+	void hit(K key) {
+		stored.get(key);
+	}
+
+	/**
+	 * Deletes the key's body if it has one here
+	 */
+	void remove(K key) {
+		var body = stored.remove(key);
+		if ( body != null ) {
+			weight -= body.body().capacity();
+			delete(body.path());
+		}
+	}
+
+	boolean contains(K key) {
+		return stored.containsKey(key);
+	}
+
+	/**
+	 * @return bytes of bodies on disk
+	 */
+	long weight() {
+		return weight;
+	}
+
+	int size() {
+		return stored.size();
+	}
+
+	/*
+	 * Readers holding the mapping still see the body once the file's gone
+	 */
+	static void delete(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			System.out.println("Unable to delete cached body "+path+", "+e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,336 @@
+package xyz.arwhite.net.proxit;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shares proxit's egress bandwidth between classes of tunnel by weight, so under
+ * contention a tunnel opened by a token with a favoured realm role (say the connector-role)
+ * gets a bigger share of the link than one opened by everyone else.
+ *
+ * The link is modelled as a token bucket running at the configured egress rate. While it
+ * has capacity tunnels write straight through, costing one compare and set. Once it is
+ * saturated writes queue by class, and a dispatcher hands out the link in deficit round
+ * robin order, each class being given quantum times its weight in bytes per round.
+ * Within a class writes go in the order they arrived.
+ *
+ * Classes come from the realm_access.roles claim Keycloak puts in its access tokens, a
+ * tunnel going in the highest weighted class any of its roles match, otherwise the
+ * default class.
+ *
+ * @author Alan R. White
+ *
+ */
+public class FairScheduler {
+
+	public static final String DEFAULT_CLASS = "default";
+
+	/*
+	 * Bytes per round per unit of weight, a relay buffer's worth so a class of weight
+	 * 1 gets at least one write in each round
+	 */
+	private static final int QUANTUM = 16384;
+
+	/**
+	 * Counters for one class
+	 *
+	 * @param name class name, the role or default
+	 * @param weight share of the link relative to the other classes
+	 * @param bytes total bytes written by tunnels in the class
+	 * @param queuedBytes bytes that had to queue for the link
+	 * @param writes number of writes that had to queue
+	 * @param waiting writes queued right now
+	 * @param delayNanos total time writes spent queued
+	 * @param maxDelayNanos longest any write spent queued
+	 */
+	public record ClassStats(String name, int weight, long bytes, long queuedBytes, long writes, int waiting,
+			long delayNanos, long maxDelayNanos) {
+
+		/**
+		 * @return mean time a queued write waited, 0 if none have
+		 */
+		public long meanDelayNanos() {
+			return writes == 0 ? 0 : delayNanos / writes;
+		}
+	}
+
+	/*
+	 * A write waiting for the link
+	 */
+	private record Request(int bytes, long queuedAt, Runnable onGrant) {}
+
+	private static class TrafficClass {
+		final String name;
+		final int weight;
+		final ArrayDeque<Request> queue = new ArrayDeque<>();
+		long deficit;
+
+		final LongAdder bytes = new LongAdder();
+		final LongAdder queuedBytes = new LongAdder();
+		final LongAdder writes = new LongAdder();
+		final LongAdder delayNanos = new LongAdder();
+		volatile long maxDelayNanos;
+
+		TrafficClass(String name, int weight) {
+			this.name = name;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * A tunnel's way onto the link, bound to its class
+	 */
+	public class Flow {
+		private final TrafficClass trafficClass;
+
+		private Flow(TrafficClass trafficClass) {
+			this.trafficClass = trafficClass;
+		}
+
+		/**
+		 * Claims the link for bytes if it has room now and nothing is queued ahead
+		 *
+		 * @param bytes about to be written
+		 * @return true if they may be written straight away
+		 */
+		public boolean tryPass(int bytes) {
+			if ( waiting.get() > 0 || !link.tryConsume(bytes) )
+				return false;
+
+			trafficClass.bytes.add(bytes);
+			return true;
+		}
+
+		/**
+		 * Queues bytes for the link, onGrant is run on the dispatcher thread once
+		 * they may be written so must be quick and must not block
+		 */
+		public void submit(int bytes, Runnable onGrant) {
+			enqueue(trafficClass, bytes, onGrant);
+		}
+
+		/**
+		 * Blocks until bytes may be written
+		 */
+		public void acquire(int bytes) throws InterruptedException {
+			if ( tryPass(bytes) )
+				return;
+
+			var granted = new CountDownLatch(1);
+			submit(bytes, granted::countDown);
+			granted.await();
+		}
+
+		public String className() {
+			return trafficClass.name;
+		}
+	}
+
+	private final TokenBucket link;
+	private final Map<String,TrafficClass> byRole = new LinkedHashMap<>();
+	private final TrafficClass[] classes;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition work = lock.newCondition();
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	// the class the dispatcher is serving and whether it has had this round's quantum
+	private int current;
+	private boolean credited;
+
+	/**
+	 * @param rate aggregate egress bytes per second
+	 * @param burst bytes the link may take at once
+	 * @param roleWeights weight of each role given a class of its own, everything else has weight 1
+	 */
+	public FairScheduler(long rate, long burst, Map<String,Integer> roleWeights) {
+		this.link = new TokenBucket(rate, burst > 0 ? burst : rate);
+
+		var all = new ArrayList<TrafficClass>();
+		all.add(new TrafficClass(DEFAULT_CLASS, 1));
+		roleWeights.forEach((role, weight) -> {
+			if ( weight < 1 )
+				throw new IllegalArgumentException("Weight for role "+role+" must be positive");
+
+			var trafficClass = new TrafficClass(role, weight);
+			byRole.put(role, trafficClass);
+			all.add(trafficClass);
+		});
+		classes = all.toArray(new TrafficClass[0]);
+
+		var dispatcher = new Thread(this::dispatch, "proxit-scheduler");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * @param claims from the JWT the tunnel was opened with, if any
+	 * @return the tunnel's flow, in the class of its highest weighted role
+	 */
+	public Flow flowFor(Map<String,Object> claims) {
+		var chosen = classes[0];
+
+		for ( var role : roles(claims) ) {
+			var trafficClass = byRole.get(role);
+			if ( trafficClass != null && trafficClass.weight > chosen.weight )
+				chosen = trafficClass;
+		}
+
+		return new Flow(chosen);
+	}
+
+	/*
+	 * Keycloak realm roles, "realm_access": { "roles": [ ... ] }
+	 */
+	private static List<String> roles(Map<String,Object> claims) {
+		if ( claims.get("realm_access") instanceof Map<?,?> realmAccess
+				&& realmAccess.get("roles") instanceof List<?> roles )
+			return roles.stream()
+					.filter(String.class::isInstance)
+					.map(String.class::cast)
+					.toList();
+
+		return List.of();
+	}
+
+	private void enqueue(TrafficClass trafficClass, int bytes, Runnable onGrant) {
+		lock.lock();
+		try {
+			trafficClass.queue.add(new Request(bytes, System.nanoTime(), onGrant));
+			if ( waiting.getAndIncrement() == 0 )
+				work.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void dispatch() {
+		while ( true ) {
+			try {
+				TrafficClass trafficClass;
+				Request request;
+
+				lock.lock();
+				try {
+					while ( waiting.get() == 0 )
+						work.await();
+
+					trafficClass = next();
+					request = trafficClass.queue.poll();
+				} finally {
+					lock.unlock();
+				}
+
+				// the link is paid for before the write goes, the request stays counted
+				// as waiting so others keep queueing behind it
+				Shaper.pause(link.consume(request.bytes()));
+				waiting.decrementAndGet();
+
+				record(trafficClass, request);
+				request.onGrant().run();
+
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Deficit round robin, the class whose head request fits within its deficit,
+	 * moving on once a class has spent its quantum or emptied. Called holding the lock
+	 * with at least one request queued.
+	 */
+	private TrafficClass next() {
+		while ( true ) {
+			var trafficClass = classes[current];
+
+			if ( trafficClass.queue.isEmpty() ) {
+				trafficClass.deficit = 0;
+				advance();
+				continue;
+			}
+
+			if ( !credited ) {
+				trafficClass.deficit += (long) QUANTUM * trafficClass.weight;
+				credited = true;
+			}
+
+			int bytes = trafficClass.queue.peek().bytes();
+			if ( bytes <= trafficClass.deficit ) {
+				trafficClass.deficit -= bytes;
+				return trafficClass;
+			}
+
+			advance();
+		}
+	}
+
+	private void advance() {
+		current = (current + 1) % classes.length;
+		credited = false;
+	}
+
+	private void record(TrafficClass trafficClass, Request request) {
+		long delay = System.nanoTime() - request.queuedAt();
+
+		trafficClass.bytes.add(request.bytes());
+		trafficClass.queuedBytes.add(request.bytes());
+		trafficClass.writes.increment();
+		trafficClass.delayNanos.add(delay);
+		if ( delay > trafficClass.maxDelayNanos )
+			trafficClass.maxDelayNanos = delay;
+	}
+
+	/**
+	 * @return counters for each class, the default class first
+	 */
+	public List<ClassStats> stats() {
+		var stats = new ArrayList<ClassStats>();
+
+		lock.lock();
+		try {
+			for ( var c : classes )
+				stats.add(new ClassStats(c.name, c.weight, c.bytes.sum(), c.queuedBytes.sum(),
+						c.writes.sum(), c.queue.size(), c.delayNanos.sum(), c.maxDelayNanos));
+		} finally {
+			lock.unlock();
+		}
+
+		return stats;
+	}
+
+	/**
+	 * Parses role weights given as role=weight pairs separated by commas
+	 */
+	public static Map<String,Integer> parseWeights(String spec) {
+		var weights = new LinkedHashMap<String,Integer>();
+
+		for ( var pair : spec.split(",") ) {
+			if ( pair.isBlank() )
+				continue;
+
+			var parts = pair.split("=");
+			if ( parts.length != 2 )
+				throw new IllegalArgumentException("Role weight "+pair+" is not role=weight");
+
+			try {
+				weights.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Role weight "+pair+" is not a number");
+			}
+		}
+
+		return weights;
+	}
+
+}
@@ -1,18 +1,28 @@
 package xyz.arwhite.net.proxit;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
+/**
+ * String based header handling, proxied requests themselves are parsed in place by 
+ * RequestHead
+ */
 public class Headers {
 	
 	public static Map<String,List<String>> parse(List<String> headerStrings) {
 		
-		return headerStrings.stream()
-				.collect(Collectors.groupingBy(s -> s.split(":",2)[0].strip().toLowerCase(), 
-						Collectors.mapping(
-								s -> s.split(":",2)[1].strip(),
-								Collectors.toList())));
+		var headers = new HashMap<String,List<String>>();
+		for ( var header : headerStrings ) {
+			int colon = header.indexOf(':');
+			if ( colon < 0 )
+				throw new IllegalArgumentException("Header without a name "+header);
+
+			headers.computeIfAbsent(header.substring(0, colon).strip().toLowerCase(), k -> new ArrayList<>())
+				.add(header.substring(colon + 1).strip());
+		}
+		return headers;
 		
 	}
 	
@@ -0,0 +1,424 @@
+package xyz.arwhite.net.proxit;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * What a forwarding proxy has to decide about the plain HTTP messages passing through
+ * it, where a request is going, how its body and its response's body are framed, and
+ * which headers go no further than the hop they came in on.
+ *
+ * Forwarded heads are rebuilt into a buffer from the parsed head's bytes, the request in
+ * origin form with the Host the target names, less the hop-by-hop headers and with a Via
+ * added, so each goes out in a single write. Responses the cache stores keep their
+ * end-to-end headers only, and are sent with an Age of their own when served.
+ *
+ * @author Alan R. White
+ *
+ */
+final class HttpMessages {
+
+	/**
+	 * An absolute-form request target
+	 *
+	 * @param endpoint host:port to connect to, the host in lower case
+	 * @param authority as given in the target, for the Host header
+	 * @param path and query, in origin form
+	 */
+	record Target(String endpoint, String authority, String path) {}
+
+	static final long INVALID = -3;
+
+	private static final String[] HOP_BY_HOP = { "connection", "keep-alive", "proxy-connection",
+			"proxy-authorization", "proxy-authenticate", "te", "trailer", "upgrade" };
+
+	private static final byte[] VIA = ascii("Via: 1.1 proxit\r\n");
+	private static final byte[] CLOSE = ascii("Connection: close\r\n");
+	private static final byte[] CRLF = ascii("\r\n");
+
+	// conditionals the cache replaces with its own when it fills or revalidates
+	private static final String[] CONDITIONALS = { "if-none-match", "if-modified-since" };
+
+	// what a 304 doesn't change about the stored response it renews, RFC 9111 section 3.2
+	private static final String[] NOT_UPDATED = { "age", "content-length", "transfer-encoding" };
+
+	// what a 304 carries over from the response it stands for, RFC 9110 section 15.4.5
+	private static final String[] NOT_MODIFIED = { "cache-control", "content-location", "date", "etag", 
+			"expires", "vary" };
+
+	private HttpMessages() {}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @param target from the request line
+	 * @return the target if it's an absolute http URI, else null
+	 */
+	static Target target(String target) {
+		if ( !target.regionMatches(true, 0, "http://", 0, 7) )
+			return null;
+
+		int end = 7;
+		while ( end < target.length() && "/?#".indexOf(target.charAt(end)) < 0 )
+			end++;
+
+		var authority = target.substring(7, end);
+		if ( authority.isEmpty() || authority.indexOf('@') >= 0 )
+			return null;
+
+		int hostEnd = authority.startsWith("[") ? authority.indexOf(']') + 1 : authority.lastIndexOf(':');
+		if ( hostEnd == 0 )
+			return null;
+		if ( hostEnd < 0 )
+			hostEnd = authority.length();
+
+		int port = 80;
+		if ( hostEnd < authority.length() ) {
+			if ( authority.charAt(hostEnd) != ':' )
+				return null;
+			if ( hostEnd + 1 < authority.length() )
+				port = TargetMatcher.port(authority, hostEnd + 1, authority.length());
+		}
+		if ( port <= 0 )
+			return null;
+
+		int fragment = target.indexOf('#', end);
+		var path = target.substring(end, fragment < 0 ? target.length() : fragment);
+		if ( path.isEmpty() || path.charAt(0) == '?' )
+			path = "/" + path;
+
+		return new Target(authority.substring(0, hostEnd).toLowerCase(Locale.ROOT)+":"+port, authority, path);
+	}
+
+	/**
+	 * @return true if the client will take another response on the connection, HTTP/1.0
+	 * clients are answered and closed
+	 */
+	static boolean keepAlive(RequestHead request) {
+		return request.versionIs("HTTP/1.1") && !request.lists("connection", "close");
+	}
+
+	/**
+	 * @return the request body's length, NO_BODY, CHUNKED, or INVALID if it can't be
+	 * framed, which would leave proxit and the origin disagreeing on where it ends
+	 */
+	static long requestBody(RequestHead request) {
+		if ( request.indexOf("transfer-encoding") >= 0 ) {
+			if ( request.indexOf("content-length") >= 0 || !chunkedLast(request) )
+				return INVALID;
+			return MessageReader.CHUNKED;
+		}
+
+		long length = contentLength(request);
+		return length == -1 ? MessageReader.NO_BODY : length;
+	}
+
+	/**
+	 * @param toHead true if the response is to a HEAD request
+	 * @return the response body's length, NO_BODY, CHUNKED, UNTIL_CLOSE, or INVALID
+	 */
+	static long responseBody(RequestHead response, boolean toHead) {
+		int status = response.status();
+		if ( toHead || status < 200 || status == 204 || status == 304 )
+			return MessageReader.NO_BODY;
+
+		if ( response.indexOf("transfer-encoding") >= 0 )
+			return chunkedLast(response) ? MessageReader.CHUNKED : MessageReader.UNTIL_CLOSE;
+
+		long length = contentLength(response);
+		return length == -1 ? MessageReader.UNTIL_CLOSE : length;
+	}
+
+	/*
+	 * Content-Length, -1 if there isn't one, INVALID if it isn't a number or is given
+	 * more than once with different values
+	 */
+	private static long contentLength(RequestHead head) {
+		long length = -1;
+		for ( int i = 0; i < head.headerCount(); i++ ) {
+			if ( !regionIs(head.bytes(), head.headerStart(i), head.headerEnd(i), "content-length") )
+				continue;
+
+			long value = head.number(i);
+			if ( value < 0 || (length >= 0 && value != length) )
+				return INVALID;
+			length = value;
+		}
+		return length;
+	}
+
+	private static boolean chunkedLast(RequestHead head) {
+		String last = null;
+		for ( int i = 0; i < head.headerCount(); i++ )
+			if ( regionIs(head.bytes(), head.headerStart(i), head.headerEnd(i), "transfer-encoding") )
+				last = head.value(i);
+
+		int comma = last.lastIndexOf(',');
+		return "chunked".equalsIgnoreCase(last.substring(comma + 1).strip());
+	}
+
+	/*
+	 * Headers for this hop only, the standard ones and any the message's Connection names
+	 */
+	private static boolean hopByHop(RequestHead head, int index, boolean connectionListed) {
+		int start = head.headerStart(index), end = head.headerEnd(index);
+		var bytes = head.bytes();
+
+		for ( var name : HOP_BY_HOP )
+			if ( regionIs(bytes, start, end, name) )
+				return true;
+
+		return connectionListed && head.listsNameOf("connection", index);
+	}
+
+	/*
+	 * The header's name, which runs up to its colon, is the given lower case name
+	 */
+	private static boolean regionIs(byte[] bytes, int start, int end, String name) {
+		if ( end - start <= name.length() )
+			return false;
+
+		for ( int i = 0; i < name.length(); i++ ) {
+			int b = bytes[start + i];
+			if ( b >= 'A' && b <= 'Z' )
+				b += 'a' - 'A';
+			if ( b != name.charAt(i) )
+				return false;
+		}
+
+		return bytes[start + name.length()] == ':';
+	}
+
+	/**
+	 * Builds the request to send the origin
+	 *
+	 * @param dropExpect true if proxit has answered an Expect: 100-continue itself
+	 * @return length of the head in to, or -1 if it doesn't fit
+	 */
+	static int requestHead(RequestHead request, Target target, boolean dropExpect, byte[] to) {
+		return requestHead(request, target, dropExpect, null, to);
+	}
+
+	/**
+	 * Builds the request to send the origin on the cache's behalf
+	 *
+	 * @param validators null to send the client's conditionals, otherwise the cache's own
+	 * If-None-Match and If-Modified-Since lines to send instead, empty for none
+	 * @return length of the head in to, or -1 if it doesn't fit
+	 */
+	static int requestHead(RequestHead request, Target target, boolean dropExpect, byte[] validators, byte[] to) {
+		var head = new Builder(to)
+				.put(request.bytes(), 0, request.methodEnd())
+				.put(" ").put(target.path()).put(" HTTP/1.1\r\nHost: ").put(target.authority()).put(CRLF);
+
+		boolean connectionListed = request.indexOf("connection") >= 0;
+		var bytes = request.bytes();
+		for ( int i = 0; i < request.headerCount(); i++ ) {
+			int start = request.headerStart(i), end = request.headerEnd(i);
+			if ( hopByHop(request, i, connectionListed) || regionIs(bytes, start, end, "host")
+					|| (dropExpect && regionIs(bytes, start, end, "expect"))
+					|| (validators != null && isAny(bytes, start, end, CONDITIONALS)) )
+				continue;
+
+			head.put(bytes, start, end).put(CRLF);
+		}
+
+		if ( validators != null )
+			head.put(validators);
+
+		return head.put(VIA).put(CRLF).length();
+	}
+
+	/**
+	 * Builds the response to send the client
+	 *
+	 * @param close true if the client connection is closed after the response
+	 * @return length of the head in to, or -1 if it doesn't fit
+	 */
+	static int responseHead(RequestHead response, boolean close, byte[] to) {
+		var bytes = response.bytes();
+		var head = new Builder(to)
+				.put("HTTP/1.1 ").put(bytes, response.statusStart(), response.statusEnd()).put(CRLF);
+
+		boolean connectionListed = response.indexOf("connection") >= 0;
+		for ( int i = 0; i < response.headerCount(); i++ ) {
+			if ( hopByHop(response, i, connectionListed) )
+				continue;
+
+			head.put(bytes, response.headerStart(i), response.headerEnd(i)).put(CRLF);
+		}
+
+		head.put(VIA);
+		if ( close )
+			head.put(CLOSE);
+
+		return head.put(CRLF).length();
+	}
+
+	/**
+	 * Builds the head the cache stores for a response, its end-to-end headers less any
+	 * Age, which is worked out afresh each time it's served
+	 *
+	 * @return length of the head in to, or -1 if it doesn't fit
+	 */
+	static int storedHead(RequestHead response, byte[] to) {
+		var bytes = response.bytes();
+		var head = new Builder(to)
+				.put("HTTP/1.1 ").put(bytes, response.statusStart(), response.statusEnd()).put(CRLF);
+
+		boolean connectionListed = response.indexOf("connection") >= 0;
+		for ( int i = 0; i < response.headerCount(); i++ ) {
+			int start = response.headerStart(i), end = response.headerEnd(i);
+			if ( hopByHop(response, i, connectionListed) || regionIs(bytes, start, end, "age") )
+				continue;
+
+			head.put(bytes, start, end).put(CRLF);
+		}
+
+		return head.put(CRLF).length();
+	}
+
+	/**
+	 * Updates a stored head with the 304 that revalidated it, each of the 304's end-to-end
+	 * headers replacing those of the same name, RFC 9111 section 3.2, other than the
+	 * stored body's framing
+	 *
+	 * @param stored from storedHead()
+	 * @return length of the head in to, or -1 if it doesn't fit
+	 */
+	static int updatedHead(byte[] stored, RequestHead notModified, byte[] to) {
+		var response = new RequestHead();
+		response.parseResponse(stored, stored.length);
+
+		var bytes = notModified.bytes();
+		boolean connectionListed = notModified.indexOf("connection") >= 0;
+		var updates = new boolean[notModified.headerCount()];
+		for ( int i = 0; i < updates.length; i++ )
+			updates[i] = !hopByHop(notModified, i, connectionListed)
+					&& !isAny(bytes, notModified.headerStart(i), notModified.headerEnd(i), NOT_UPDATED);
+
+		var head = new Builder(to).put(stored, 0, response.statusEnd()).put(CRLF);
+		for ( int i = 0; i < response.headerCount(); i++ ) {
+			var name = response.name(i);
+			boolean replaced = false;
+			for ( int j = 0; j < updates.length && !replaced; j++ )
+				replaced = updates[j] && name.equalsIgnoreCase(notModified.name(j));
+
+			if ( !replaced )
+				head.put(stored, response.headerStart(i), response.headerEnd(i)).put(CRLF);
+		}
+
+		for ( int i = 0; i < updates.length; i++ )
+			if ( updates[i] )
+				head.put(bytes, notModified.headerStart(i), notModified.headerEnd(i)).put(CRLF);
+
+		return head.put(CRLF).length();
+	}
+
+	/**
+	 * Builds the response to send the client from a stored head
+	 *
+	 * @param stored from storedHead()
+	 * @param age of the stored response in seconds
+	 * @return length of the head in to, or -1 if it doesn't fit
+	 */
+	static int cachedHead(byte[] stored, long age, boolean close, byte[] to) {
+		// the stored head's blank line goes after the headers added here
+		var head = new Builder(to).put(stored, 0, stored.length - 2);
+		return served(head, age, close);
+	}
+
+	/**
+	 * Builds a 304 telling the client the stored response it has a copy of is still good
+	 *
+	 * @param stored from storedHead()
+	 * @return length of the head in to, or -1 if it doesn't fit
+	 */
+	static int notModifiedHead(byte[] stored, long age, boolean close, byte[] to) {
+		var response = new RequestHead();
+		response.parseResponse(stored, stored.length);
+
+		var head = new Builder(to).put("HTTP/1.1 304 Not Modified\r\n");
+		for ( int i = 0; i < response.headerCount(); i++ ) {
+			int start = response.headerStart(i), end = response.headerEnd(i);
+			if ( isAny(stored, start, end, NOT_MODIFIED) )
+				head.put(stored, start, end).put(CRLF);
+		}
+
+		return served(head, age, close);
+	}
+
+	private static int served(Builder head, long age, boolean close) {
+		head.put("Age: ").put(Long.toString(age)).put(CRLF).put(VIA);
+		if ( close )
+			head.put(CLOSE);
+
+		return head.put(CRLF).length();
+	}
+
+	private static boolean isAny(byte[] bytes, int start, int end, String[] names) {
+		for ( var name : names )
+			if ( regionIs(bytes, start, end, name) )
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param value an HTTP date, in the IMF-fixdate form all senders have to use
+	 * @return milliseconds since the epoch, or -1 if it isn't a date
+	 */
+	static long date(String value) {
+		try {
+			return ZonedDateTime.parse(value.strip(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	/*
+	 * Appends to a head, remembering rather than throwing if it overflows
+	 */
+	private static final class Builder {
+		private final byte[] to;
+		private int length;
+
+		Builder(byte[] to) {
+			this.to = to;
+		}
+
+		Builder put(byte[] bytes) {
+			return put(bytes, 0, bytes.length);
+		}
+
+		Builder put(byte[] bytes, int start, int end) {
+			if ( length < 0 || length + end - start > to.length )
+				length = -1;
+			else {
+				System.arraycopy(bytes, start, to, length, end - start);
+				length += end - start;
+			}
+			return this;
+		}
+
+		// Strings from request heads, which are ISO-8859-1
+		Builder put(String s) {
+			if ( length < 0 || length + s.length() > to.length )
+				length = -1;
+			else {
+				for ( int i = 0; i < s.length(); i++ )
+					to[length++] = (byte) s.charAt(i);
+			}
+			return this;
+		}
+
+		int length() {
+			return length;
+		}
+	}
+
+}
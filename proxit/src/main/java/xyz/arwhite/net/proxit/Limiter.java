@@ -0,0 +1,255 @@
+package xyz.arwhite.net.proxit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caps how many of something may be in progress at once, with the cap either fixed or
+ * adjusted from the latency of the work being limited.
+ *
+ * The adaptive algorithms follow the approach of TCP congestion control applied to
+ * concurrency. Vegas estimates how much of the work in flight is queueing from how far
+ * latency has risen above the lowest seen, Gradient from how far short term latency has
+ * risen above the long term average. Either way, as latency climbs the limit comes down
+ * and excess work is turned away rather than being left to queue until everything times
+ * out, and as latency recovers the limit grows back to its ceiling.
+ *
+ * @author Alan R. White
+ *
+ */
+public class Limiter {
+
+	public record Stats(String algorithm, int limit, int inFlight, long acquired, long rejected) {}
+
+	/**
+	 * Decides the limit from the samples reported as work completes
+	 */
+	public interface Algorithm {
+
+		/**
+		 * @param limit current limit
+		 * @param rttNanos time the work took
+		 * @param inFlight how much work was in progress when it completed
+		 * @param dropped true if the work failed in a way that suggests overload
+		 * @return the new limit
+		 */
+		double update(double limit, long rttNanos, int inFlight, boolean dropped);
+
+		String name();
+	}
+
+	/**
+	 * Keeps the limit where it started
+	 */
+	public static class Fixed implements Algorithm {
+
+		public double update(double limit, long rttNanos, int inFlight, boolean dropped) {
+			return limit;
+		}
+
+		public String name() {
+			return "fixed";
+		}
+	}
+
+	/**
+	 * Grows the limit while the estimated queue is short, shrinks it when it's long
+	 */
+	public static class Vegas implements Algorithm {
+
+		/*
+		 * The lowest latency seen is forgotten every so often, so a change in the work,
+		 * such as slower targets, isn't mistaken for queueing forever
+		 */
+		private static final int PROBE_INTERVAL = 1000;
+
+		private long rttNoLoad = 0;
+		private int samples = 0;
+
+		public double update(double limit, long rttNanos, int inFlight, boolean dropped) {
+			if ( ++samples % PROBE_INTERVAL == 0 )
+				rttNoLoad = 0;
+
+			if ( rttNoLoad == 0 || rttNanos < rttNoLoad ) {
+				rttNoLoad = rttNanos;
+				return limit;
+			}
+
+			double log = Math.max(1, Math.log10(limit));
+			if ( dropped )
+				return limit - log;
+
+			// too little in flight to tell anything about the limit
+			if ( inFlight * 2 < limit )
+				return limit;
+
+			double queue = Math.ceil(limit * (1 - (double) rttNoLoad / rttNanos));
+			if ( queue <= 3 * log )
+				return limit + log;
+			if ( queue >= 6 * log )
+				return limit - log;
+			return limit;
+		}
+
+		public String name() {
+			return "vegas";
+		}
+	}
+
+	/**
+	 * Scales the limit by the ratio of long term to short term latency
+	 */
+	public static class Gradient implements Algorithm {
+
+		private static final double SHORT_SMOOTHING = 0.1;
+		private static final double LONG_SMOOTHING = 0.01;
+		private static final double TOLERANCE = 1.5;
+		private static final double LIMIT_SMOOTHING = 0.2;
+
+		private double shortRtt = 0;
+		private double longRtt = 0;
+
+		public double update(double limit, long rttNanos, int inFlight, boolean dropped) {
+			if ( longRtt == 0 ) {
+				shortRtt = longRtt = rttNanos;
+				return limit;
+			}
+
+			shortRtt += (rttNanos - shortRtt) * SHORT_SMOOTHING;
+			longRtt += (rttNanos - longRtt) * LONG_SMOOTHING;
+
+			// let the long term average fall quickly once a bout of high latency passes
+			if ( longRtt / shortRtt > 2 )
+				longRtt *= 0.95;
+
+			if ( !dropped && inFlight * 2 < limit )
+				return limit;
+
+			double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+			if ( dropped )
+				gradient = 0.5;
+
+			double target = limit * gradient + Math.sqrt(limit);
+			return limit * (1 - LIMIT_SMOOTHING) + target * LIMIT_SMOOTHING;
+		}
+
+		public String name() {
+			return "gradient";
+		}
+	}
+
+	private final Algorithm algorithm;
+	private final int minLimit, maxLimit;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+
+	private double limit;
+	private int inFlight;
+	private long acquired, rejected;
+
+	/**
+	 * @param algorithm deciding the limit
+	 * @param maxLimit ceiling, and the starting limit
+	 */
+	public Limiter(Algorithm algorithm, int maxLimit) {
+		if ( maxLimit < 1 )
+			throw new IllegalArgumentException("Limit must be at least 1");
+
+		this.algorithm = algorithm;
+		this.minLimit = 1;
+		this.maxLimit = maxLimit;
+		this.limit = maxLimit;
+	}
+
+	/**
+	 * @return true if the caller may go ahead, in which case it must call release()
+	 */
+	public boolean tryAcquire() {
+		lock.lock();
+		try {
+			if ( inFlight >= (int) limit ) {
+				rejected++;
+				return false;
+			}
+
+			inFlight++;
+			acquired++;
+			return true;
+
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits up to the timeout for the limit to allow the caller to go ahead
+	 *
+	 * @return true if the caller may go ahead, in which case it must call release()
+	 */
+	public boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+		long remaining = unit.toNanos(timeout);
+
+		lock.lock();
+		try {
+			while ( inFlight >= (int) limit ) {
+				if ( remaining <= 0 ) {
+					rejected++;
+					return false;
+				}
+				remaining = released.awaitNanos(remaining);
+			}
+
+			inFlight++;
+			acquired++;
+			return true;
+
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases without telling the algorithm anything, for work whose duration says
+	 * nothing about load
+	 */
+	public void release() {
+		lock.lock();
+		try {
+			inFlight--;
+			released.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases and reports how the work went
+	 *
+	 * @param rttNanos time the work took
+	 * @param dropped true if it failed in a way that suggests overload
+	 */
+	public void release(long rttNanos, boolean dropped) {
+		lock.lock();
+		try {
+			limit = Math.max(minLimit, Math.min(maxLimit, algorithm.update(limit, rttNanos, inFlight, dropped)));
+			inFlight--;
+
+			// the limit may have grown by more than the one slot just freed
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public Stats stats() {
+		lock.lock();
+		try {
+			return new Stats(algorithm.name(), (int) limit, inFlight, acquired, rejected);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
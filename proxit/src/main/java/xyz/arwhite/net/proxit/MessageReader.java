@@ -0,0 +1,310 @@
+package xyz.arwhite.net.proxit;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads HTTP/1.1 messages off a connection through one buffer, the heads to be parsed in
+ * place by RequestHead and the bodies streamed on as they arrive, never held whole.
+ *
+ * Bodies are passed on verbatim, chunked ones included, their framing only read so as
+ * to know where they end. Whatever the connection sent after a message stays in the
+ * buffer for the next, so pipelined requests aren't lost.
+ *
+ * @author Alan R. White
+ *
+ */
+class MessageReader {
+
+	/*
+	 * How a body is framed, other than by its length
+	 */
+	static final long NO_BODY = 0;
+	static final long CHUNKED = -1;
+	static final long UNTIL_CLOSE = -2;
+
+	// longest chunk size or trailer line we'll take
+	private static final int MAX_LINE = 4096;
+
+	/**
+	 * Told of bytes of a body about to be written, to count and pace them
+	 */
+	@FunctionalInterface
+	interface Relayed {
+		void bytes(int count) throws IOException;
+	}
+
+	/**
+	 * A body's framing can't be read the one way every peer would read it
+	 */
+	static class MalformedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		MalformedException(String message) {
+			super(message);
+		}
+	}
+
+	private final InputStream in;
+	private final byte[] bytes;
+
+	// unread bytes are from start to end
+	private int start, end;
+
+	// when the first byte of the last head was there to read
+	private long headStarted;
+
+	MessageReader(InputStream in, byte[] buffer) {
+		this.in = in;
+		this.bytes = buffer;
+	}
+
+	byte[] array() {
+		return bytes;
+	}
+
+	/**
+	 * @return bytes read and not yet used
+	 */
+	int buffered() {
+		return end - start;
+	}
+
+	/**
+	 * @return System.nanoTime() when the first byte of the head last read arrived, or
+	 * when reading it began if the connection had already sent it
+	 */
+	long headStarted() {
+		return headStarted;
+	}
+
+	/**
+	 * Reads until the blank line ending a head, tolerating bare LF line endings. The head
+	 * is left at the start of the array, and anything after it is kept for the body.
+	 *
+	 * @param limit longest the head can be
+	 * @return length of the head, -1 if the stream ended first, or 0 if the head is
+	 * longer than the limit
+	 */
+	int readHead(int limit) throws IOException {
+		compact();
+		limit = Math.min(limit, bytes.length);
+		int scanned = 0, lineStart = 0;
+		boolean waiting = end == 0;
+		headStarted = System.nanoTime();
+
+		while ( true ) {
+			for ( ; scanned < end; scanned++ ) {
+				if ( bytes[scanned] != '\n' )
+					continue;
+
+				int lineLength = scanned - lineStart;
+				if ( lineLength == 0 || (lineLength == 1 && bytes[lineStart] == '\r') ) {
+					start = scanned + 1;
+					return start;
+				}
+
+				lineStart = scanned + 1;
+			}
+
+			if ( end >= limit )
+				return 0;
+
+			int bytesRead = in.read(bytes, end, limit - end);
+			if ( bytesRead < 0 )
+				return -1;
+			end += bytesRead;
+
+			// not counting however long the connection sat idle first
+			if ( waiting ) {
+				headStarted = System.nanoTime();
+				waiting = false;
+			}
+		}
+	}
+
+	/**
+	 * Writes out anything read past the last head and not yet used
+	 */
+	void drainTo(OutputStream out) throws IOException {
+		if ( end > start )
+			out.write(bytes, start, end - start);
+		start = end = 0;
+	}
+
+	/**
+	 * Copies the body following the last head to out as it arrives
+	 *
+	 * @param length of the body, or NO_BODY, CHUNKED or UNTIL_CLOSE
+	 * @throws EOFException if the stream ended before the body did
+	 * @throws MalformedException if a chunked body's framing is broken
+	 */
+	void copyBody(long length, OutputStream out, Relayed relayed) throws IOException {
+		if ( length == CHUNKED )
+			copyChunked(out, relayed);
+
+		else if ( length == UNTIL_CLOSE ) {
+			do {
+				write(out, end - start, relayed);
+			} while ( fill() > 0 );
+
+		} else
+			copyFixed(length, out, relayed);
+	}
+
+	private void copyFixed(long length, OutputStream out, Relayed relayed) throws IOException {
+		while ( length > 0 ) {
+			if ( start == end && fill() < 0 )
+				throw new EOFException("Stream ended "+length+" bytes short of the body");
+
+			int count = (int) Math.min(length, end - start);
+			write(out, count, relayed);
+			length -= count;
+		}
+	}
+
+	/*
+	 * Each chunk is a size line, that many bytes and a line end, the last chunk has size
+	 * 0 and is followed by any trailers and a blank line
+	 */
+	private void copyChunked(OutputStream out, Relayed relayed) throws IOException {
+		while ( true ) {
+			int lineEnd = line();
+			long size = chunkSize(lineEnd);
+			write(out, lineEnd - start, relayed);
+
+			if ( size == 0 )
+				break;
+
+			copyFixed(size, out, relayed);
+
+			lineEnd = line();
+			if ( !blank(lineEnd) )
+				throw new MalformedException("Chunk longer than its size");
+			write(out, lineEnd - start, relayed);
+		}
+
+		// trailers, up to the blank line
+		while ( true ) {
+			int lineEnd = line();
+			boolean blank = blank(lineEnd);
+			if ( !blank && !trailer(lineEnd) )
+				throw new MalformedException("Invalid trailer line");
+			write(out, lineEnd - start, relayed);
+			if ( blank )
+				return;
+		}
+	}
+
+	/*
+	 * Nothing but CRLF, or a bare LF as heads are allowed
+	 */
+	private boolean blank(int lineEnd) {
+		int length = lineEnd - start;
+		return length == 1 || (length == 2 && bytes[start] == '\r');
+	}
+
+	/*
+	 * A trailer field is a name and a colon, as a header is, and nothing folded
+	 */
+	private boolean trailer(int lineEnd) {
+		if ( bytes[start] == ' ' || bytes[start] == '\t' )
+			return false;
+
+		for ( int i = start; i < lineEnd; i++ ) {
+			if ( bytes[i] == ':' )
+				return i > start && bytes[i-1] != ' ' && bytes[i-1] != '\t';
+		}
+		return false;
+	}
+
+	/*
+	 * Hex size at the start of the line, up to any extension or the line end
+	 */
+	private long chunkSize(int lineEnd) throws IOException {
+		long size = 0;
+		int i = start;
+		for ( ; i < lineEnd; i++ ) {
+			int b = bytes[i], digit;
+			if ( b >= '0' && b <= '9' )
+				digit = b - '0';
+			else if ( b >= 'a' && b <= 'f' )
+				digit = b - 'a' + 10;
+			else if ( b >= 'A' && b <= 'F' )
+				digit = b - 'A' + 10;
+			else
+				break;
+
+			if ( i - start == 15 )
+				throw new MalformedException("Chunk size too large");
+			size = size << 4 | digit;
+		}
+
+		if ( i == start || (bytes[i] != ';' && bytes[i] != '\r' && bytes[i] != '\n' && bytes[i] != ' '
+				&& bytes[i] != '\t') )
+			throw new MalformedException("Invalid chunk size");
+
+		return size;
+	}
+
+	/*
+	 * Makes sure a whole line is buffered from start
+	 *
+	 * @return index just past its LF
+	 */
+	private int line() throws IOException {
+		int scanned = start;
+		while ( true ) {
+			for ( ; scanned < end; scanned++ )
+				if ( bytes[scanned] == '\n' )
+					return scanned + 1;
+
+			if ( end - start >= MAX_LINE )
+				throw new MalformedException("Chunk line too long");
+
+			if ( end == bytes.length ) {
+				scanned -= start;
+				compact();
+			}
+
+			int bytesRead = in.read(bytes, end, bytes.length - end);
+			if ( bytesRead < 0 )
+				throw new EOFException("Stream ended in a chunked body");
+			end += bytesRead;
+		}
+	}
+
+	private void write(OutputStream out, int count, Relayed relayed) throws IOException {
+		if ( count == 0 )
+			return;
+
+		relayed.bytes(count);
+		out.write(bytes, start, count);
+		start += count;
+	}
+
+	/*
+	 * Reads more once the buffer has been used up
+	 */
+	private int fill() throws IOException {
+		if ( start == end )
+			start = end = 0;
+
+		int bytesRead = in.read(bytes, end, bytes.length - end);
+		if ( bytesRead > 0 )
+			end += bytesRead;
+		return bytesRead;
+	}
+
+	private void compact() {
+		if ( start == 0 )
+			return;
+
+		System.arraycopy(bytes, start, bytes, 0, end - start);
+		end -= start;
+		start = 0;
+	}
+
+}
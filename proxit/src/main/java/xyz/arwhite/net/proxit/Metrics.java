@@ -0,0 +1,355 @@
+package xyz.arwhite.net.proxit;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * proxit's counters and latency histograms, rendered in the Prometheus text format for
+ * anything that wants to scrape them.
+ *
+ * Every update is an add to a LongAdder, which stripes itself across cells once threads
+ * contend for it, so counting a tunnel's bytes or timing its handshake costs the hot path
+ * next to nothing. The work of adding the cells up is left to whoever reads them.
+ *
+ * The tunnel counters and handshake histograms are fields here, other parts of proxit
+ * that keep their own stats register suppliers for them to be read at scrape time.
+ *
+ * @author Alan R. White
+ *
+ */
+public class Metrics {
+
+	/**
+	 * A count that only goes up, or for a gauge, up and down
+	 */
+	public static class Counter {
+		private final LongAdder adder = new LongAdder();
+
+		public void increment() {
+			adder.increment();
+		}
+
+		public void decrement() {
+			adder.decrement();
+		}
+
+		public void add(long n) {
+			adder.add(n);
+		}
+
+		public long get() {
+			return adder.sum();
+		}
+	}
+
+	/**
+	 * Latency histogram with log linear buckets in the style of HdrHistogram. Each power
+	 * of two is split into SUB_BUCKETS linear buckets, so any recorded value is known to
+	 * within 1/SUB_BUCKETS of itself whatever its magnitude, from nanoseconds to minutes,
+	 * in a few hundred counters.
+	 */
+	public static class Histogram {
+
+		private static final int SUB_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+		// values from 2^MAX_EXPONENT ns, about 18 minutes, are counted in the last bucket
+		private static final int MAX_EXPONENT = 40;
+		private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+		private final LongAdder[] counts = new LongAdder[BUCKETS];
+		private final LongAdder sum = new LongAdder();
+
+		public Histogram() {
+			for ( int i = 0; i < BUCKETS; i++ )
+				counts[i] = new LongAdder();
+		}
+
+		/**
+		 * @param nanos a latency in nanoseconds
+		 */
+		public void record(long nanos) {
+			nanos = Math.max(0, nanos);
+			counts[indexOf(nanos)].increment();
+			sum.add(nanos);
+		}
+
+		/**
+		 * Records the time since start, a System.nanoTime()
+		 */
+		public void recordSince(long start) {
+			record(System.nanoTime() - start);
+		}
+
+		static int indexOf(long value) {
+			if ( value < SUB_BUCKETS )
+				return (int) value;
+
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			if ( exponent >= MAX_EXPONENT )
+				return BUCKETS - 1;
+
+			int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		/*
+		 * Smallest value counted in bucket index
+		 */
+		static long lowerBound(int index) {
+			if ( index < SUB_BUCKETS )
+				return index;
+
+			int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+			long sub = index % SUB_BUCKETS;
+			return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+		}
+
+		public long count() {
+			long count = 0;
+			for ( var c : counts )
+				count += c.sum();
+			return count;
+		}
+
+		public long sum() {
+			return sum.sum();
+		}
+
+		/**
+		 * @param quantile between 0 and 1
+		 * @return upper bound of the bucket holding the value at that quantile, 0 if empty
+		 */
+		public long quantile(double quantile) {
+			long[] snapshot = new long[BUCKETS];
+			long total = 0;
+			for ( int i = 0; i < BUCKETS; i++ )
+				total += snapshot[i] = counts[i].sum();
+
+			if ( total == 0 )
+				return 0;
+
+			long rank = Math.max(1, (long) Math.ceil(quantile * total));
+			long seen = 0;
+			for ( int i = 0; i < BUCKETS - 1; i++ ) {
+				seen += snapshot[i];
+				if ( seen >= rank )
+					return lowerBound(i + 1) - 1;
+			}
+
+			return Long.MAX_VALUE;
+		}
+
+		/**
+		 * @return count of values below 2^exponent nanoseconds
+		 */
+		long countBelow(int exponent) {
+			int end = exponent >= MAX_EXPONENT ? BUCKETS : indexOf(1L << exponent);
+
+			long count = 0;
+			for ( int i = 0; i < end; i++ )
+				count += counts[i].sum();
+			return count;
+		}
+	}
+
+	/*
+	 * Scraped buckets are coarser than those recorded, every other power of two from
+	 * about a microsecond to about a minute
+	 */
+	private static final int FIRST_LE_EXPONENT = 10;
+	private static final int LAST_LE_EXPONENT = 36;
+	private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private record Sample(String labels, Object source) {}
+
+	/*
+	 * A count of nanoseconds kept elsewhere, scraped in seconds
+	 */
+	private record Nanos(LongSupplier value) {}
+
+	private static class Family {
+		final String help, type;
+		final List<Sample> samples = new ArrayList<>();
+
+		Family(String help, String type) {
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private final Map<String,Family> families = new LinkedHashMap<>();
+
+	/*
+	 * Tunnels through the handshake, and the bytes relayed through them, bytes in being
+	 * those from clients to targets
+	 */
+	public final Counter accepted = counter("proxit_connections_accepted_total", "Connections accepted");
+	public final Counter authorized = counter("proxit_requests_authorized_total", "CONNECT requests authorized");
+	public final Counter rejected = counter("proxit_requests_rejected_total", "Requests refused before connecting");
+	public final Counter deniedByRules = counter("proxit_requests_denied_total", 
+			"CONNECT requests to destinations the rules don't allow");
+	public final Counter forwarded = counter("proxit_requests_forwarded_total", 
+			"Plain HTTP requests forwarded to origins");
+	public final Counter forwardFailed = counter("proxit_forward_failures_total", 
+			"Forwarded requests their origin failed to answer");
+	public final Counter connectFailed = counter("proxit_connect_failures_total", "Targets that could not be connected");
+	public final Counter timedOut = counter("proxit_connections_timed_out_total", 
+			"Connections closed by a handshake, idle or lifetime deadline");
+	public final Counter activeTunnels = gauge("proxit_tunnels_active", 
+			"Tunnels open, and connections forwarding plain HTTP");
+	public final Counter bytesIn = counter("proxit_tunnel_bytes_in_total", "Bytes relayed from clients to targets");
+	public final Counter bytesOut = counter("proxit_tunnel_bytes_out_total", "Bytes relayed from targets to clients");
+
+	/*
+	 * Handshake phases, accept to the request being parsed, checking the credentials,
+	 * connecting to the target, writing the 200, and the whole handshake
+	 */
+	private static final String PHASE_METRIC = "proxit_handshake_phase_seconds";
+	private static final String PHASE_HELP = "Time taken by each phase of the handshake";
+
+	public final Histogram parsePhase = histogram(PHASE_METRIC, PHASE_HELP, "phase", "parse");
+	public final Histogram authPhase = histogram(PHASE_METRIC, PHASE_HELP, "phase", "auth");
+	public final Histogram connectPhase = histogram(PHASE_METRIC, PHASE_HELP, "phase", "connect");
+	public final Histogram respondPhase = histogram(PHASE_METRIC, PHASE_HELP, "phase", "respond");
+	public final Histogram handshake = histogram(PHASE_METRIC, PHASE_HELP, "phase", "total");
+
+	/**
+	 * @param labels name, value pairs
+	 */
+	public synchronized Counter counter(String name, String help, String... labels) {
+		var counter = new Counter();
+		register(name, help, "counter", labels, counter);
+		return counter;
+	}
+
+	/**
+	 * Counter that may go down as well as up
+	 */
+	public synchronized Counter gauge(String name, String help, String... labels) {
+		var counter = new Counter();
+		register(name, help, "gauge", labels, counter);
+		return counter;
+	}
+
+	/**
+	 * Counter kept elsewhere, read when scraped
+	 */
+	public synchronized void counter(String name, String help, LongSupplier value, String... labels) {
+		register(name, help, "counter", labels, value);
+	}
+
+	/**
+	 * Gauge kept elsewhere, read when scraped
+	 */
+	public synchronized void gauge(String name, String help, LongSupplier value, String... labels) {
+		register(name, help, "gauge", labels, value);
+	}
+
+	/**
+	 * Counter of nanoseconds kept elsewhere, scraped in seconds as Prometheus expects
+	 */
+	public synchronized void nanosCounter(String name, String help, LongSupplier nanos, String... labels) {
+		register(name, help, "counter", labels, new Nanos(nanos));
+	}
+
+	/**
+	 * Gauge of nanoseconds kept elsewhere, scraped in seconds
+	 */
+	public synchronized void nanosGauge(String name, String help, LongSupplier nanos, String... labels) {
+		register(name, help, "gauge", labels, new Nanos(nanos));
+	}
+
+	public synchronized Histogram histogram(String name, String help, String... labels) {
+		var histogram = new Histogram();
+		register(name, help, "histogram", labels, histogram);
+		return histogram;
+	}
+
+	/**
+	 * Histogram kept elsewhere, by whatever it times
+	 */
+	public synchronized void histogram(String name, String help, Histogram histogram, String... labels) {
+		register(name, help, "histogram", labels, histogram);
+	}
+
+	private void register(String name, String help, String type, String[] labels, Object source) {
+		if ( labels.length % 2 != 0 )
+			throw new IllegalArgumentException("Labels for "+name+" must be name value pairs");
+
+		var family = families.computeIfAbsent(name, n -> new Family(help, type));
+		if ( !family.type.equals(type) )
+			throw new IllegalArgumentException("Metric "+name+" is already a "+family.type);
+
+		family.samples.add(new Sample(labels(labels), source));
+	}
+
+	private static String labels(String[] labels) {
+		var text = new StringBuilder();
+		for ( int i = 0; i < labels.length; i += 2 ) {
+			if ( i > 0 )
+				text.append(',');
+			text.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+		}
+		return text.toString();
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * @return everything in the Prometheus text exposition format
+	 */
+	public synchronized String scrape() {
+		var text = new StringBuilder(8192);
+
+		families.forEach((name, family) -> {
+			text.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+			text.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+
+			for ( var sample : family.samples ) {
+				if ( sample.source() instanceof Histogram histogram )
+					histogram(text, name, sample.labels(), histogram);
+				else if ( sample.source() instanceof Nanos nanos )
+					line(text, name, sample.labels(), Double.toString(nanos.value().getAsLong() / NANOS_PER_SECOND));
+				else
+					line(text, name, sample.labels(), Long.toString(value(sample.source())));
+			}
+		});
+
+		return text.toString();
+	}
+
+	private static long value(Object source) {
+		if ( source instanceof Counter counter )
+			return counter.get();
+		return ((LongSupplier) source).getAsLong();
+	}
+
+	private static void histogram(StringBuilder text, String name, String labels, Histogram histogram) {
+		String separator = labels.isEmpty() ? "" : labels + ",";
+
+		for ( int exponent = FIRST_LE_EXPONENT; exponent <= LAST_LE_EXPONENT; exponent += 2 )
+			line(text, name + "_bucket", separator + "le=\"" + (double) (1L << exponent) / NANOS_PER_SECOND + "\"",
+					Long.toString(histogram.countBelow(exponent)));
+
+		long count = histogram.count();
+		line(text, name + "_bucket", separator + "le=\"+Inf\"", Long.toString(count));
+		line(text, name + "_sum", labels, Double.toString(histogram.sum() / NANOS_PER_SECOND));
+		line(text, name + "_count", labels, Long.toString(count));
+	}
+
+	private static void line(StringBuilder text, String name, String labels, String value) {
+		text.append(name);
+		if ( !labels.isEmpty() )
+			text.append('{').append(labels).append('}');
+		text.append(' ').append(value).append('\n');
+	}
+
+}
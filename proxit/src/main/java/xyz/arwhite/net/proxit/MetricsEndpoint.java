@@ -0,0 +1,57 @@
+package xyz.arwhite.net.proxit;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics at /metrics for Prometheus to scrape, on its own port so it's never
+ * mistaken for a proxy request, and by default only on the loopback interface.
+ *
+ * Requests are handled on the JDK http server's dispatcher thread, a scrape being quick
+ * and scrapers being few.
+ *
+ * @author Alan R. White
+ *
+ */
+public class MetricsEndpoint {
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final HttpServer server;
+	private final Metrics metrics;
+
+	public MetricsEndpoint(InetSocketAddress address, Metrics metrics) throws IOException {
+		this.metrics = metrics;
+
+		server = HttpServer.create(address, 0);
+		server.createContext("/metrics", this::scrape);
+		server.start();
+	}
+
+	private void scrape(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			if ( !"GET".equals(exchange.getRequestMethod()) ) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			var body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, body.length);
+			exchange.getResponseBody().write(body);
+		}
+	}
+
+	public InetSocketAddress address() {
+		return server.getAddress();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+}
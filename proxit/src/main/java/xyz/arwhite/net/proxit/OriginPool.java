@@ -0,0 +1,333 @@
+package xyz.arwhite.net.proxit;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the connections plain HTTP requests are forwarded over open between requests, so
+ * a run of requests to the same origin, from one client or many, pays for one TCP
+ * handshake rather than one each.
+ *
+ * Connections are pooled by origin host:port. A request takes the connection that went
+ * idle most recently, the one least likely to have been closed by the origin as it sat,
+ * and gives it back once the response has been read to its end, unless either side said
+ * to close it.
+ *
+ * Each origin has a cap on its connections, busy and idle together, past which requests
+ * wait a while for one to be given back. Connections left idle too long are closed by a
+ * sweep on the timing wheel, and origins with nothing open are dropped, so the pool
+ * doesn't grow with every host ever visited.
+ *
+ * @author Alan R. White
+ *
+ */
+public class OriginPool {
+
+	private static final Duration SWEEP_INTERVAL = Duration.ofSeconds(1);
+
+	/**
+	 * @param maxPerOrigin connections open to one origin, busy or idle
+	 * @param idleFor how long an idle connection is kept, zero not to keep them
+	 * @param maxWait longest a request waits for a connection to an origin at its cap
+	 */
+	public record Config(int maxPerOrigin, Duration idleFor, Duration maxWait) {
+
+		public Config {
+			if ( maxPerOrigin < 1 || idleFor.isNegative() || maxWait.isNegative() )
+				throw new IllegalArgumentException("Origin pool needs at least 1 connection per origin and "
+						+ "times that aren't negative");
+		}
+	}
+
+	private final Config config;
+	private final TimingWheel wheel;
+	private final long idleNanos;
+	private final long waitNanos;
+	private final ConcurrentHashMap<String,Origin> origins = new ConcurrentHashMap<>();
+
+	private final LongAdder opened = new LongAdder();
+	private final LongAdder reused = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+	private final LongAdder refused = new LongAdder();
+
+	public OriginPool(Config config, TimingWheel wheel) {
+		this.config = config;
+		this.wheel = wheel;
+		this.idleNanos = config.idleFor().toNanos();
+		this.waitNanos = config.maxWait().toNanos();
+
+		sweepLater();
+	}
+
+	public Config config() {
+		return config;
+	}
+
+	/**
+	 * Takes an idle connection to the origin, or room for a new one, which the caller
+	 * opens and hands over with opened(). Either way it comes back with release().
+	 *
+	 * @param origin host:port
+	 * @return the connection, or null if the origin stayed at its cap for the wait
+	 */
+	public Connection acquire(String origin) throws InterruptedException {
+		long remaining = waitNanos;
+
+		while ( true ) {
+			var pooled = origins.computeIfAbsent(origin, Origin::new);
+			List<Connection> stale = null;
+
+			pooled.lock.lock();
+			try {
+				// swept away under us, get a new one
+				if ( pooled.retired )
+					continue;
+
+				while ( true ) {
+					var idle = pooled.idle.pollLast();
+					if ( idle != null ) {
+						if ( usable(idle) ) {
+							idle.reused = true;
+							reused.increment();
+							return idle;
+						}
+						pooled.open--;
+						if ( stale == null )
+							stale = new ArrayList<>();
+						stale.add(idle);
+						continue;
+					}
+
+					if ( pooled.open < config.maxPerOrigin() ) {
+						pooled.open++;
+						return new Connection(pooled);
+					}
+
+					if ( remaining <= 0 ) {
+						refused.increment();
+						return null;
+					}
+					remaining = pooled.returned.awaitNanos(remaining);
+				}
+
+			} finally {
+				pooled.lock.unlock();
+				if ( stale != null )
+					for ( var connection : stale ) {
+						evicted.increment();
+						connection.close();
+					}
+			}
+		}
+	}
+
+	/*
+	 * Idle within the limit and still open, with nothing unasked for from the origin,
+	 * which is usually it saying it's closing
+	 */
+	private boolean usable(Connection connection) {
+		if ( System.nanoTime() - connection.idleSince >= idleNanos || connection.socket.isClosed() )
+			return false;
+
+		try {
+			return connection.socket.getInputStream().available() == 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Hands a connection from acquire() back
+	 *
+	 * @param reusable true if the exchange on it finished cleanly and it can be kept
+	 */
+	public void release(Connection connection, boolean reusable) {
+		var pooled = connection.origin;
+		boolean keep = reusable && idleNanos > 0 && connection.socket != null && !connection.socket.isClosed();
+
+		pooled.lock.lock();
+		try {
+			if ( keep ) {
+				connection.idleSince = System.nanoTime();
+				pooled.idle.addLast(connection);
+			} else
+				pooled.open--;
+
+			pooled.returned.signal();
+
+		} finally {
+			pooled.lock.unlock();
+		}
+
+		if ( !keep )
+			connection.close();
+	}
+
+	/**
+	 * @return connections opened to origins
+	 */
+	public long opened() {
+		return opened.sum();
+	}
+
+	/**
+	 * @return requests sent on a connection kept from an earlier one
+	 */
+	public long reused() {
+		return reused.sum();
+	}
+
+	/**
+	 * @return idle connections closed for waiting too long or going stale
+	 */
+	public long evicted() {
+		return evicted.sum();
+	}
+
+	/**
+	 * @return requests that found their origin at its cap for the whole wait
+	 */
+	public long refused() {
+		return refused.sum();
+	}
+
+	/**
+	 * @return connections open to origins, busy or idle
+	 */
+	public int open() {
+		int open = 0;
+		for ( var origin : origins.values() ) {
+			origin.lock.lock();
+			open += origin.open;
+			origin.lock.unlock();
+		}
+		return open;
+	}
+
+	public int idle() {
+		int idle = 0;
+		for ( var origin : origins.values() ) {
+			origin.lock.lock();
+			idle += origin.idle.size();
+			origin.lock.unlock();
+		}
+		return idle;
+	}
+
+	/*
+	 * The wheel sweeps out idle connections, going back on it each time
+	 */
+	private void sweepLater() {
+		wheel.schedule(SWEEP_INTERVAL, () -> {
+			sweep();
+			sweepLater();
+		});
+	}
+
+	void sweep() {
+		long now = System.nanoTime();
+		var expired = new ArrayList<Connection>();
+
+		for ( var origin : origins.values() ) {
+			origin.lock.lock();
+			try {
+				// oldest at the front
+				Connection idle;
+				while ( (idle = origin.idle.peekFirst()) != null && now - idle.idleSince >= idleNanos ) {
+					origin.idle.pollFirst();
+					origin.open--;
+					expired.add(idle);
+				}
+
+				if ( origin.open == 0 ) {
+					origin.retired = true;
+					origins.remove(origin.name, origin);
+				}
+
+			} finally {
+				origin.lock.unlock();
+			}
+		}
+
+		for ( var connection : expired ) {
+			evicted.increment();
+			connection.close();
+		}
+	}
+
+	/**
+	 * A connection to an origin, or room for one until opened() is called
+	 */
+	public final class Connection {
+		private final Origin origin;
+		private Socket socket;
+		private Runnable onClose;
+		private long idleSince;
+		private boolean reused;
+
+		private Connection(Origin origin) {
+			this.origin = origin;
+		}
+
+		/**
+		 * @return the connection's socket, null if the caller is to open it
+		 */
+		public Socket socket() {
+			return socket;
+		}
+
+		/**
+		 * @return true if the connection was kept from an earlier request
+		 */
+		public boolean reused() {
+			return reused;
+		}
+
+		/**
+		 * @param socket connected to the origin
+		 * @param onClose run when the pool finally closes it
+		 */
+		public void opened(Socket socket, Runnable onClose) {
+			this.socket = socket;
+			this.onClose = onClose;
+			opened.increment();
+		}
+
+		private void close() {
+			if ( socket == null )
+				return;
+
+			try {
+				socket.close();
+			} catch (IOException e) {}
+
+			if ( onClose != null )
+				onClose.run();
+		}
+	}
+
+	/*
+	 * One origin's connections, under its lock
+	 */
+	private static final class Origin {
+		private final String name;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition returned = lock.newCondition();
+		private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+		private int open;
+		private boolean retired;
+
+		private Origin(String name) {
+			this.name = name;
+		}
+	}
+
+}
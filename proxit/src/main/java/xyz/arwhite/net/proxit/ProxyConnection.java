@@ -1,63 +1,264 @@
 package xyz.arwhite.net.proxit;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.InetAddress;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
 
 import io.fusionauth.jwt.domain.JWT;
 import xyz.arwhite.net.auth.AuthServer;
 
 public class ProxyConnection implements Runnable {
 
-	private record ProxyRequest(String endpoint, int response, 
-			Optional<Map<String,List<String>>> responseHeaders) {}
+	/*
+	 * The target, or why not and the status and canned response to refuse it with, the
+	 * response only differing from the status's usual one where the cause needs telling apart
+	 */
+	private record ProxyRequest(String endpoint, int response, byte[] refusal) {
+		ProxyRequest(String endpoint, int response) {
+			this(endpoint, response, Responses.forStatus(response));
+		}
+	}
 
 	private record TargetConnection(Socket targetConn, int response) {}
 
+	/*
+	 * The target's socket and anything a parent proxy passed on from it, or the status to
+	 * tell the client and whether connecting timed out
+	 */
+	private record Connected(Socket socket, byte[] early, int response, boolean timedOut) {}
+
+	/*
+	 * A kept or newly opened connection to an origin, or the status to refuse the request
+	 * with, and how long connecting took if it had to
+	 */
+	private record OriginConnection(OriginPool.Connection connection, int response, long connectNanos,
+			boolean timedOut) {}
+
+	/*
+	 * Largest request head we'll accept, and the size of buffer relays copy through
+	 */
+	private static final int MAX_REQUEST_HEAD = 8192;
+	private static final int RELAY_BUFFER_SIZE = 16384;
+
+	// a fill sends none of the client's conditionals, and none of its own if it has nothing stored
+	private static final byte[] NO_VALIDATORS = {};
+
 	private Socket clientConn;
 	private ExecutorService ioWorkerpool;
 	private Optional<AuthServer> authServer;
+	private Optional<DestinationPolicy> destinations;
+	private Optional<SelectorRelay> selectorRelay;
+	private boolean splice;
+	private BufferPool bufferPool;
+	private Connector connector;
+	private Breakers breakers;
+	private Optional<Upstreams> upstreams;
+	private OriginPool origins;
+	private Optional<ResponseCache> cache;
+	private AdmissionController admission;
+	private Shaper shaper;
+	private Optional<FairScheduler> scheduler;
+	private Metrics metrics;
+	private Optional<AccessLog> accessLog;
+
+	/*
+	 * Who the client authorized as, with their JWT claims if they presented one, the
+	 * rate limits that puts on the tunnel and its share of the egress link
+	 */
+	private String subject;
+	private Map<String,Object> claims = Map.of();
+	private Optional<Shaper.Buckets> shaping = Optional.empty();
+	private Optional<FairScheduler.Flow> flow = Optional.empty();
+
+	/*
+	 * When the connection was accepted, when the handshake started, 0 once it has been
+	 * reported to the admission controller, and whether connecting to the target timed
+	 * out, a sign of overload
+	 */
+	private final long acceptedAt = System.nanoTime();
+	private long handshakeStart;
+	private boolean connectTimedOut;
+
+	/*
+	 * The target's breaker, and the same once connected so the tunnel is counted
+	 * against it until it closes
+	 */
+	private Breakers.Destination destination;
+	private Breakers.Destination connectedTo;
+
+	/*
+	 * Anything the target sent through a parent proxy that arrived along with its reply
+	 */
+	private byte[] upstreamEarly;
+
+	/*
+	 * How long each phase of the handshake took, and when the tunnel opened, for the
+	 * access log
+	 */
+	private long parseNanos, authNanos, connectNanos, respondNanos, handshakeNanos;
+	private long openedAt;
+
+	/*
+	 * When either direction of the tunnel last relayed anything, a tunnel is only idle
+	 * once both directions are
+	 */
+	private volatile long lastRelayed;
 
-	public ProxyConnection(Socket conn, ExecutorService ioWorkerPool, Optional<AuthServer> authServer) {
+	/*
+	 * Handshake, idle and lifetime deadlines, and whether one of them has passed and
+	 * closed the connection. The target and, on the selector relay, the tunnel are kept
+	 * so they can be closed from the timer thread.
+	 */
+	private final Timeouts timeouts;
+	private final Timeouts.Deadlines deadlines;
+	private Timeouts.Policy tunnelPolicy;
+	private volatile boolean timedOut;
+	private volatile boolean answered;
+	private volatile Socket targetConn;
+	private volatile SelectorRelay.Handle selectorTunnel;
+
+	/*
+	 * Flight recorder event for the handshake, running from the accept, and the target
+	 * once we know it. It's reported once, when the first response goes back, however
+	 * many requests a forwarding connection goes on to answer.
+	 */
+	private final TunnelEvents.TunnelOpen openEvent = new TunnelEvents.TunnelOpen();
+	private String target;
+	private boolean reported;
+
+	/*
+	 * Pooled buffer holding the request head, plus anything the client sent after it
+	 * that has to be passed on to the target once connected
+	 */
+	private ByteBuffer requestBuffer;
+	private MessageReader clientReader;
+	private int requestHeadLength;
+	private final RequestHead requestHead = new RequestHead();
+
+	/*
+	 * Requests other than CONNECT are forwarded one by one to the origin their absolute
+	 * target names, over a connection from the pool, their responses read into a buffer
+	 * of their own and the heads passed on rebuilt in another. The bytes each request
+	 * moves are counted for its access log record.
+	 */
+	private boolean forwarding;
+	private HttpMessages.Target forwardTarget;
+	private OriginPool.Connection origin;
+	private ByteBuffer responseBuffer, headBuffer;
+	private final RequestHead responseHead = new RequestHead();
+	private long forwardedIn, forwardedOut;
+
+	public ProxyConnection(Socket conn, ProxyContext context) {
 		clientConn = conn;
-		this.ioWorkerpool = ioWorkerPool;
-		this.authServer = authServer;
+		this.ioWorkerpool = context.ioWorkerPool();
+		this.authServer = context.authServer();
+		this.destinations = context.destinations();
+		this.selectorRelay = context.selectorRelay();
+		this.splice = context.splice();
+		this.bufferPool = context.bufferPool();
+		this.connector = context.connector();
+		this.breakers = context.breakers();
+		this.upstreams = context.upstreams();
+		this.origins = context.origins();
+		this.cache = context.cache();
+		this.admission = context.admission();
+		this.shaper = context.shaper();
+		this.scheduler = context.scheduler();
+		this.timeouts = context.timeouts();
+		this.deadlines = timeouts.track(this::expire);
+		this.metrics = context.metrics();
+		this.accessLog = context.accessLog();
+
+		openEvent.begin();
 	}
 
 	@Override
 	public void run() {
 
+		boolean handedOff = false;
+
+		// turned away straight off if there's no room for another handshake, which is bounded by its own wait
+		if ( !admission.startHandshake() ) {
+			writeErrorResponseAndClose(clientConn,503);
+			return;
+		}
+		handshakeStart = System.nanoTime();
+
+		// only once admitted, nothing else stops a deadline
+		deadlines.handshake();
+
+		boolean tunnelAdmitted = false;
+
 		try {
 
 			// System.out.println("Processing connection ...");
-			clientConn.setSoTimeout(60000);
+			requestBuffer = bufferPool.take(MAX_REQUEST_HEAD);
+			clientReader = new MessageReader(clientConn.getInputStream(), requestBuffer.array());
 
 			var proxyRequest = readAndAuthorizeRequest(clientConn);
+			if ( timedOut )
+				proxyRequest = new ProxyRequest("Request Timeout",408);
+
 			if (proxyRequest.response != 200 ) {
-				writeErrorResponseAndClose(clientConn,proxyRequest.response,
-						proxyRequest.endpoint, proxyRequest.responseHeaders);
+				metrics.rejected.increment();
+				endHandshake();
+				writeErrorResponseAndClose(clientConn,proxyRequest.response,proxyRequest.refusal);
 				return;
 			}
 
+			target = proxyRequest.endpoint;
+			shaping = shaper.bucketsFor(subject, claims);
+			flow = scheduler.map(s -> s.flowFor(claims));
+
+			metrics.authorized.increment();
+
+			if ( !admission.startTunnel() ) {
+				endHandshake();
+				writeErrorResponseAndClose(clientConn,503);
+				return;
+			}
+			tunnelAdmitted = true;
+
+			// plain HTTP goes request by request over pooled origin connections, not a tunnel
+			if ( forwarding ) {
+				// but holds a tunnel's admission all the same, so counts as one
+				metrics.activeTunnels.increment();
+				try {
+					forwardRequests();
+				} finally {
+					metrics.activeTunnels.decrement();
+				}
+				return;
+			}
+
+			// straight back if the target is known to be down or has all it's allowed
+			var permit = breakers.acquire(proxyRequest.endpoint);
+			if ( permit.status() != 200 ) {
+				endHandshake();
+				writeErrorResponseAndClose(clientConn,permit.status());
+				return;
+			}
+			destination = permit.destination();
+
 			/*
 			 * All validation of the request has been successful so pass the baton 
 			 * to the execution side, connecting to the intended target, informing 
@@ -65,75 +266,283 @@ public class ProxyConnection implements Runnable {
 			 * connection is interrupted.
 			 */
 
+			long connectStart = System.nanoTime();
+			var connectEvent = new TunnelEvents.TargetConnect();
+			connectEvent.begin();
+
 			var openResult = openTarget(proxyRequest.endpoint);
+			endHandshake();
+			connectNanos = System.nanoTime() - connectStart;
+			metrics.connectPhase.record(connectNanos);
+
+			connectEvent.end();
+			if ( connectEvent.shouldCommit() ) {
+				connectEvent.target = target;
+				connectEvent.connected = openResult.response == 200;
+				connectEvent.timedOut = connectTimedOut;
+				connectEvent.commit();
+			}
+
+			if ( openResult.response == 200 )
+				targetConn = openResult.targetConn;
+
+			if ( timedOut ) {
+				closeQuietly(openResult.targetConn);
+				writeErrorResponseAndClose(clientConn,408);
+				return;
+			}
+
 			if ( openResult.response != 200 ) {
-				writeErrorResponseAndClose(clientConn,openResult.response,
-						"Connecting Target", Optional.empty());				
+				metrics.connectFailed.increment();
+				writeErrorResponseAndClose(clientConn,openResult.response);
 				return;
 			}
 
-			if ( !writeOKResponse(clientConn, Optional.empty()) ) {
+			long respondStart = System.nanoTime();
+			answered = true;
+			if ( !writeOKResponse(clientConn) ) {
 				openResult.targetConn.close();
 				return;
 			}
+			openedAt = System.nanoTime();
+			respondNanos = openedAt - respondStart;
+			handshakeNanos = openedAt - acceptedAt;
+			metrics.respondPhase.record(respondNanos);
+			metrics.handshake.record(handshakeNanos);
+			opened(200);
+			deadlines.tunnel(timeouts.policyFor(claims), selectorRelay.isPresent()
+					? () -> selectorTunnel == null ? openedAt : selectorTunnel.lastActivity()
+					: () -> lastRelayed);
+
+			if ( upstreamEarly != null )
+				clientConn.getOutputStream().write(upstreamEarly);
+
+			// pass on anything the client sent without waiting for our response
+			clientReader.drainTo(openResult.targetConn.getOutputStream());
 
-			relayIO(clientConn,openResult.targetConn);
+			/*
+			 * With the selector relay the tunnel is handed to an event loop and this
+			 * thread is free to go, otherwise it waits here until the tunnel closes.
+			 */
+			if ( selectorRelay.isPresent() ) {
+				// the event loop ends the tunnel's admission when it closes it
+				tunnelAdmitted = false;
+				var connected = connectedTo;
+				handedOff = true;
+				metrics.activeTunnels.increment();
+
+				var closeEvent = new TunnelEvents.TunnelClose();
+				closeEvent.begin();
+				selectorTunnel = selectorRelay.get().relay(clientConn,openResult.targetConn,(bytesIn, bytesOut, reason) -> {
+					deadlines.stop();
+					admission.endTunnel();
+					connected.closed();
+					metrics.activeTunnels.decrement();
+					closed(closeEvent, bytesIn, bytesOut, reason);
+				},shaping,flow).orElse(null);
+
+				// timed out before the event loop had it
+				if ( timedOut && selectorTunnel != null )
+					selectorTunnel.abort(AccessLog.Reason.TIMEOUT);
+			} else {
+				metrics.activeTunnels.increment();
+				try {
+					relayIO(clientConn,openResult.targetConn);
+				} finally {
+					metrics.activeTunnels.decrement();
+				}
+			}
 
 		} catch (SocketException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			if ( !handedOff )
+				deadlines.stop();
+			endHandshake();
+			if ( tunnelAdmitted ) {
+				admission.endTunnel();
+				if ( connectedTo != null )
+					connectedTo.closed();
+			}
+			if ( origin != null )
+				releaseOrigin(false);
+			bufferPool.release(requestBuffer);
+			bufferPool.release(responseBuffer);
+			bufferPool.release(headBuffer);
 		}
 
 	}
 
-	private ProxyRequest readAndAuthorizeRequest(Socket clientConn) {
+	/*
+	 * A deadline has passed, called on the timer thread. Input is shut down before the
+	 * sockets are closed as that wakes a splice waiting in poll, which closing doesn't.
+	 * 
+	 * If the client hasn't been answered yet it's only woken from reading its request,
+	 * so the handshake can still tell it why with a 408.
+	 */
+	private void expire() {
+		timedOut = true;
+		metrics.timedOut.increment();
+
+		var tunnel = selectorTunnel;
+		if ( tunnel != null ) {
+			tunnel.abort(AccessLog.Reason.TIMEOUT);
+			return;
+		}
+
+		if ( !answered ) {
+			try {
+				clientConn.shutdownInput();
+			} catch (IOException e) {}
+		} else
+			closeQuietly(clientConn);
+
+		// an origin connection is only ours to close while we hold it, see releaseOrigin
+		synchronized ( this ) {
+			closeQuietly(targetConn);
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		if ( socket == null )
+			return;
 
 		try {
-			// System.out.println("Reading request");
+			socket.shutdownInput();
+		} catch (IOException e) {}
 
-			var clientReader = new BufferedReader(
-					new InputStreamReader(clientConn.getInputStream(), "US-ASCII"));
+		try {
+			socket.close();
+		} catch (IOException e) {}
+	}
 
-			String httpRequest = clientReader.readLine();
-			if ( httpRequest == null ) {
-				return new ProxyRequest("Unexpected end of stream",500,Optional.empty());
-			}
+	/*
+	 * The handshake is over one way or another, the status being what the client was told
+	 */
+	private void opened(int status) {
+		if ( reported )
+			return;
+		reported = true;
+
+		openEvent.end();
+		if ( openEvent.shouldCommit() ) {
+			openEvent.target = target;
+			openEvent.subject = subject;
+			openEvent.status = status;
+			openEvent.commit();
+		}
+	}
 
-			// System.out.println("Analysing request");
+	private void closed(TunnelEvents.TunnelClose closeEvent, long bytesIn, long bytesOut, AccessLog.Reason reason) {
+		logAccess(200, reason, bytesIn, bytesOut);
 
-			String[] requestWords = httpRequest.split(" ");
-			if ( requestWords.length != 3 ) // HTTP/1.1 400 Too Many Words In Request
-				return new ProxyRequest("Too Many Words In Request",400,Optional.empty());
+		closeEvent.end();
+		if ( closeEvent.shouldCommit() ) {
+			closeEvent.target = target;
+			closeEvent.subject = subject;
+			closeEvent.bytesIn = bytesIn;
+			closeEvent.bytesOut = bytesOut;
+			closeEvent.commit();
+		}
+	}
 
-			if ( !requestWords[0].equals("CONNECT") )  // HTTP/1.1 501 Only CONNECT Implemented
-				return new ProxyRequest("Only CONNECT Implemented",501,Optional.empty());
+	/*
+	 * One record per tunnel, refused ones included
+	 */
+	private void logAccess(int status, AccessLog.Reason reason, long bytesIn, long bytesOut) {
+		if ( accessLog.isEmpty() )
+			return;
+
+		long duration = openedAt == 0 ? 0 : System.nanoTime() - openedAt;
+		accessLog.get().log(new AccessLog.Entry(System.currentTimeMillis(), 
+				String.valueOf(clientConn.getRemoteSocketAddress()), target, subject, status, reason,
+				parseNanos, authNanos, connectNanos, respondNanos, handshakeNanos, duration, bytesIn, bytesOut));
+	}
 
-			// Grab headers
-			var headers = Headers.parse(clientReader.lines()
-					.takeWhile(line -> line.length() != 0)
-					.collect(Collectors.toList()));
+	private void endHandshake() {
+		if ( handshakeStart == 0 )
+			return;
 
-			// Headers.prettyPrint(headers);
+		admission.endHandshake(handshakeStart, connectTimedOut);
+		handshakeStart = 0;
+	}
+
+	private ProxyRequest readAndAuthorizeRequest(Socket clientConn) {
 
-			System.out.println("Checking authorization for request");
+		try {
+			// System.out.println("Reading request");
 
-			// headers should be compared case insensitive
-			var authTokens = headers.get("proxy-authorization");
-			if ( authTokens == null || authTokens.size() != 1 ) {
-				var outHeaders = new HashMap<String,List<String>>();
-				outHeaders.put("Proxy-Authenticate", Arrays.asList("Basic", "Bearer"));
-				return new ProxyRequest("Proxy Authorization Required",407,Optional.of(outHeaders));
+			requestHeadLength = clientReader.readHead(MAX_REQUEST_HEAD);
+			if ( requestHeadLength < 0 ) {
+				return new ProxyRequest("Unexpected end of stream",500);
 			}
 
-			if ( !authorize(authTokens.get(0)) )
-				return new ProxyRequest("Proxy Authorization Failed",403,Optional.empty());
+			if ( requestHeadLength == 0 ) 
+				return new ProxyRequest("Request Header Fields Too Large",431);
+
+			// System.out.println("Analysing request");
 
-			return new ProxyRequest(requestWords[1],200,Optional.empty());
+			int parsed = requestHead.parse(requestBuffer.array(), requestHeadLength);
+			if ( parsed != RequestHead.OK ) // HTTP/1.1 400 or 431
+				return new ProxyRequest("Malformed Request",parsed);
+			// later requests on a kept connection from when their own head began arriving
+			parseNanos = System.nanoTime() - (answered ? clientReader.headStarted() : acceptedAt);
+			metrics.parsePhase.record(parseNanos);
+
+			// CONNECT is tunnelled, anything else forwarded to the http origin it names
+			String endpoint;
+			forwarding = !requestHead.methodIs("CONNECT");
+			if ( forwarding ) {
+				forwardTarget = HttpMessages.target(requestHead.target());
+				if ( forwardTarget == null )
+					return requestHead.target().contains("://")
+							? new ProxyRequest("Only http Forwarded",501)  // HTTP/1.1 501 Not Implemented
+							: new ProxyRequest("Not An Absolute URI",400);
+				endpoint = forwardTarget.endpoint();
+			} else
+				endpoint = requestHead.target();
+
+			// System.out.println("Checking authorization for request");
+
+			// header names are compared case insensitive
+			int authHeader = requestHead.indexOf("proxy-authorization");
+			if ( authHeader < 0 || requestHead.count("proxy-authorization") != 1 )
+				return new ProxyRequest("Proxy Authorization Required",407);
+
+			long authStart = System.nanoTime();
+			var authEvent = new TunnelEvents.AuthDecision();
+			authEvent.begin();
+
+			var credentials = requestHead.value(authHeader);
+			boolean authorized = authorize(credentials);
+			authNanos = System.nanoTime() - authStart;
+			metrics.authPhase.record(authNanos);
+
+			authEvent.end();
+			if ( authEvent.shouldCommit() ) {
+				authEvent.subject = subject;
+				authEvent.scheme = credentials.split(" ", 2)[0];
+				authEvent.authorized = authorized;
+				authEvent.commit();
+			}
+
+			if ( !authorized )
+				return new ProxyRequest("Proxy Authorization Failed",403);
+
+			// who they are is fine, now whether they can go where they asked
+			if ( destinations.isPresent() && !destinations.get().allows(claims, endpoint) ) {
+				metrics.deniedByRules.increment();
+				return new ProxyRequest("Destination Not Permitted",403,Responses.DESTINATION_NOT_PERMITTED);
+			}
+
+			return new ProxyRequest(endpoint,200);
 
 		} catch (Exception e) {
-			e.printStackTrace();
-			return new ProxyRequest("",500,Optional.empty());
+			if ( !timedOut )
+				e.printStackTrace();
+			return new ProxyRequest("",500);
 		}
 	}
 
@@ -154,7 +563,7 @@ public class ProxyConnection implements Runnable {
 	private boolean authorize(String string) {
 
 		try {
-			System.out.println("Analysing Proxy-Authorization header");
+			// System.out.println("Analysing Proxy-Authorization header");
 
 			String[] words = string.split(" ");
 			if ( words == null || words.length != 2 || words[0] == null || words[1] == null )
@@ -186,15 +595,18 @@ public class ProxyConnection implements Runnable {
 				} else // JWT wasn't provided either way
 					return false;
 
-				System.out.println("Validating JWT");
-				JWT jwt = JWT.getDecoder().decode(token, authServer.get().getSigVerifiers());
+				// System.out.println("Validating JWT");
+				JWT jwt = authServer.get().verify(token);
 
 				// jwt.getAllClaims().entrySet().forEach(System.out::println);
 
+				subject = jwt.subject;
+				claims = jwt.getOtherClaims();
 				return true;
 			} else {
 				// provide any old user:pass, but you have to provide it
-				System.out.println("Authorized user "+basicUser);
+				// System.out.println("Authorized user "+basicUser);
+				subject = basicUser;
 				return true;
 			}
 
@@ -205,41 +617,29 @@ public class ProxyConnection implements Runnable {
 		}
 	}
 
-	private void writeErrorResponseAndClose(Socket clientConn, int response, 
-			String reason, Optional<Map<String,List<String>>> responseHeaders) {
-
-		try {
-			var clientWriter = new BufferedWriter(
-					new OutputStreamWriter(clientConn.getOutputStream(), "US-ASCII"));
-			clientWriter.write("HTTP/1.1 "+response+" "+reason+"\r\n");
-
-			if( responseHeaders.isPresent() )
-				writeHeaders(responseHeaders.get(), clientWriter);
+	private void writeErrorResponseAndClose(Socket clientConn, int response) {
+		writeErrorResponseAndClose(clientConn, response, Responses.forStatus(response));
+	}
 
-			clientWriter.write("\r\n");
-			clientWriter.flush();
+	private void writeErrorResponseAndClose(Socket clientConn, int response, byte[] refusal) {
+		opened(response);
+		logAccess(response, AccessLog.Reason.REFUSED, 0, 0);
 
+		try {
+			clientConn.getOutputStream().write(refusal);
 			clientConn.close();
 
 		} catch (IOException e) {
-			e.printStackTrace();
+			// the client has usually gone by the time a deadline passes
+			if ( !timedOut )
+				e.printStackTrace();
 		}
 	}
 
-	private boolean writeOKResponse(Socket clientConn, 
-			Optional<Map<String,List<String>>> responseHeaders) {
+	private boolean writeOKResponse(Socket clientConn) {
 
 		try {
-			var clientWriter = new BufferedWriter(
-					new OutputStreamWriter(clientConn.getOutputStream(), "US-ASCII"));
-			clientWriter.write("HTTP/1.1 200 OK\r\n");
-
-			if( responseHeaders.isPresent() )
-				writeHeaders(responseHeaders.get(), clientWriter);
-
-			clientWriter.write("\r\n");
-			clientWriter.flush();
-
+			clientConn.getOutputStream().write(Responses.OK);
 			return true;
 
 		} catch (IOException e) {
@@ -248,49 +648,581 @@ public class ProxyConnection implements Runnable {
 		}
 	}
 
-	private void writeHeaders(Map<String,List<String>> responseHeaders, 
-			BufferedWriter clientWriter) throws IOException {
-
-		final var outHeaders = new ArrayList<String>();
-		responseHeaders.entrySet().forEach(
-				entry -> entry.getValue().forEach(
-						val -> outHeaders.add(entry.getKey()+": " + val)));
-
-		for ( var hdr : outHeaders ) {
-			System.out.println(hdr);
-			clientWriter.write(hdr+"\r\n");
+	/*
+	 * Opens the tunnel's connection to its target, keeping the target's breaker counting
+	 * it until it closes
+	 */
+	private TargetConnection openTarget(String requestTarget) {
+		var connected = connectTo(requestTarget, destination);
+		connectTimedOut = connected.timedOut();
+		if ( connected.response() == 200 ) {
+			connectedTo = destination;
+			upstreamEarly = connected.early();
 		}
+		return new TargetConnection(connected.socket(), connected.response());
 	}
 
-	private TargetConnection openTarget(String requestTarget) {
+	/*
+	 * Connects to the target, telling its breaker how it went. Only failures to connect
+	 * count against the target, not names that don't resolve or targets that don't parse.
+	 * Nothing of this connection's is touched, so revalidations can connect off its thread.
+	 */
+	private Connected connectTo(String requestTarget, Breakers.Destination destination) {
+		long start = System.nanoTime();
 
 		try {
 			URI uri = new URI(null,requestTarget,null,null,null);
-			InetAddress address = InetAddress.getByName(uri.getHost());
 
-			var targetSocket = new Socket(address, uri.getPort());
-			targetSocket.setSoTimeout(60000);
+			Socket targetSocket;
+			byte[] early = null;
+			var upstream = upstreams.isPresent() ? upstreams.get().route(requestTarget) : null;
+			if ( upstream != null ) {
+				var connected = upstream.connect(requestTarget);
+				targetSocket = connected.socket();
+				early = connected.early();
 
-			return new TargetConnection(targetSocket,200);
+			} else {
+				// the selector relay can only multiplex sockets that have channels
+				targetSocket = connector.connect(uri.getHost(), uri.getPort(), selectorRelay.isPresent()
+						? () -> SocketChannel.open().socket()
+						: Socket::new);
+			}
+
+			destination.connected(System.nanoTime() - start);
+			return new Connected(targetSocket,early,200,false);
 
 		} catch (UnknownHostException e) {
+			destination.abandoned();
 			e.printStackTrace();
-			return new TargetConnection(null,500);
+			return new Connected(null,null,500,false);
+		} catch (SocketTimeoutException e) {
+			destination.failed(System.nanoTime() - start);
+			e.printStackTrace();
+			return new Connected(null,null,500,true);
+		} catch (Upstreams.RefusedException e) {
+			// already counted against the upstream, a refusing parent would flood the console
+			destination.failed(System.nanoTime() - start);
+			return new Connected(null,null,502,false);
 		} catch (URISyntaxException e) {
+			destination.abandoned();
 			e.printStackTrace();
-			return new TargetConnection(null,400);
+			return new Connected(null,null,400,false);
 		} catch (IOException e) {
+			destination.failed(System.nanoTime() - start);
 			e.printStackTrace();
-			return new TargetConnection(null,500);
+			return new Connected(null,null,500,false);
+		} catch (RuntimeException e) {
+			destination.abandoned();
+			throw e;
+		}
+
+	}
+
+	/*
+	 * Forwards the request just read, and those that follow it on the client's
+	 * connection, until either side closes it. Each request is authorized, and checked
+	 * against the destination rules, as the first was.
+	 */
+	private void forwardRequests() throws IOException {
+		responseBuffer = bufferPool.take(RELAY_BUFFER_SIZE);
+		headBuffer = bufferPool.take(RELAY_BUFFER_SIZE);
+
+		try {
+			while ( forward() ) {
+				var previousSubject = subject;
+				var previousClaims = claims;
+				var next = readAndAuthorizeRequest(clientConn);
+
+				// clients close between requests, and so do deadlines
+				if ( requestHeadLength < 0 || timedOut )
+					return;
+
+				if ( next.response == 200 && !forwarding )
+					next = new ProxyRequest("CONNECT On A Forwarding Connection",400);
+
+				// the connection's deadlines were set by the first token, one asking for others needs a connection of its own
+				if ( next.response == 200 && !timeouts.policyFor(claims).equals(tunnelPolicy) )
+					next = new ProxyRequest("Token Timeouts Differ On A Kept Connection",400);
+
+				if ( next.response != 200 ) {
+					metrics.rejected.increment();
+					writeErrorResponseAndClose(clientConn,next.response,next.refusal);
+					return;
+				}
+
+				target = next.endpoint;
+				metrics.authorized.increment();
+
+				// another token is charged to its own subject and class from here on
+				if ( !Objects.equals(subject, previousSubject) || !claims.equals(previousClaims) ) {
+					shaping = shaper.bucketsFor(subject, claims);
+					flow = scheduler.map(s -> s.flowFor(claims));
+				}
+			}
+		} finally {
+			closeQuietly(clientConn);
+		}
+	}
+
+	/*
+	 * Forwards one request to its origin and the response back to the client, unless the
+	 * cache can answer it. A GET the cache can't answer fills it from the origin, any
+	 * other requests for the same target waiting on that rather than going too.
+	 *
+	 * @return true if the client's connection can take another request
+	 */
+	private boolean forward() throws IOException {
+		long requestBody = HttpMessages.requestBody(requestHead);
+		if ( requestBody == HttpMessages.INVALID ) {
+			endHandshake();
+			writeErrorResponseAndClose(clientConn,400);
+			return false;
+		}
+
+		openedAt = System.nanoTime();
+		forwardedIn = forwardedOut = 0;
+		boolean keepAlive = HttpMessages.keepAlive(requestHead);
+		boolean toHead = requestHead.methodIs("HEAD");
+
+		var cacheKey = cacheable(requestBody) ? ResponseCache.key(forwardTarget) : null;
+		ResponseCache.Fill fill = null;
+		ResponseCache.Lookup found = null;
+		if ( cacheKey != null ) {
+			var control = CacheControl.of(requestHead);
+			found = cache.get().lookup(cacheKey, requestHead, control);
+
+			if ( !toHead && (found == null || found.use() == ResponseCache.Use.REVALIDATE) ) {
+				try {
+					fill = cache.get().fill(cacheKey);
+					if ( fill == null ) {
+						found = cache.get().lookup(cacheKey, requestHead, control);
+						if ( found == null || found.use() == ResponseCache.Use.REVALIDATE )
+							fill = cache.get().uncollapsedFill(cacheKey);
+					}
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted waiting on a fill of "+cacheKey);
+				}
+			}
+
+			if ( found != null && found.use() != ResponseCache.Use.REVALIDATE ) {
+				if ( found.use() == ResponseCache.Use.STALE_WHILE_REVALIDATE && !toHead )
+					revalidateLater(cacheKey, found.entry());
+				return answerFromCache(found.entry(), keepAlive, toHead);
+			}
+		}
+
+		try {
+			return forwardToOrigin(requestBody, keepAlive, toHead, fill,
+					fill != null && found != null ? found.entry() : null);
+		} finally {
+			if ( fill != null )
+				fill.finish();
 		}
+	}
 
+	/*
+	 * GETs and HEADs without a body, other than for ranges, can be answered from the cache
+	 */
+	private boolean cacheable(long requestBody) {
+		return cache.isPresent() && requestBody == MessageReader.NO_BODY
+				&& (requestHead.methodIs("GET") || requestHead.methodIs("HEAD"))
+				&& requestHead.indexOf("range") < 0;
+	}
+
+	/*
+	 * Sends the request to the origin and relays the response, storing it as it goes
+	 * for a fill
+	 *
+	 * @param stored what the fill has stored that's no longer fresh, revalidated with its
+	 * validators, else null
+	 */
+	private boolean forwardToOrigin(long requestBody, boolean keepAlive, boolean toHead, ResponseCache.Fill fill,
+			ResponseCache.Entry stored) throws IOException {
+		boolean expectContinue = requestHead.lists("expect", "100-continue");
+
+		// bodiless requests that can safely be sent again, if a kept connection turns out stale
+		boolean retriable = requestBody == MessageReader.NO_BODY && !requestHead.methodIs("POST")
+				&& !requestHead.methodIs("PATCH");
+
+		// a fill wants the whole response, not one conditional on the client's copy
+		var validators = fill == null ? null : stored == null ? NO_VALIDATORS : stored.validators();
+		int headLength = HttpMessages.requestHead(requestHead, forwardTarget, expectContinue, validators, 
+				headBuffer.array());
+		if ( headLength < 0 ) {
+			endHandshake();
+			writeErrorResponseAndClose(clientConn,431);
+			return false;
+		}
+
+		MessageReader fromOrigin;
+		long requestTime;
+		while ( true ) {
+			var taken = takeOrigin(target);
+			connectTimedOut |= taken.timedOut();
+			endHandshake();
+			if ( taken.connectNanos() > 0 ) {
+				connectNanos = taken.connectNanos();
+				metrics.connectPhase.record(connectNanos);
+			}
+
+			if ( taken.response() != 200 ) {
+				writeErrorResponseAndClose(clientConn,taken.response());
+				return false;
+			}
+
+			origin = taken.connection();
+			targetConn = origin.socket();
+			fromOrigin = null;
+			requestTime = System.currentTimeMillis();
+			try {
+				var toOrigin = targetConn.getOutputStream();
+				toOrigin.write(headBuffer.array(), 0, headLength);
+
+				if ( requestBody != MessageReader.NO_BODY ) {
+					if ( expectContinue )
+						clientConn.getOutputStream().write(Responses.CONTINUE);
+					clientReader.copyBody(requestBody, toOrigin, this::toOrigin);
+				}
+
+				fromOrigin = new MessageReader(targetConn.getInputStream(), responseBuffer.array());
+				readResponseHead(fromOrigin, responseHead);
+				break;
+
+			} catch (MessageReader.MalformedException e) {
+				// the client's body, the origin's only read once it's all gone
+				releaseOrigin(false);
+				metrics.rejected.increment();
+				writeErrorResponseAndClose(clientConn,400);
+				return false;
+
+			} catch (IOException e) {
+				boolean stale = origin.reused() && retriable && (fromOrigin == null || fromOrigin.buffered() == 0);
+				releaseOrigin(false);
+
+				// the origin closed the kept connection as it sat, it'll take the request on a new one
+				if ( stale && !timedOut )
+					continue;
+
+				if ( !timedOut )
+					metrics.forwardFailed.increment();
+				writeErrorResponseAndClose(clientConn,timedOut ? 408 : 502);
+				return false;
+			}
+		}
+		long responseTime = System.currentTimeMillis();
+
+		long responseBody = HttpMessages.responseBody(responseHead, toHead);
+		boolean reusable = responseBody != MessageReader.UNTIL_CLOSE && responseHead.versionIs("HTTP/1.1")
+				&& !responseHead.lists("connection", "close");
+
+		// still good, so the client gets what's stored, and whoever's waiting on the fill can have it too
+		if ( stored != null && responseHead.status() == 304 ) {
+			cache.get().revalidated(stored, responseHead, requestTime, responseTime);
+			fill.finish();
+			releaseOrigin(reusable && fromOrigin.buffered() == 0);
+			return answerFromCache(stored, keepAlive, toHead);
+		}
+
+		boolean close = !keepAlive || responseBody == MessageReader.UNTIL_CLOSE;
+		int responseLength = HttpMessages.responseHead(responseHead, close, headBuffer.array());
+		if ( responseBody == HttpMessages.INVALID || responseLength < 0 ) {
+			releaseOrigin(false);
+			writeErrorResponseAndClose(clientConn,502);
+			return false;
+		}
+
+		answering(responseHead.status());
+
+		// what the origin sent instead of what's stored replaces it, and if it can't, what's stored goes
+		boolean storing = fill != null && fill.begin(requestHead, responseHead, responseBody, requestTime, 
+				responseTime);
+		if ( stored != null && !storing )
+			cache.get().remove(stored);
+
+		try {
+			var toClient = clientConn.getOutputStream();
+			toClient.write(headBuffer.array(), 0, responseLength);
+			fromOrigin.copyBody(responseBody, storing ? fill.tee(toClient) : toClient, this::toClient);
+		} catch (IOException e) {
+			reusable = false;
+			throw e;
+		} finally {
+			// anything the origin sent past the response would be read as the next one
+			releaseOrigin(reusable && fromOrigin.buffered() == 0);
+		}
+
+		if ( storing )
+			fill.complete();
+
+		// a successful unsafe request leaves anything stored for its target out of date
+		if ( cache.isPresent() && !requestHead.methodIs("GET") && !toHead && !requestHead.methodIs("OPTIONS")
+				&& !requestHead.methodIs("TRACE") && responseHead.status() < 400 )
+			cache.get().invalidate(ResponseCache.key(forwardTarget));
+
+		metrics.forwarded.increment();
+		logAccess(responseHead.status(), AccessLog.Reason.COMPLETED, forwardedIn, forwardedOut);
+		return !close;
+	}
+
+	/*
+	 * Hands the origin connection back to the pool, after which other clients' requests
+	 * can go over it. It stops being the target a deadline closes first, under the same
+	 * lock expire() closes it under, and if a deadline has already closed it it isn't
+	 * kept.
+	 */
+	private void releaseOrigin(boolean reusable) {
+		synchronized ( this ) {
+			targetConn = null;
+		}
+		origins.release(origin, reusable && !timedOut);
+		origin = null;
+	}
+
+	/*
+	 * The response is going back, from here the connection is held to the idle and
+	 * lifetime limits
+	 */
+	private void answering(int status) {
+		endHandshake();
+		if ( !answered ) {
+			answered = true;
+			handshakeNanos = System.nanoTime() - acceptedAt;
+			metrics.handshake.record(handshakeNanos);
+			opened(status);
+			tunnelPolicy = timeouts.policyFor(claims);
+			deadlines.tunnel(tunnelPolicy, () -> lastRelayed);
+		}
+		lastRelayed = System.nanoTime();
+	}
+
+	/*
+	 * Answers the request with a stored response, or with a 304 if the client's asked
+	 * conditionally and already has it
+	 */
+	private boolean answerFromCache(ResponseCache.Entry entry, boolean keepAlive, boolean toHead) throws IOException {
+		boolean notModified = entry.notModifiedFor(requestHead);
+		long age = entry.age(System.currentTimeMillis()) / 1000;
+
+		// stored heads are kept well short of the buffer, so there's room for what's added
+		int length = notModified
+				? HttpMessages.notModifiedHead(entry.head(), age, !keepAlive, headBuffer.array())
+				: HttpMessages.cachedHead(entry.head(), age, !keepAlive, headBuffer.array());
+		int status = notModified ? 304 : entry.status();
+
+		answering(status);
+		var toClient = clientConn.getOutputStream();
+		toClient.write(headBuffer.array(), 0, length);
+		if ( !notModified && !toHead )
+			writeBody(entry.body(), toClient);
+
+		logAccess(status, AccessLog.Reason.COMPLETED, 0, forwardedOut);
+		return keepAlive;
+	}
+
+	/*
+	 * Stored bodies are off the heap, written from there where the client's socket has a
+	 * channel, and through the relay buffer where it hasn't
+	 */
+	private void writeBody(ByteBuffer body, OutputStream toClient) throws IOException {
+		var channel = clientConn.getChannel();
+		var buffer = responseBuffer.array();
+
+		while ( body.hasRemaining() ) {
+			int count = Math.min(body.remaining(), buffer.length);
+			toClient(count);
+
+			if ( channel != null ) {
+				var slice = body.slice(body.position(), count);
+				while ( slice.hasRemaining() )
+					channel.write(slice);
+				body.position(body.position() + count);
+			} else {
+				body.get(buffer, 0, count);
+				toClient.write(buffer, 0, count);
+			}
+		}
+	}
+
+	/*
+	 * Sends a stale response's revalidation off to run in the background, the head built
+	 * now while the client's request is to hand
+	 */
+	private void revalidateLater(String cacheKey, ResponseCache.Entry entry) {
+		int length = HttpMessages.requestHead(requestHead, forwardTarget, false, entry.validators(), 
+				headBuffer.array());
+		if ( length < 0 )
+			return;
+
+		var head = Arrays.copyOf(headBuffer.array(), length);
+		var endpoint = target;
+		cache.get().revalidateLater(entry, () -> revalidate(cacheKey, endpoint, head, entry));
+	}
+
+	/*
+	 * Runs on the cache's thread, so uses nothing of the client connection's but the
+	 * copy of its request. The origin is held to the handshake timeout as it answers.
+	 */
+	private void revalidate(String cacheKey, String endpoint, byte[] head, ResponseCache.Entry entry) {
+		var fill = cache.get().tryFill(cacheKey);
+		if ( fill == null )
+			return;
+
+		var buffer = bufferPool.take(RELAY_BUFFER_SIZE);
+		OriginPool.Connection connection = null;
+		boolean reusable = false;
+
+		try {
+			var taken = takeOrigin(endpoint);
+			if ( taken.response() != 200 )
+				return;
+			connection = taken.connection();
+
+			var socket = connection.socket();
+			socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, timeouts.policy().handshake().toMillis()));
+			long requestTime = System.currentTimeMillis();
+			socket.getOutputStream().write(head);
+
+			var fromOrigin = new MessageReader(socket.getInputStream(), buffer.array());
+			var response = new RequestHead();
+			readResponseHead(fromOrigin, response);
+			long responseTime = System.currentTimeMillis();
+
+			long body = HttpMessages.responseBody(response, false);
+			boolean keep = body != MessageReader.UNTIL_CLOSE && response.versionIs("HTTP/1.1")
+					&& !response.lists("connection", "close");
+
+			var request = new RequestHead();
+			request.parse(head, head.length);
+
+			if ( response.status() == 304 )
+				cache.get().revalidated(entry, response, requestTime, responseTime);
+			else if ( body != HttpMessages.INVALID && fill.begin(request, response, body, requestTime, responseTime) ) {
+				fromOrigin.copyBody(body, fill.tee(OutputStream.nullOutputStream()), count -> {});
+				fill.complete();
+			} else {
+				cache.get().remove(entry);
+				keep = false;
+			}
+
+			reusable = keep && fromOrigin.buffered() == 0;
+			if ( reusable )
+				socket.setSoTimeout(0);
+
+		} catch (IOException e) {
+			reusable = false;
+			System.out.println("Unable to revalidate "+cacheKey+", "+e.getMessage());
+		} finally {
+			fill.finish();
+			if ( connection != null )
+				origins.release(connection, reusable);
+			bufferPool.release(buffer);
+		}
+	}
+
+	/*
+	 * Takes a kept connection to the origin or opens a new one, which the pool keeps
+	 * counted against the origin's breaker until it finally closes it. Like connectTo it
+	 * leaves the client connection alone.
+	 */
+	private OriginConnection takeOrigin(String endpoint) throws IOException {
+		OriginPool.Connection connection;
+		try {
+			connection = origins.acquire(endpoint);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for a connection to "+endpoint);
+		}
+
+		if ( connection == null )
+			return new OriginConnection(null, 503, 0, false);
+		if ( connection.socket() != null )
+			return new OriginConnection(connection, 200, 0, false);
+
+		var permit = breakers.acquire(endpoint);
+		if ( permit.status() != 200 ) {
+			origins.release(connection, false);
+			return new OriginConnection(null, permit.status(), 0, false);
+		}
+
+		long connectStart = System.nanoTime();
+		var connected = connectTo(endpoint, permit.destination());
+		long connectNanos = System.nanoTime() - connectStart;
+
+		if ( connected.response() != 200 ) {
+			metrics.connectFailed.increment();
+			origins.release(connection, false);
+			return new OriginConnection(null, connected.response(), connectNanos, connected.timedOut());
+		}
+
+		connection.opened(connected.socket(), permit.destination()::closed);
+
+		// a parent proxy passing on bytes before there's been a request isn't an origin to trust
+		if ( connected.early() != null ) {
+			origins.release(connection, false);
+			return new OriginConnection(null, 502, connectNanos, false);
+		}
+
+		return new OriginConnection(connection, 200, connectNanos, false);
+	}
+
+	/*
+	 * Reads the origin's response head into response, passing over interim responses,
+	 * proxit having answered any Expect itself
+	 */
+	private void readResponseHead(MessageReader fromOrigin, RequestHead response) throws IOException {
+		while ( true ) {
+			int length = fromOrigin.readHead(RELAY_BUFFER_SIZE);
+			if ( length < 0 )
+				throw new EOFException("Closed without responding");
+
+			if ( length == 0 || response.parseResponse(fromOrigin.array(), length) != RequestHead.OK 
+					|| response.status() == 101 )
+				throw new IOException("Invalid response head");
+
+			if ( response.status() >= 200 )
+				return;
+		}
+	}
+
+	/*
+	 * Forwarded bodies are counted and paced the same as relayed bytes
+	 */
+	private void toOrigin(int bytes) throws IOException {
+		pace(bytes);
+		metrics.bytesIn.add(bytes);
+		forwardedIn += bytes;
+		lastRelayed = System.nanoTime();
+	}
+
+	private void toClient(int bytes) throws IOException {
+		pace(bytes);
+		metrics.bytesOut.add(bytes);
+		forwardedOut += bytes;
+		lastRelayed = System.nanoTime();
+	}
+
+	private void pace(int bytes) throws IOException {
+		try {
+			if ( shaping.isPresent() )
+				Shaper.pause(shaping.get().consume(bytes));
+			if ( flow.isPresent() )
+				flow.get().acquire(bytes);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted pacing a forwarded body");
+		}
 	}
 
 	private void relayIO(Socket clientConn, Socket targetConn) {
 
+		var closeEvent = new TunnelEvents.TunnelClose();
+		closeEvent.begin();
+		lastRelayed = System.nanoTime();
+
+		var upstream = new UniRelay2(clientConn,targetConn,true);
+		var downstream = new UniRelay2(targetConn,clientConn,false);
+
 		List<Callable<Object>> tasks = new ArrayList<>(2);
-		tasks.add(Executors.callable(new UniRelay2(clientConn,targetConn)));
-		tasks.add(Executors.callable(new UniRelay2(targetConn,clientConn)));
+		tasks.add(Executors.callable(upstream));
+		tasks.add(Executors.callable(downstream));
 
 		try {
 			ioWorkerpool.invokeAll(tasks);
@@ -310,6 +1242,9 @@ public class ProxyConnection implements Runnable {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+
+		closed(closeEvent, upstream.total, downstream.total, timedOut ? AccessLog.Reason.TIMEOUT
+				: upstream.ended != AccessLog.Reason.COMPLETED ? upstream.ended : downstream.ended);
 	}
 
 	/**
@@ -322,36 +1257,152 @@ public class ProxyConnection implements Runnable {
 	private class UniRelay2 implements Runnable {
 
 		Socket in, out;
-
-		public UniRelay2(Socket in, Socket out) {
+		String direction;
+		Metrics.Counter relayed;
+
+		// bytes relayed, chunks written for sampling, and why the relay stopped
+		long total;
+		int chunks;
+		AccessLog.Reason ended = AccessLog.Reason.COMPLETED;
+
+		/**
+		 * @param upstream true if relaying from the client to the target
+		 */
+		public UniRelay2(Socket in, Socket out, boolean upstream) {
 			this.in = in;
 			this.out = out;
+			this.direction = upstream ? "upstream" : "downstream";
+			this.relayed = upstream ? metrics.bytesIn : metrics.bytesOut;
+		}
+
+		private void count(long bytes) {
+			relayed.add(bytes);
+			total += bytes;
+			lastRelayed = System.nanoTime();
+		}
+
+		/*
+		 * The other direction has already given up on the tunnel and closed it
+		 */
+		private boolean tornDown() {
+			return in.isClosed() || out.isClosed();
+		}
+
+		/*
+		 * Closes both sockets, so the other direction stops straight away rather than
+		 * waiting on a peer that may never send anything again
+		 */
+		private void tearDown() {
+			closeQuietly(in);
+			closeQuietly(out);
 		}
 
+		/**
+		 * Relays until in reaches end of stream, then shuts down output on out so the far
+		 * side sees the end of stream too, while the other direction carries on. An error
+		 * or a reset tears the tunnel down, as does a deadline passing, from the timer.
+		 */
 		@Override
 		public void run() {
 			try {
-				var input = in.getInputStream();
-				var output = out.getOutputStream();
+				if ( !splice() )
+					copy();
 
-				// input.transferTo(output);
+				if ( !out.isOutputShutdown() )
+					out.shutdownOutput();
 
-				byte[] buffer = new byte[4096];
-				int bytesRead = input.read(buffer);
+			} catch (IOException e) {
+				if ( tornDown() )
+					return;
 
-				while ( bytesRead != 0 ) {
-					output.write(buffer, 0, bytesRead);
+				if ( "Connection reset".equals(e.getMessage()) )
+					ended = AccessLog.Reason.RESET;
+				else {
+					ended = AccessLog.Reason.ERROR;
+					e.printStackTrace();
+				}
+				tearDown();
+			} catch (InterruptedException e) {
+				// tunnel is being torn down
+				tearDown();
+			}
+		}
 
-					// if will block, flush out stream
-					if ( input.available() < 1 )
-						output.flush();
+		/*
+		 * Kernel to kernel if we can, otherwise copy through the heap, where we can pace it.
+		 *
+		 * @return false if splicing isn't possible here and nothing has been relayed
+		 */
+		private boolean splice() throws IOException {
+			if ( !splice || shaping.isPresent() || flow.isPresent() || !Splice.relay(in, out, this::count) )
+				return false;
 
-					bytesRead = input.read(buffer);					
-				}
+			// splice passes on end of stream itself, anything else stopping it is a failure
+			if ( !out.isOutputShutdown() )
+				throw new IOException("Splice failed");
 
-			} catch (IOException e) {
-				if ( !e.getMessage().equals("Connection reset") ) 
-					e.printStackTrace();
+			return true;
+		}
+
+		private void copy() throws IOException, InterruptedException {
+			var input = in.getInputStream();
+			var output = out.getOutputStream();
+
+			// input.transferTo(output);
+
+			/*
+			 * Block on a single byte so an idle tunnel holds no buffer. Once something
+			 * arrives take one from the pool and read whole chunks straight into it for as
+			 * long as the input has more waiting, so a busy tunnel costs a read and an
+			 * available() per chunk, then flush and hand the buffer back before blocking.
+			 */
+			int firstByte;
+			while ( (firstByte = input.read()) >= 0 ) {
+				var buffer = bufferPool.take(RELAY_BUFFER_SIZE);
+				try {
+					var bytes = buffer.array();
+					bytes[0] = (byte) firstByte;
+					int bytesRead = 1;
+					if ( input.available() > 0 )
+						bytesRead += input.read(bytes, 1, RELAY_BUFFER_SIZE - 1);
+
+					while ( bytesRead > 0 ) {
+						if ( shaping.isPresent() )
+							Shaper.pause(shaping.get().consume(bytesRead));
+						if ( flow.isPresent() )
+							flow.get().acquire(bytesRead);
+
+						TunnelEvents.RelayChunk chunk = null;
+						if ( ++chunks % TunnelEvents.CHUNK_SAMPLE == 0 ) {
+							chunk = new TunnelEvents.RelayChunk();
+							chunk.begin();
+						}
+
+						output.write(bytes, 0, bytesRead);
+						count(bytesRead);
+
+						if ( chunk != null ) {
+							chunk.end();
+							if ( chunk.shouldCommit() ) {
+								chunk.direction = direction;
+								chunk.bytes = bytesRead;
+								chunk.sampleInterval = TunnelEvents.CHUNK_SAMPLE;
+								chunk.commit();
+							}
+						}
+
+						// nothing waiting, so the next read would block
+						if ( input.available() < 1 )
+							break;
+
+						bytesRead = input.read(bytes);
+					}
+
+					output.flush();
+
+				} finally {
+					bufferPool.release(buffer);
+				}
 			}
 		}
 
@@ -0,0 +1,32 @@
+package xyz.arwhite.net.proxit;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+
+import xyz.arwhite.net.auth.AuthServer;
+
+/**
+ * What every connection shares, set up once by ProxyServer from its configuration and
+ * handed to each ProxyConnection it accepts. Anything new a connection needs from the
+ * server goes here rather than onto the ProxyConnection constructor.
+ *
+ * @param ioWorkerPool runs the threads relaying tunnels that aren't on the selector relay
+ * @param authServer verifies JWTs, if clients must present one
+ * @param destinations where clients may go, if restricted
+ * @param selectorRelay relays tunnels on event loops, if that engine is in use
+ * @param splice true if thread relays splice(2) rather than copy
+ * @param bufferPool heap buffers for request heads and copying
+ * @param upstreams parent proxies some destinations go through
+ * @param origins connections kept open to the origins of forwarded requests
+ * @param cache responses to forwarded GETs, if they're cached
+ * @param scheduler shares the egress link by role, if its rate is set
+ * @param accessLog record of every tunnel and request, if kept
+ *
+ * @author Alan R. White
+ *
+ */
+public record ProxyContext(ExecutorService ioWorkerPool, Optional<AuthServer> authServer,
+		Optional<DestinationPolicy> destinations, Optional<SelectorRelay> selectorRelay, boolean splice,
+		BufferPool bufferPool, Connector connector, Breakers breakers, Optional<Upstreams> upstreams,
+		OriginPool origins, Optional<ResponseCache> cache, AdmissionController admission, Shaper shaper,
+		Optional<FairScheduler> scheduler, Timeouts timeouts, Metrics metrics, Optional<AccessLog> accessLog) {}
@@ -1,15 +1,21 @@
 package xyz.arwhite.net.proxit;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import xyz.arwhite.net.auth.AuthServer;
+import xyz.arwhite.net.auth.AuthSnapshot;
 
 public class ProxyServer implements Runnable {
 
@@ -37,6 +43,198 @@ public class ProxyServer implements Runnable {
 	 */
 	private final static String AUTH_SERVER_CACERT_ENV_VAR = "PROXIT_AUTH_CACERT";
 
+	/*
+	 * How many verified JWTs are cached so repeat tokens skip signature checks, and the
+	 * most seconds a token is cached for if it expires later than that or not at all
+	 */
+	private final static String TOKEN_CACHE_SIZE_ENV_VAR = "PROXIT_TOKEN_CACHE_SIZE";
+	private final static String TOKEN_CACHE_DEFAULT_SIZE = "10000";
+	private final static String TOKEN_CACHE_TTL_ENV_VAR = "PROXIT_TOKEN_CACHE_TTL";
+	private final static String TOKEN_CACHE_DEFAULT_TTL = "300";
+
+	/*
+	 * If set to a file name, the Auth Server's discovery document and keys are kept there
+	 * so a restart can begin validating tokens without waiting on the Auth Server. A
+	 * snapshot older than the max age in seconds is not used, and if a key is given the
+	 * snapshot is signed with it rather than just checksummed.
+	 */
+	private final static String AUTH_SNAPSHOT_ENV_VAR = "PROXIT_AUTH_SNAPSHOT";
+	private final static String AUTH_SNAPSHOT_MAX_AGE_ENV_VAR = "PROXIT_AUTH_SNAPSHOT_MAX_AGE";
+	private final static String AUTH_SNAPSHOT_DEFAULT_MAX_AGE = "86400";
+	private final static String AUTH_SNAPSHOT_KEY_ENV_VAR = "PROXIT_AUTH_SNAPSHOT_KEY";
+
+	/*
+	 * Selects how established tunnels are relayed. "threads" (the default) parks two
+	 * threads per tunnel, platform or virtual depending on the server mode. "selector"
+	 * multiplexes all tunnels over a few non-blocking event loops. "splice" is the threads
+	 * engine moving bytes socket to socket inside the kernel, Linux and platform threads
+	 * only, falling back to "threads" where it can't be used.
+	 */
+	private final static String RELAY_ENGINE_ENV_VAR = "PROXIT_RELAY_ENGINE";
+
+	/*
+	 * Number of event loops the selector relay engine runs, defaults to one per core
+	 */
+	private final static String RELAY_LOOPS_ENV_VAR = "PROXIT_RELAY_LOOPS";
+
+	/*
+	 * Ceiling in MB on the memory held by each of the buffer pools, heap buffers for
+	 * request heads and thread relays, direct buffers for the selector relay
+	 */
+	private final static String BUFFER_POOL_MB_ENV_VAR = "PROXIT_BUFFER_POOL_MB";
+	private final static String BUFFER_POOL_DEFAULT_MB = "64";
+
+	/*
+	 * Seconds target host lookups are cached for, and failed lookups
+	 */
+	private final static String DNS_TTL_ENV_VAR = "PROXIT_DNS_TTL";
+	private final static String DNS_DEFAULT_TTL = "60";
+	private final static String DNS_NEGATIVE_TTL_ENV_VAR = "PROXIT_DNS_NEGATIVE_TTL";
+	private final static String DNS_DEFAULT_NEGATIVE_TTL = "10";
+
+	/*
+	 * Seconds allowed to connect to a target over all its addresses, and to any one of them
+	 */
+	private final static String CONNECT_TIMEOUT_ENV_VAR = "PROXIT_CONNECT_TIMEOUT";
+	private final static String CONNECT_DEFAULT_TIMEOUT = "10";
+	private final static String CONNECT_ATTEMPT_TIMEOUT_ENV_VAR = "PROXIT_CONNECT_ATTEMPT_TIMEOUT";
+	private final static String CONNECT_DEFAULT_ATTEMPT_TIMEOUT = "3";
+
+	/*
+	 * File of routes sending chosen destinations through parent proxies. Unset means
+	 * every target is connected to directly.
+	 */
+	private final static String UPSTREAMS_ENV_VAR = "PROXIT_UPSTREAMS";
+
+	/*
+	 * Plain HTTP requests are forwarded over connections kept open to each origin, at
+	 * most PROXIT_ORIGIN_MAX_CONNECTIONS to any one of them, busy or idle, idle ones being
+	 * closed after PROXIT_ORIGIN_IDLE seconds, 0 not to keep them. A request waits up to
+	 * PROXIT_ORIGIN_WAIT_MS for a connection to an origin at its cap before getting a 503.
+	 */
+	private final static String ORIGIN_MAX_CONNECTIONS_ENV_VAR = "PROXIT_ORIGIN_MAX_CONNECTIONS";
+	private final static String ORIGIN_DEFAULT_MAX_CONNECTIONS = "32";
+	private final static String ORIGIN_IDLE_ENV_VAR = "PROXIT_ORIGIN_IDLE";
+	private final static String ORIGIN_DEFAULT_IDLE = "30";
+	private final static String ORIGIN_WAIT_ENV_VAR = "PROXIT_ORIGIN_WAIT_MS";
+	private final static String ORIGIN_DEFAULT_WAIT = "1000";
+
+	/*
+	 * Forwarded GETs are cached if PROXIT_CACHE_MB is set, the megabytes held in memory,
+	 * bodies of up to PROXIT_CACHE_MAX_OBJECT_MB being stored. PROXIT_CACHE_DIR adds a
+	 * disk tier of PROXIT_CACHE_DISK_MB for what memory can't hold. Requests for a target
+	 * being fetched wait up to PROXIT_CACHE_COLLAPSE_WAIT seconds for it.
+	 */
+	private final static String CACHE_MB_ENV_VAR = "PROXIT_CACHE_MB";
+	private final static String CACHE_MAX_OBJECT_MB_ENV_VAR = "PROXIT_CACHE_MAX_OBJECT_MB";
+	private final static String CACHE_DEFAULT_MAX_OBJECT_MB = "64";
+	private final static String CACHE_DIR_ENV_VAR = "PROXIT_CACHE_DIR";
+	private final static String CACHE_DISK_MB_ENV_VAR = "PROXIT_CACHE_DISK_MB";
+	private final static String CACHE_DEFAULT_DISK_MB = "1024";
+	private final static String CACHE_COLLAPSE_WAIT_ENV_VAR = "PROXIT_CACHE_COLLAPSE_WAIT";
+	private final static String CACHE_DEFAULT_COLLAPSE_WAIT = "30";
+
+	/*
+	 * Circuit breaker for each destination, opening for PROXIT_BREAKER_OPEN seconds
+	 * when PROXIT_BREAKER_FAILURE_RATE percent of its last PROXIT_BREAKER_WINDOW
+	 * connects fail, 0 never to, connects taking over PROXIT_BREAKER_SLOW_CONNECT ms
+	 * counting as failures, 0 for no limit. Alongside, caps on connects in progress to
+	 * one destination and on tunnels open to it, 0 for no cap.
+	 */
+	private final static String BREAKER_FAILURE_RATE_ENV_VAR = "PROXIT_BREAKER_FAILURE_RATE";
+	private final static String BREAKER_DEFAULT_FAILURE_RATE = "50";
+	private final static String BREAKER_WINDOW_ENV_VAR = "PROXIT_BREAKER_WINDOW";
+	private final static String BREAKER_DEFAULT_WINDOW = "20";
+	private final static String BREAKER_OPEN_ENV_VAR = "PROXIT_BREAKER_OPEN";
+	private final static String BREAKER_DEFAULT_OPEN = "30";
+	private final static String BREAKER_SLOW_CONNECT_ENV_VAR = "PROXIT_BREAKER_SLOW_CONNECT";
+	private final static String BREAKER_DEFAULT_SLOW_CONNECT = "0";
+	private final static String DESTINATION_MAX_CONNECTS_ENV_VAR = "PROXIT_DESTINATION_MAX_CONNECTS";
+	private final static String DESTINATION_DEFAULT_MAX_CONNECTS = "100";
+	private final static String DESTINATION_MAX_TUNNELS_ENV_VAR = "PROXIT_DESTINATION_MAX_TUNNELS";
+	private final static String DESTINATION_DEFAULT_MAX_TUNNELS = "0";
+
+	/*
+	 * Admission control. At most PROXIT_MAX_HANDSHAKES connections, by default the
+	 * maxThreads the server was created with, are read, authorized and connected at
+	 * once, with PROXIT_HANDSHAKE_LIMITER choosing whether that limit is "fixed" or
+	 * comes down with latency, "vegas" or "gradient". Connections wait at most 
+	 * PROXIT_ADMISSION_WAIT_MS for a handshake slot, at most PROXIT_ACCEPT_BACKLOG of 
+	 * them at a time, and PROXIT_MAX_TUNNELS may be open at once. Connections beyond 
+	 * any of these get a 503.
+	 */
+	private final static String MAX_HANDSHAKES_ENV_VAR = "PROXIT_MAX_HANDSHAKES";
+	private final static String HANDSHAKE_LIMITER_ENV_VAR = "PROXIT_HANDSHAKE_LIMITER";
+	private final static String ADMISSION_WAIT_ENV_VAR = "PROXIT_ADMISSION_WAIT_MS";
+	private final static String ADMISSION_DEFAULT_WAIT = "1000";
+	private final static String ACCEPT_BACKLOG_ENV_VAR = "PROXIT_ACCEPT_BACKLOG";
+	private final static String ACCEPT_DEFAULT_BACKLOG = "128";
+	private final static String MAX_TUNNELS_ENV_VAR = "PROXIT_MAX_TUNNELS";
+	private final static String DEFAULT_MAX_TUNNELS = "10000";
+
+	/*
+	 * Bandwidth limits in bytes per second, both directions together, for each tunnel and
+	 * for all of a subject's tunnels, with the burst allowed above the rate, by default a
+	 * second's worth. A proxit_rate or proxit_burst claim in a subject's JWT overrides
+	 * the subject limits. Unset or 0 means unlimited.
+	 */
+	private final static String TUNNEL_RATE_ENV_VAR = "PROXIT_TUNNEL_RATE";
+	private final static String TUNNEL_BURST_ENV_VAR = "PROXIT_TUNNEL_BURST";
+	private final static String SUBJECT_RATE_ENV_VAR = "PROXIT_SUBJECT_RATE";
+	private final static String SUBJECT_BURST_ENV_VAR = "PROXIT_SUBJECT_BURST";
+
+	/*
+	 * Aggregate egress rate in bytes per second that tunnels share by the weights given to
+	 * their realm roles, as role=weight pairs separated by commas, eg connector-role=4.
+	 * Tunnels without a weighted role have weight 1. Unset or 0 means tunnels aren't
+	 * scheduled, they write as fast as the network lets them.
+	 */
+	private final static String EGRESS_RATE_ENV_VAR = "PROXIT_EGRESS_RATE";
+	private final static String EGRESS_BURST_ENV_VAR = "PROXIT_EGRESS_BURST";
+	private final static String ROLE_WEIGHTS_ENV_VAR = "PROXIT_ROLE_WEIGHTS";
+
+	/*
+	 * File of destination rules saying which JWT roles can reach which hosts, address
+	 * ranges and ports, checked for changes every PROXIT_ACL_RELOAD seconds, 0 for
+	 * never. Unset means any authorized client can reach anywhere.
+	 */
+	private final static String ACL_ENV_VAR = "PROXIT_ACL";
+	private final static String ACL_RELOAD_ENV_VAR = "PROXIT_ACL_RELOAD";
+	private final static String ACL_DEFAULT_RELOAD = "10";
+
+	/*
+	 * Deadlines for each connection, in seconds, 0 for none. The handshake from starting
+	 * on a connection to answering its CONNECT, how long a tunnel can relay nothing and
+	 * how long it can be open at all. Checked on a timing wheel ticking every
+	 * TIMER_TICK_MS.
+	 */
+	private final static String HANDSHAKE_TIMEOUT_ENV_VAR = "PROXIT_HANDSHAKE_TIMEOUT";
+	private final static String HANDSHAKE_DEFAULT_TIMEOUT = "30";
+	private final static String IDLE_TIMEOUT_ENV_VAR = "PROXIT_IDLE_TIMEOUT";
+	private final static String IDLE_DEFAULT_TIMEOUT = "60";
+	private final static String MAX_LIFETIME_ENV_VAR = "PROXIT_MAX_LIFETIME";
+	private final static String MAX_DEFAULT_LIFETIME = "0";
+	private final static int TIMER_TICK_MS = 100;
+	private final static int TIMER_SLOTS = 1024;
+
+	/*
+	 * Port to serve metrics on for Prometheus to scrape, and the address to bind it to,
+	 * loopback unless told otherwise. Unset means metrics are kept but not served.
+	 */
+	private final static String METRICS_PORT_ENV_VAR = "PROXIT_METRICS_PORT";
+	private final static String METRICS_ADDRESS_ENV_VAR = "PROXIT_METRICS_ADDRESS";
+	private final static String METRICS_DEFAULT_ADDRESS = "127.0.0.1";
+
+	/*
+	 * Directory to write the binary access log to, unset for no access log, with the size
+	 * of each segment file and how many are kept
+	 */
+	private final static String ACCESS_LOG_ENV_VAR = "PROXIT_ACCESS_LOG";
+	private final static String ACCESS_LOG_SEGMENT_MB_ENV_VAR = "PROXIT_ACCESS_LOG_SEGMENT_MB";
+	private final static String ACCESS_LOG_DEFAULT_SEGMENT_MB = "16";
+	private final static String ACCESS_LOG_SEGMENTS_ENV_VAR = "PROXIT_ACCESS_LOG_SEGMENTS";
+	private final static String ACCESS_LOG_DEFAULT_SEGMENTS = "8";
+
 	/*
 	 * Used if not using java virtual threads
 	 */
@@ -56,18 +254,102 @@ public class ProxyServer implements Runnable {
 	 */
 	private Optional<AuthServer> authServer = Optional.empty();
 
+	/*
+	 * Where authorized clients are allowed to go, if restricted
+	 */
+	private Optional<DestinationPolicy> destinations = Optional.empty();
+
+	/*
+	 * Present if tunnels are relayed by the non-blocking selector engine rather than
+	 * by a pair of threads per tunnel from the ioWorkerPool
+	 */
+	private Optional<SelectorRelay> selectorRelay = Optional.empty();
+
+	/*
+	 * True if the thread per direction relay should splice(2) rather than copy
+	 */
+	private boolean splice = false;
+
+	/*
+	 * True if connections are handled on virtual threads
+	 */
+	private boolean virtualThreads = false;
+
+	/*
+	 * Buffers shared by all connections, direct ones only if the selector relay is used
+	 */
+	private BufferPool heapBuffers;
+	private Optional<BufferPool> directBuffers = Optional.empty();
+
+	/*
+	 * Resolves and caches the addresses of the targets clients connect to, and connects
+	 * to them
+	 */
+	private Resolver resolver;
+	private Connector connector;
+	private Breakers breakers;
+	private Optional<Upstreams> upstreams = Optional.empty();
+
+	/*
+	 * Connections kept open to the origins plain HTTP requests are forwarded to
+	 */
+	private OriginPool origins;
+
+	/*
+	 * Responses to forwarded GETs, if they're cached
+	 */
+	private Optional<ResponseCache> cache = Optional.empty();
+
+	/*
+	 * Decides which connections are taken on and which are shed
+	 */
+	private AdmissionController admission;
+
+	/*
+	 * Limits the bandwidth tunnels can use
+	 */
+	private Shaper shaper;
+
+	/*
+	 * Shares the egress link between tunnels by role, if its rate is configured
+	 */
+	private Optional<FairScheduler> scheduler = Optional.empty();
+
+	/*
+	 * Holds every connection to its deadlines
+	 */
+	private Timeouts timeouts;
+
+	/*
+	 * Counts what's going through proxit, served if a metrics port is given
+	 */
+	private final Metrics metrics = new Metrics();
+	private Optional<MetricsEndpoint> metricsEndpoint = Optional.empty();
+
+	/*
+	 * Record of every tunnel, if wanted
+	 */
+	private Optional<AccessLog> accessLog = Optional.empty();
+
+	/*
+	 * All of the above a connection needs, put together once configured
+	 */
+	private ProxyContext context;
+
 	/**
 	 * Constructor used if virtual threads are to be used
 	 * 
-	 * @param maxThreads TODO: use this to control max concurrency
+	 * @param maxThreads default limit on concurrent handshakes, virtual threads being
+	 * otherwise unlimited
 	 * @param vThreads
 	 * @throws Exception
 	 */
 	public ProxyServer(int maxThreads, boolean vThreads) throws Exception {
 		connectionPool = Executors.newVirtualThreadPerTaskExecutor();
 		ioWorkerPool = Executors.newVirtualThreadPerTaskExecutor();
+		virtualThreads = true;
 
-		configure();
+		configure(maxThreads);
 	}
 
 	/**
@@ -80,10 +362,10 @@ public class ProxyServer implements Runnable {
 		connectionPool = Executors.newFixedThreadPool(maxThreads);
 		ioWorkerPool = Executors.newFixedThreadPool(maxThreads * 2);
 
-		configure();
+		configure(maxThreads);
 	}
 
-	private void configure() throws IllegalArgumentException {
+	private void configure(int maxThreads) throws IllegalArgumentException {
 		/*
 		 * Override TCP Port Proxit will listen on, if specified
 		 */
@@ -114,26 +396,542 @@ public class ProxyServer implements Runnable {
 			Optional<String> cacertFile = Optional.of(
 					(String) Objects.requireNonNullElse(System.getenv(AUTH_SERVER_CACERT_ENV_VAR), Optional.empty()));
 			
+			int tokenCacheSize, tokenCacheTtl;
+			try {
+				tokenCacheSize = Integer.parseInt(Objects.requireNonNullElse(
+						System.getenv(TOKEN_CACHE_SIZE_ENV_VAR), TOKEN_CACHE_DEFAULT_SIZE));
+				tokenCacheTtl = Integer.parseInt(Objects.requireNonNullElse(
+						System.getenv(TOKEN_CACHE_TTL_ENV_VAR), TOKEN_CACHE_DEFAULT_TTL));
+			} catch(NumberFormatException e) {
+				throw(new IllegalArgumentException("Proxit token cache variables not set to integer values",e));
+			}
+
+			Optional<AuthSnapshot> snapshot = Optional.empty();
+			var snapshotFile = System.getenv(AUTH_SNAPSHOT_ENV_VAR);
+			if ( snapshotFile != null ) {
+				long maxAge;
+				try {
+					maxAge = Long.parseLong(Objects.requireNonNullElse(
+							System.getenv(AUTH_SNAPSHOT_MAX_AGE_ENV_VAR), AUTH_SNAPSHOT_DEFAULT_MAX_AGE));
+				} catch(NumberFormatException e) {
+					throw(new IllegalArgumentException("Proxit auth snapshot max age not set to an integer value",e));
+				}
+
+				snapshot = Optional.of(new AuthSnapshot(Path.of(snapshotFile), Duration.ofSeconds(maxAge),
+						Optional.ofNullable(System.getenv(AUTH_SNAPSHOT_KEY_ENV_VAR))));
+			}
+
 			try {
-				authServer = Optional.of(new AuthServer(URI.create(authServerURL),cacertFile));
+				authServer = Optional.of(new AuthServer(URI.create(authServerURL),cacertFile,
+						tokenCacheSize,Duration.ofSeconds(tokenCacheTtl),snapshot));
 				
 			} catch (Exception e) {
 				System.out.println("Unable to use the specified Auth Server URL");
 				e.printStackTrace();
 			}
 		}
+
+		/*
+		 * Load the destination rules
+		 */
+		var aclFile = System.getenv(ACL_ENV_VAR);
+		if ( aclFile == null ) {
+			System.out.println("Not restricting destinations");
+
+		} else {
+			long aclReload;
+			try {
+				aclReload = Long.parseLong(Objects.requireNonNullElse(
+						System.getenv(ACL_RELOAD_ENV_VAR), ACL_DEFAULT_RELOAD));
+			} catch(NumberFormatException e) {
+				throw(new IllegalArgumentException("Proxit ACL reload variable not set to integer value",e));
+			}
+
+			try {
+				destinations = Optional.of(new DestinationPolicy(Path.of(aclFile), Duration.ofSeconds(aclReload)));
+				System.out.println("Restricting destinations by "+destinations.get().rules().names().size()
+						+" rules from "+aclFile);
+			} catch (IOException e) {
+				throw(new IllegalArgumentException("Unable to load destination rules from "+aclFile,e));
+			}
+		}
+
+		/*
+		 * Size the buffer pools
+		 */
+		long bufferPoolBytes;
+		try {
+			bufferPoolBytes = Long.parseLong(Objects.requireNonNullElse(
+					System.getenv(BUFFER_POOL_MB_ENV_VAR), BUFFER_POOL_DEFAULT_MB)) << 20;
+		} catch(NumberFormatException e) {
+			throw(new IllegalArgumentException("Proxit buffer pool variable not set to integer value",e));
+		}
+
+		heapBuffers = new BufferPool(bufferPoolBytes, false);
+
+		/*
+		 * Cache target lookups
+		 */
+		int dnsTtl, dnsNegativeTtl;
+		try {
+			dnsTtl = Integer.parseInt(Objects.requireNonNullElse(
+					System.getenv(DNS_TTL_ENV_VAR), DNS_DEFAULT_TTL));
+			dnsNegativeTtl = Integer.parseInt(Objects.requireNonNullElse(
+					System.getenv(DNS_NEGATIVE_TTL_ENV_VAR), DNS_DEFAULT_NEGATIVE_TTL));
+		} catch(NumberFormatException e) {
+			throw(new IllegalArgumentException("Proxit DNS cache variables not set to integer values",e));
+		}
+
+		resolver = new Resolver(Duration.ofSeconds(dnsTtl), Duration.ofSeconds(dnsNegativeTtl));
+
+		int connectTimeout, connectAttemptTimeout;
+		try {
+			connectTimeout = Integer.parseInt(Objects.requireNonNullElse(
+					System.getenv(CONNECT_TIMEOUT_ENV_VAR), CONNECT_DEFAULT_TIMEOUT));
+			connectAttemptTimeout = Integer.parseInt(Objects.requireNonNullElse(
+					System.getenv(CONNECT_ATTEMPT_TIMEOUT_ENV_VAR), CONNECT_DEFAULT_ATTEMPT_TIMEOUT));
+		} catch(NumberFormatException e) {
+			throw(new IllegalArgumentException("Proxit connect timeout variables not set to integer values",e));
+		}
+
+		connector = new Connector(resolver, Duration.ofSeconds(connectAttemptTimeout), Duration.ofSeconds(connectTimeout));
+
+		/*
+		 * Set the limits on what we take on
+		 */
+		int maxHandshakes, admissionWait, acceptBacklog, maxTunnels;
+		try {
+			maxHandshakes = Integer.parseInt(Objects.requireNonNullElse(
+					System.getenv(MAX_HANDSHAKES_ENV_VAR), Integer.toString(maxThreads)));
+			admissionWait = Integer.parseInt(Objects.requireNonNullElse(
+					System.getenv(ADMISSION_WAIT_ENV_VAR), ADMISSION_DEFAULT_WAIT));
+			acceptBacklog = Integer.parseInt(Objects.requireNonNullElse(
+					System.getenv(ACCEPT_BACKLOG_ENV_VAR), ACCEPT_DEFAULT_BACKLOG));
+			maxTunnels = Integer.parseInt(Objects.requireNonNullElse(
+					System.getenv(MAX_TUNNELS_ENV_VAR), DEFAULT_MAX_TUNNELS));
+		} catch(NumberFormatException e) {
+			throw(new IllegalArgumentException("Proxit admission variables not set to integer values",e));
+		}
+
+		var handshakeLimiter = Objects.requireNonNullElse(System.getenv(HANDSHAKE_LIMITER_ENV_VAR), "fixed");
+		Limiter.Algorithm algorithm = switch( handshakeLimiter ) {
+		case "fixed" -> new Limiter.Fixed();
+		case "vegas" -> new Limiter.Vegas();
+		case "gradient" -> new Limiter.Gradient();
+		default -> throw(new IllegalArgumentException("Unknown proxit handshake limiter "+handshakeLimiter));
+		};
+
+		admission = new AdmissionController(new Limiter(algorithm, maxHandshakes), 
+				new Limiter(new Limiter.Fixed(), maxTunnels), acceptBacklog, Duration.ofMillis(admissionWait));
+		System.out.println("Admitting "+maxHandshakes+" concurrent handshakes ("+handshakeLimiter+" limit) and "
+				+maxTunnels+" tunnels");
+
+		/*
+		 * Set the bandwidth limits
+		 */
+		long tunnelRate, tunnelBurst, subjectRate, subjectBurst;
+		try {
+			tunnelRate = Long.parseLong(Objects.requireNonNullElse(System.getenv(TUNNEL_RATE_ENV_VAR), "0"));
+			tunnelBurst = Long.parseLong(Objects.requireNonNullElse(System.getenv(TUNNEL_BURST_ENV_VAR), "0"));
+			subjectRate = Long.parseLong(Objects.requireNonNullElse(System.getenv(SUBJECT_RATE_ENV_VAR), "0"));
+			subjectBurst = Long.parseLong(Objects.requireNonNullElse(System.getenv(SUBJECT_BURST_ENV_VAR), "0"));
+		} catch(NumberFormatException e) {
+			throw(new IllegalArgumentException("Proxit rate variables not set to integer values",e));
+		}
+
+		shaper = new Shaper(tunnelRate, tunnelBurst, subjectRate, subjectBurst);
+
+		long egressRate, egressBurst;
+		try {
+			egressRate = Long.parseLong(Objects.requireNonNullElse(System.getenv(EGRESS_RATE_ENV_VAR), "0"));
+			egressBurst = Long.parseLong(Objects.requireNonNullElse(System.getenv(EGRESS_BURST_ENV_VAR), "0"));
+		} catch(NumberFormatException e) {
+			throw(new IllegalArgumentException("Proxit egress variables not set to integer values",e));
+		}
+
+		if ( egressRate > 0 ) {
+			var roleWeights = FairScheduler.parseWeights(
+					Objects.requireNonNullElse(System.getenv(ROLE_WEIGHTS_ENV_VAR), ""));
+			scheduler = Optional.of(new FairScheduler(egressRate, egressBurst, roleWeights));
+			System.out.println("Scheduling "+egressRate+" bytes/s egress by role weights "+roleWeights);
+		}
+
+		/*
+		 * Set the deadlines connections are held to
+		 */
+		long handshakeTimeout, idleTimeout, maxLifetime;
+		try {
+			handshakeTimeout = Long.parseLong(Objects.requireNonNullElse(
+					System.getenv(HANDSHAKE_TIMEOUT_ENV_VAR), HANDSHAKE_DEFAULT_TIMEOUT));
+			idleTimeout = Long.parseLong(Objects.requireNonNullElse(
+					System.getenv(IDLE_TIMEOUT_ENV_VAR), IDLE_DEFAULT_TIMEOUT));
+			maxLifetime = Long.parseLong(Objects.requireNonNullElse(
+					System.getenv(MAX_LIFETIME_ENV_VAR), MAX_DEFAULT_LIFETIME));
+		} catch(NumberFormatException e) {
+			throw(new IllegalArgumentException("Proxit timeout variables not set to integer values",e));
+		}
+
+		if ( handshakeTimeout < 0 || idleTimeout < 0 || maxLifetime < 0 )
+			throw new IllegalArgumentException("Proxit timeouts can't be negative");
+
+		timeouts = new Timeouts(new TimingWheel(Duration.ofMillis(TIMER_TICK_MS), TIMER_SLOTS),
+				new Timeouts.Policy(Duration.ofSeconds(handshakeTimeout), Duration.ofSeconds(idleTimeout), 
+						Duration.ofSeconds(maxLifetime)));
+		System.out.println("Timeouts handshake "+handshakeTimeout+"s, idle "+idleTimeout+"s, lifetime "
+				+(maxLifetime > 0 ? maxLifetime+"s" : "unlimited"));
+
+		/*
+		 * Set up the destination breakers, they share the timing wheel for housekeeping
+		 */
+		Breakers.Config breakerConfig;
+		try {
+			breakerConfig = new Breakers.Config(
+					Integer.parseInt(Objects.requireNonNullElse(
+							System.getenv(BREAKER_FAILURE_RATE_ENV_VAR), BREAKER_DEFAULT_FAILURE_RATE)),
+					Integer.parseInt(Objects.requireNonNullElse(
+							System.getenv(BREAKER_WINDOW_ENV_VAR), BREAKER_DEFAULT_WINDOW)),
+					Duration.ofSeconds(Long.parseLong(Objects.requireNonNullElse(
+							System.getenv(BREAKER_OPEN_ENV_VAR), BREAKER_DEFAULT_OPEN))),
+					Duration.ofMillis(Long.parseLong(Objects.requireNonNullElse(
+							System.getenv(BREAKER_SLOW_CONNECT_ENV_VAR), BREAKER_DEFAULT_SLOW_CONNECT))),
+					Integer.parseInt(Objects.requireNonNullElse(
+							System.getenv(DESTINATION_MAX_CONNECTS_ENV_VAR), DESTINATION_DEFAULT_MAX_CONNECTS)),
+					Integer.parseInt(Objects.requireNonNullElse(
+							System.getenv(DESTINATION_MAX_TUNNELS_ENV_VAR), DESTINATION_DEFAULT_MAX_TUNNELS)));
+		} catch(NumberFormatException e) {
+			throw(new IllegalArgumentException("Proxit breaker variables not set to integer values",e));
+		}
+
+		breakers = new Breakers(breakerConfig, timeouts.wheel());
+		System.out.println("Breaking circuits at "+breakerConfig.failureRate()+"% of "+breakerConfig.window()
+				+" connects failing for "+breakerConfig.openFor().toSeconds()+"s, each destination allowed "
+				+(breakerConfig.maxConnects() > 0 ? breakerConfig.maxConnects() : "unlimited")+" connects and "
+				+(breakerConfig.maxTunnels() > 0 ? breakerConfig.maxTunnels() : "unlimited")+" tunnels");
+
+		/*
+		 * Pool the connections requests are forwarded over, swept on the timing wheel
+		 */
+		OriginPool.Config originConfig;
+		try {
+			originConfig = new OriginPool.Config(
+					Integer.parseInt(Objects.requireNonNullElse(
+							System.getenv(ORIGIN_MAX_CONNECTIONS_ENV_VAR), ORIGIN_DEFAULT_MAX_CONNECTIONS)),
+					Duration.ofSeconds(Long.parseLong(Objects.requireNonNullElse(
+							System.getenv(ORIGIN_IDLE_ENV_VAR), ORIGIN_DEFAULT_IDLE))),
+					Duration.ofMillis(Long.parseLong(Objects.requireNonNullElse(
+							System.getenv(ORIGIN_WAIT_ENV_VAR), ORIGIN_DEFAULT_WAIT))));
+		} catch(NumberFormatException e) {
+			throw(new IllegalArgumentException("Proxit origin pool variables not set to integer values",e));
+		}
+
+		origins = new OriginPool(originConfig, timeouts.wheel());
+		System.out.println("Forwarding plain HTTP over up to "+originConfig.maxPerOrigin()
+				+" connections per origin, kept idle for "+originConfig.idleFor().toSeconds()+"s");
+
+		/*
+		 * Cache what's forwarded, if asked to
+		 */
+		var cacheMB = System.getenv(CACHE_MB_ENV_VAR);
+		if ( cacheMB != null ) {
+			var cacheDir = Optional.ofNullable(System.getenv(CACHE_DIR_ENV_VAR)).map(Path::of);
+			ResponseCache.Config cacheConfig;
+			try {
+				cacheConfig = new ResponseCache.Config(Long.parseLong(cacheMB) << 20,
+						Long.parseLong(Objects.requireNonNullElse(
+								System.getenv(CACHE_MAX_OBJECT_MB_ENV_VAR), CACHE_DEFAULT_MAX_OBJECT_MB)) << 20,
+						cacheDir,
+						Long.parseLong(Objects.requireNonNullElse(
+								System.getenv(CACHE_DISK_MB_ENV_VAR), CACHE_DEFAULT_DISK_MB)) << 20,
+						Duration.ofSeconds(Long.parseLong(Objects.requireNonNullElse(
+								System.getenv(CACHE_COLLAPSE_WAIT_ENV_VAR), CACHE_DEFAULT_COLLAPSE_WAIT))));
+			} catch(NumberFormatException e) {
+				throw(new IllegalArgumentException("Proxit cache variables not set to integer values",e));
+			}
+
+			try {
+				cache = Optional.of(new ResponseCache(cacheConfig));
+			} catch (IOException e) {
+				throw(new IllegalArgumentException("Unable to keep the cache's disk tier in "+cacheDir.get(),e));
+			}
+			System.out.println("Caching forwarded responses in "+cacheMB+"MB of memory"
+					+cacheDir.map(dir -> " and "+(cacheConfig.diskBytes() >> 20)+"MB of "+dir).orElse(""));
+		}
+
+		/*
+		 * Choose the relay engine
+		 */
+		var relayEngine = Objects.requireNonNullElse(System.getenv(RELAY_ENGINE_ENV_VAR), "threads");
+
+		switch( relayEngine ) {
+		case "threads" -> System.out.println("Relaying tunnels with threads");
+		case "selector" -> {
+			int loops;
+			try {
+				loops = Integer.parseInt(Objects.requireNonNullElse(System.getenv(RELAY_LOOPS_ENV_VAR), 
+						Integer.toString(Runtime.getRuntime().availableProcessors())));
+			} catch(NumberFormatException e) {
+				throw(new IllegalArgumentException("Proxit relay loops variable not set to integer value",e));
+			}
+
+			try {
+				directBuffers = Optional.of(new BufferPool(bufferPoolBytes, true));
+				selectorRelay = Optional.of(new SelectorRelay(loops, directBuffers.get(), metrics));
+			} catch (IOException e) {
+				throw(new IllegalArgumentException("Unable to start selector relay",e));
+			}
+			System.out.println("Relaying tunnels with "+loops+" selector event loops");
+		}
+		case "splice" -> {
+			if ( virtualThreads ) 
+				System.out.println("splice relay would pin virtual threads, relaying tunnels with threads");
+			else if ( !Splice.isAvailable() )
+				System.out.println("Relaying tunnels with threads");
+			else {
+				splice = true;
+				System.out.println("Relaying tunnels with splice");
+			}
+		}
+		default -> throw(new IllegalArgumentException("Unknown proxit relay engine "+relayEngine));
+		}
+
+		/*
+		 * Load the upstream routes, once the relay engine says what sockets it needs
+		 */
+		var upstreamsFile = System.getenv(UPSTREAMS_ENV_VAR);
+		if ( upstreamsFile != null ) {
+			try {
+				upstreams = Optional.of(Upstreams.load(Path.of(upstreamsFile), connector, selectorRelay.isPresent()
+						? () -> SocketChannel.open().socket()
+						: Socket::new, Duration.ofSeconds(connectTimeout)));
+			} catch (IOException | IllegalArgumentException e) {
+				throw(new IllegalArgumentException("Unable to load upstream routes from "+upstreamsFile,e));
+			}
+
+			for ( var upstream : upstreams.get().upstreams() )
+				System.out.println("Routing through upstream "+upstream.name());
+		}
+
+		/*
+		 * Start the access log
+		 */
+		var accessLogDir = System.getenv(ACCESS_LOG_ENV_VAR);
+		if ( accessLogDir != null ) {
+			int segmentMB, segments;
+			try {
+				segmentMB = Integer.parseInt(Objects.requireNonNullElse(
+						System.getenv(ACCESS_LOG_SEGMENT_MB_ENV_VAR), ACCESS_LOG_DEFAULT_SEGMENT_MB));
+				segments = Integer.parseInt(Objects.requireNonNullElse(
+						System.getenv(ACCESS_LOG_SEGMENTS_ENV_VAR), ACCESS_LOG_DEFAULT_SEGMENTS));
+			} catch(NumberFormatException e) {
+				throw(new IllegalArgumentException("Proxit access log variables not set to integer values",e));
+			}
+
+			try {
+				accessLog = Optional.of(new AccessLog(Path.of(accessLogDir), (long) segmentMB << 20, segments));
+				System.out.println("Writing access log to "+accessLogDir);
+			} catch (IOException e) {
+				throw(new IllegalArgumentException("Unable to write access log to "+accessLogDir,e));
+			}
+		}
+
+		context = new ProxyContext(ioWorkerPool, authServer, destinations, selectorRelay, splice, heapBuffers, 
+				connector, breakers, upstreams, origins, cache, admission, shaper, scheduler, timeouts, metrics, 
+				accessLog);
+
+		/*
+		 * Publish the metrics
+		 */
+		registerMetrics();
+
+		var metricsPort = System.getenv(METRICS_PORT_ENV_VAR);
+		if ( metricsPort != null ) {
+			var metricsAddress = Objects.requireNonNullElse(System.getenv(METRICS_ADDRESS_ENV_VAR), 
+					METRICS_DEFAULT_ADDRESS);
+			try {
+				metricsEndpoint = Optional.of(new MetricsEndpoint(
+						new InetSocketAddress(metricsAddress, Integer.parseInt(metricsPort)), metrics));
+				System.out.println("Serving metrics on "+metricsAddress+":"+metricsPort+"/metrics");
+			} catch(NumberFormatException e) {
+				throw(new IllegalArgumentException("Proxit metrics port variable not set to integer value",e));
+			} catch (IOException e) {
+				throw(new IllegalArgumentException("Unable to serve metrics",e));
+			}
+		}
+	}
+
+	/*
+	 * Everything that keeps its own stats is read when the metrics are scraped
+	 */
+	private void registerMetrics() {
+		registerBufferPool(heapBuffers, "heap");
+		directBuffers.ifPresent(pool -> registerBufferPool(pool, "direct"));
+
+		authServer.ifPresent(server -> {
+			var tokens = server.getTokenCache();
+			metrics.gauge("proxit_token_cache_size", "Verified tokens cached", () -> tokens.stats().size());
+			metrics.counter("proxit_token_cache_hits_total", "Tokens found verified", () -> tokens.stats().hits());
+			metrics.counter("proxit_token_cache_misses_total", "Tokens verified", () -> tokens.stats().misses());
+			metrics.counter("proxit_token_cache_evictions_total", "Tokens evicted", () -> tokens.stats().evictions());
+		});
+
+		metrics.gauge("proxit_dns_cache_size", "Target lookups cached", () -> resolver.stats().size());
+		metrics.counter("proxit_dns_cache_hits_total", "Target lookups answered from the cache", 
+				() -> resolver.stats().hits() + resolver.stats().negativeHits());
+		metrics.counter("proxit_dns_cache_misses_total", "Target lookups waited for", () -> resolver.stats().misses());
+		metrics.counter("proxit_dns_lookup_failures_total", "Target lookups failed", () -> resolver.stats().failures());
+		metrics.counter("proxit_dns_lookups_total", "Lookups made to the system resolver", 
+				() -> resolver.stats().lookups());
+		metrics.histogram("proxit_dns_lookup_seconds", "Time taken by lookups to the system resolver", 
+				resolver.lookupTimes());
+		metrics.nanosGauge("proxit_dns_lookup_max_seconds", "Longest lookup to the system resolver", 
+				() -> resolver.stats().maxLookupNanos());
+
+		metrics.gauge("proxit_accept_backlog", "Connections waiting to start their handshake", 
+				() -> admission.stats().backlog());
+		metrics.counter("proxit_shed_total", "Connections turned away", () -> admission.stats().shedAtAccept(), 
+				"stage", "accept");
+		metrics.counter("proxit_shed_total", "Connections turned away", () -> admission.stats().shedAtHandshake(), 
+				"stage", "handshake");
+		metrics.counter("proxit_shed_total", "Connections turned away", () -> admission.stats().shedAtTunnel(), 
+				"stage", "tunnel");
+		metrics.gauge("proxit_handshake_limit", "Concurrent handshakes allowed", 
+				() -> admission.stats().handshakes().limit());
+		metrics.gauge("proxit_handshakes_active", "Handshakes in progress", 
+				() -> admission.stats().handshakes().inFlight());
+
+		var wheel = timeouts.wheel();
+		metrics.gauge("proxit_timeouts_pending", "Deadlines waiting on the timing wheel", wheel::pending);
+
+		metrics.counter("proxit_destination_refused_total", "CONNECTs refused without trying the target", 
+				breakers::refusedOpen, "reason", "circuit_open");
+		metrics.counter("proxit_destination_refused_total", "CONNECTs refused without trying the target", 
+				breakers::refusedCapacity, "reason", "capacity");
+		metrics.counter("proxit_circuits_opened_total", "Times a destination's circuit has opened", breakers::opened);
+		metrics.gauge("proxit_circuits_open", "Destinations with open or half open circuits", breakers::open);
+		metrics.gauge("proxit_destinations_tracked", "Destinations with breakers", breakers::tracked);
+
+		metrics.counter("proxit_origin_connections_opened_total", "Connections opened to forward requests over", 
+				origins::opened);
+		metrics.counter("proxit_origin_connections_reused_total", "Requests forwarded over a kept connection", 
+				origins::reused);
+		metrics.counter("proxit_origin_connections_evicted_total", "Kept connections closed idle or stale", 
+				origins::evicted);
+		metrics.counter("proxit_origin_requests_refused_total", "Requests that waited out an origin at its cap", 
+				origins::refused);
+		metrics.gauge("proxit_origin_connections_open", "Connections open to origins, busy or idle", origins::open);
+		metrics.gauge("proxit_origin_connections_idle", "Connections kept idle for the next request", origins::idle);
+
+		cache.ifPresent(c -> {
+			metrics.counter("proxit_cache_requests_total", "Requests the cache was asked to answer", c::hits, 
+					"result", "hit");
+			metrics.counter("proxit_cache_requests_total", "Requests the cache was asked to answer", c::staleHits, 
+					"result", "stale");
+			metrics.counter("proxit_cache_requests_total", "Requests the cache was asked to answer", c::misses, 
+					"result", "miss");
+			metrics.counter("proxit_cache_requests_total", "Requests the cache was asked to answer", c::collapsed, 
+					"result", "collapsed");
+			metrics.counter("proxit_cache_revalidated_total", "Stored responses the origin said were unchanged", 
+					c::revalidated);
+			metrics.counter("proxit_cache_stored_total", "Responses stored", c::stored);
+			metrics.counter("proxit_cache_evicted_total", "Stored responses dropped for room", c::evicted);
+			metrics.gauge("proxit_cache_entries", "Responses stored", c::entries);
+			metrics.gauge("proxit_cache_bytes", "Bytes of stored responses by tier", c::memoryBytes, "tier", "memory");
+			metrics.gauge("proxit_cache_bytes", "Bytes of stored responses by tier", c::diskBytes, "tier", "disk");
+		});
+
+		upstreams.ifPresent(u -> {
+			for ( var upstream : u.upstreams() ) {
+				metrics.counter("proxit_upstream_connects_total", "CONNECTs made through a parent proxy", 
+						upstream::connects, "upstream", upstream.name());
+				metrics.counter("proxit_upstream_spares_used_total", "Upstream CONNECTs sent on a spare connection", 
+						upstream::sparesUsed, "upstream", upstream.name());
+				metrics.counter("proxit_upstream_failures_total", "Upstream CONNECTs that failed or were refused", 
+						upstream::failures, "upstream", upstream.name());
+				metrics.gauge("proxit_upstream_spares", "Spare connections waiting to a parent proxy", 
+						upstream::spares, "upstream", upstream.name());
+			}
+		});
+
+		destinations.ifPresent(d -> {
+			metrics.counter("proxit_acl_reloads_total", "Destination rule files reloaded", d::reloads);
+			metrics.counter("proxit_acl_reload_failures_total", "Destination rule files that wouldn't load", 
+					d::reloadFailures);
+		});
+
+		accessLog.ifPresent(log -> {
+			metrics.counter("proxit_access_log_written_total", "Access log records written", log::written);
+			metrics.counter("proxit_access_log_dropped_total", "Access log records dropped", log::dropped);
+		});
+
+		scheduler.ifPresent(s -> {
+			var classes = s.stats();
+			for ( int i = 0; i < classes.size(); i++ ) {
+				int index = i;
+				var name = classes.get(i).name();
+				metrics.counter("proxit_egress_bytes_total", "Bytes written by class", 
+						() -> s.stats().get(index).bytes(), "class", name);
+				metrics.counter("proxit_egress_queued_bytes_total", "Bytes that queued for the egress link by class", 
+						() -> s.stats().get(index).queuedBytes(), "class", name);
+				metrics.nanosCounter("proxit_egress_queue_seconds_total", "Time writes spent queued by class", 
+						() -> s.stats().get(index).delayNanos(), "class", name);
+				metrics.counter("proxit_egress_queued_writes_total", "Writes that queued for the egress link by class", 
+						() -> s.stats().get(index).writes(), "class", name);
+				metrics.gauge("proxit_egress_waiting", "Writes queued for the egress link by class", 
+						() -> s.stats().get(index).waiting(), "class", name);
+			}
+		});
+	}
+
+	private void registerBufferPool(BufferPool pool, String kind) {
+		metrics.gauge("proxit_buffer_pool_allocated_bytes", "Bytes allocated to buffers", 
+				() -> pool.stats().allocated(), "pool", kind);
+		metrics.gauge("proxit_buffer_pool_in_use_bytes", "Bytes in buffers taken from the pool", 
+				() -> pool.stats().inUse(), "pool", kind);
+		metrics.counter("proxit_buffer_pool_overflows_total", "Buffers allocated beyond the pool's ceiling", 
+				() -> pool.stats().overflows(), "pool", kind);
+	}
+
+	/*
+	 * The selector relay needs sockets that have channels, which ServerSocket on its own
+	 * won't give us, so accept through the adaptor of a ServerSocketChannel instead.
+	 */
+	private ServerSocket openServerSocket() throws IOException {
+		if ( selectorRelay.isEmpty() )
+			return new ServerSocket(tcpPort);
+
+		var serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(tcpPort));
+		return serverChannel.socket();
+	}
+
+	/*
+	 * Tells a connection we've no room for it, from the accept thread so this must never
+	 * block, which a short write to a new connection won't
+	 */
+	private void shed(Socket conn) {
+		try (conn) {
+			conn.getOutputStream().write(Responses.SERVICE_UNAVAILABLE);
+		} catch (IOException e) {
+			// it's going anyway
+		}
 	}
 
 	public void run() {
 		System.out.println("Proxy listening on port "+tcpPort);
-		try (ServerSocket server = new ServerSocket(tcpPort)) {
+		try (ServerSocket server = openServerSocket()) {
 			/*
 			 * Listen & Dispatch
 			 * New incoming connections are sent to a thread in the pool to handle
 			 */
 			while(true) {
 				Socket conn = server.accept();
-				connectionPool.execute(new ProxyConnection(conn,ioWorkerPool,authServer));
+				metrics.accepted.increment();
+				if ( !admission.accept() ) {
+					shed(conn);
+					continue;
+				}
+
+				connectionPool.execute(new ProxyConnection(conn,context));
 			}
 
 		} catch (IOException e) {
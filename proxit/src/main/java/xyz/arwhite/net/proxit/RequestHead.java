@@ -0,0 +1,376 @@
+package xyz.arwhite.net.proxit;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte level parser for an HTTP/1.1 request head, working in place on the buffer the
+ * head was read into.
+ *
+ * Parsing only records where the request line parts and each header name and value
+ * start and end, nothing is copied or converted to Strings. Header lookups are done
+ * lazily, case insensitively, against those offsets, and Strings are only made for the
+ * few values the caller actually asks for.
+ *
+ * The same parser reads the response heads of origins plain HTTP requests are forwarded
+ * to, with parseResponse(), the status line standing in for the request line.
+ *
+ * Header names run right up to their colon. Heads with folded lines are rejected rather
+ * than unfolded, as proxit passes header lines on as they came.
+ *
+ * A RequestHead can be reused by calling parse() again.
+ *
+ * @author Alan R. White
+ *
+ */
+public class RequestHead {
+
+	public static final int MAX_LINE_LENGTH = 4096;
+	public static final int MAX_HEADERS = 64;
+
+	/*
+	 * parse() results, other than OK these are the HTTP status to reject the request with
+	 */
+	public static final int OK = 0;
+	public static final int BAD_REQUEST = 400;
+	public static final int TOO_LARGE = 431;
+
+	private byte[] bytes;
+
+	private int methodEnd, targetStart, targetEnd, versionStart, versionEnd;
+
+	// of a response, and its status and reason are where a request has its target
+	private int status;
+
+	/*
+	 * Per header, offsets of name start, name end, value start, value end
+	 */
+	private final int[] headers = new int[MAX_HEADERS * 4];
+	private int headerCount;
+
+	/**
+	 * Parses the head held in the first length bytes of the supplied array, which must
+	 * not be changed while this RequestHead is in use.
+	 *
+	 * @param bytes holding the request head, lines ending LF or CRLF
+	 * @param length of the head, up to and including its blank line
+	 * @return OK, or the status to reject the request with
+	 */
+	public int parse(byte[] bytes, int length) {
+		this.bytes = bytes;
+		headerCount = 0;
+
+		int lineEnd = indexOf(bytes, (byte) '\n', 0, length);
+		if ( lineEnd < 0 )
+			return BAD_REQUEST;
+
+		int next = lineEnd + 1;
+		lineEnd = trimCR(bytes, 0, lineEnd);
+		if ( lineEnd > MAX_LINE_LENGTH )
+			return TOO_LARGE;
+
+		// request line is exactly three words separated by single spaces
+		methodEnd = indexOf(bytes, (byte) ' ', 0, lineEnd);
+		if ( methodEnd < 1 )
+			return BAD_REQUEST;
+
+		targetStart = methodEnd + 1;
+		targetEnd = indexOf(bytes, (byte) ' ', targetStart, lineEnd);
+		if ( targetEnd <= targetStart )
+			return BAD_REQUEST;
+
+		versionStart = targetEnd + 1;
+		versionEnd = lineEnd;
+		if ( versionEnd <= versionStart || indexOf(bytes, (byte) ' ', versionStart, versionEnd) >= 0 )
+			return BAD_REQUEST;
+
+		return parseHeaders(next, length);
+	}
+
+	/**
+	 * Parses a response head, HTTP/x.y, a three digit status and optionally a reason,
+	 * with its headers as for a request
+	 *
+	 * @param bytes holding the response head, lines ending LF or CRLF
+	 * @param length of the head, up to and including its blank line
+	 * @return OK, or BAD_REQUEST or TOO_LARGE if the response is malformed
+	 */
+	public int parseResponse(byte[] bytes, int length) {
+		this.bytes = bytes;
+		headerCount = 0;
+		status = 0;
+
+		int lineEnd = indexOf(bytes, (byte) '\n', 0, length);
+		if ( lineEnd < 0 )
+			return BAD_REQUEST;
+
+		int next = lineEnd + 1;
+		lineEnd = trimCR(bytes, 0, lineEnd);
+		if ( lineEnd > MAX_LINE_LENGTH )
+			return TOO_LARGE;
+
+		if ( lineEnd < 12 || !matches(0, 5, "HTTP/", false) || bytes[8] != ' ' 
+				|| (lineEnd > 12 && bytes[12] != ' ') )
+			return BAD_REQUEST;
+
+		for ( int i = 9; i < 12; i++ ) {
+			if ( bytes[i] < '0' || bytes[i] > '9' )
+				return BAD_REQUEST;
+			status = status * 10 + (bytes[i] - '0');
+		}
+
+		methodEnd = 0;
+		versionStart = 0;
+		versionEnd = 8;
+		targetStart = 9;
+		targetEnd = lineEnd;
+
+		return parseHeaders(next, length);
+	}
+
+	private int parseHeaders(int next, int length) {
+		int lineEnd;
+
+		// headers, up to the blank line
+		while ( next < length ) {
+			int lineStart = next;
+			lineEnd = indexOf(bytes, (byte) '\n', lineStart, length);
+			if ( lineEnd < 0 )
+				return BAD_REQUEST;
+
+			next = lineEnd + 1;
+			lineEnd = trimCR(bytes, lineStart, lineEnd);
+			if ( lineEnd == lineStart )
+				return OK;
+
+			if ( lineEnd - lineStart > MAX_LINE_LENGTH || headerCount == MAX_HEADERS )
+				return TOO_LARGE;
+
+			/*
+			 * A folded line, or whitespace between a name and its colon, could be framed
+			 * differently by whoever the head is passed on to, RFC 9112 sections 5.1 and 5.2
+			 */
+			if ( bytes[lineStart] == ' ' || bytes[lineStart] == '\t' )
+				return BAD_REQUEST;
+
+			int colon = indexOf(bytes, (byte) ':', lineStart, lineEnd);
+			if ( colon <= lineStart || bytes[colon - 1] == ' ' || bytes[colon - 1] == '\t' )
+				return BAD_REQUEST;
+
+			int h = headerCount++ * 4;
+			headers[h] = lineStart;
+			headers[h + 1] = colon;
+			headers[h + 2] = skipSpace(bytes, colon + 1, lineEnd);
+			headers[h + 3] = trimSpace(bytes, headers[h + 2], lineEnd);
+		}
+
+		return BAD_REQUEST;
+	}
+
+	public boolean methodIs(String method) {
+		return matches(0, methodEnd, method, false);
+	}
+
+	public String method() {
+		return string(0, methodEnd);
+	}
+
+	public String target() {
+		return string(targetStart, targetEnd);
+	}
+
+	public String version() {
+		return string(versionStart, versionEnd);
+	}
+
+	public boolean versionIs(String version) {
+		return matches(versionStart, versionEnd, version, false);
+	}
+
+	/**
+	 * @return status of a response parsed by parseResponse
+	 */
+	public int status() {
+		return status;
+	}
+
+	public int headerCount() {
+		return headerCount;
+	}
+
+	/**
+	 * @param name header name, in lower case
+	 * @return index of the first header with that name, or -1 if there isn't one
+	 */
+	public int indexOf(String name) {
+		for ( int i = 0; i < headerCount; i++ )
+			if ( matches(headers[i * 4], headers[i * 4 + 1], name, true) )
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @param name header name, in lower case
+	 * @return how many times the header occurs
+	 */
+	public int count(String name) {
+		int count = 0;
+		for ( int i = 0; i < headerCount; i++ )
+			if ( matches(headers[i * 4], headers[i * 4 + 1], name, true) )
+				count++;
+		return count;
+	}
+
+	public String name(int index) {
+		return string(headers[index * 4], headers[index * 4 + 1]);
+	}
+
+	public String value(int index) {
+		return string(headers[index * 4 + 2], headers[index * 4 + 3]);
+	}
+
+	/**
+	 * @param index of a header
+	 * @return its value as a non-negative decimal number, or -1 if it isn't one
+	 */
+	public long number(int index) {
+		int start = headers[index * 4 + 2], end = headers[index * 4 + 3];
+		if ( start == end || end - start > 18 )
+			return -1;
+
+		long number = 0;
+		for ( int i = start; i < end; i++ ) {
+			if ( bytes[i] < '0' || bytes[i] > '9' )
+				return -1;
+			number = number * 10 + (bytes[i] - '0');
+		}
+		return number;
+	}
+
+	/**
+	 * @param name of a comma separated list header, such as connection, in lower case
+	 * @param token to look for, in lower case
+	 * @return true if any header of that name lists the token, ignoring case
+	 */
+	public boolean lists(String name, String token) {
+		return lists(name, token, 0, 0);
+	}
+
+	/**
+	 * @param name of a comma separated list header, in lower case
+	 * @param index of another header
+	 * @return true if any header of that name lists the other header's name, as Connection
+	 * does the headers meant only for the next hop
+	 */
+	public boolean listsNameOf(String name, int index) {
+		return lists(name, null, headers[index * 4], headers[index * 4 + 1]);
+	}
+
+	/*
+	 * Looks for the token, or if that's null the bytes from tokenStart to tokenEnd
+	 */
+	private boolean lists(String name, String token, int tokenStart, int tokenEnd) {
+		for ( int i = 0; i < headerCount; i++ ) {
+			if ( !matches(headers[i * 4], headers[i * 4 + 1], name, true) )
+				continue;
+
+			for ( int start = headers[i * 4 + 2], end = headers[i * 4 + 3]; start < end; ) {
+				int comma = indexOf(bytes, (byte) ',', start, end);
+				int listEnd = comma < 0 ? end : comma;
+				int from = skipSpace(bytes, start, listEnd);
+				int to = trimSpace(bytes, from, listEnd);
+
+				if ( token != null ? matches(from, to, token, true) : sameIgnoringCase(from, to, tokenStart, tokenEnd) )
+					return true;
+				start = listEnd + 1;
+			}
+		}
+		return false;
+	}
+
+	private boolean sameIgnoringCase(int start, int end, int otherStart, int otherEnd) {
+		if ( end - start != otherEnd - otherStart )
+			return false;
+
+		for ( int i = start, j = otherStart; i < end; i++, j++ ) {
+			int a = bytes[i], b = bytes[j];
+			if ( a >= 'A' && a <= 'Z' )
+				a += 'a' - 'A';
+			if ( b >= 'A' && b <= 'Z' )
+				b += 'a' - 'A';
+			if ( a != b )
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Offsets for copying parts of the head as they are, without making Strings
+	 */
+	byte[] bytes() {
+		return bytes;
+	}
+
+	int methodEnd() {
+		return methodEnd;
+	}
+
+	// the status and reason of a response
+	int statusStart() {
+		return targetStart;
+	}
+
+	int statusEnd() {
+		return targetEnd;
+	}
+
+	// from the start of the header's name to the end of its value
+	int headerStart(int index) {
+		return headers[index * 4];
+	}
+
+	int headerEnd(int index) {
+		return headers[index * 4 + 3];
+	}
+
+	private String string(int start, int end) {
+		return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+
+	private boolean matches(int start, int end, String expected, boolean ignoreCase) {
+		if ( end - start != expected.length() )
+			return false;
+
+		for ( int i = start; i < end; i++ ) {
+			int b = bytes[i];
+			if ( ignoreCase && b >= 'A' && b <= 'Z' )
+				b += 'a' - 'A';
+			if ( b != expected.charAt(i - start) )
+				return false;
+		}
+		return true;
+	}
+
+	private static int indexOf(byte[] bytes, byte b, int from, int to) {
+		for ( int i = from; i < to; i++ )
+			if ( bytes[i] == b )
+				return i;
+		return -1;
+	}
+
+	private static int trimCR(byte[] bytes, int start, int end) {
+		return end > start && bytes[end - 1] == '\r' ? end - 1 : end;
+	}
+
+	private static int skipSpace(byte[] bytes, int start, int end) {
+		while ( start < end && (bytes[start] == ' ' || bytes[start] == '\t') )
+			start++;
+		return start;
+	}
+
+	private static int trimSpace(byte[] bytes, int start, int end) {
+		while ( end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == '\t') )
+			end--;
+		return end;
+	}
+
+}
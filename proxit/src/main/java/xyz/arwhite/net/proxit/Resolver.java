@@ -0,0 +1,240 @@
+package xyz.arwhite.net.proxit;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caching resolver for the hosts clients ask to CONNECT to, so a tunnel to a host we've
+ * seen recently doesn't wait on DNS.
+ *
+ * Lookups run on the resolver's own small pool of threads, and concurrent lookups of the
+ * same host share a single query. Answers are cached for the positive TTL and failures
+ * for the negative TTL. An entry still being used as it nears the end of its TTL is
+ * refreshed in the background, so hot hosts never see a miss.
+ *
+ * The JDK doesn't tell us the TTL of the records behind an answer, so the TTLs are
+ * configured rather than taken from DNS. They should be set no longer than the zones
+ * being proxied to expect answers to be held.
+ *
+ * @author Alan R. White
+ *
+ */
+public class Resolver {
+
+	public record Stats(int size, long hits, long misses, long negativeHits, long refreshes,
+			long failures, long lookups, long lookupNanos, long maxLookupNanos) {
+
+		public double hitRate() {
+			long total = hits + negativeHits + misses;
+			return total == 0 ? 0 : (double) (hits + negativeHits) / total;
+		}
+
+		public long meanLookupNanos() {
+			return lookups == 0 ? 0 : lookupNanos / lookups;
+		}
+	}
+
+	/*
+	 * Answers are refreshed once this fraction of their TTL has passed, if used again
+	 */
+	private static final double REFRESH_AHEAD = 0.8;
+
+	private static final int RESOLVER_THREADS = 8;
+	private static final Duration LOOKUP_TIMEOUT = Duration.ofSeconds(10);
+	private static final int MAX_ENTRIES = 10000;
+
+	private record Entry(InetAddress[] addresses, UnknownHostException failure,
+			long refreshAt, long expiresAt) {}
+
+	private final Map<String,Entry> cache = new ConcurrentHashMap<>();
+	private final Map<String,CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+
+	private final long ttlNanos;
+	private final long negativeTtlNanos;
+	private final ExecutorService lookupPool;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder negativeHits = new LongAdder();
+	private final LongAdder refreshes = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder lookups = new LongAdder();
+	private final LongAdder lookupNanos = new LongAdder();
+	private final LongAccumulator maxLookupNanos = new LongAccumulator(Math::max, 0);
+	private final Metrics.Histogram lookupTimes = new Metrics.Histogram();
+
+	public Resolver(Duration ttl, Duration negativeTtl) {
+		this.ttlNanos = ttl.toNanos();
+		this.negativeTtlNanos = negativeTtl.toNanos();
+
+		var threadCount = new AtomicInteger();
+		lookupPool = Executors.newFixedThreadPool(RESOLVER_THREADS, r -> {
+			var t = new Thread(r, "proxit-resolver-"+threadCount.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Returns the addresses for a host, from the cache if we have a current answer,
+	 * otherwise waiting for a lookup.
+	 *
+	 * @param host name or address literal
+	 * @return all the addresses for the host, in the order the system resolver gave them
+	 * @throws UnknownHostException if the host doesn't resolve, or not in time
+	 */
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		long now = System.nanoTime();
+
+		var entry = cache.get(host);
+		if ( entry != null && now - entry.expiresAt < 0 ) {
+			if ( entry.failure != null ) {
+				negativeHits.increment();
+				throw failed(entry);
+			}
+
+			hits.increment();
+			if ( now - entry.refreshAt >= 0 && !inFlight.containsKey(host) ) {
+				refreshes.increment();
+				lookup(host);
+			}
+
+			return entry.addresses;
+		}
+
+		misses.increment();
+
+		try {
+			entry = lookup(host).get(LOOKUP_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+
+		} catch (TimeoutException e) {
+			throw new UnknownHostException("Timed out resolving "+host);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UnknownHostException("Interrupted resolving "+host);
+		} catch (ExecutionException e) {
+			throw new UnknownHostException("Failed resolving "+host+" "+e.getCause());
+		}
+
+		if ( entry.failure != null )
+			throw failed(entry);
+
+		return entry.addresses;
+	}
+
+	/*
+	 * Each caller gets an exception of its own, one shared by them all would gather
+	 * their suppressed exceptions and carry the stack of whoever failed first
+	 */
+	private static UnknownHostException failed(Entry entry) {
+		return new UnknownHostException(entry.failure.getMessage());
+	}
+
+	/*
+	 * Starts a lookup of the host, unless one is already under way, in which case the
+	 * caller gets that one
+	 */
+	private CompletableFuture<Entry> lookup(String host) {
+		var ours = new CompletableFuture<Entry>();
+		var existing = inFlight.putIfAbsent(host, ours);
+		if ( existing != null )
+			return existing;
+
+		try {
+			lookupPool.execute(() -> {
+				try {
+					ours.complete(query(host));
+				} catch (Throwable t) {
+					ours.completeExceptionally(t);
+				} finally {
+					inFlight.remove(host, ours);
+				}
+			});
+
+		} catch (RuntimeException e) {
+			inFlight.remove(host, ours);
+			ours.completeExceptionally(e);
+		}
+
+		return ours;
+	}
+
+	private Entry query(String host) {
+		long start = System.nanoTime();
+
+		Entry entry;
+		try {
+			var addresses = InetAddress.getAllByName(host);
+			long now = System.nanoTime();
+			entry = new Entry(addresses, null, now + (long) (ttlNanos * REFRESH_AHEAD), now + ttlNanos);
+
+		} catch (UnknownHostException e) {
+			failures.increment();
+			long now = System.nanoTime();
+			entry = new Entry(null, e, now + negativeTtlNanos, now + negativeTtlNanos);
+
+			// a failed refresh shouldn't knock out an answer that is still current
+			var current = cache.get(host);
+			if ( current != null && current.failure == null && now - current.expiresAt < 0 ) {
+				record(start);
+				return current;
+			}
+		}
+
+		record(start);
+
+		if ( cache.size() >= MAX_ENTRIES )
+			trim();
+		cache.put(host, entry);
+
+		return entry;
+	}
+
+	private void record(long start) {
+		long elapsed = System.nanoTime() - start;
+		lookups.increment();
+		lookupNanos.add(elapsed);
+		maxLookupNanos.accumulate(elapsed);
+		lookupTimes.record(elapsed);
+	}
+
+	/*
+	 * Makes room by dropping expired entries, and if that isn't enough, whatever
+	 * the map iterates first
+	 */
+	private void trim() {
+		long now = System.nanoTime();
+		cache.values().removeIf(e -> now - e.expiresAt >= 0);
+
+		var it = cache.keySet().iterator();
+		while ( cache.size() >= MAX_ENTRIES && it.hasNext() ) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	public Stats stats() {
+		return new Stats(cache.size(), hits.sum(), misses.sum(), negativeHits.sum(), refreshes.sum(),
+				failures.sum(), lookups.sum(), lookupNanos.sum(), maxLookupNanos.get());
+	}
+
+	/**
+	 * @return how long each lookup to the system resolver took
+	 */
+	public Metrics.Histogram lookupTimes() {
+		return lookupTimes;
+	}
+
+}
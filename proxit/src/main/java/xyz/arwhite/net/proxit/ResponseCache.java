@@ -0,0 +1,869 @@
+package xyz.arwhite.net.proxit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A shared HTTP cache, RFC 9111, for the GETs proxit forwards, so the artifacts build
+ * agents pull over and over come from proxit rather than from across the network each
+ * time.
+ *
+ * Responses are stored by target URI, with up to a few variants of each where the origin
+ * says they Vary. A stored response answers requests for as long as it's fresh, going by
+ * its s-maxage, max-age or Expires, or for those with none of them a tenth of the time
+ * since it was last modified, and for a while after that if it allows
+ * stale-while-revalidate, a revalidation being sent off in the background. Otherwise the
+ * origin is asked again, with the stored response's ETag and Last-Modified so a 304 can
+ * renew it rather than it being sent again.
+ *
+ * Only one request for a target goes to the origin at a time, a fill. Any others for it
+ * meanwhile wait for the response to be stored rather than each fetching it too, unless
+ * it turns out not to be storable, when they're let go as soon as that's known.
+ *
+ * Bodies are held off the heap in direct buffers, the memory tier, which W-TinyLFU keeps
+ * to its size. Whatever it evicts, or doesn't think worth taking on, goes to the disk
+ * tier if there is one, written to files mapped back in, and only leaves the cache once
+ * that's full.
+ *
+ * Nothing private or no-store is stored, nor responses setting cookies, nor those to
+ * requests carrying the origin's own credentials unless the origin says they're public.
+ *
+ * @author Alan R. White
+ *
+ */
+public class ResponseCache {
+
+	/**
+	 * @param memoryBytes of bodies and heads held in memory
+	 * @param maxObjectBytes largest body stored
+	 * @param diskDir where the disk tier keeps bodies, if there is one
+	 * @param diskBytes of bodies the disk tier holds
+	 * @param collapseWait longest a request waits on another's fill of the same target
+	 */
+	public record Config(long memoryBytes, long maxObjectBytes, Optional<Path> diskDir, long diskBytes,
+			Duration collapseWait) {
+
+		public Config {
+			if ( memoryBytes < 1 || maxObjectBytes < 1 || maxObjectBytes > Integer.MAX_VALUE || diskBytes < 0
+					|| collapseWait.isNegative() )
+				throw new IllegalArgumentException("Response cache needs some memory, a largest body under 2GB, "
+						+ "and a disk size and wait that aren't negative");
+		}
+	}
+
+	/**
+	 * How a stored response can be used to answer a request
+	 */
+	public enum Use {
+		/** as it is */
+		FRESH,
+		/** as it is, while it's revalidated in the background */
+		STALE_WHILE_REVALIDATE,
+		/** only once the origin says it's still good */
+		REVALIDATE
+	}
+
+	/**
+	 * A stored response found for a request and how it can be used
+	 */
+	public record Lookup(Entry entry, Use use) {}
+
+	/*
+	 * Freshness worked out when a response is stored or revalidated, times in
+	 * milliseconds, RFC 9111 section 4.2
+	 */
+	private record Validity(long correctedInitialAge, long responseTime, long lifetime, long staleWhileRevalidate,
+			boolean mustRevalidate, boolean noCache) {}
+
+	/*
+	 * What a revalidation renews of a stored response, replaced as one so it's never
+	 * served with a head from one response and the freshness of another
+	 */
+	private record Response(byte[] head, String etag, String lastModified, Validity validity) {}
+
+	// statuses that can be given a heuristic lifetime, RFC 9110 section 15.1
+	private static final Set<Integer> HEURISTIC = Set.of(200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501);
+	private static final long MAX_HEURISTIC_MILLIS = Duration.ofDays(1).toMillis();
+
+	/*
+	 * Stored heads are kept small enough to serve with an Age from a relay buffer, bodies
+	 * of unknown length start in a buffer this big and double
+	 */
+	static final int MAX_STORED_HEAD = 8192;
+	private static final int FIRST_CHUNKED_CAPACITY = 64 * 1024;
+	private static final int MAX_VARIANTS = 8;
+
+	// a guess at an average entry, to size the frequency sketch
+	private static final long TYPICAL_ENTRY = 16 * 1024;
+
+	private final Config config;
+
+	/*
+	 * Stored responses by target, newest variant first. The map is read without the lock,
+	 * it and the tiers only being changed under it.
+	 */
+	private final ConcurrentHashMap<String,Entry[]> entries = new ConcurrentHashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final WTinyLfu<Entry> memory;
+	private final Optional<DiskTier<Entry>> disk;
+
+	private final ConcurrentHashMap<String,Fill> fills = new ConcurrentHashMap<>();
+	private final ExecutorService revalidations = Executors.newVirtualThreadPerTaskExecutor();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder staleHits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder revalidated = new LongAdder();
+	private final LongAdder collapsed = new LongAdder();
+	private final LongAdder stored = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+
+	public ResponseCache(Config config) throws IOException {
+		this.config = config;
+		this.memory = new WTinyLfu<>(config.memoryBytes(),
+				(int) Math.min(Integer.MAX_VALUE, config.memoryBytes() / TYPICAL_ENTRY));
+		this.disk = config.diskDir().isPresent()
+				? Optional.of(new DiskTier<>(config.diskDir().get(), config.diskBytes()))
+				: Optional.empty();
+	}
+
+	public Config config() {
+		return config;
+	}
+
+	/**
+	 * @return the key responses for the target are stored under
+	 */
+	public static String key(HttpMessages.Target target) {
+		return target.endpoint() + target.path();
+	}
+
+	/**
+	 * Finds the stored response the request can be answered with, counting the request
+	 * towards its target's popularity whether there is one or not
+	 *
+	 * @param control the request's Cache-Control
+	 * @return what was found, or null if there's nothing stored for the request
+	 */
+	public Lookup lookup(String key, RequestHead request, CacheControl control) {
+		var variants = entries.get(key);
+		Entry entry = null;
+		if ( variants != null )
+			for ( var variant : variants )
+				if ( variant.matches(request) ) {
+					entry = variant;
+					break;
+				}
+
+		lock.lock();
+		try {
+			memory.record(hash(key));
+			if ( entry != null ) {
+				memory.hit(entry);
+				if ( disk.isPresent() )
+					disk.get().hit(entry);
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if ( entry == null )
+			return null;
+
+		var use = entry.useFor(control, System.currentTimeMillis());
+		if ( use == Use.FRESH )
+			hits.increment();
+		else if ( use == Use.STALE_WHILE_REVALIDATE )
+			staleHits.increment();
+
+		return new Lookup(entry, use);
+	}
+
+	/**
+	 * Starts a fill of the key from the origin, or if another request is already filling
+	 * it waits for that to finish, up to the collapse wait
+	 *
+	 * @return the fill to fetch into, or null when the caller should look again
+	 */
+	public Fill fill(String key) throws InterruptedException {
+		var fill = new Fill(key, true);
+		var filling = fills.putIfAbsent(key, fill);
+		if ( filling == null ) {
+			misses.increment();
+			return fill;
+		}
+
+		collapsed.increment();
+		filling.done.await(config.collapseWait().toNanos(), TimeUnit.NANOSECONDS);
+		return null;
+	}
+
+	/**
+	 * @return a fill of the key if no other request is filling it, else null
+	 */
+	public Fill tryFill(String key) {
+		var fill = new Fill(key, true);
+		return fills.putIfAbsent(key, fill) == null ? fill : null;
+	}
+
+	/**
+	 * @return a fill of the key alongside any other, for a request that waited on one and
+	 * still found nothing it could use
+	 */
+	public Fill uncollapsedFill(String key) {
+		misses.increment();
+		return new Fill(key, false);
+	}
+
+	/**
+	 * Runs the revalidation of a stale response in the background, unless one's already
+	 * running for it
+	 */
+	public void revalidateLater(Entry entry, Runnable revalidation) {
+		if ( !entry.revalidating.compareAndSet(false, true) )
+			return;
+
+		revalidations.execute(() -> {
+			try {
+				revalidation.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			} finally {
+				entry.revalidating.set(false);
+			}
+		});
+	}
+
+	/**
+	 * The origin answered a conditional request with a 304, so the stored response is
+	 * updated with the 304's headers, RFC 9111 section 4.3.4, and is as fresh as they
+	 * now say. One whose head would grow past what's stored is dropped instead.
+	 *
+	 * @param requestTime when the request was sent, in epoch milliseconds
+	 * @param responseTime when the 304 arrived
+	 */
+	public void revalidated(Entry entry, RequestHead notModified, long requestTime, long responseTime) {
+		var head = new byte[MAX_STORED_HEAD];
+		int length = HttpMessages.updatedHead(entry.response.head(), notModified, head);
+		if ( length < 0 ) {
+			remove(entry);
+			return;
+		}
+
+		head = Arrays.copyOf(head, length);
+		var updated = new RequestHead();
+		updated.parseResponse(head, length);
+
+		var lastModified = valueOf(updated, "last-modified");
+		entry.response = new Response(head, valueOf(updated, "etag"), lastModified, validity(updated, notModified, 
+				CacheControl.of(updated), entry.status, lastModified, requestTime, responseTime));
+		revalidated.increment();
+	}
+
+	/**
+	 * Drops a stored response the origin no longer stands by
+	 */
+	public void remove(Entry entry) {
+		lock.lock();
+		try {
+			forget(entry);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops everything stored for the key, after an unsafe request to it succeeded,
+	 * RFC 9111 section 4.4
+	 */
+	public void invalidate(String key) {
+		lock.lock();
+		try {
+			var variants = entries.remove(key);
+			if ( variants != null )
+				for ( var variant : variants )
+					drop(variant);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Stores a filled response, in place of the variant it's a newer copy of, sending
+	 * whatever the memory tier evicts to make room on to the disk tier
+	 */
+	private void store(Entry entry) {
+		List<Entry> evictedFromMemory;
+
+		lock.lock();
+		try {
+			var variants = new ArrayList<Entry>();
+			variants.add(entry);
+			for ( var variant : entries.getOrDefault(entry.key, new Entry[0]) ) {
+				if ( variants.size() < MAX_VARIANTS && !Arrays.equals(variant.varyValues, entry.varyValues) )
+					variants.add(variant);
+				else
+					drop(variant);
+			}
+			entries.put(entry.key, variants.toArray(Entry[]::new));
+
+			evictedFromMemory = memory.add(entry, entry.hash, entry.body.capacity() + entry.response.head().length);
+		} finally {
+			lock.unlock();
+		}
+
+		stored.increment();
+		demote(evictedFromMemory);
+	}
+
+	/*
+	 * Bodies are written out without the lock, and only kept if their entry's still
+	 * wanted by the time they have been
+	 */
+	private void demote(List<Entry> demoted) {
+		for ( var entry : demoted ) {
+			if ( disk.isEmpty() ) {
+				discard(entry);
+				continue;
+			}
+
+			DiskTier.Stored written;
+			try {
+				written = disk.get().write(entry.body.duplicate());
+			} catch (IOException e) {
+				System.out.println("Unable to write "+entry.key+" to the cache's disk tier, "+e.getMessage());
+				discard(entry);
+				continue;
+			}
+
+			lock.lock();
+			try {
+				if ( !stored(entry) ) {
+					DiskTier.delete(written.path());
+					continue;
+				}
+
+				entry.body = written.body();
+				for ( var full : disk.get().add(entry, written) ) {
+					forget(full);
+					evicted.increment();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private boolean stored(Entry entry) {
+		var variants = entries.get(entry.key);
+		if ( variants != null )
+			for ( var variant : variants )
+				if ( variant == entry )
+					return true;
+		return false;
+	}
+
+	/*
+	 * Drops an entry there's no room for
+	 */
+	private void discard(Entry entry) {
+		lock.lock();
+		try {
+			forget(entry);
+		} finally {
+			lock.unlock();
+		}
+		evicted.increment();
+	}
+
+	/*
+	 * Takes an entry out of the cache altogether, under the lock
+	 */
+	private void forget(Entry entry) {
+		var variants = entries.get(entry.key);
+		if ( variants != null ) {
+			var kept = Arrays.stream(variants).filter(variant -> variant != entry).toArray(Entry[]::new);
+			if ( kept.length == 0 )
+				entries.remove(entry.key, variants);
+			else if ( kept.length < variants.length )
+				entries.put(entry.key, kept);
+		}
+
+		drop(entry);
+	}
+
+	private void drop(Entry entry) {
+		memory.remove(entry);
+		if ( disk.isPresent() )
+			disk.get().remove(entry);
+	}
+
+	/*
+	 * Works out how long a response is fresh for and how old it already is, RFC 9111
+	 * sections 4.2.1 to 4.2.3, the age going by the message that just arrived, the
+	 * response itself or a 304 renewing it
+	 */
+	private static Validity validity(RequestHead response, RequestHead received, CacheControl control, int status,
+			String lastModified, long requestTime, long responseTime) {
+		long date = date(received, responseTime);
+
+		int ageIndex = received.indexOf("age");
+		long age = ageIndex < 0 ? 0 : Math.min(Math.max(0, received.number(ageIndex)), Integer.MAX_VALUE);
+
+		long apparentAge = Math.max(0, responseTime - date);
+		long correctedAge = age * 1000 + Math.max(0, responseTime - requestTime);
+
+		long lifetime;
+		int expiresIndex = response.indexOf("expires");
+		if ( control.sMaxAge() >= 0 )
+			lifetime = control.sMaxAge() * 1000;
+		else if ( control.maxAge() >= 0 )
+			lifetime = control.maxAge() * 1000;
+		else if ( expiresIndex >= 0 ) {
+			// an Expires that isn't a date means already expired
+			long expires = HttpMessages.date(response.value(expiresIndex));
+			lifetime = Math.max(0, expires - date(response, responseTime));
+		} else if ( lastModified != null && (HEURISTIC.contains(status) || control.isPublic()) ) {
+			long modified = HttpMessages.date(lastModified);
+			lifetime = modified < 0 ? 0
+					: Math.min(MAX_HEURISTIC_MILLIS, Math.max(0, date(response, responseTime) - modified) / 10);
+		} else
+			lifetime = 0;
+
+		return new Validity(Math.max(apparentAge, correctedAge), responseTime, lifetime,
+				Math.max(0, control.staleWhileRevalidate()) * 1000,
+				control.mustRevalidate() || control.sMaxAge() >= 0, control.noCache());
+	}
+
+	/*
+	 * The message's Date, or when it arrived if it hasn't a valid one
+	 */
+	private static long date(RequestHead message, long responseTime) {
+		int index = message.indexOf("date");
+		long date = index < 0 ? -1 : HttpMessages.date(message.value(index));
+		return date < 0 ? responseTime : date;
+	}
+
+	/*
+	 * RFC 9111 section 3 as it applies to a shared cache, less anything it couldn't go on
+	 * to serve or revalidate
+	 */
+	private boolean storable(RequestHead request, RequestHead response, CacheControl control, long bodyLength,
+			Validity validity, String etag, String lastModified) {
+		int status = response.status();
+		if ( status < 200 || status == 206 || status == 304 )
+			return false;
+
+		if ( CacheControl.of(request).noStore() || control.noStore() || control.isPrivate() )
+			return false;
+
+		if ( request.indexOf("authorization") >= 0 && !control.isPublic() && !control.mustRevalidate()
+				&& control.sMaxAge() < 0 )
+			return false;
+
+		if ( response.indexOf("set-cookie") >= 0 || response.lists("vary", "*") )
+			return false;
+
+		boolean explicit = control.maxAge() >= 0 || control.sMaxAge() >= 0 || response.indexOf("expires") >= 0;
+		if ( !explicit && !HEURISTIC.contains(status) && !control.isPublic() )
+			return false;
+
+		if ( validity.lifetime() == 0 && etag == null && lastModified == null )
+			return false;
+
+		return bodyLength == MessageReader.CHUNKED || (bodyLength >= 0 && bodyLength <= config.maxObjectBytes());
+	}
+
+	/*
+	 * Every value a request gives a header, in order, null if it has none
+	 */
+	private static String requestValues(RequestHead request, String name) {
+		String values = null;
+		for ( int i = 0; i < request.headerCount(); i++ )
+			if ( name.equalsIgnoreCase(request.name(i)) )
+				values = values == null ? request.value(i) : values + ", " + request.value(i);
+		return values;
+	}
+
+	private static String valueOf(RequestHead head, String name) {
+		int index = head.indexOf(name);
+		return index < 0 ? null : head.value(index);
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return requests answered with a fresh stored response
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return requests answered with a stale response while it was revalidated
+	 */
+	public long staleHits() {
+		return staleHits.sum();
+	}
+
+	/**
+	 * @return requests that went to the origin to fill the cache
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return stored responses the origin said were still good
+	 */
+	public long revalidated() {
+		return revalidated.sum();
+	}
+
+	/**
+	 * @return requests that waited on another's fill rather than going to the origin
+	 */
+	public long collapsed() {
+		return collapsed.sum();
+	}
+
+	public long stored() {
+		return stored.sum();
+	}
+
+	/**
+	 * @return responses dropped from the cache to make room
+	 */
+	public long evicted() {
+		return evicted.sum();
+	}
+
+	public long memoryBytes() {
+		lock.lock();
+		try {
+			return memory.weight();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long diskBytes() {
+		lock.lock();
+		try {
+			return disk.isPresent() ? disk.get().weight() : 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int entries() {
+		int count = 0;
+		for ( var variants : entries.values() )
+			count += variants.length;
+		return count;
+	}
+
+	/**
+	 * A stored response
+	 */
+	public static final class Entry {
+		private final String key;
+		private final int hash;
+		private final int status;
+		private final String[] varyNames, varyValues;
+		private final AtomicBoolean revalidating = new AtomicBoolean();
+		private volatile ByteBuffer body;
+		private volatile Response response;
+
+		private Entry(String key, int status, String[] varyNames, String[] varyValues, Response response) {
+			this.key = key;
+			this.hash = hash(key);
+			this.status = status;
+			this.varyNames = varyNames;
+			this.varyValues = varyValues;
+			this.response = response;
+		}
+
+		/**
+		 * @return the head as stored, for HttpMessages to build the response from
+		 */
+		public byte[] head() {
+			return response.head();
+		}
+
+		public int status() {
+			return status;
+		}
+
+		/**
+		 * @return the body from its start, for the caller alone to read
+		 */
+		public ByteBuffer body() {
+			return body.duplicate();
+		}
+
+		/**
+		 * @param now in epoch milliseconds
+		 * @return how old the response is in milliseconds
+		 */
+		public long age(long now) {
+			return age(response.validity(), now);
+		}
+
+		private static long age(Validity v, long now) {
+			return v.correctedInitialAge() + Math.max(0, now - v.responseTime());
+		}
+
+		/**
+		 * @return the lines making a request conditional on the response being unchanged,
+		 * none if it has neither an ETag nor a Last-Modified
+		 */
+		public byte[] validators() {
+			var r = response;
+			var etag = r.etag();
+			var lastModified = r.lastModified();
+
+			var lines = new StringBuilder();
+			if ( etag != null )
+				lines.append("If-None-Match: ").append(etag).append("\r\n");
+			if ( lastModified != null )
+				lines.append("If-Modified-Since: ").append(lastModified).append("\r\n");
+			return lines.toString().getBytes(StandardCharsets.ISO_8859_1);
+		}
+
+		/**
+		 * @return true if the request is conditional and its client's copy is this one,
+		 * so a 304 will do, RFC 9110 sections 13.1.2 and 13.1.3
+		 */
+		public boolean notModifiedFor(RequestHead request) {
+			if ( status != 200 )
+				return false;
+
+			var r = response;
+			var etag = r.etag();
+			var lastModified = r.lastModified();
+
+			if ( request.indexOf("if-none-match") >= 0 ) {
+				if ( etag == null )
+					return false;
+
+				for ( var tag : requestValues(request, "if-none-match").split(",") ) {
+					tag = tag.strip();
+					if ( tag.equals("*") || weak(tag).equals(weak(etag)) )
+						return true;
+				}
+				return false;
+			}
+
+			var since = valueOf(request, "if-modified-since");
+			if ( since == null || lastModified == null )
+				return false;
+
+			long sinceTime = HttpMessages.date(since), modified = HttpMessages.date(lastModified);
+			return sinceTime >= 0 && modified >= 0 && modified <= sinceTime;
+		}
+
+		private static String weak(String tag) {
+			return tag.startsWith("W/") ? tag.substring(2) : tag;
+		}
+
+		/*
+		 * Fresh unless either side says revalidate, and usable stale while it's still in
+		 * its stale-while-revalidate window and the request doesn't limit its age
+		 */
+		Use useFor(CacheControl request, long now) {
+			var v = response.validity();
+			long age = age(v, now);
+			boolean revalidate = v.noCache() || request.noCache();
+
+			if ( !revalidate && age < v.lifetime() && (request.maxAge() < 0 || age <= request.maxAge() * 1000) )
+				return Use.FRESH;
+
+			if ( !revalidate && !v.mustRevalidate() && request.maxAge() < 0
+					&& age < v.lifetime() + v.staleWhileRevalidate() )
+				return Use.STALE_WHILE_REVALIDATE;
+
+			return Use.REVALIDATE;
+		}
+
+		/*
+		 * The request has the same values as the one it was stored for in the headers the
+		 * response Varies by, RFC 9111 section 4.1
+		 */
+		boolean matches(RequestHead request) {
+			for ( int i = 0; i < varyNames.length; i++ )
+				if ( !Objects.equals(varyValues[i], requestValues(request, varyNames[i])) )
+					return false;
+			return true;
+		}
+	}
+
+	/**
+	 * A response on its way from the origin, which is stored as its body is relayed if
+	 * it can be. Used from one thread, and finished whatever happens.
+	 */
+	public final class Fill {
+		private final String key;
+		private final boolean collapsing;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private Entry entry;
+		private ByteBuffer body;
+		private boolean storing;
+		private boolean finished;
+
+		private Fill(String key, boolean collapsing) {
+			this.key = key;
+			this.collapsing = collapsing;
+		}
+
+		/**
+		 * Decides from its head whether the response can be stored, finishing the fill
+		 * straight away if not so anyone waiting on it doesn't wait for the body
+		 *
+		 * @param request as the client sent it
+		 * @param bodyLength the response body's framing
+		 * @param requestTime when the request was sent, in epoch milliseconds
+		 * @param responseTime when the response head arrived
+		 * @return true if the body's to be written to the fill as it's relayed
+		 */
+		public boolean begin(RequestHead request, RequestHead response, long bodyLength, long requestTime,
+				long responseTime) {
+			var control = CacheControl.of(response);
+			var etag = valueOf(response, "etag");
+			var lastModified = valueOf(response, "last-modified");
+			var validity = validity(response, response, control, response.status(), lastModified, requestTime, 
+					responseTime);
+
+			var head = new byte[MAX_STORED_HEAD];
+			int headLength = storable(request, response, control, bodyLength, validity, etag, lastModified)
+					? HttpMessages.storedHead(response, head)
+					: -1;
+			if ( headLength < 0 ) {
+				finish();
+				return false;
+			}
+
+			var varyNames = new ArrayList<String>();
+			for ( int i = 0; i < response.headerCount(); i++ )
+				if ( "vary".equalsIgnoreCase(response.name(i)) )
+					for ( var name : response.value(i).split(",") )
+						if ( !name.isBlank() )
+							varyNames.add(name.strip().toLowerCase());
+
+			var varyValues = new String[varyNames.size()];
+			for ( int i = 0; i < varyValues.length; i++ )
+				varyValues[i] = requestValues(request, varyNames.get(i));
+
+			entry = new Entry(key, response.status(), varyNames.toArray(String[]::new), varyValues,
+					new Response(Arrays.copyOf(head, headLength), etag, lastModified, validity));
+			body = ByteBuffer.allocateDirect(bodyLength == MessageReader.CHUNKED
+					? (int) Math.min(FIRST_CHUNKED_CAPACITY, config.maxObjectBytes())
+					: (int) bodyLength);
+			storing = true;
+			return true;
+		}
+
+		/**
+		 * @return a stream writing to out and, while it's being stored, the fill
+		 */
+		public OutputStream tee(OutputStream out) {
+			return new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] bytes, int offset, int length) throws IOException {
+					out.write(bytes, offset, length);
+					Fill.this.write(bytes, offset, length);
+				}
+
+				@Override
+				public void flush() throws IOException {
+					out.flush();
+				}
+			};
+		}
+
+		/*
+		 * Bodies of unknown length grow until they pass the largest stored, when the
+		 * fill's given up on
+		 */
+		private void write(byte[] bytes, int offset, int length) {
+			if ( !storing )
+				return;
+
+			if ( body.remaining() < length ) {
+				long needed = (long) body.position() + length;
+				if ( needed > config.maxObjectBytes() ) {
+					finish();
+					return;
+				}
+
+				var grown = ByteBuffer.allocateDirect((int) Math.min(config.maxObjectBytes(),
+						Math.max(needed, (long) body.capacity() * 2)));
+				grown.put(body.flip());
+				body = grown;
+			}
+
+			body.put(bytes, offset, length);
+		}
+
+		/**
+		 * The body has been relayed to its end, so the response is stored if it's being
+		 * and the fill finished
+		 */
+		public void complete() {
+			if ( storing ) {
+				body.flip();
+
+				// a body that grew is trimmed to its length
+				if ( body.capacity() - body.limit() > body.limit() / 8 )
+					body = ByteBuffer.allocateDirect(body.limit()).put(body).flip();
+
+				entry.body = body.asReadOnlyBuffer();
+				storing = false;
+				store(entry);
+			}
+			finish();
+		}
+
+		/**
+		 * Ends the fill, stored or not, letting anyone waiting on it look again
+		 */
+		public void finish() {
+			if ( finished )
+				return;
+			finished = true;
+			storing = false;
+			body = null;
+
+			if ( collapsing )
+				fills.remove(key, this);
+			done.countDown();
+		}
+	}
+
+}
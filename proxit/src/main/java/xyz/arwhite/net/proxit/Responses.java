@@ -0,0 +1,71 @@
+package xyz.arwhite.net.proxit;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Every response proxit sends to a client, encoded once up front so each can be sent
+ * with a single write and nothing built per connection.
+ *
+ * @author Alan R. White
+ *
+ */
+class Responses {
+
+	static final byte[] CONTINUE = ascii("HTTP/1.1 100 Continue\r\n\r\n");
+
+	static final byte[] OK = ascii("HTTP/1.1 200 OK\r\n\r\n");
+
+	static final byte[] BAD_REQUEST = ascii("HTTP/1.1 400 Bad Request\r\n\r\n");
+
+	static final byte[] FORBIDDEN = ascii("HTTP/1.1 403 Proxy Authorization Failed\r\n\r\n");
+
+	// authorized, but not to go there
+	static final byte[] DESTINATION_NOT_PERMITTED = ascii("HTTP/1.1 403 Destination Not Permitted\r\n\r\n");
+
+	static final byte[] PROXY_AUTHENTICATION_REQUIRED = ascii(
+			"HTTP/1.1 407 Proxy Authorization Required\r\n"
+			+ "Proxy-Authenticate: Basic\r\n"
+			+ "Proxy-Authenticate: Bearer\r\n"
+			+ "\r\n");
+
+	static final byte[] REQUEST_TIMEOUT = ascii("HTTP/1.1 408 Request Timeout\r\n\r\n");
+
+	static final byte[] HEADERS_TOO_LARGE = ascii("HTTP/1.1 431 Request Header Fields Too Large\r\n\r\n");
+
+	static final byte[] INTERNAL_ERROR = ascii("HTTP/1.1 500 Internal Server Error\r\n\r\n");
+
+	static final byte[] NOT_IMPLEMENTED = ascii("HTTP/1.1 501 Not Implemented\r\n\r\n");
+
+	static final byte[] BAD_GATEWAY = ascii("HTTP/1.1 502 Bad Gateway\r\n\r\n");
+
+	static final byte[] SERVICE_UNAVAILABLE = ascii(
+			"HTTP/1.1 503 Service Unavailable\r\n"
+			+ "Retry-After: 1\r\n"
+			+ "\r\n");
+
+	private Responses() {}
+
+	private static byte[] ascii(String response) {
+		return response.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @param status HTTP status code
+	 * @return the canned response for the status, a 500 if we don't have one
+	 */
+	static byte[] forStatus(int status) {
+		return switch( status ) {
+		case 200 -> OK;
+		case 400 -> BAD_REQUEST;
+		case 403 -> FORBIDDEN;
+		case 407 -> PROXY_AUTHENTICATION_REQUIRED;
+		case 408 -> REQUEST_TIMEOUT;
+		case 431 -> HEADERS_TOO_LARGE;
+		case 501 -> NOT_IMPLEMENTED;
+		case 502 -> BAD_GATEWAY;
+		case 503 -> SERVICE_UNAVAILABLE;
+		default -> INTERNAL_ERROR;
+		};
+	}
+
+}
@@ -0,0 +1,519 @@
+package xyz.arwhite.net.proxit;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking relay engine. Rather than parking two threads per tunnel, established
+ * tunnels are handed to a small, fixed set of event loops, each multiplexing many
+ * tunnels over a single Selector.
+ *
+ * Idle tunnels hold no buffer memory, reads go through a buffer owned by the event loop
+ * and a tunnel only takes a buffer from the pool when the receiving side can't take
+ * everything read, handing it back as soon as it has drained.
+ *
+ * Sockets handed to this engine must have been created from channels, ie accepted via
+ * a ServerSocketChannel and connected via a SocketChannel.
+ *
+ * @author Alan R. White
+ *
+ */
+public class SelectorRelay {
+
+	private static final int READ_BUFFER_SIZE = 16384;
+
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final BufferPool bufferPool;
+	private final Metrics metrics;
+
+	public SelectorRelay(int numLoops, BufferPool bufferPool) throws IOException {
+		this(numLoops, bufferPool, new Metrics());
+	}
+
+	/**
+	 * @param metrics counts the bytes relayed
+	 */
+	public SelectorRelay(int numLoops, BufferPool bufferPool, Metrics metrics) throws IOException {
+		if ( numLoops < 1 )
+			throw new IllegalArgumentException("Selector relay needs at least one event loop");
+
+		this.bufferPool = bufferPool;
+		this.metrics = metrics;
+
+		loops = new EventLoop[numLoops];
+		for ( int i = 0; i < numLoops; i++ ) {
+			loops[i] = new EventLoop();
+
+			var loopThread = new Thread(loops[i], "proxit-relay-"+i);
+			loopThread.setDaemon(true);
+			loopThread.start();
+		}
+	}
+
+	/**
+	 * Takes ownership of both sockets and returns immediately, the sockets are closed
+	 * by the event loop once both directions have finished or either fails.
+	 *
+	 * @param clientConn socket from the proxy client
+	 * @param targetConn socket to the target the client asked for
+	 */
+	public void relay(Socket clientConn, Socket targetConn) {
+		relay(clientConn, targetConn, (bytesIn, bytesOut, reason) -> {}, Optional.empty(), Optional.empty());
+	}
+
+	/**
+	 * A tunnel on an event loop, as seen from outside it
+	 */
+	public interface Handle {
+		/**
+		 * @return System.nanoTime() when the tunnel last relayed anything either way
+		 */
+		long lastActivity();
+
+		/**
+		 * Has the event loop close the tunnel, telling its close listener the reason
+		 */
+		void abort(AccessLog.Reason reason);
+	}
+
+	/**
+	 * Told when a tunnel has been closed, with the bytes it relayed from the client to
+	 * the target and back, and why it closed
+	 */
+	public interface CloseListener {
+		void closed(long bytesIn, long bytesOut, AccessLog.Reason reason);
+	}
+
+	/**
+	 * As relay(), telling onClose once the tunnel has been closed, pacing the tunnel to
+	 * the rate of any buckets supplied and waiting its turn for the egress link if it has
+	 * a flow
+	 *
+	 * @return the tunnel, empty if it couldn't be relayed and has already been closed
+	 */
+	public Optional<Handle> relay(Socket clientConn, Socket targetConn, CloseListener onClose,
+			Optional<Shaper.Buckets> shaping, Optional<FairScheduler.Flow> flow) {
+
+		var clientChannel = clientConn.getChannel();
+		var targetChannel = targetConn.getChannel();
+
+		if ( clientChannel == null || targetChannel == null ) {
+			System.out.println("Selector relay requires channel based sockets");
+			closeQuietly(clientConn);
+			closeQuietly(targetConn);
+			onClose.closed(0, 0, AccessLog.Reason.ERROR);
+			return Optional.empty();
+		}
+
+		try {
+			clientChannel.configureBlocking(false);
+			targetChannel.configureBlocking(false);
+		} catch (IOException e) {
+			e.printStackTrace();
+			closeQuietly(clientConn);
+			closeQuietly(targetConn);
+			onClose.closed(0, 0, AccessLog.Reason.ERROR);
+			return Optional.empty();
+		}
+
+		var loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+		var tunnel = new Tunnel(loop, clientChannel, targetChannel, onClose, shaping, flow);
+		loop.register(tunnel);
+		return Optional.of(tunnel);
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * One direction of a tunnel, bytes read from src are written to dst. If dst can't
+	 * accept everything read, the remainder is held in pending and src isn't read
+	 * again until pending has drained. A shaped direction isn't read again until
+	 * resumeAt either, once it has got ahead of its rate. Bytes waiting for the egress
+	 * link are held in pending, not written until the scheduler grants them.
+	 */
+	private static class Direction {
+		final SocketChannel src, dst;
+		final Metrics.Counter relayed;
+		long total;
+		ByteBuffer pending;
+		boolean eof;
+		long resumeAt;
+		boolean paused;
+		boolean awaitingGrant;
+
+		Direction(SocketChannel src, SocketChannel dst, Metrics.Counter relayed) {
+			this.src = src;
+			this.dst = dst;
+			this.relayed = relayed;
+		}
+
+		boolean finished() {
+			return eof && pending == null;
+		}
+
+		void count(int written) {
+			relayed.add(written);
+			total += written;
+		}
+	}
+
+	private class Tunnel implements Handle {
+		final EventLoop loop;
+		final SocketChannel client, target;
+		final Direction upstream, downstream;
+		final CloseListener onClose;
+		final Optional<Shaper.Buckets> shaping;
+		final Optional<FairScheduler.Flow> flow;
+		SelectionKey clientKey, targetKey;
+		boolean closed;
+		boolean paused;
+		volatile long lastActivity = System.nanoTime();
+
+		Tunnel(EventLoop loop, SocketChannel client, SocketChannel target, CloseListener onClose,
+				Optional<Shaper.Buckets> shaping, Optional<FairScheduler.Flow> flow) {
+			this.loop = loop;
+			this.client = client;
+			this.target = target;
+			this.onClose = onClose;
+			this.shaping = shaping;
+			this.flow = flow;
+			upstream = new Direction(client, target, metrics.bytesIn);
+			downstream = new Direction(target, client, metrics.bytesOut);
+		}
+
+		@Override
+		public long lastActivity() {
+			return lastActivity;
+		}
+
+		@Override
+		public void abort(AccessLog.Reason reason) {
+			loop.abort(this, reason);
+		}
+
+		/*
+		 * A channel wants to read while the direction it feeds has room, and wants to
+		 * write while the direction feeding it has bytes waiting.
+		 */
+		int interestOps(SocketChannel channel) {
+			var outbound = channel == client ? upstream : downstream;
+			var inbound = channel == client ? downstream : upstream;
+
+			int ops = 0;
+			if ( !outbound.eof && outbound.pending == null && !outbound.paused )
+				ops |= SelectionKey.OP_READ;
+			if ( inbound.pending != null && !inbound.awaitingGrant )
+				ops |= SelectionKey.OP_WRITE;
+			return ops;
+		}
+
+		void updateInterest() {
+			clientKey.interestOps(interestOps(client));
+			targetKey.interestOps(interestOps(target));
+		}
+
+		void close(BufferPool bufferPool, AccessLog.Reason reason) {
+			if ( closed )
+				return;
+			closed = true;
+
+			bufferPool.release(upstream.pending);
+			bufferPool.release(downstream.pending);
+			upstream.pending = downstream.pending = null;
+
+			try {
+				client.close();
+			} catch (IOException e) {}
+
+			try {
+				target.close();
+			} catch (IOException e) {}
+
+			// whatever the listener does, it mustn't take the loop down with it
+			try {
+				onClose.closed(upstream.total, downstream.total, reason);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private record Grant(Tunnel tunnel, Direction dir) {}
+
+	private record Abort(Tunnel tunnel, AccessLog.Reason reason) {}
+
+	private class EventLoop implements Runnable {
+
+		private final Selector selector;
+		private final Queue<Tunnel> registrations = new ConcurrentLinkedQueue<>();
+		private final Queue<Grant> grants = new ConcurrentLinkedQueue<>();
+		private final Queue<Abort> aborts = new ConcurrentLinkedQueue<>();
+		private final ByteBuffer readBuffer = bufferPool.take(READ_BUFFER_SIZE);
+
+		/*
+		 * Shaped tunnels that have got ahead of their rate, waiting to be read again
+		 */
+		private final List<Tunnel> paused = new ArrayList<>();
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		void register(Tunnel tunnel) {
+			registrations.add(tunnel);
+			selector.wakeup();
+		}
+
+		/*
+		 * Called by the scheduler once a direction's pending bytes may go
+		 */
+		void granted(Tunnel tunnel, Direction dir) {
+			grants.add(new Grant(tunnel, dir));
+			selector.wakeup();
+		}
+
+		/*
+		 * Called from outside the loop to close a tunnel, eg when it has timed out
+		 */
+		void abort(Tunnel tunnel, AccessLog.Reason reason) {
+			aborts.add(new Abort(tunnel, reason));
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while ( true ) {
+				try {
+					selector.select(resumePaused());
+					registerPending();
+					closeAborted();
+					writeGranted();
+
+					var selected = selector.selectedKeys().iterator();
+					while ( selected.hasNext() ) {
+						var key = selected.next();
+						selected.remove();
+						process(key);
+					}
+
+				} catch (IOException | RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/*
+		 * Lets paused directions whose time has come be read again
+		 * 
+		 * @return milliseconds until the next is due, 0 if none are paused
+		 */
+		private long resumePaused() {
+			if ( paused.isEmpty() )
+				return 0;
+
+			long now = System.nanoTime();
+			long next = Long.MAX_VALUE;
+
+			var it = paused.iterator();
+			while ( it.hasNext() ) {
+				var tunnel = it.next();
+				if ( tunnel.closed ) {
+					it.remove();
+					continue;
+				}
+
+				boolean resumed = resume(tunnel.upstream, now) | resume(tunnel.downstream, now);
+				if ( resumed ) {
+					try {
+						tunnel.updateInterest();
+					} catch (RuntimeException e) {
+						tunnel.close(bufferPool, AccessLog.Reason.ERROR);
+					}
+				}
+
+				if ( tunnel.upstream.paused )
+					next = Math.min(next, tunnel.upstream.resumeAt - now);
+				if ( tunnel.downstream.paused )
+					next = Math.min(next, tunnel.downstream.resumeAt - now);
+
+				if ( !tunnel.upstream.paused && !tunnel.downstream.paused ) {
+					it.remove();
+					tunnel.paused = false;
+				}
+			}
+
+			if ( next == Long.MAX_VALUE )
+				return 0;
+
+			// select() takes 0 to mean forever
+			return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next));
+		}
+
+		/*
+		 * @return true if the direction was paused and may now be read again
+		 */
+		private boolean resume(Direction dir, long now) {
+			if ( !dir.paused || now - dir.resumeAt < 0 )
+				return false;
+
+			dir.paused = false;
+			return true;
+		}
+
+		private void registerPending() {
+			Tunnel tunnel;
+			while ( (tunnel = registrations.poll()) != null ) {
+				try {
+					tunnel.clientKey = tunnel.client.register(selector, SelectionKey.OP_READ, tunnel);
+					tunnel.targetKey = tunnel.target.register(selector, SelectionKey.OP_READ, tunnel);
+				} catch (ClosedChannelException | RuntimeException e) {
+					tunnel.close(bufferPool, AccessLog.Reason.ERROR);
+				}
+			}
+		}
+
+		private void closeAborted() {
+			Abort abort;
+			while ( (abort = aborts.poll()) != null )
+				abort.tunnel().close(bufferPool, abort.reason());
+		}
+
+		/*
+		 * Directions the scheduler has let go can be written as soon as their
+		 * destination will take it
+		 */
+		private void writeGranted() {
+			Grant grant;
+			while ( (grant = grants.poll()) != null ) {
+				grant.dir().awaitingGrant = false;
+				if ( grant.tunnel().closed )
+					continue;
+
+				try {
+					grant.tunnel().updateInterest();
+				} catch (RuntimeException e) {
+					grant.tunnel().close(bufferPool, AccessLog.Reason.ERROR);
+				}
+			}
+		}
+
+		private void process(SelectionKey key) {
+			var tunnel = (Tunnel) key.attachment();
+			var channel = (SocketChannel) key.channel();
+
+			if ( tunnel.closed )
+				return;
+
+			try {
+				if ( key.isWritable() )
+					flush(tunnel, channel == tunnel.client ? tunnel.downstream : tunnel.upstream);
+
+				if ( key.isValid() && key.isReadable() )
+					pump(tunnel, channel == tunnel.client ? tunnel.upstream : tunnel.downstream);
+
+				if ( tunnel.upstream.finished() && tunnel.downstream.finished() ) {
+					tunnel.close(bufferPool, AccessLog.Reason.COMPLETED);
+					return;
+				}
+
+				tunnel.updateInterest();
+
+			} catch (IOException | CancelledKeyException e) {
+				boolean reset = "Connection reset".equals(e.getMessage());
+				if ( e.getMessage() != null && !reset )
+					System.out.println("Relay failed "+e.getMessage());
+				tunnel.close(bufferPool, reset ? AccessLog.Reason.RESET : AccessLog.Reason.ERROR);
+
+			} catch (RuntimeException e) {
+				// a bug in one tunnel closes that tunnel, not every other on the loop
+				e.printStackTrace();
+				tunnel.close(bufferPool, AccessLog.Reason.ERROR);
+			}
+		}
+
+		/*
+		 * Read whatever is available from the source, writing straight through to the
+		 * destination. Only bytes the destination won't take are copied to the tunnel.
+		 */
+		private void pump(Tunnel tunnel, Direction dir) throws IOException {
+			readBuffer.clear();
+			int bytesRead = dir.src.read(readBuffer);
+
+			if ( bytesRead < 0 ) {
+				dir.eof = true;
+				if ( dir.pending == null )
+					dir.dst.shutdownOutput();
+				return;
+			}
+
+			readBuffer.flip();
+			if ( bytesRead > 0 )
+				tunnel.lastActivity = System.nanoTime();
+
+			// these bytes go now, but if they put us ahead of the rate we don't read again until caught up
+			if ( tunnel.shaping.isPresent() && bytesRead > 0 ) {
+				long wait = tunnel.shaping.get().consume(bytesRead);
+				if ( wait > 0 ) {
+					dir.resumeAt = System.nanoTime() + wait;
+					dir.paused = true;
+					if ( !tunnel.paused ) {
+						tunnel.paused = true;
+						paused.add(tunnel);
+					}
+				}
+			}
+
+			// the link's saturated, hold the bytes until the scheduler says it's our turn
+			if ( tunnel.flow.isPresent() && bytesRead > 0 && !tunnel.flow.get().tryPass(bytesRead) ) {
+				dir.pending = bufferPool.take(bytesRead);
+				dir.pending.put(readBuffer).flip();
+				dir.awaitingGrant = true;
+				tunnel.flow.get().submit(bytesRead, () -> granted(tunnel, dir));
+				return;
+			}
+
+			dir.count(dir.dst.write(readBuffer));
+
+			if ( readBuffer.hasRemaining() ) {
+				dir.pending = bufferPool.take(readBuffer.remaining());
+				dir.pending.put(readBuffer).flip();
+			}
+		}
+
+		private void flush(Tunnel tunnel, Direction dir) throws IOException {
+			if ( dir.pending == null || dir.awaitingGrant )
+				return;
+
+			int written = dir.dst.write(dir.pending);
+			dir.count(written);
+			if ( written > 0 )
+				tunnel.lastActivity = System.nanoTime();
+			if ( dir.pending.hasRemaining() )
+				return;
+
+			bufferPool.release(dir.pending);
+			dir.pending = null;
+			if ( dir.eof )
+				dir.dst.shutdownOutput();
+		}
+	}
+
+}
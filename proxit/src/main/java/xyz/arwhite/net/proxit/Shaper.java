@@ -0,0 +1,139 @@
+package xyz.arwhite.net.proxit;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bandwidth shaping, so one client can't take all of proxit's bandwidth from everyone
+ * else.
+ *
+ * Each tunnel can have its own rate, and all the tunnels opened by the same subject can
+ * share a rate. The subject rate comes from the proxit_rate claim, and optionally the
+ * proxit_burst claim, in the subject's JWT if present, otherwise from the configured
+ * default. Rates are in bytes per second over both directions of a tunnel together.
+ *
+ * @author Alan R. White
+ *
+ */
+public class Shaper {
+
+	public static final String RATE_CLAIM = "proxit_rate";
+	public static final String BURST_CLAIM = "proxit_burst";
+
+	/*
+	 * Beyond this many subject buckets the idle ones are dropped, they're full
+	 * and would be made again the same
+	 */
+	private static final int MAX_SUBJECTS = 10000;
+
+	/**
+	 * The buckets a tunnel draws from
+	 */
+	public static class Buckets {
+		private final Optional<TokenBucket> tunnel;
+		private final Optional<TokenBucket> subject;
+
+		Buckets(Optional<TokenBucket> tunnel, Optional<TokenBucket> subject) {
+			this.tunnel = tunnel;
+			this.subject = subject;
+		}
+
+		/**
+		 * @param bytes about to be sent through the tunnel
+		 * @return nanoseconds to wait before sending them
+		 */
+		public long consume(int bytes) {
+			long wait = 0;
+			if ( tunnel.isPresent() )
+				wait = tunnel.get().consume(bytes);
+			if ( subject.isPresent() )
+				wait = Math.max(wait, subject.get().consume(bytes));
+			return wait;
+		}
+	}
+
+	private final long tunnelRate, tunnelBurst;
+	private final long subjectRate, subjectBurst;
+
+	private final Map<String,TokenBucket> subjects = new ConcurrentHashMap<>();
+
+	/**
+	 * @param tunnelRate bytes per second per tunnel, 0 for no limit
+	 * @param tunnelBurst bytes a tunnel may send at once, 0 for a second's worth
+	 * @param subjectRate bytes per second per subject where the JWT doesn't say, 0 for no limit
+	 * @param subjectBurst bytes a subject may send at once where the JWT doesn't say, 0 for a second's worth
+	 */
+	public Shaper(long tunnelRate, long tunnelBurst, long subjectRate, long subjectBurst) {
+		this.tunnelRate = tunnelRate;
+		this.tunnelBurst = tunnelBurst > 0 ? tunnelBurst : tunnelRate;
+		this.subjectRate = subjectRate;
+		this.subjectBurst = subjectBurst;
+	}
+
+	/**
+	 * @param subject who opened the tunnel
+	 * @param claims from their JWT, if they presented one
+	 * @return the buckets for the tunnel, empty if it isn't to be shaped at all
+	 */
+	public Optional<Buckets> bucketsFor(String subject, Map<String,Object> claims) {
+		long rate = claim(claims, RATE_CLAIM).orElse(subjectRate);
+		long burst = claim(claims, BURST_CLAIM).orElse(subjectBurst > 0 ? subjectBurst : rate);
+
+		Optional<TokenBucket> subjectBucket = Optional.empty();
+		if ( rate > 0 && subject != null )
+			subjectBucket = Optional.of(subjectBucket(subject, rate, Math.max(1, burst)));
+
+		Optional<TokenBucket> tunnelBucket = tunnelRate > 0
+				? Optional.of(new TokenBucket(tunnelRate, tunnelBurst))
+				: Optional.empty();
+
+		if ( tunnelBucket.isEmpty() && subjectBucket.isEmpty() )
+			return Optional.empty();
+
+		return Optional.of(new Buckets(tunnelBucket, subjectBucket));
+	}
+
+	/*
+	 * The subject's bucket is shared by all their tunnels, unless their rate has changed
+	 * in which case they get a new one
+	 */
+	private TokenBucket subjectBucket(String subject, long rate, long burst) {
+		var bucket = subjects.get(subject);
+		if ( bucket != null && bucket.rate() == rate && bucket.burst() == burst )
+			return bucket;
+
+		if ( subjects.size() >= MAX_SUBJECTS )
+			subjects.values().removeIf(TokenBucket::isIdle);
+
+		return subjects.compute(subject, (s, existing) ->
+			existing != null && existing.rate() == rate && existing.burst() == burst
+				? existing
+				: new TokenBucket(rate, burst));
+	}
+
+	private static Optional<Long> claim(Map<String,Object> claims, String name) {
+		var value = claims.get(name);
+		if ( value instanceof Number number )
+			return Optional.of(number.longValue());
+
+		if ( value instanceof String string ) {
+			try {
+				return Optional.of(Long.parseLong(string.trim()));
+			} catch (NumberFormatException e) {
+				System.out.println("Ignoring non numeric "+name+" claim "+string);
+			}
+		}
+
+		return Optional.empty();
+	}
+
+	/**
+	 * Waits out the delay a bucket asked for
+	 */
+	public static void pause(long nanos) throws InterruptedException {
+		if ( nanos > 0 )
+			Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+	}
+
+}
@@ -0,0 +1,232 @@
+package xyz.arwhite.net.proxit;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryAddress;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.MemorySession;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Field;
+import java.net.Socket;
+import java.net.SocketImpl;
+import java.util.function.LongConsumer;
+
+/**
+ * Linux zero-copy relay. Bytes are moved from one socket to another through a pipe with
+ * splice(2) so they never get copied up onto the heap and back down again.
+ *
+ * The native calls are bound with the Foreign Function & Memory API, which is a preview
+ * API in this JDK, and the socket file descriptors are dug out by reflection, so the jvm
+ * needs to be run with
+ *
+ * --enable-preview --enable-native-access=ALL-UNNAMED
+ * --add-opens java.base/java.net=ALL-UNNAMED --add-opens java.base/java.io=ALL-UNNAMED
+ *
+ * If any of that isn't possible, or we're not on Linux, isAvailable() says so once and
+ * callers stay with copying through a buffer.
+ *
+ * The native calls block the calling thread, so this is only suitable for platform
+ * threads, a virtual thread would pin its carrier for the life of the tunnel.
+ *
+ * @author Alan R. White
+ *
+ */
+class Splice {
+
+	/*
+	 * Bytes asked for per splice, matches the default Linux pipe capacity
+	 */
+	private static final long CHUNK_SIZE = 65536;
+
+	private static final int SPLICE_F_MOVE = 1;
+	private static final int SPLICE_F_NONBLOCK = 2;
+	private static final int SPLICE_F_MORE = 4;
+
+	private static final short POLLIN = 0x001;
+	private static final short POLLOUT = 0x004;
+
+	/*
+	 * Without errno we can't tell EAGAIN from a real failure, so a call that fails
+	 * straight after poll said the socket was ready this many times in a row is taken
+	 * as the connection having gone.
+	 */
+	private static final int MAX_FAILURES = 8;
+
+	private static MethodHandle splice, pipe, poll, close;
+	private static Field socketImpl, implDelegate, implFd, fdValue;
+
+	private static final boolean available = bind();
+
+	private static boolean bind() {
+		if ( !System.getProperty("os.name").toLowerCase().startsWith("linux") ) {
+			System.out.println("splice relay is only available on Linux");
+			return false;
+		}
+
+		try {
+			var linker = Linker.nativeLinker();
+			var libc = linker.defaultLookup();
+
+			// ssize_t splice(int fd_in, loff_t *off_in, int fd_out, loff_t *off_out, size_t len, unsigned int flags)
+			splice = linker.downcallHandle(libc.lookup("splice").orElseThrow(),
+					FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT));
+
+			// int pipe(int pipefd[2])
+			pipe = linker.downcallHandle(libc.lookup("pipe").orElseThrow(),
+					FunctionDescriptor.of(JAVA_INT, ADDRESS));
+
+			// int poll(struct pollfd *fds, nfds_t nfds, int timeout)
+			poll = linker.downcallHandle(libc.lookup("poll").orElseThrow(),
+					FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT));
+
+			// int close(int fd)
+			close = linker.downcallHandle(libc.lookup("close").orElseThrow(),
+					FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+
+			socketImpl = Socket.class.getDeclaredField("impl");
+			socketImpl.setAccessible(true);
+			implDelegate = Class.forName("java.net.DelegatingSocketImpl").getDeclaredField("delegate");
+			implDelegate.setAccessible(true);
+			implFd = SocketImpl.class.getDeclaredField("fd");
+			implFd.setAccessible(true);
+			fdValue = FileDescriptor.class.getDeclaredField("fd");
+			fdValue.setAccessible(true);
+
+			return true;
+
+		} catch (Throwable e) {
+			System.out.println("splice relay not available, "+e);
+			return false;
+		}
+	}
+
+	static boolean isAvailable() {
+		return available;
+	}
+
+	/*
+	 * Sockets we connect ourselves wrap the platform impl in a SOCKS capable one
+	 */
+	private static int fdOf(Socket socket) throws ReflectiveOperationException {
+		var impl = socketImpl.get(socket);
+		if ( implDelegate.getDeclaringClass().isInstance(impl) )
+			impl = implDelegate.get(impl);
+
+		var fd = (FileDescriptor) implFd.get(impl);
+		return fdValue.getInt(fd);
+	}
+
+	/**
+	 * Relays everything read from in to out until in reaches end of stream, at which
+	 * point output on out is shutdown, or until either fails or in goes quiet for
+	 * longer than its SO_TIMEOUT.
+	 *
+	 * @param in socket to read from
+	 * @param out socket to write to
+	 * @param relayed told of the bytes moved as they go
+	 * @return false if splicing couldn't be set up and nothing has been relayed, so the
+	 * caller should relay by other means
+	 */
+	static boolean relay(Socket in, Socket out, LongConsumer relayed) {
+
+		if ( !available )
+			return false;
+
+		int inFd, outFd;
+		try {
+			inFd = fdOf(in);
+			outFd = fdOf(out);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// eg a channel's socket, which has no impl, or one not yet connected
+			System.out.println("unable to splice socket, "+e);
+			return false;
+		}
+
+		try (var session = MemorySession.openConfined()) {
+			var pipeFds = MemorySegment.allocateNative(8, session);
+			if ( (int) pipe.invoke(pipeFds) != 0 )
+				return false;
+
+			int pipeRead = pipeFds.get(JAVA_INT, 0);
+			int pipeWrite = pipeFds.get(JAVA_INT, 4);
+
+			var pollFd = MemorySegment.allocateNative(8, session);
+			int timeout = in.getSoTimeout() > 0 ? in.getSoTimeout() : -1;
+			int flags = SPLICE_F_MOVE | SPLICE_F_NONBLOCK | SPLICE_F_MORE;
+
+			try {
+				int failures = 0;
+
+				while ( failures < MAX_FAILURES ) {
+					if ( !await(pollFd, inFd, POLLIN, timeout) )
+						break;
+
+					long pending = (long) splice.invoke(inFd, MemoryAddress.NULL, pipeWrite,
+							MemoryAddress.NULL, CHUNK_SIZE, flags);
+
+					if ( pending == 0 ) {
+						out.shutdownOutput();
+						break;
+					}
+
+					if ( pending < 0 ) {
+						failures++;
+						continue;
+					}
+
+					failures = 0;
+					while ( pending > 0 && failures < MAX_FAILURES ) {
+						long written = (long) splice.invoke(pipeRead, MemoryAddress.NULL, outFd,
+								MemoryAddress.NULL, pending, flags);
+
+						if ( written < 0 ) {
+							if ( !await(pollFd, outFd, POLLOUT, timeout) )
+								return true;
+							failures++;
+							continue;
+						}
+
+						failures = 0;
+						pending -= written;
+						relayed.accept(written);
+					}
+				}
+
+			} finally {
+				close.invoke(pipeRead);
+				close.invoke(pipeWrite);
+			}
+
+			return true;
+
+		} catch (IOException e) {
+			if ( !"Connection reset".equals(e.getMessage()) )
+				e.printStackTrace();
+			return true;
+
+		} catch (Throwable e) {
+			e.printStackTrace();
+			return true;
+		}
+	}
+
+	/*
+	 * Waits for fd to become ready for the given events, false if it timed out. An
+	 * interrupted poll counts as ready, the splice that follows will fail and be counted.
+	 */
+	private static boolean await(MemorySegment pollFd, int fd, short events, int timeout) throws Throwable {
+		pollFd.set(JAVA_INT, 0, fd);
+		pollFd.set(JAVA_SHORT, 4, events);
+		pollFd.set(JAVA_SHORT, 6, (short) 0);
+
+		return (int) poll.invoke(pollFd, 1L, timeout) != 0;
+	}
+
+}
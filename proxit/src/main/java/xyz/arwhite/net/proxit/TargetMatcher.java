@@ -0,0 +1,401 @@
+package xyz.arwhite.net.proxit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Matches CONNECT targets against a set of numbered rules by host name suffix or address
+ * prefix, for the destination rules and the upstream routes, giving the mask of rules
+ * that match.
+ *
+ * Host names are looked up a label at a time from the right in a trie, and IP literals
+ * bit by bit in a binary trie of prefixes, one for each family. Rules aren't tried one
+ * by one, so a match costs the same however many there are, and for host names and IPv4
+ * literals nothing is allocated.
+ *
+ * @author Alan R. White
+ *
+ */
+final class TargetMatcher {
+
+	private long anywhere;
+	private final HostTrie hosts = new HostTrie();
+	private final CidrTrie ipv4 = new CidrTrie(32);
+	private final CidrTrie ipv6 = new CidrTrie(128);
+
+	/**
+	 * @param target host:port, or [address]:port for IPv6
+	 * @param colon index of the colon before the port
+	 * @return mask of the rules matching the host
+	 */
+	long match(String target, int colon) {
+		long matched = anywhere;
+
+		if ( target.charAt(0) == '[' ) {
+			if ( target.charAt(colon - 1) != ']' )
+				return matched;
+
+			var address = new long[2];
+			if ( parseIpv6(target, 1, colon - 1, address) )
+				matched |= ipv6.match(address[0], address[1]);
+
+		} else {
+			long address = parseIpv4(target, 0, colon);
+			if ( address >= 0 )
+				matched |= ipv4.match(address << 32, 0);
+			else
+				matched |= hosts.match(target, 0, colon);
+		}
+
+		return matched;
+	}
+
+	/**
+	 * @param pattern exact name, *.name for names under it, .name for both, or * for
+	 * anywhere at all
+	 * @param bit the rule's bit
+	 * @param name of the rule, for errors
+	 */
+	void addHost(String pattern, long bit, String name) {
+		if ( "*".equals(pattern) ) {
+			anywhere |= bit;
+			return;
+		}
+
+		var host = pattern.toLowerCase();
+		if ( host.endsWith(".") )
+			host = host.substring(0, host.length() - 1);
+
+		boolean exact = true, below = false;
+		if ( host.startsWith("*.") ) {
+			host = host.substring(2);
+			exact = false;
+			below = true;
+		} else if ( host.startsWith(".") ) {
+			host = host.substring(1);
+			below = true;
+		}
+
+		if ( host.isEmpty() || host.startsWith(".") || host.contains("..") || host.contains("*") )
+			throw new IllegalArgumentException(name+" has an invalid host "+pattern);
+
+		hosts.add(host, exact ? bit : 0, below ? bit : 0);
+	}
+
+	/**
+	 * @param cidr address/prefix, or just an address
+	 */
+	void addCidr(String cidr, long bit, String name) {
+		var parts = cidr.split("/", 2);
+		var address = parts[0];
+
+		try {
+			var ipv6Address = new long[2];
+			long ipv4Address = parseIpv4(address, 0, address.length());
+
+			int bits = ipv4Address >= 0 ? 32 : 128;
+			int prefix = parts.length == 2 ? Integer.parseInt(parts[1]) : bits;
+			if ( prefix < 0 || prefix > bits )
+				throw new IllegalArgumentException(name+" has an invalid prefix length in "+cidr);
+
+			if ( ipv4Address >= 0 )
+				ipv4.add(ipv4Address << 32, 0, prefix, bit);
+			else if ( parseIpv6(address, 0, address.length(), ipv6Address) )
+				ipv6.add(ipv6Address[0], ipv6Address[1], prefix, bit);
+			else
+				throw new IllegalArgumentException(name+" has an invalid address in "+cidr);
+
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name+" has an invalid prefix length in "+cidr, e);
+		}
+	}
+
+	/*
+	 * A rule's array of strings from the JSON it's configured with, empty if not there
+	 */
+	static List<String> strings(JsonNode rule, String field, String name) {
+		var node = rule.path(field);
+		if ( node.isMissingNode() )
+			return List.of();
+		if ( !node.isArray() )
+			throw new IllegalArgumentException(name+" "+field+" should be an array");
+
+		var values = new ArrayList<String>();
+		for ( var value : node ) {
+			if ( !value.isTextual() || value.asText().isBlank() )
+				throw new IllegalArgumentException(name+" has an invalid entry in "+field+", "+value);
+			values.add(value.asText().trim());
+		}
+		return values;
+	}
+
+	/*
+	 * 0 to 65535, or -1
+	 */
+	static int port(String s, int start, int end) {
+		if ( end - start < 1 || end - start > 5 )
+			return -1;
+
+		int port = 0;
+		for ( int i = start; i < end; i++ ) {
+			char c = s.charAt(i);
+			if ( c < '0' || c > '9' )
+				return -1;
+			port = port * 10 + (c - '0');
+		}
+		return port <= 65535 ? port : -1;
+	}
+
+	/*
+	 * Dotted quad, or -1 if it isn't one
+	 */
+	static long parseIpv4(String s, int start, int end) {
+		long address = 0;
+		int parts = 0;
+		int i = start;
+
+		while ( true ) {
+			int value = 0, digits = 0;
+			for ( ; i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9'; i++ ) {
+				value = value * 10 + (s.charAt(i) - '0');
+				if ( ++digits > 3 )
+					return -1;
+			}
+
+			if ( digits == 0 || value > 255 )
+				return -1;
+
+			address = address << 8 | value;
+			parts++;
+
+			if ( i == end )
+				return parts == 4 ? address : -1;
+			if ( s.charAt(i) != '.' || parts == 4 )
+				return -1;
+			i++;
+		}
+	}
+
+	/*
+	 * Eight groups of up to four hex digits, with one run of zero groups maybe written as
+	 * ::, into the high and low halves of address. Trailing dotted quads aren't taken.
+	 */
+	static boolean parseIpv6(String s, int start, int end, long[] address) {
+		long headHigh = 0, headLow = 0, tailHigh = 0, tailLow = 0;
+		int head = 0, tail = 0;
+		boolean compressed = false;
+
+		int i = start;
+		if ( s.startsWith("::", start) && end - start >= 2 ) {
+			compressed = true;
+			i += 2;
+		}
+
+		while ( i < end ) {
+			int group = 0, digits = 0;
+			for ( ; i < end && hex(s.charAt(i)) >= 0; i++ ) {
+				group = group << 4 | hex(s.charAt(i));
+				if ( ++digits > 4 )
+					return false;
+			}
+			if ( digits == 0 )
+				return false;
+
+			if ( compressed ) {
+				tailHigh = tailHigh << 16 | tailLow >>> 48;
+				tailLow = tailLow << 16 | group;
+				tail++;
+			} else {
+				headHigh = headHigh << 16 | headLow >>> 48;
+				headLow = headLow << 16 | group;
+				head++;
+			}
+
+			if ( i == end )
+				break;
+			if ( s.charAt(i++) != ':' || i == end )
+				return false;
+
+			if ( s.charAt(i) == ':' ) {
+				if ( compressed )
+					return false;
+				compressed = true;
+				i++;
+			}
+		}
+
+		if ( compressed ? head + tail > 7 : head != 8 )
+			return false;
+
+		// the head goes to the top, the groups :: stands for being zero
+		for ( int g = head; g < 8; g++ ) {
+			headHigh = headHigh << 16 | headLow >>> 48;
+			headLow = headLow << 16;
+		}
+
+		address[0] = headHigh | tailHigh;
+		address[1] = headLow | tailLow;
+		return true;
+	}
+
+	private static int hex(char c) {
+		if ( c >= '0' && c <= '9' )
+			return c - '0';
+		if ( c >= 'a' && c <= 'f' )
+			return c - 'a' + 10;
+		if ( c >= 'A' && c <= 'F' )
+			return c - 'A' + 10;
+		return -1;
+	}
+
+	/*
+	 * Host names by label, right to left, so com is at the top and www.example.com is
+	 * found by way of example.com. Children are kept in small open addressed tables keyed
+	 * by label, so a label is looked up in place in the target without a substring.
+	 */
+	private static final class HostTrie {
+		private final Node root = new Node();
+
+		private static final class Node {
+			long exact;  // rules for exactly this name
+			long below;  // rules for any name under it
+
+			String[] labels = new String[4];
+			Node[] children = new Node[4];
+			int size;
+
+			Node child(String s, int start, int end) {
+				int mask = labels.length - 1;
+				for ( int slot = hash(s, start, end) & mask; labels[slot] != null; slot = (slot + 1) & mask ) {
+					var label = labels[slot];
+					if ( label.length() == end - start && label.regionMatches(true, 0, s, start, end - start) )
+						return children[slot];
+				}
+				return null;
+			}
+
+			Node addChild(String label) {
+				var existing = child(label, 0, label.length());
+				if ( existing != null )
+					return existing;
+
+				if ( (size + 1) * 2 > labels.length )
+					grow();
+
+				var node = new Node();
+				put(label, node);
+				size++;
+				return node;
+			}
+
+			private void put(String label, Node node) {
+				int mask = labels.length - 1;
+				int slot = hash(label, 0, label.length()) & mask;
+				while ( labels[slot] != null )
+					slot = (slot + 1) & mask;
+				labels[slot] = label;
+				children[slot] = node;
+			}
+
+			private void grow() {
+				var oldLabels = labels;
+				var oldChildren = children;
+				labels = new String[oldLabels.length * 2];
+				children = new Node[oldLabels.length * 2];
+				for ( int i = 0; i < oldLabels.length; i++ )
+					if ( oldLabels[i] != null )
+						put(oldLabels[i], oldChildren[i]);
+			}
+
+			private static int hash(String s, int start, int end) {
+				int h = 0;
+				for ( int i = start; i < end; i++ )
+					h = 31 * h + Character.toLowerCase(s.charAt(i));
+				return h ^ (h >>> 16);
+			}
+		}
+
+		void add(String host, long exact, long below) {
+			var node = root;
+			int end = host.length();
+			while ( end > 0 ) {
+				int dot = host.lastIndexOf('.', end - 1);
+				node = node.addChild(host.substring(dot + 1, end));
+				end = dot;
+			}
+			node.exact |= exact;
+			node.below |= below;
+		}
+
+		long match(String s, int start, int end) {
+			if ( end > start && s.charAt(end - 1) == '.' )
+				end--;
+
+			long matched = 0;
+			var node = root;
+			while ( end > start ) {
+				int dot = s.lastIndexOf('.', end - 1);
+				int labelStart = Math.max(dot + 1, start);
+
+				node = node.child(s, labelStart, end);
+				if ( node == null )
+					break;
+				if ( labelStart == start )
+					return matched | node.exact;
+
+				matched |= node.below;
+				end = labelStart - 1;
+			}
+			return matched;
+		}
+	}
+
+	/*
+	 * Prefixes a bit at a time, the rules for a prefix on the node it ends at, so every
+	 * node passed on the way down an address is a prefix it's in. Addresses are taken as
+	 * high and low halves of 64 bits, IPv4 in the top of the high half.
+	 */
+	private static final class CidrTrie {
+		private final int width;
+		private final Node root = new Node();
+
+		private static final class Node {
+			long rules;
+			Node zero, one;
+		}
+
+		CidrTrie(int width) {
+			this.width = width;
+		}
+
+		private static boolean bit(long high, long low, int i) {
+			return i < 64 ? (high >>> (63 - i) & 1) != 0 : (low >>> (127 - i) & 1) != 0;
+		}
+
+		void add(long high, long low, int prefix, long rule) {
+			var node = root;
+			for ( int i = 0; i < prefix; i++ ) {
+				if ( bit(high, low, i) )
+					node = node.one != null ? node.one : (node.one = new Node());
+				else
+					node = node.zero != null ? node.zero : (node.zero = new Node());
+			}
+			node.rules |= rule;
+		}
+
+		long match(long high, long low) {
+			long matched = root.rules;
+			var node = root;
+			for ( int i = 0; i < width; i++ ) {
+				node = bit(high, low, i) ? node.one : node.zero;
+				if ( node == null )
+					break;
+				matched |= node.rules;
+			}
+			return matched;
+		}
+	}
+
+}
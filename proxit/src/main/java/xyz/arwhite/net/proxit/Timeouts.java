@@ -0,0 +1,179 @@
+package xyz.arwhite.net.proxit;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.LongSupplier;
+
+/**
+ * The deadlines every connection is held to, kept on a shared TimingWheel rather than in
+ * socket read timeouts, so they apply the same whichever relay engine a tunnel is on and
+ * aren't reset by a client trickling in a byte at a time.
+ *
+ * - handshake, from starting on the connection to answering the CONNECT, so slow or
+ *   silent clients can't hold handshakes open
+ * - idle, how long a tunnel can go without relaying anything either way
+ * - lifetime, how long a tunnel can stay open at all
+ *
+ * The policy is set for the listener, with the idle and lifetime limits for a tunnel
+ * overridden by the proxit_idle_timeout and proxit_max_lifetime claims, in seconds, in
+ * the JWT it was opened with. A zero duration means no limit.
+ *
+ * Relaying doesn't touch the wheel. Activity is a timestamp the relay already keeps, and
+ * when the idle timeout comes due it checks that and, if the tunnel has been busy, goes
+ * back on the wheel for the remainder.
+ *
+ * @author Alan R. White
+ *
+ */
+public class Timeouts {
+
+	public static final String IDLE_CLAIM = "proxit_idle_timeout";
+	public static final String LIFETIME_CLAIM = "proxit_max_lifetime";
+
+	/**
+	 * @param handshake longest from starting on a connection to answering its CONNECT
+	 * @param idle longest a tunnel can relay nothing
+	 * @param lifetime longest a tunnel can be open
+	 */
+	public record Policy(Duration handshake, Duration idle, Duration lifetime) {}
+
+	private final TimingWheel wheel;
+	private final Policy policy;
+
+	public Timeouts(TimingWheel wheel, Policy policy) {
+		this.wheel = wheel;
+		this.policy = policy;
+	}
+
+	public Policy policy() {
+		return policy;
+	}
+
+	public TimingWheel wheel() {
+		return wheel;
+	}
+
+	/**
+	 * @param claims from the JWT the tunnel was opened with, if any
+	 * @return the listener's policy with any limits the claims set
+	 */
+	public Policy policyFor(Map<String,Object> claims) {
+		var idle = seconds(claims, IDLE_CLAIM);
+		var lifetime = seconds(claims, LIFETIME_CLAIM);
+		if ( idle.isEmpty() && lifetime.isEmpty() )
+			return policy;
+
+		return new Policy(policy.handshake(), idle.orElse(policy.idle()), lifetime.orElse(policy.lifetime()));
+	}
+
+	private static Optional<Duration> seconds(Map<String,Object> claims, String name) {
+		var value = claims.get(name);
+		if ( value instanceof Number number && number.longValue() >= 0 )
+			return Optional.of(Duration.ofSeconds(number.longValue()));
+
+		if ( value instanceof String string ) {
+			try {
+				return Optional.of(Duration.ofSeconds(Long.parseUnsignedLong(string.trim())));
+			} catch (NumberFormatException e) {}
+		}
+
+		if ( value != null )
+			System.out.println("Ignoring invalid "+name+" claim "+value);
+
+		return Optional.empty();
+	}
+
+	/**
+	 * @param onExpiry run, on the timer thread, when any of the connection's deadlines pass
+	 * @return the deadlines for one connection
+	 */
+	public Deadlines track(Runnable onExpiry) {
+		return new Deadlines(onExpiry);
+	}
+
+	/**
+	 * One connection's deadlines, from its handshake through to its tunnel closing
+	 */
+	public class Deadlines {
+		private final Runnable onExpiry;
+
+		private volatile boolean stopped;
+		private volatile TimingWheel.Timeout handshake, idle, lifetime;
+
+		private LongSupplier lastActivity;
+		private long idleNanos;
+
+		private Deadlines(Runnable onExpiry) {
+			this.onExpiry = onExpiry;
+		}
+
+		/**
+		 * Starts the clock on the handshake
+		 */
+		public void handshake() {
+			if ( !policy.handshake().isZero() )
+				handshake = wheel.schedule(policy.handshake(), this::expire);
+		}
+
+		/**
+		 * The handshake is over and the tunnel open, from here on it's held to the idle and
+		 * lifetime limits of the policy
+		 *
+		 * @param tunnelPolicy for this tunnel, see policyFor
+		 * @param lastActivity System.nanoTime() of the last bytes the tunnel relayed either way
+		 */
+		public void tunnel(Policy tunnelPolicy, LongSupplier lastActivity) {
+			cancel(handshake);
+			if ( stopped )
+				return;
+
+			this.lastActivity = lastActivity;
+			idleNanos = tunnelPolicy.idle().toNanos();
+			if ( idleNanos > 0 )
+				idle = wheel.schedule(idleNanos, this::checkIdle);
+
+			if ( !tunnelPolicy.lifetime().isZero() )
+				lifetime = wheel.schedule(tunnelPolicy.lifetime(), this::expire);
+		}
+
+		/*
+		 * The tunnel may have been busy since this was scheduled, if so it gets the rest
+		 * of its idle time from the last activity
+		 */
+		private void checkIdle() {
+			if ( stopped )
+				return;
+
+			long remaining = idleNanos - (System.nanoTime() - lastActivity.getAsLong());
+			if ( remaining <= 0 )
+				expire();
+			else
+				idle = wheel.schedule(remaining, this::checkIdle);
+		}
+
+		private void expire() {
+			if ( stopped )
+				return;
+
+			stop();
+			onExpiry.run();
+		}
+
+		/**
+		 * The connection is closed, nothing more to watch
+		 */
+		public void stop() {
+			stopped = true;
+			cancel(handshake);
+			cancel(idle);
+			cancel(lifetime);
+		}
+	}
+
+	private static void cancel(TimingWheel.Timeout timeout) {
+		if ( timeout != null )
+			timeout.cancel();
+	}
+
+}
@@ -0,0 +1,248 @@
+package xyz.arwhite.net.proxit;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hashed timing wheel, in the style of Varghese and Lauck's scheme 6 and Netty's
+ * HashedWheelTimer, holding the deadlines for every connection proxit has open.
+ *
+ * The wheel is a ring of slots each covering one tick. A timeout goes in the slot its
+ * deadline falls in, with the number of turns of the wheel still to go before it's due.
+ * Scheduling and cancelling are O(1), a timeout is just handed to the timer thread or
+ * flagged, and each tick the timer thread only looks at one slot. The price is that
+ * timeouts fire up to a tick late, fine for timeouts measured in seconds.
+ *
+ * Expired tasks run on the timer thread, so should do little more than close sockets or
+ * hand the work on.
+ *
+ * @author Alan R. White
+ *
+ */
+public class TimingWheel {
+
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	// most new timeouts moved onto the wheel per tick, so a flood of them can't stall it
+	private static final int MAX_ADDS_PER_TICK = 100_000;
+
+	private final long tickNanos;
+	private final Slot[] wheel;
+	private final int mask;
+	private final long startTime = System.nanoTime();
+
+	/*
+	 * Timeouts are scheduled and cancelled from any thread, but only the timer thread
+	 * touches the wheel itself
+	 */
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+	private long tick;
+
+	private final LongAdder scheduled = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * A scheduled task, which can be cancelled until it has run
+	 */
+	public final class Timeout {
+		private final long deadline;
+		private final Runnable task;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+		// only touched by the timer thread
+		private long rounds;
+		private Slot slot;
+		private Timeout next, prev;
+
+		private Timeout(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		/**
+		 * @return false if the task has already run or been cancelled
+		 */
+		public boolean cancel() {
+			if ( !state.compareAndSet(PENDING, CANCELLED) )
+				return false;
+
+			pending.decrementAndGet();
+			cancelled.add(this);
+			return true;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		private void expire() {
+			if ( !state.compareAndSet(PENDING, EXPIRED) )
+				return;
+
+			pending.decrementAndGet();
+			expired.increment();
+			try {
+				task.run();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Doubly linked so a cancelled timeout comes out without a search
+	 */
+	private static class Slot {
+		Timeout head, tail;
+
+		void add(Timeout timeout) {
+			timeout.slot = this;
+			if ( head == null )
+				head = tail = timeout;
+			else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		Timeout remove(Timeout timeout) {
+			var next = timeout.next;
+			if ( timeout.prev != null )
+				timeout.prev.next = next;
+			if ( next != null )
+				next.prev = timeout.prev;
+			if ( timeout == head )
+				head = next;
+			if ( timeout == tail )
+				tail = timeout.prev;
+
+			timeout.prev = timeout.next = null;
+			timeout.slot = null;
+			return next;
+		}
+	}
+
+	/**
+	 * @param tick how far apart the wheel is checked, and so how late a timeout can be
+	 * @param slots in the wheel, rounded up to a power of two, a wheel turn being slots ticks
+	 */
+	public TimingWheel(Duration tick, int slots) {
+		if ( tick.toMillis() < 1 || slots < 1 || slots > 1 << 20 )
+			throw new IllegalArgumentException("Timing wheel needs a tick of at least 1ms and 1 to 2^20 slots");
+
+		tickNanos = tick.toNanos();
+
+		int size = Integer.highestOneBit(slots);
+		if ( size < slots )
+			size <<= 1;
+
+		wheel = new Slot[size];
+		for ( int i = 0; i < size; i++ )
+			wheel[i] = new Slot();
+		mask = size - 1;
+
+		var timer = new Thread(this::run, "proxit-timer");
+		timer.setDaemon(true);
+		timer.start();
+	}
+
+	/**
+	 * Runs task once delay has passed, unless cancelled first
+	 */
+	public Timeout schedule(Duration delay, Runnable task) {
+		return schedule(delay.toNanos(), task);
+	}
+
+	public Timeout schedule(long delayNanos, Runnable task) {
+		var timeout = new Timeout(System.nanoTime() - startTime + Math.max(0, delayNanos), task);
+		pending.incrementAndGet();
+		scheduled.increment();
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * @return timeouts scheduled and neither run nor cancelled
+	 */
+	public int pending() {
+		return pending.get();
+	}
+
+	public long scheduled() {
+		return scheduled.sum();
+	}
+
+	public long expired() {
+		return expired.sum();
+	}
+
+	private void run() {
+		while ( true ) {
+			long sleep = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+			if ( sleep > 0 ) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			removeCancelled();
+			addScheduled();
+			expire(wheel[(int) (tick & mask)], tick * tickNanos + tickNanos);
+			tick++;
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ( (timeout = cancelled.poll()) != null ) {
+			if ( timeout.slot != null )
+				timeout.slot.remove(timeout);
+		}
+	}
+
+	private void addScheduled() {
+		for ( int i = 0; i < MAX_ADDS_PER_TICK; i++ ) {
+			var timeout = added.poll();
+			if ( timeout == null )
+				return;
+
+			if ( timeout.state.get() != PENDING )
+				continue;
+
+			// the tick it's due in, or this one if that's already gone
+			long due = Math.max(timeout.deadline / tickNanos, tick);
+			timeout.rounds = (due - tick) / wheel.length;
+			wheel[(int) (due & mask)].add(timeout);
+		}
+	}
+
+	private void expire(Slot slot, long now) {
+		var timeout = slot.head;
+		while ( timeout != null ) {
+			if ( timeout.state.get() != PENDING )
+				timeout = slot.remove(timeout);
+
+			else if ( timeout.rounds <= 0 && timeout.deadline < now ) {
+				var next = slot.remove(timeout);
+				timeout.expire();
+				timeout = next;
+
+			} else {
+				timeout.rounds--;
+				timeout = timeout.next;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package xyz.arwhite.net.proxit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free token bucket, limiting a flow of bytes to a rate with an allowed burst.
+ *
+ * Rather than counting tokens and refilling them on a timer the bucket keeps a single
+ * timestamp, the time at which everything consumed so far will have been paid for at the
+ * configured rate (the generic cell rate algorithm). Consuming is one compare and set on
+ * that timestamp, so many threads can share a bucket without locking.
+ *
+ * Consuming never fails. The bytes are always accounted for, and the caller is told how
+ * long to hold off before sending them to stay within the rate.
+ *
+ * @author Alan R. White
+ *
+ */
+public class TokenBucket {
+
+	private final long rate;
+	private final long burst;
+	private final double nanosPerByte;
+	private final long burstNanos;
+
+	/*
+	 * When everything consumed so far will have been paid for. The bucket is full while
+	 * this is at least burstNanos in the past and empty when it reaches now.
+	 */
+	private final AtomicLong paidUntil;
+
+	/**
+	 * @param rate bytes per second
+	 * @param burst bytes that may be sent at once after a quiet spell
+	 */
+	public TokenBucket(long rate, long burst) {
+		if ( rate < 1 || burst < 1 )
+			throw new IllegalArgumentException("Token bucket rate and burst must be positive");
+
+		this.rate = rate;
+		this.burst = burst;
+		this.nanosPerByte = 1e9 / rate;
+		this.burstNanos = (long) (burst * nanosPerByte);
+		this.paidUntil = new AtomicLong(System.nanoTime() - burstNanos);
+	}
+
+	/**
+	 * Accounts for bytes about to be sent
+	 *
+	 * @param bytes number of bytes
+	 * @return nanoseconds the caller should wait before sending them, 0 if none
+	 */
+	public long consume(int bytes) {
+		long cost = (long) (bytes * nanosPerByte);
+
+		while ( true ) {
+			long now = System.nanoTime();
+			long current = paidUntil.get();
+
+			// credit for idle time never exceeds the burst
+			long next = Math.max(current, now - burstNanos) + cost;
+			if ( paidUntil.compareAndSet(current, next) )
+				return Math.max(0, next - now);
+		}
+	}
+
+	/**
+	 * Accounts for bytes only if they can be sent straight away
+	 *
+	 * @param bytes number of bytes
+	 * @return true if the bytes were accounted for and can be sent now
+	 */
+	public boolean tryConsume(int bytes) {
+		long cost = (long) (bytes * nanosPerByte);
+
+		while ( true ) {
+			long now = System.nanoTime();
+			long current = paidUntil.get();
+
+			long next = Math.max(current, now - burstNanos) + cost;
+			if ( next - now > 0 )
+				return false;
+			if ( paidUntil.compareAndSet(current, next) )
+				return true;
+		}
+	}
+
+	/**
+	 * @return true if the bucket hasn't been used for long enough to be full again
+	 */
+	public boolean isIdle() {
+		return paidUntil.get() - (System.nanoTime() - burstNanos) <= 0;
+	}
+
+	public long rate() {
+		return rate;
+	}
+
+	public long burst() {
+		return burst;
+	}
+
+}
@@ -0,0 +1,124 @@
+package xyz.arwhite.net.proxit;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder events for the life of a tunnel, so a recording of a slow tunnel can be
+ * lined up against what the jvm was doing at the time, GC pauses, safepoints, virtual
+ * threads pinned to their carriers and so on.
+ *
+ * None of these take a stack trace, and when they aren't enabled in the recording
+ * settings committing one is a field check. proxit.jfc has settings for them all, to be
+ * layered over one of the JDK's own, eg
+ *
+ * -XX:StartFlightRecording:settings=default,settings=proxit.jfc
+ *
+ * @author Alan R. White
+ *
+ */
+class TunnelEvents {
+
+	/*
+	 * Relay chunks are only recorded one in this many, a busy tunnel moves thousands a
+	 * second
+	 */
+	static final int CHUNK_SAMPLE = 64;
+
+	@Name("xyz.arwhite.proxit.TunnelOpen")
+	@Label("Tunnel Open")
+	@Category({ "Proxit", "Tunnel" })
+	@Description("Handshake from accepting the connection to answering the CONNECT")
+	@StackTrace(false)
+	static final class TunnelOpen extends Event {
+		@Label("Target")
+		String target;
+
+		@Label("Subject")
+		String subject;
+
+		@Label("Status")
+		@Description("HTTP status the CONNECT was answered with")
+		int status;
+	}
+
+	@Name("xyz.arwhite.proxit.AuthDecision")
+	@Label("Auth Decision")
+	@Category({ "Proxit", "Tunnel" })
+	@Description("Checking the credentials on a CONNECT")
+	@StackTrace(false)
+	static final class AuthDecision extends Event {
+		@Label("Subject")
+		String subject;
+
+		@Label("Scheme")
+		String scheme;
+
+		@Label("Authorized")
+		boolean authorized;
+	}
+
+	@Name("xyz.arwhite.proxit.TargetConnect")
+	@Label("Target Connect")
+	@Category({ "Proxit", "Tunnel" })
+	@Description("Resolving and connecting to the target")
+	@StackTrace(false)
+	static final class TargetConnect extends Event {
+		@Label("Target")
+		String target;
+
+		@Label("Connected")
+		boolean connected;
+
+		@Label("Timed Out")
+		boolean timedOut;
+	}
+
+	@Name("xyz.arwhite.proxit.RelayChunk")
+	@Label("Relay Chunk")
+	@Category({ "Proxit", "Relay" })
+	@Description("Writing one chunk of a tunnel's bytes, sampled")
+	@StackTrace(false)
+	static final class RelayChunk extends Event {
+		@Label("Direction")
+		@Description("upstream from client to target, downstream back")
+		String direction;
+
+		@Label("Bytes")
+		@DataAmount
+		int bytes;
+
+		@Label("Sample Interval")
+		@Description("Chunks relayed for each one recorded")
+		int sampleInterval;
+	}
+
+	@Name("xyz.arwhite.proxit.TunnelClose")
+	@Label("Tunnel Close")
+	@Category({ "Proxit", "Tunnel" })
+	@Description("Life of an open tunnel, from answering the CONNECT to closing both sides")
+	@StackTrace(false)
+	static final class TunnelClose extends Event {
+		@Label("Target")
+		String target;
+
+		@Label("Subject")
+		String subject;
+
+		@Label("Bytes In")
+		@Description("Bytes from the client to the target")
+		@DataAmount
+		long bytesIn;
+
+		@Label("Bytes Out")
+		@Description("Bytes from the target to the client")
+		@DataAmount
+		long bytesOut;
+	}
+
+}
@@ -0,0 +1,402 @@
+package xyz.arwhite.net.proxit;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Routes chosen destinations through parent HTTP proxies rather than connecting to them
+ * directly, for proxit nodes that have to egress through a corporate proxy.
+ *
+ * {
+ *   "upstreams": [
+ *     { "name": "internal", "proxy": "DIRECT", "hosts": [ ".corp.example" ], "cidrs": [ "10.0.0.0/8" ] },
+ *     { "name": "corp", "proxy": "proxy.corp.example:3128", "user": "proxit",
+ *       "passwordEnv": "CORP_PROXY_PASSWORD", "hosts": [ "*" ], "spares": 4 }
+ *   ]
+ * }
+ *
+ * A target goes the way of the first route its host or address matches, DIRECT meaning
+ * connect as usual, and targets no route matches are connected to directly too. Routes
+ * are matched with a TargetMatcher, so choosing one doesn't depend on how many there are.
+ *
+ * The upstream hop is kept as close to free as it can be. Each parent has a few spare
+ * connections opened ahead of time, so the TCP handshake to it is already done. Its
+ * credentials are encoded once, so the CONNECT goes with them the first time rather than
+ * after a 407, and it goes in a single write with Nagle off. What's left is the parent's
+ * reply, which is mostly the parent connecting to the target, the same connect proxit
+ * would otherwise have made.
+ *
+ * @author Alan R. White
+ *
+ */
+public class Upstreams {
+
+	public static final String DIRECT = "DIRECT";
+
+	private static final ObjectMapper json = new ObjectMapper();
+
+	// most a parent's reply to a CONNECT can be
+	private static final int MAX_RESPONSE_HEAD = 8192;
+
+	private static final Duration DEFAULT_SPARE_AGE = Duration.ofSeconds(30);
+
+	/**
+	 * The target's socket, through the parent, and anything the target sent that came
+	 * in with the parent's reply
+	 */
+	public record Connected(Socket socket, byte[] early) {}
+
+	/**
+	 * The parent answered the CONNECT with something other than a 200
+	 */
+	public static class RefusedException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final int status;
+
+		RefusedException(String upstream, int status) {
+			super("Upstream "+upstream+" refused CONNECT with "+status);
+			this.status = status;
+		}
+
+		public int status() {
+			return status;
+		}
+	}
+
+	/*
+	 * A spare connection went stale while it waited, the parent closed it
+	 */
+	private static class StaleException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private record Spare(Socket socket, long openedAt) {}
+
+	private final TargetMatcher targets = new TargetMatcher();
+	private final List<Upstream> upstreams = new ArrayList<>();
+
+	// the route for each matcher bit, null for DIRECT
+	private final Upstream[] routes;
+
+	private final Connector connector;
+	private final Connector.SocketFactory sockets;
+	private final int timeoutMillis;
+
+	/**
+	 * @param config the routes, see above
+	 * @param connector to connect to parents with
+	 * @param sockets to make the sockets with, so they suit the relay engine
+	 * @param timeout longest a parent has to answer a CONNECT
+	 */
+	public Upstreams(JsonNode config, Connector connector, Connector.SocketFactory sockets, Duration timeout) {
+		this.connector = connector;
+		this.sockets = sockets;
+		this.timeoutMillis = (int) timeout.toMillis();
+
+		var routes = config.path("upstreams");
+		if ( !routes.isArray() )
+			throw new IllegalArgumentException("Upstreams need an upstreams array");
+		if ( routes.size() > 64 )
+			throw new IllegalArgumentException("At most 64 upstream routes, not "+routes.size());
+
+		this.routes = new Upstream[routes.size()];
+
+		for ( int i = 0; i < routes.size(); i++ ) {
+			var route = routes.get(i);
+			var name = route.path("name").asText("route "+(i + 1));
+			long bit = 1L << i;
+
+			var proxy = route.path("proxy").asText("");
+			if ( !DIRECT.equals(proxy) ) {
+				this.routes[i] = new Upstream(name, proxy, route);
+				upstreams.add(this.routes[i]);
+			}
+
+			boolean reaches = false;
+			for ( var host : TargetMatcher.strings(route, "hosts", name) ) {
+				targets.addHost(host, bit, name);
+				reaches = true;
+			}
+			for ( var cidr : TargetMatcher.strings(route, "cidrs", name) ) {
+				targets.addCidr(cidr, bit, name);
+				reaches = true;
+			}
+
+			if ( !reaches )
+				throw new IllegalArgumentException(name+" has no hosts or cidrs");
+		}
+
+		for ( var upstream : upstreams )
+			upstream.refill();
+	}
+
+	public static Upstreams load(Path file, Connector connector, Connector.SocketFactory sockets,
+			Duration timeout) throws IOException {
+		return new Upstreams(json.readTree(Files.readAllBytes(file)), connector, sockets, timeout);
+	}
+
+	/**
+	 * @param target host:port from the CONNECT
+	 * @return the parent to go through, null to connect directly
+	 */
+	public Upstream route(String target) {
+		int colon = target.lastIndexOf(':');
+		if ( colon <= 0 )
+			return null;
+
+		long matched = targets.match(target, colon);
+		return matched == 0 ? null : routes[Long.numberOfTrailingZeros(matched)];
+	}
+
+	public List<Upstream> upstreams() {
+		return upstreams;
+	}
+
+	/**
+	 * One parent proxy
+	 */
+	public final class Upstream {
+		private final String name;
+		private final String host;
+		private final int port;
+
+		// Proxy-Authorization header line, encoded once
+		private final byte[] authorization;
+
+		private final int spares;
+		private final long spareAgeNanos;
+		private final ConcurrentLinkedDeque<Spare> pool = new ConcurrentLinkedDeque<>();
+		private final AtomicBoolean refilling = new AtomicBoolean();
+
+		private final LongAdder connects = new LongAdder();
+		private final LongAdder sparesUsed = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+
+		private Upstream(String name, String proxy, JsonNode route) {
+			this.name = name;
+
+			int colon = proxy.lastIndexOf(':');
+			int port = colon > 0 ? TargetMatcher.port(proxy, colon + 1, proxy.length()) : -1;
+			if ( port <= 0 )
+				throw new IllegalArgumentException(name+" needs a proxy of host:port or "+DIRECT+", not "+proxy);
+			this.host = proxy.startsWith("[") ? proxy.substring(1, colon - 1) : proxy.substring(0, colon);
+			this.port = port;
+
+			var user = route.path("user").asText(null);
+			var password = route.has("passwordEnv")
+					? System.getenv(route.get("passwordEnv").asText())
+					: route.path("password").asText(null);
+			if ( user != null && password == null )
+				throw new IllegalArgumentException(name+" has a user but no password");
+
+			authorization = user == null ? new byte[0] : ("Proxy-Authorization: Basic "
+					+ Base64.getEncoder().encodeToString((user+":"+password).getBytes(StandardCharsets.UTF_8))
+					+ "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+			this.spares = route.path("spares").asInt(2);
+			this.spareAgeNanos = route.has("spareAge")
+					? Duration.ofSeconds(route.get("spareAge").asLong()).toNanos()
+					: DEFAULT_SPARE_AGE.toNanos();
+			if ( spares < 0 || spareAgeNanos <= 0 )
+				throw new IllegalArgumentException(name+" needs spares of 0 or more and a spareAge of over 0");
+		}
+
+		public String name() {
+			return name;
+		}
+
+		public long connects() {
+			return connects.sum();
+		}
+
+		public long sparesUsed() {
+			return sparesUsed.sum();
+		}
+
+		public long failures() {
+			return failures.sum();
+		}
+
+		/**
+		 * @return spare connections waiting right now
+		 */
+		public int spares() {
+			return pool.size();
+		}
+
+		/**
+		 * Opens a tunnel to the target through the parent
+		 *
+		 * @param target host:port from the CONNECT
+		 * @throws RefusedException if the parent wouldn't connect to the target
+		 * @throws IOException if the parent couldn't be reached or didn't answer in time
+		 */
+		public Connected connect(String target) throws IOException {
+			connects.increment();
+			var request = request(target);
+
+			try {
+				// a spare may have been closed by the parent as it sat, if so there's no harm in another
+				Spare spare;
+				while ( (spare = takeSpare()) != null ) {
+					try {
+						var connected = handshake(spare.socket(), request, true);
+						sparesUsed.increment();
+						return connected;
+					} catch (StaleException e) {
+						closeQuietly(spare.socket());
+					}
+				}
+
+				return handshake(connector.connect(host, port, sockets), request, false);
+
+			} catch (IOException e) {
+				failures.increment();
+				throw e;
+			} finally {
+				refill();
+			}
+		}
+
+		private byte[] request(String target) {
+			var head = ("CONNECT "+target+" HTTP/1.1\r\nHost: "+target+"\r\n").getBytes(StandardCharsets.US_ASCII);
+			var request = Arrays.copyOf(head, head.length + authorization.length + 2);
+			System.arraycopy(authorization, 0, request, head.length, authorization.length);
+			request[request.length - 2] = '\r';
+			request[request.length - 1] = '\n';
+			return request;
+		}
+
+		private Connected handshake(Socket socket, byte[] request, boolean spare) throws IOException {
+			var response = new byte[1024];
+			int read = 0;
+
+			try {
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(timeoutMillis);
+				socket.getOutputStream().write(request);
+
+				var in = socket.getInputStream();
+				int end;
+				while ( (end = endOfHead(response, read)) < 0 ) {
+					if ( read == response.length ) {
+						if ( read == MAX_RESPONSE_HEAD )
+							throw new IOException("Upstream "+name+" CONNECT response too long");
+						response = Arrays.copyOf(response, response.length * 2);
+					}
+
+					int n = in.read(response, read, response.length - read);
+					if ( n < 0 )
+						throw new IOException("Upstream "+name+" closed before answering CONNECT");
+					read += n;
+				}
+
+				int status = status(response, end);
+				if ( status != 200 )
+					throw new RefusedException(name, status);
+
+				socket.setSoTimeout(0);
+				return new Connected(socket, end < read ? Arrays.copyOfRange(response, end, read) : null);
+
+			} catch (SocketTimeoutException | RefusedException e) {
+				closeQuietly(socket);
+				throw e;
+			} catch (IOException e) {
+				closeQuietly(socket);
+				if ( spare && read == 0 )
+					throw new StaleException();
+				throw e;
+			}
+		}
+
+		private Spare takeSpare() {
+			long now = System.nanoTime();
+			Spare spare;
+			while ( (spare = pool.pollLast()) != null ) {
+				if ( now - spare.openedAt() < spareAgeNanos && !spare.socket().isClosed() )
+					return spare;
+				closeQuietly(spare.socket());
+			}
+			return null;
+		}
+
+		/*
+		 * Tops the spares back up in the background, dropping any that have waited too
+		 * long, newest being taken first so the oldest are at the front
+		 */
+		private void refill() {
+			if ( spares == 0 || !refilling.compareAndSet(false, true) )
+				return;
+
+			Thread.ofVirtual().name("proxit-upstream-"+name).start(() -> {
+				try {
+					long now = System.nanoTime();
+					Spare oldest;
+					while ( (oldest = pool.peekFirst()) != null && now - oldest.openedAt() >= spareAgeNanos ) {
+						if ( pool.remove(oldest) )
+							closeQuietly(oldest.socket());
+					}
+
+					while ( pool.size() < spares ) {
+						var socket = connector.connect(host, port, sockets);
+						pool.addLast(new Spare(socket, System.nanoTime()));
+					}
+				} catch (IOException e) {
+					System.out.println("Unable to open spare connections to upstream "+name+", "+e.getMessage());
+				} finally {
+					refilling.set(false);
+				}
+			});
+		}
+	}
+
+	/*
+	 * Index just past the blank line ending the response head, or -1 if not there yet
+	 */
+	static int endOfHead(byte[] bytes, int length) {
+		for ( int i = 3; i < length; i++ ) {
+			if ( bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r' )
+				return i + 1;
+		}
+		return -1;
+	}
+
+	/*
+	 * Status from HTTP/1.x SSS ..., 0 if it isn't a status line
+	 */
+	static int status(byte[] head, int length) {
+		if ( length < 12 || head[0] != 'H' || head[1] != 'T' || head[2] != 'T' || head[3] != 'P' || head[4] != '/'
+				|| head[8] != ' ' )
+			return 0;
+
+		int status = 0;
+		for ( int i = 9; i < 12; i++ ) {
+			if ( head[i] < '0' || head[i] > '9' )
+				return 0;
+			status = status * 10 + (head[i] - '0');
+		}
+		return status;
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {}
+	}
+
+}
@@ -0,0 +1,298 @@
+package xyz.arwhite.net.proxit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Window TinyLFU, deciding which entries a size bounded cache keeps. New entries go into
+ * a small LRU window, and when it overflows the entry it pushes out has to beat the main
+ * space's next victim on how often its key has been asked for to get in, so one-off
+ * requests, a scan through a build's dependencies say, can't flush what's asked for all
+ * day. The main space is a segmented LRU, entries hit again there moving from probation
+ * to a protected segment taking most of it.
+ *
+ * How often keys are asked for, cached or not, is kept approximately in a count-min
+ * sketch of 4 bit counters, all halved every so often so popularity fades.
+ *
+ * Entries are weighed, in bytes for the response cache, and the window and segments are
+ * bounded by weight. It isn't thread safe, callers hold a lock around it.
+ *
+ * @author Alan R. White
+ *
+ */
+final class WTinyLfu<K> {
+
+	private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+	private final long maximum;
+	private final long windowMaximum;
+	private final long protectedMaximum;
+	private final HashMap<K,Node<K>> nodes = new HashMap<>();
+	private final Queue<K> window = new Queue<>(), probation = new Queue<>(), protect = new Queue<>();
+	private final FrequencySketch sketch;
+	private long windowWeight, mainWeight, protectedWeight;
+
+	/**
+	 * @param maximum total weight of the entries kept
+	 * @param expectedEntries roughly how many entries that is, to size the sketch
+	 */
+	WTinyLfu(long maximum, int expectedEntries) {
+		this.maximum = maximum;
+		this.windowMaximum = Math.max(1, maximum / 100);
+		this.protectedMaximum = (maximum - windowMaximum) * 8 / 10;
+		this.sketch = new FrequencySketch(expectedEntries);
+	}
+
+	/**
+	 * Counts a request for the key, whether it's kept or not
+	 */
+	void record(int hash) {
+		sketch.increment(hash);
+	}
+
+	int frequency(int hash) {
+		return sketch.frequency(hash);
+	}
+
+	/**
+	 * Takes on a new entry, replacing any with the same key
+	 *
+	 * @return entries no longer kept to make room, which can include the new one
+	 */
+	List<K> add(K key, int hash, long weight) {
+		remove(key);
+
+		var evicted = new ArrayList<K>();
+		if ( weight > maximum ) {
+			evicted.add(key);
+			return evicted;
+		}
+
+		var node = new Node<>(key, hash, weight);
+		nodes.put(key, node);
+		window.add(node);
+		windowWeight += weight;
+
+		while ( windowWeight > windowMaximum )
+			admit(window.first(), evicted);
+
+		return evicted;
+	}
+
+	/*
+	 * Moves the candidate out of the window into probation, then while main is over its
+	 * weight the candidate and main's victims are compared, the less asked for going
+	 */
+	private void admit(Node<K> candidate, List<K> evicted) {
+		window.remove(candidate);
+		windowWeight -= candidate.weight;
+		candidate.queue = PROBATION;
+		probation.add(candidate);
+		mainWeight += candidate.weight;
+
+		while ( mainWeight > maximum - windowMaximum ) {
+			var victim = probation.first() != candidate ? probation.first() : protect.first();
+			if ( victim == null || sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash) ) {
+				evict(candidate, evicted);
+				return;
+			}
+			evict(victim, evicted);
+		}
+	}
+
+	private void evict(Node<K> node, List<K> evicted) {
+		unlink(node);
+		nodes.remove(node.key);
+		evicted.add(node.key);
+	}
+
+	/**
+	 * The entry has been read, moving it to the front of its segment, out of probation
+	 * into protected, which sends protected's oldest back to probation if it's full
+	 */
+	void hit(K key) {
+		var node = nodes.get(key);
+		if ( node == null )
+			return;
+
+		switch( node.queue ) {
+		case WINDOW -> window.moveToEnd(node);
+		case PROTECTED -> protect.moveToEnd(node);
+		default -> {
+			probation.remove(node);
+			node.queue = PROTECTED;
+			protect.add(node);
+			protectedWeight += node.weight;
+
+			while ( protectedWeight > protectedMaximum ) {
+				var demoted = protect.first();
+				protect.remove(demoted);
+				protectedWeight -= demoted.weight;
+				demoted.queue = PROBATION;
+				probation.add(demoted);
+			}
+		}
+		}
+	}
+
+	/**
+	 * @return true if the entry was kept
+	 */
+	boolean remove(K key) {
+		var node = nodes.remove(key);
+		if ( node == null )
+			return false;
+
+		unlink(node);
+		return true;
+	}
+
+	boolean contains(K key) {
+		return nodes.containsKey(key);
+	}
+
+	/**
+	 * @return weight of the entries kept
+	 */
+	long weight() {
+		return windowWeight + mainWeight;
+	}
+
+	int size() {
+		return nodes.size();
+	}
+
+	private void unlink(Node<K> node) {
+		switch( node.queue ) {
+		case WINDOW -> {
+			window.remove(node);
+			windowWeight -= node.weight;
+		}
+		case PROBATION -> {
+			probation.remove(node);
+			mainWeight -= node.weight;
+		}
+		default -> {
+			protect.remove(node);
+			mainWeight -= node.weight;
+			protectedWeight -= node.weight;
+		}
+		}
+	}
+
+	private static final class Node<K> {
+		private final K key;
+		private final int hash;
+		private final long weight;
+		private int queue = WINDOW;
+		private Node<K> previous, next;
+
+		private Node(K key, int hash, long weight) {
+			this.key = key;
+			this.hash = hash;
+			this.weight = weight;
+		}
+	}
+
+	/*
+	 * Doubly linked LRU order, oldest first
+	 */
+	private static final class Queue<K> {
+		private Node<K> head, tail;
+
+		Node<K> first() {
+			return head;
+		}
+
+		void add(Node<K> node) {
+			node.previous = tail;
+			node.next = null;
+			if ( tail == null )
+				head = node;
+			else
+				tail.next = node;
+			tail = node;
+		}
+
+		void remove(Node<K> node) {
+			if ( node.previous == null )
+				head = node.next;
+			else
+				node.previous.next = node.next;
+
+			if ( node.next == null )
+				tail = node.previous;
+			else
+				node.next.previous = node.previous;
+
+			node.previous = node.next = null;
+		}
+
+		void moveToEnd(Node<K> node) {
+			if ( node != tail ) {
+				remove(node);
+				add(node);
+			}
+		}
+	}
+
+	/**
+	 * Four rows of 4 bit counters, sixteen to a long, a key's count being the least of its
+	 * counter in each row. Once ten times as many increments as there are longs have been
+	 * made every counter is halved.
+	 */
+	static final class FrequencySketch {
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+				0xcbf29ce484222325L };
+		private static final long HALVES = 0x7777777777777777L;
+
+		private final long[] table;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int expectedEntries) {
+			int length = Integer.highestOneBit(Math.max(64, Math.min(expectedEntries, 1 << 24)) - 1) << 1;
+			table = new long[length];
+			sampleSize = 10 * length;
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for ( int row = 0; row < SEEDS.length; row++ ) {
+				long slot = slot(hash, row);
+				int index = (int) slot & (table.length - 1);
+				int shift = (int) (slot >>> 60) << 2;
+				if ( ((table[index] >>> shift) & 15) < 15 ) {
+					table[index] += 1L << shift;
+					added = true;
+				}
+			}
+
+			if ( added && ++additions >= sampleSize )
+				reset();
+		}
+
+		int frequency(int hash) {
+			int frequency = 15;
+			for ( int row = 0; row < SEEDS.length; row++ ) {
+				long slot = slot(hash, row);
+				int shift = (int) (slot >>> 60) << 2;
+				frequency = Math.min(frequency, (int) (table[(int) slot & (table.length - 1)] >>> shift) & 15);
+			}
+			return frequency;
+		}
+
+		private static long slot(int hash, int row) {
+			long h = (hash + SEEDS[row]) * SEEDS[row];
+			return h ^ (h >>> 29);
+		}
+
+		private void reset() {
+			for ( int i = 0; i < table.length; i++ )
+				table[i] = (table[i] >>> 1) & HALVES;
+			additions /= 2;
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package xyz.arwhite.net.auth;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AuthSnapshotTest {
+
+	private static final URI AUTH_SERVER = URI.create("https://auth.example.com/realms/proxit");
+	private static final String DISCOVERY = "{\"issuer\":\"https://auth.example.com/realms/proxit\"}";
+	private static final String JWKS = "{\"keys\":[]}";
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void roundTrip() throws Exception {
+		var snapshot = new AuthSnapshot(dir.resolve("auth.json"), Duration.ofHours(1), Optional.of("secret"));
+		assertTrue(snapshot.load(AUTH_SERVER).isEmpty());
+
+		snapshot.save(AUTH_SERVER, DISCOVERY, JWKS);
+
+		var loaded = snapshot.load(AUTH_SERVER).orElseThrow();
+		assertEquals(DISCOVERY, loaded.discovery());
+		assertEquals(JWKS, loaded.jwks());
+		assertEquals(OpenIDConfiguration.fromJson(loaded.discovery()).issuer, AUTH_SERVER.toString());
+	}
+
+	@Test
+	void tamperingIsDetected() throws Exception {
+		var file = dir.resolve("auth.json");
+		var snapshot = new AuthSnapshot(file, Duration.ofHours(1), Optional.empty());
+		snapshot.save(AUTH_SERVER, DISCOVERY, JWKS);
+		assertTrue(snapshot.load(AUTH_SERVER).isPresent());
+
+		Files.writeString(file, Files.readString(file).replace("keys", "yeks"));
+		assertTrue(snapshot.load(AUTH_SERVER).isEmpty());
+	}
+
+	@Test
+	void keyMustMatch() throws Exception {
+		var file = dir.resolve("auth.json");
+		new AuthSnapshot(file, Duration.ofHours(1), Optional.of("secret")).save(AUTH_SERVER, DISCOVERY, JWKS);
+
+		assertTrue(new AuthSnapshot(file, Duration.ofHours(1), Optional.of("guess")).load(AUTH_SERVER).isEmpty());
+		assertTrue(new AuthSnapshot(file, Duration.ofHours(1), Optional.empty()).load(AUTH_SERVER).isEmpty());
+	}
+
+	@Test
+	void staleOrForeignSnapshotsAreIgnored() throws Exception {
+		var file = dir.resolve("auth.json");
+		new AuthSnapshot(file, Duration.ofHours(1), Optional.empty()).save(AUTH_SERVER, DISCOVERY, JWKS);
+
+		assertTrue(new AuthSnapshot(file, Duration.ZERO.minusSeconds(1), Optional.empty()).load(AUTH_SERVER).isEmpty());
+		assertTrue(new AuthSnapshot(file, Duration.ofHours(1), Optional.empty())
+				.load(URI.create("https://elsewhere.example.com")).isEmpty());
+	}
+
+}
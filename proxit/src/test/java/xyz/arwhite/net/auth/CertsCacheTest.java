@@ -2,7 +2,11 @@ package xyz.arwhite.net.auth;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -14,6 +18,7 @@ class CertsCacheTest {
 
 	private static CertsCache cache = new CertsCache();
 	private static OpenIDConnectCerts refreshList = new OpenIDConnectCerts();
+	private static Verifier ver;
 	
 	@BeforeAll
 	static void setUpBeforeClass() throws Exception {
@@ -27,7 +32,7 @@ class CertsCacheTest {
 				+ "mC4rBXi39bgqi3q1oXvxlVCBFpY+O2F+sCK4pvooo35R9e92i0qZaKRP/Dl6LaJs\n"
 				+ "YwIDAQAB\n"
 				+ "-----END PUBLIC KEY-----";
-		Verifier ver = RSAVerifier.newVerifier(pub);
+		ver = RSAVerifier.newVerifier(pub);
 		
 		/*
 		 * Set cache to have 2 entries beforehand e1 & e2
@@ -69,4 +74,78 @@ class CertsCacheTest {
 		
 	}
 
+	@Test
+	void missFetchesOnceForConcurrentCallers() throws Exception {
+		var missCache = new CertsCache();
+		var fetches = new AtomicInteger();
+
+		missCache.fetchOnMiss(() -> {
+			fetches.incrementAndGet();
+			Thread.sleep(200);
+			return refreshList;
+		}, Duration.ofMinutes(1), Duration.ofSeconds(5));
+
+		var found = new AtomicInteger();
+		try (var exec = Executors.newFixedThreadPool(8)) {
+			for ( int i = 0; i < 8; i++ )
+				exec.execute(() -> {
+					if ( missCache.verifierFor("e3") != null )
+						found.incrementAndGet();
+				});
+			exec.shutdown();
+			assertTrue(exec.awaitTermination(10, TimeUnit.SECONDS));
+		}
+
+		assertEquals(1, fetches.get());
+		assertEquals(8, found.get());
+	}
+
+	@Test
+	void missFetchesAreRateLimited() {
+		var missCache = new CertsCache();
+		var fetches = new AtomicInteger();
+
+		missCache.fetchOnMiss(() -> {
+			fetches.incrementAndGet();
+			return refreshList;
+		}, Duration.ofMinutes(1), Duration.ofSeconds(5));
+
+		assertNull(missCache.verifierFor("forged-1"));
+		assertNull(missCache.verifierFor("forged-2"));
+		assertNotNull(missCache.verifierFor("e2"));
+
+		assertEquals(1, fetches.get());
+	}
+
+	@Test
+	void knownKidDoesNotFetch() {
+		var missCache = new CertsCache();
+		missCache.put("e1", ver);
+		missCache.fetchOnMiss(() -> { throw new IllegalStateException("should not fetch"); },
+				Duration.ofMinutes(1), Duration.ofSeconds(5));
+
+		assertNotNull(missCache.verifierFor("e1"));
+	}
+
+	@Test
+	void refreshSwapsVersionedSnapshots() {
+		var versioned = new CertsCache();
+		versioned.put("e1", ver);
+		var before = versioned.snapshot();
+
+		CertsCache.refresh(versioned, refreshList);
+		var after = versioned.snapshot();
+
+		assertTrue(after.version() > before.version());
+		assertEquals(1, before.verifiers().size());
+		assertEquals(2, after.verifiers().size());
+		assertThrows(UnsupportedOperationException.class, () -> after.verifiers().remove("e2"));
+
+		// refreshing with the same keys again leaves them, and the version, alone
+		CertsCache.refresh(versioned, refreshList);
+		assertSame(after, versioned.snapshot());
+		assertNotNull(versioned.get("e2"));
+		assertNotNull(versioned.get("e3"));
+	}
+
 }
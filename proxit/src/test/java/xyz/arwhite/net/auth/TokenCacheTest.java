@@ -0,0 +1,108 @@
+package xyz.arwhite.net.auth;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import io.fusionauth.jwt.JWTException;
+import io.fusionauth.jwt.JWTUtils;
+import io.fusionauth.jwt.Signer;
+import io.fusionauth.jwt.domain.JWT;
+import io.fusionauth.jwt.rsa.RSASigner;
+import io.fusionauth.jwt.rsa.RSAVerifier;
+
+class TokenCacheTest {
+
+	private static Signer signer;
+	private static RSAVerifier verifier;
+
+	@BeforeAll
+	static void setUpBeforeClass() throws Exception {
+		var keyPair = JWTUtils.generate2048_RSAKeyPair();
+		signer = RSASigner.newSHA256Signer(keyPair.privateKey, "k1");
+		verifier = RSAVerifier.newVerifier(keyPair.publicKey);
+	}
+
+	private static String token(String subject, ZonedDateTime expiration) {
+		var jwt = new JWT().setSubject(subject).setExpiration(expiration);
+		return JWT.getEncoder().encode(jwt, signer);
+	}
+
+	private static ZonedDateTime inMinutes(int minutes) {
+		return ZonedDateTime.now(ZoneOffset.UTC).plusMinutes(minutes);
+	}
+
+	@Test
+	void repeatTokensHitTheCache() {
+		var certs = new CertsCache();
+		certs.put("k1", verifier);
+		var cache = new TokenCache(certs, 10, Duration.ofMinutes(5));
+
+		var token = token("fred", inMinutes(10));
+		var first = cache.verify(token);
+		var second = cache.verify(token);
+
+		assertEquals("fred", first.subject);
+		assertSame(first, second);
+		assertEquals(1, cache.stats().hits());
+		assertEquals(1, cache.stats().misses());
+	}
+
+	@Test
+	void droppedKeyInvalidatesEntries() {
+		var certs = new CertsCache();
+		certs.put("k1", verifier);
+		var cache = new TokenCache(certs, 10, Duration.ofMinutes(5));
+
+		var token = token("wilma", inMinutes(10));
+		cache.verify(token);
+
+		certs.remove("k1");
+		assertThrows(JWTException.class, () -> cache.verify(token));
+		assertEquals(0, cache.stats().hits());
+		assertEquals(0, cache.stats().size());
+	}
+
+	@Test
+	void expiredEntriesAreNotServed() throws InterruptedException {
+		var certs = new CertsCache();
+		certs.put("k1", verifier);
+		var cache = new TokenCache(certs, 10, Duration.ofMillis(50));
+
+		var token = token("barney", inMinutes(10));
+		cache.verify(token);
+		Thread.sleep(100);
+
+		cache.verify(token);
+		assertEquals(0, cache.stats().hits());
+		assertEquals(2, cache.stats().misses());
+		assertEquals(1, cache.stats().evictions());
+	}
+
+	@Test
+	void sizeIsCapped() {
+		var certs = new CertsCache();
+		certs.put("k1", verifier);
+		var cache = new TokenCache(certs, 10, Duration.ofMinutes(5));
+
+		var first = token("user0", inMinutes(10));
+		cache.verify(first);
+		for ( int i = 1; i <= 10; i++ ) {
+			cache.verify(token("user"+i, inMinutes(10)));
+			cache.verify(first); // keep the first one in use
+		}
+
+		assertEquals(9, cache.stats().size());
+		assertEquals(2, cache.stats().evictions());
+		cache.verify(first);
+		assertEquals(11, cache.stats().hits());
+	}
+
+}
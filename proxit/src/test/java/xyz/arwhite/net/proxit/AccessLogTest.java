@@ -0,0 +1,99 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AccessLogTest {
+
+	private static AccessLog.Entry entry(int n) {
+		return new AccessLog.Entry(1_700_000_000_000L + n, "/127.0.0.1:"+(40000 + n), "example.com:443",
+				"fred", 200, AccessLog.Reason.COMPLETED, 1000, 2000, 3000, 4000, 10000, 5_000_000, n, 2L * n);
+	}
+
+	private static ArrayList<AccessLog.Entry> readAll(Path dir) throws Exception {
+		var entries = new ArrayList<AccessLog.Entry>();
+		for ( var segment : AccessLog.segments(dir) )
+			entries.addAll(AccessLogReader.read(segment));
+		return entries;
+	}
+
+	@Test
+	void entriesRoundTrip(@TempDir Path dir) throws Exception {
+		var log = new AccessLog(dir, 1 << 20, 2);
+
+		var refused = new AccessLog.Entry(1_700_000_000_000L, "/10.0.0.1:1234", null, null, 407,
+				AccessLog.Reason.REFUSED, 500, 0, 0, 0, 0, 0, 0, 0);
+
+		assertTrue(log.log(entry(1)));
+		assertTrue(log.log(refused));
+		log.close();
+
+		var entries = readAll(dir);
+		assertEquals(2, entries.size());
+		assertEquals(entry(1), entries.get(0));
+		assertEquals(refused, entries.get(1));
+		assertNull(entries.get(1).target());
+
+		var json = AccessLogReader.json(entries.get(0));
+		assertTrue(json.contains("\"subject\":\"fred\""), json);
+		assertTrue(json.contains("\"bytes_out\":2"), json);
+		assertTrue(AccessLogReader.text(entries.get(1)).contains(" - - 407 REFUSED "));
+	}
+
+	@Test
+	void segmentsRollAndThePrunedAreOldest(@TempDir Path dir) throws Exception {
+		var log = new AccessLog(dir, 8192, 3);
+
+		// about 130 bytes a record, so 60 to an 8KB segment
+		for ( int i = 0; i < 1000; i++ ) {
+			while ( !log.log(entry(i)) )
+				Thread.sleep(1);
+		}
+		log.close();
+
+		assertEquals(3, AccessLog.segments(dir).size());
+
+		var entries = readAll(dir);
+		assertTrue(entries.size() > 100 && entries.size() < 200, "kept "+entries.size());
+
+		// what's left is the most recent, in order
+		assertEquals(entry(999), entries.get(entries.size() - 1));
+		for ( int i = 1; i < entries.size(); i++ )
+			assertEquals(entries.get(i - 1).bytesIn() + 1, entries.get(i).bytesIn());
+	}
+
+	@Test
+	void concurrentLoggersLoseNothingUnlessDropped(@TempDir Path dir) throws Exception {
+		var log = new AccessLog(dir, 64 << 20, 1);
+
+		var threads = new Thread[8];
+		for ( int t = 0; t < threads.length; t++ ) {
+			int base = t * 10000;
+			threads[t] = new Thread(() -> {
+				for ( int i = 0; i < 5000; i++ )
+					log.log(entry(base + i));
+			});
+			threads[t].start();
+		}
+		for ( var thread : threads )
+			thread.join();
+		log.close();
+
+		var entries = readAll(dir);
+		assertEquals(40000, entries.size() + log.dropped());
+		assertEquals(entries.size(), log.written());
+
+		var seen = new HashSet<Long>();
+		for ( var e : entries )
+			assertTrue(seen.add(e.bytesIn()), "duplicate "+e.bytesIn());
+	}
+
+}
@@ -0,0 +1,124 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+class BreakersTest {
+
+	private static final TimingWheel wheel = new TimingWheel(Duration.ofMillis(10), 64);
+
+	private static Breakers breakers(int failureRate, int window, Duration openFor, int maxConnects, int maxTunnels) {
+		return new Breakers(new Breakers.Config(failureRate, window, openFor, Duration.ofMillis(500),
+				maxConnects, maxTunnels), wheel);
+	}
+
+	@Test
+	void failuresOpenTheCircuit() {
+		var breakers = breakers(50, 10, Duration.ofSeconds(30), 0, 0);
+
+		// a few failures among successes isn't enough
+		for ( int i = 0; i < 6; i++ )
+			breakers.acquire("down.example.com:443").destination().connected(1_000_000);
+		for ( int i = 0; i < 4; i++ )
+			breakers.acquire("down.example.com:443").destination().failed(1_000_000);
+		assertEquals(Breakers.State.CLOSED, breakers.stats("down.example.com:443").state());
+
+		// the window slides, the successes dropping out as failures come in
+		breakers.acquire("down.example.com:443").destination().failed(1_000_000);
+		assertEquals(Breakers.State.OPEN, breakers.stats("DOWN.example.com:443").state());
+
+		assertSame(Breakers.CIRCUIT_OPEN, breakers.acquire("down.example.com:443"));
+		assertEquals(1, breakers.refusedOpen());
+		assertEquals(1, breakers.opened());
+		assertEquals(1, breakers.open());
+
+		// the rest of the world carries on
+		assertEquals(200, breakers.acquire("up.example.com:443").status());
+	}
+
+	@Test
+	void slowConnectsCountAsFailures() {
+		var breakers = breakers(50, 4, Duration.ofSeconds(30), 0, 0);
+
+		breakers.acquire("slow:443").destination().connected(Duration.ofSeconds(1).toNanos());
+		breakers.acquire("slow:443").destination().connected(Duration.ofSeconds(1).toNanos());
+		assertEquals(Breakers.State.OPEN, breakers.stats("slow:443").state());
+		assertEquals(2, breakers.stats("slow:443").tunnels());
+	}
+
+	@Test
+	void halfOpenProbesDecide() throws Exception {
+		var breakers = breakers(100, 2, Duration.ofMillis(100), 0, 0);
+
+		breakers.acquire("flaky:443").destination().failed(0);
+		assertSame(Breakers.CIRCUIT_OPEN, breakers.acquire("flaky:443"));
+
+		// after the open time a few probes are let through, a failure opens it again
+		Thread.sleep(150);
+		breakers.acquire("flaky:443").destination().failed(0);
+		assertEquals(Breakers.State.OPEN, breakers.stats("flaky:443").state());
+		assertSame(Breakers.CIRCUIT_OPEN, breakers.acquire("flaky:443"));
+
+		// and all of them succeeding closes it
+		Thread.sleep(150);
+		var probes = new Breakers.Permit[Breakers.HALF_OPEN_PROBES];
+		for ( int i = 0; i < probes.length; i++ )
+			probes[i] = breakers.acquire("flaky:443");
+		assertSame(Breakers.CIRCUIT_OPEN, breakers.acquire("flaky:443"), "only so many probes");
+		assertEquals(Breakers.State.HALF_OPEN, breakers.stats("flaky:443").state());
+
+		for ( var probe : probes )
+			probe.destination().connected(0);
+		assertEquals(Breakers.State.CLOSED, breakers.stats("flaky:443").state());
+		assertEquals(0, breakers.stats("flaky:443").outcomes());
+	}
+
+	@Test
+	void capsHoldConnectsAndTunnels() {
+		var breakers = breakers(0, 10, Duration.ofSeconds(30), 2, 3);
+
+		var first = breakers.acquire("busy:443").destination();
+		var second = breakers.acquire("busy:443").destination();
+		assertSame(Breakers.AT_CAPACITY, breakers.acquire("busy:443"), "two connecting");
+
+		first.connected(0);
+		second.connected(0);
+		var third = breakers.acquire("busy:443").destination();
+		assertSame(Breakers.AT_CAPACITY, breakers.acquire("busy:443"), "two open and one connecting");
+
+		third.abandoned();
+		first.closed();
+		assertEquals(200, breakers.acquire("busy:443").status());
+		assertEquals(2, breakers.refusedCapacity());
+
+		// with a failure rate of 0 nothing opens the circuit
+		for ( int i = 0; i < 10; i++ )
+			breakers.acquire("down:443").destination().failed(0);
+		assertEquals(Breakers.State.CLOSED, breakers.stats("down:443").state());
+	}
+
+	@Test
+	void recentlyUsedDestinationsSurviveASweep() {
+		var breakers = breakers(50, 10, Duration.ofSeconds(30), 0, 0);
+
+		breakers.acquire("busy:443").destination().connected(0);
+		breakers.acquire("gone:443").destination().failed(0);
+		breakers.sweep();
+
+		// both recently used, so kept
+		assertEquals(2, breakers.tracked());
+	}
+
+	@Test
+	void configIsChecked() {
+		assertThrows(IllegalArgumentException.class, () -> breakers(101, 10, Duration.ZERO, 0, 0));
+		assertThrows(IllegalArgumentException.class, () -> breakers(50, 65, Duration.ZERO, 0, 0));
+		assertThrows(IllegalArgumentException.class, () -> breakers(50, 10, Duration.ZERO, -1, 0));
+	}
+
+}
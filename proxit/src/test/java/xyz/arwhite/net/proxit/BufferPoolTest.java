@@ -0,0 +1,73 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class BufferPoolTest {
+
+	@Test
+	void roundsUpToSizeClass() {
+		var pool = new BufferPool(1 << 20, true);
+
+		assertEquals(4096, pool.take(1).capacity());
+		assertEquals(4096, pool.take(4096).capacity());
+		assertEquals(8192, pool.take(4097).capacity());
+		assertEquals(65536, pool.take(65536).capacity());
+		assertThrows(IllegalArgumentException.class, () -> pool.take(65537));
+	}
+
+	@Test
+	void reusesReleasedBuffers() {
+		var pool = new BufferPool(1 << 20, true);
+
+		var first = pool.take(16384);
+		assertTrue(first.isDirect());
+		first.put((byte) 1);
+		pool.release(first);
+
+		var second = pool.take(10000);
+		assertSame(first, second);
+		assertEquals(0, second.position());
+
+		var stats = pool.stats();
+		assertEquals(2, stats.takes());
+		assertEquals(1, stats.reuses());
+		assertEquals(16384, stats.allocated());
+		assertEquals(16384, stats.inUse());
+	}
+
+	@Test
+	void overflowsToHeapAtCeiling() {
+		var pool = new BufferPool(65536, true);
+
+		var pooled = pool.take(65536);
+		var overflow = pool.take(4096);
+		assertTrue(pooled.isDirect());
+		assertFalse(overflow.isDirect());
+		assertEquals(1, pool.stats().overflows());
+
+		pool.release(overflow);
+		pool.release(pooled);
+		assertEquals(65536, pool.stats().pooled());
+		assertEquals(0, pool.stats().inUse());
+	}
+
+	@Test
+	void heapPoolDropsOverflowBuffers() {
+		var pool = new BufferPool(65536, false);
+
+		var pooled = pool.take(65536);
+		var overflow = pool.take(4096);
+		assertTrue(pooled.hasArray());
+		assertTrue(overflow.hasArray());
+
+		pool.release(overflow);
+		assertEquals(0, pool.stats().pooled());
+	}
+
+}
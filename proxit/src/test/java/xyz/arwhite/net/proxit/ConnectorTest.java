@@ -0,0 +1,133 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class ConnectorTest {
+
+	private static final InetAddress BLACKHOLE = address("192.0.2.1");
+	private static final InetAddress LOOPBACK = address("127.0.0.1");
+
+	private static InetAddress address(String literal) {
+		try {
+			return InetAddress.getByName(literal);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Connects to the blackhole address never complete, they just wait to be closed
+	 */
+	private static class TestSocket extends Socket {
+		static final AtomicInteger closedBlackholes = new AtomicInteger();
+
+		final CountDownLatch closed = new CountDownLatch(1);
+		boolean blackholed;
+
+		@Override
+		public void connect(SocketAddress endpoint, int timeout) throws IOException {
+			if ( !((InetSocketAddress) endpoint).getAddress().equals(BLACKHOLE) ) {
+				super.connect(endpoint, timeout);
+				return;
+			}
+
+			blackholed = true;
+			try {
+				if ( !closed.await(timeout, TimeUnit.MILLISECONDS) )
+					throw new SocketTimeoutException("blackholed");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			throw new SocketException("Socket closed");
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if ( blackholed && closed.getCount() > 0 )
+				closedBlackholes.incrementAndGet();
+			closed.countDown();
+			super.close();
+		}
+	}
+
+	private static Connector connector(Duration attemptTimeout, Duration timeout) {
+		return new Connector(new Resolver(Duration.ofMinutes(1), Duration.ofSeconds(10)), attemptTimeout, timeout);
+	}
+
+	@Test
+	void interleavesFamilies() throws Exception {
+		var v6a = InetAddress.getByName("::1");
+		var v6b = InetAddress.getByName("fe80::1");
+		var v4a = InetAddress.getByName("127.0.0.1");
+		var v4b = InetAddress.getByName("127.0.0.2");
+
+		assertEquals(List.of(v4a, v6a, v4b, v6b),
+				Connector.interleave(new InetAddress[] { v4a, v4b, v6a, v6b }));
+		assertEquals(List.of(v6a, v4a, v6b, v4b),
+				Connector.interleave(new InetAddress[] { v6a, v6b, v4a, v4b }));
+	}
+
+	@Test
+	void stalledAddressDoesNotStallTheConnect() throws Exception {
+		try (var server = new ServerSocket(0, 50, LOOPBACK)) {
+			var connector = connector(Duration.ofSeconds(5), Duration.ofSeconds(10));
+			TestSocket.closedBlackholes.set(0);
+
+			long start = System.nanoTime();
+			try (var socket = connector.connect("test", new InetAddress[] { BLACKHOLE, LOOPBACK },
+					server.getLocalPort(), TestSocket::new)) {
+
+				long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				assertTrue(socket.isConnected());
+				assertEquals(LOOPBACK, socket.getInetAddress());
+				assertTrue(elapsed >= Connector.ATTEMPT_DELAY.toMillis() && elapsed < 2000, "took "+elapsed+"ms");
+			}
+
+			// the losing attempt was abandoned rather than left to time out
+			assertEquals(1, TestSocket.closedBlackholes.get());
+		}
+	}
+
+	@Test
+	void failureStartsTheNextAttemptStraightAway() throws Exception {
+		int closedPort;
+		try (var unused = new ServerSocket(0, 50, LOOPBACK)) {
+			closedPort = unused.getLocalPort();
+		}
+
+		var connector = connector(Duration.ofSeconds(1), Duration.ofSeconds(5));
+		var refused = assertThrows(IOException.class, () ->
+				connector.connect("test", new InetAddress[] { LOOPBACK, LOOPBACK }, closedPort, Socket::new));
+		assertTrue(!(refused instanceof SocketTimeoutException));
+	}
+
+	@Test
+	void overallDeadlineIsHonoured() {
+		var connector = connector(Duration.ofSeconds(5), Duration.ofMillis(600));
+
+		long start = System.nanoTime();
+		assertThrows(SocketTimeoutException.class, () ->
+				connector.connect("test", new InetAddress[] { BLACKHOLE, BLACKHOLE }, 443, TestSocket::new));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(elapsed < 2000, "took "+elapsed+"ms");
+	}
+
+}
@@ -0,0 +1,172 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DestinationRulesTest {
+
+	private static final String RULES = """
+			{ "rules": [
+				{ "name": "connectors", "roles": [ "connector-role" ],
+				  "hosts": [ "*.arwhite.xyz", "example.com", ".internal" ], "ports": [ 443, "8000-8099" ] },
+				{ "name": "network", "clientRoles": { "proxit": [ "connect" ] },
+				  "cidrs": [ "10.0.0.0/8", "192.168.1.7", "2001:db8::/32" ] },
+				{ "name": "public", "roles": [ "*" ], "hosts": [ "public.example.org" ], "ports": [ 443 ] }
+			] }
+			""";
+
+	private static Map<String,Object> realm(String... roles) {
+		return Map.of("realm_access", Map.of("roles", List.of(roles)));
+	}
+
+	private static Map<String,Object> client(String client, String... roles) {
+		return Map.of("resource_access", Map.of(client, Map.of("roles", List.of(roles))));
+	}
+
+	private static DestinationRules rules(String json) throws Exception {
+		return DestinationRules.parse(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	void hostsMatchBySuffix() throws Exception {
+		var rules = rules(RULES);
+		long connector = rules.rolesOf(realm("offline_access", "connector-role"));
+
+		assertTrue(rules.allows(connector, "www.arwhite.xyz:443"));
+		assertTrue(rules.allows(connector, "a.b.ARWHITE.xyz:8050"));
+		assertFalse(rules.allows(connector, "arwhite.xyz:443"), "*. is only names under it");
+		assertFalse(rules.allows(connector, "notarwhite.xyz:443"));
+
+		assertTrue(rules.allows(connector, "example.com:443"));
+		assertTrue(rules.allows(connector, "example.com.:443"));
+		assertFalse(rules.allows(connector, "www.example.com:443"), "exact names are exact");
+
+		assertTrue(rules.allows(connector, "internal:443"));
+		assertTrue(rules.allows(connector, "db.internal:443"));
+
+		assertFalse(rules.allows(connector, "www.arwhite.xyz:22"), "port not allowed");
+		assertFalse(rules.allows(connector, "www.arwhite.xyz:8100"));
+		assertFalse(rules.allows(connector, "www.arwhite.xyz"));
+		assertFalse(rules.allows(connector, "10.1.2.3:443"), "not granted the network rule");
+	}
+
+	@Test
+	void addressesMatchByPrefix() throws Exception {
+		var rules = rules(RULES);
+		long network = rules.rolesOf(client("proxit", "connect"));
+
+		assertTrue(rules.allows(network, "10.1.2.3:22"));
+		assertTrue(rules.allows(network, "192.168.1.7:5432"));
+		assertFalse(rules.allows(network, "192.168.1.8:5432"));
+		assertFalse(rules.allows(network, "11.0.0.1:443"));
+		assertFalse(rules.allows(network, "10.1.2:443"), "not an address, and no host rules");
+
+		assertTrue(rules.allows(network, "[2001:db8::1]:443"));
+		assertTrue(rules.allows(network, "[2001:DB8:ffff:0:0:0:0:1]:443"));
+		assertFalse(rules.allows(network, "[2001:db9::1]:443"));
+		assertFalse(rules.allows(network, "[::1]:443"));
+
+		// a client role for some other client isn't the same thing
+		assertEquals(rules.rolesOf(Map.of()), rules.rolesOf(client("other", "connect")));
+	}
+
+	@Test
+	void anyoneRulesApplyWithoutRoles() throws Exception {
+		var rules = rules(RULES);
+		long nobody = rules.rolesOf(Map.of());
+
+		assertTrue(rules.allows(nobody, "public.example.org:443"));
+		assertFalse(rules.allows(nobody, "public.example.org:80"));
+		assertFalse(rules.allows(nobody, "www.arwhite.xyz:443"));
+
+		var everywhere = rules("""
+				{ "rules": [ { "roles": [ "*" ], "hosts": [ "*" ] } ] }
+				""");
+		assertTrue(everywhere.allows(everywhere.rolesOf(Map.of()), "anything.at.all:1"));
+		assertTrue(everywhere.allows(everywhere.rolesOf(Map.of()), "[::1]:1"));
+	}
+
+	@Test
+	void addressesParse() {
+		assertEquals(0x0A010203L, TargetMatcher.parseIpv4("10.1.2.3", 0, 8));
+		assertEquals(-1, TargetMatcher.parseIpv4("10.1.2.256", 0, 10));
+		assertEquals(-1, TargetMatcher.parseIpv4("10.1.2.3.4", 0, 10));
+		assertEquals(-1, TargetMatcher.parseIpv4("1.2.3.4.nip.io", 0, 14));
+
+		var address = new long[2];
+		assertTrue(TargetMatcher.parseIpv6("::1", 0, 3, address));
+		assertEquals(0, address[0]);
+		assertEquals(1, address[1]);
+
+		assertTrue(TargetMatcher.parseIpv6("fe80::", 0, 6, address));
+		assertEquals(0xfe80L << 48, address[0]);
+		assertEquals(0, address[1]);
+
+		assertTrue(TargetMatcher.parseIpv6("1:2:3:4:5:6:7:8", 0, 15, address));
+		assertEquals(0x0001000200030004L, address[0]);
+		assertEquals(0x0005000600070008L, address[1]);
+
+		for ( var invalid : List.of("1:2:3:4:5:6:7", "1::2::3", ":1", "1:", "12345::", "1:2:3:4:5:6:7:8:9", "g::") )
+			assertFalse(TargetMatcher.parseIpv6(invalid, 0, invalid.length(), address), invalid);
+	}
+
+	@Test
+	void badRulesAreRefused() {
+		assertThrows(IllegalArgumentException.class, () -> rules("{}"));
+		assertThrows(IllegalArgumentException.class, () -> rules("""
+				{ "rules": [ { "hosts": [ "example.com" ] } ] }"""));
+		assertThrows(IllegalArgumentException.class, () -> rules("""
+				{ "rules": [ { "roles": [ "a" ] } ] }"""));
+		assertThrows(IllegalArgumentException.class, () -> rules("""
+				{ "rules": [ { "roles": [ "a" ], "cidrs": [ "10.0.0.0/33" ] } ] }"""));
+		assertThrows(IllegalArgumentException.class, () -> rules("""
+				{ "rules": [ { "roles": [ "a" ], "hosts": [ "a.*.com" ] } ] }"""));
+		assertThrows(IllegalArgumentException.class, () -> rules("""
+				{ "rules": [ { "roles": [ "a" ], "hosts": [ "a.com" ], "ports": [ "90-80" ] } ] }"""));
+
+		var tooMany = new StringBuilder("{ \"rules\": [");
+		for ( int i = 0; i <= DestinationRules.MAX_RULES; i++ )
+			tooMany.append(i > 0 ? "," : "").append("{ \"roles\": [ \"a\" ], \"hosts\": [ \"a.com\" ] }");
+		assertThrows(IllegalArgumentException.class, () -> rules(tooMany.append("] }").toString()));
+	}
+
+	@Test
+	void reloadSwapsOnlyGoodRules(@TempDir Path dir) throws Exception {
+		var file = dir.resolve("acl.json");
+		Files.writeString(file, RULES);
+		var policy = new DestinationPolicy(file, Duration.ZERO);
+
+		assertTrue(policy.allows(Map.of(), "public.example.org:443"));
+		assertFalse(policy.reload(), "unchanged");
+
+		Files.writeString(file, """
+				{ "rules": [ { "roles": [ "*" ], "hosts": [ "other.example.org" ] } ] }
+				""");
+		Files.setLastModifiedTime(file, FileTime.from(Instant.now().plusSeconds(10)));
+		assertTrue(policy.reload());
+		assertFalse(policy.allows(Map.of(), "public.example.org:443"));
+		assertTrue(policy.allows(Map.of(), "other.example.org:80"));
+
+		Files.writeString(file, "{ \"rules\": [ { ");
+		Files.setLastModifiedTime(file, FileTime.from(Instant.now().plusSeconds(20)));
+		assertFalse(policy.reload());
+		assertTrue(policy.allows(Map.of(), "other.example.org:80"), "kept the last good rules");
+		assertEquals(1, policy.reloads());
+		assertEquals(1, policy.reloadFailures());
+	}
+
+}
@@ -0,0 +1,93 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class FairSchedulerTest {
+
+	private static Map<String,Object> withRoles(String... roles) {
+		return Map.of("realm_access", Map.of("roles", List.of(roles)));
+	}
+
+	@Test
+	void tunnelsAreClassedByTheirHeaviestRole() {
+		var scheduler = new FairScheduler(1_000_000, 0, Map.of("connector-role", 4, "offline_access", 2));
+
+		assertEquals(FairScheduler.DEFAULT_CLASS, scheduler.flowFor(Map.of()).className());
+		assertEquals(FairScheduler.DEFAULT_CLASS, scheduler.flowFor(withRoles("uma_authorization")).className());
+		assertEquals("offline_access", scheduler.flowFor(withRoles("offline_access")).className());
+		assertEquals("connector-role",
+				scheduler.flowFor(withRoles("offline_access", "connector-role")).className());
+	}
+
+	@Test
+	void weightsParse() {
+		assertEquals(Map.of("connector-role", 4, "admin", 2), FairScheduler.parseWeights("connector-role=4, admin=2"));
+		assertEquals(Map.of(), FairScheduler.parseWeights(""));
+		assertThrows(IllegalArgumentException.class, () -> FairScheduler.parseWeights("connector-role"));
+		assertThrows(IllegalArgumentException.class, () -> FairScheduler.parseWeights("connector-role=lots"));
+	}
+
+	@Test
+	void writesPassStraightThroughUntilSaturated() throws Exception {
+		var scheduler = new FairScheduler(1_000_000, 32768, Map.of());
+		var flow = scheduler.flowFor(Map.of());
+
+		assertTrue(flow.tryPass(16384));
+		assertTrue(flow.tryPass(16384));
+		assertFalse(flow.tryPass(16384));
+
+		// 16K at 1MB/s has to queue for about 16ms
+		long start = System.nanoTime();
+		flow.acquire(16384);
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(millis >= 10 && millis < 200, "waited "+millis+"ms");
+
+		var stats = scheduler.stats().get(0);
+		assertEquals(3 * 16384, stats.bytes());
+		assertEquals(16384, stats.queuedBytes());
+		assertEquals(1, stats.writes());
+		assertEquals(0, stats.waiting());
+		assertTrue(stats.maxDelayNanos() > 0);
+	}
+
+	@Test
+	void saturatedLinkIsSharedByWeight() throws Exception {
+		var scheduler = new FairScheduler(50_000_000, 16384, Map.of("connector-role", 3));
+		var standard = scheduler.flowFor(Map.of());
+		var connector = scheduler.flowFor(withRoles("connector-role"));
+
+		int perClass = 200;
+		var order = Collections.synchronizedList(new ArrayList<String>());
+		var done = new CountDownLatch(2 * perClass);
+
+		for ( int i = 0; i < perClass; i++ ) {
+			standard.submit(16384, () -> { order.add("standard"); done.countDown(); });
+			connector.submit(16384, () -> { order.add("connector"); done.countDown(); });
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		// while both classes are backlogged the connector class gets three writes for every one
+		var contended = order.subList(20, 180);
+		long connectorWrites = contended.stream().filter("connector"::equals).count();
+		double share = (double) connectorWrites / contended.size();
+		assertTrue(share > 0.65 && share < 0.85, "connector share "+share);
+
+		var stats = scheduler.stats();
+		assertEquals(perClass * 16384L, stats.get(0).bytes());
+		assertEquals(perClass * 16384L, stats.get(1).bytes());
+		assertTrue(stats.get(0).meanDelayNanos() > stats.get(1).meanDelayNanos());
+	}
+
+}
@@ -0,0 +1,130 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class HttpMessagesTest {
+
+	private static RequestHead request(String head) {
+		var bytes = head.getBytes(StandardCharsets.US_ASCII);
+		var request = new RequestHead();
+		assertEquals(RequestHead.OK, request.parse(bytes, bytes.length));
+		return request;
+	}
+
+	private static RequestHead response(String head) {
+		var bytes = head.getBytes(StandardCharsets.US_ASCII);
+		var response = new RequestHead();
+		assertEquals(RequestHead.OK, response.parseResponse(bytes, bytes.length));
+		return response;
+	}
+
+	@Test
+	void absoluteTargets() {
+		assertEquals(new HttpMessages.Target("example.com:80", "Example.com", "/"),
+				HttpMessages.target("http://Example.com"));
+		assertEquals(new HttpMessages.Target("example.com:8080", "example.com:8080", "/?q=1"),
+				HttpMessages.target("HTTP://example.com:8080?q=1#frag"));
+		assertEquals(new HttpMessages.Target("[::1]:80", "[::1]", "/a/b"), HttpMessages.target("http://[::1]/a/b"));
+
+		assertNull(HttpMessages.target("/relative"));
+		assertNull(HttpMessages.target("https://example.com/"));
+		assertNull(HttpMessages.target("http://user@example.com/"));
+		assertNull(HttpMessages.target("http://example.com:0/"));
+		assertNull(HttpMessages.target("http:///"));
+	}
+
+	@Test
+	void bodyFraming() {
+		assertEquals(MessageReader.NO_BODY, HttpMessages.requestBody(request("GET / HTTP/1.1\r\n\r\n")));
+		assertEquals(7, HttpMessages.requestBody(request("PUT / HTTP/1.1\r\nContent-Length: 7\r\n\r\n")));
+		assertEquals(MessageReader.CHUNKED, HttpMessages.requestBody(
+				request("PUT / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n")));
+
+		// ways proxit and the origin could disagree on where a body ends
+		assertEquals(HttpMessages.INVALID, HttpMessages.requestBody(
+				request("PUT / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 3\r\n\r\n")));
+		assertEquals(HttpMessages.INVALID, HttpMessages.requestBody(
+				request("PUT / HTTP/1.1\r\nContent-Length: 3\r\nContent-Length: 4\r\n\r\n")));
+		assertEquals(HttpMessages.INVALID, HttpMessages.requestBody(
+				request("PUT / HTTP/1.1\r\nTransfer-Encoding: chunked, gzip\r\n\r\n")));
+
+		assertEquals(MessageReader.NO_BODY, HttpMessages.responseBody(
+				response("HTTP/1.1 304 Not Modified\r\nContent-Length: 10\r\n\r\n"), false));
+		assertEquals(MessageReader.NO_BODY, HttpMessages.responseBody(
+				response("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n"), true));
+		assertEquals(MessageReader.UNTIL_CLOSE, HttpMessages.responseBody(response("HTTP/1.1 200 OK\r\n\r\n"), false));
+	}
+
+	@Test
+	void hopByHopHeadersStayBehind() {
+		var to = new byte[512];
+		var request = request("GET http://example.com/x HTTP/1.1\r\n"
+				+ "Host: wrong\r\n"
+				+ "Connection: keep-alive, X-Secret\r\n"
+				+ "X-Secret: shh\r\n"
+				+ "Proxy-Authorization: Basic abc\r\n"
+				+ "Expect: 100-continue\r\n"
+				+ "Accept: */*\r\n\r\n");
+
+		int length = HttpMessages.requestHead(request, HttpMessages.target(request.target()), true, to);
+		assertEquals("GET /x HTTP/1.1\r\nHost: example.com\r\nAccept: */*\r\nVia: 1.1 proxit\r\n\r\n",
+				new String(to, 0, length, StandardCharsets.US_ASCII));
+
+		length = HttpMessages.responseHead(response("HTTP/1.0 200 Fine\r\nKeep-Alive: 5\r\nETag: \"1\"\r\n\r\n"), 
+				true, to);
+		assertEquals("HTTP/1.1 200 Fine\r\nETag: \"1\"\r\nVia: 1.1 proxit\r\nConnection: close\r\n\r\n",
+				new String(to, 0, length, StandardCharsets.US_ASCII));
+
+		assertEquals(-1, HttpMessages.requestHead(request, HttpMessages.target(request.target()), true, new byte[10]));
+		assertTrue(HttpMessages.keepAlive(request("GET / HTTP/1.1\r\n\r\n")));
+		assertFalse(HttpMessages.keepAlive(request("GET / HTTP/1.1\r\nConnection: Close\r\n\r\n")));
+		assertFalse(HttpMessages.keepAlive(request("GET / HTTP/1.0\r\n\r\n")));
+	}
+
+	@Test
+	void cachedHeads() {
+		var to = new byte[512];
+		var request = request("GET http://example.com/x HTTP/1.1\r\n"
+				+ "If-None-Match: \"client\"\r\n"
+				+ "If-Modified-Since: Sun, 06 Nov 1994 08:49:37 GMT\r\n"
+				+ "Accept: */*\r\n\r\n");
+
+		// the cache's validators go in place of the client's
+		var validators = "If-None-Match: \"stored\"\r\n".getBytes(StandardCharsets.US_ASCII);
+		int length = HttpMessages.requestHead(request, HttpMessages.target(request.target()), false, validators, to);
+		assertEquals("GET /x HTTP/1.1\r\nHost: example.com\r\nAccept: */*\r\nIf-None-Match: \"stored\"\r\n"
+				+ "Via: 1.1 proxit\r\n\r\n", new String(to, 0, length, StandardCharsets.US_ASCII));
+
+		length = HttpMessages.storedHead(response("HTTP/1.1 200 OK\r\nAge: 10\r\nConnection: close\r\n"
+				+ "ETag: \"1\"\r\nContent-Length: 2\r\n\r\n"), to);
+		var stored = Arrays.copyOf(to, length);
+		assertEquals("HTTP/1.1 200 OK\r\nETag: \"1\"\r\nContent-Length: 2\r\n\r\n", 
+				new String(stored, StandardCharsets.US_ASCII));
+
+		length = HttpMessages.cachedHead(stored, 42, false, to);
+		assertEquals("HTTP/1.1 200 OK\r\nETag: \"1\"\r\nContent-Length: 2\r\nAge: 42\r\nVia: 1.1 proxit\r\n\r\n",
+				new String(to, 0, length, StandardCharsets.US_ASCII));
+
+		length = HttpMessages.notModifiedHead(stored, 0, true, to);
+		assertEquals("HTTP/1.1 304 Not Modified\r\nETag: \"1\"\r\nAge: 0\r\nVia: 1.1 proxit\r\n"
+				+ "Connection: close\r\n\r\n", new String(to, 0, length, StandardCharsets.US_ASCII));
+
+		// a 304's end-to-end headers replace the stored ones, but not the stored body's framing
+		length = HttpMessages.updatedHead(stored, response("HTTP/1.1 304 Not Modified\r\nEtag: \"2\"\r\n"
+				+ "Content-Length: 0\r\nConnection: close\r\nAge: 5\r\nExpires: never\r\n\r\n"), to);
+		assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nEtag: \"2\"\r\nExpires: never\r\n\r\n", 
+				new String(to, 0, length, StandardCharsets.US_ASCII));
+
+		assertEquals(784111777000L, HttpMessages.date("Sun, 06 Nov 1994 08:49:37 GMT"));
+		assertEquals(-1, HttpMessages.date("yesterday"));
+	}
+
+}
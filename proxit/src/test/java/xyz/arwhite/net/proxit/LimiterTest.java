@@ -0,0 +1,120 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class LimiterTest {
+
+	private static final long MS = 1_000_000;
+
+	@Test
+	void fixedLimitCaps() throws Exception {
+		var limiter = new Limiter(new Limiter.Fixed(), 2);
+
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertFalse(limiter.tryAcquire());
+		assertFalse(limiter.acquire(20, TimeUnit.MILLISECONDS));
+
+		limiter.release(5 * MS, false);
+		assertTrue(limiter.tryAcquire());
+
+		var stats = limiter.stats();
+		assertEquals(2, stats.limit());
+		assertEquals(2, stats.inFlight());
+		assertEquals(3, stats.acquired());
+		assertEquals(2, stats.rejected());
+	}
+
+	@Test
+	void waitersAreWokenByRelease() throws Exception {
+		var limiter = new Limiter(new Limiter.Fixed(), 1);
+		assertTrue(limiter.tryAcquire());
+
+		var releaser = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {}
+			limiter.release();
+		});
+		releaser.start();
+
+		assertTrue(limiter.acquire(5, TimeUnit.SECONDS));
+		releaser.join();
+	}
+
+	/*
+	 * Runs the limiter at its limit, every release reporting the given latency
+	 */
+	private static void load(Limiter limiter, long rttNanos, int samples) {
+		for ( int i = 0; i < samples; i++ ) {
+			int limit = limiter.stats().limit();
+			for ( int j = 0; j < limit; j++ )
+				limiter.tryAcquire();
+			for ( int j = 0; j < limit; j++ )
+				limiter.release(rttNanos, false);
+		}
+	}
+
+	@Test
+	void vegasBacksOffAsLatencyRises() {
+		var limiter = new Limiter(new Limiter.Vegas(), 100);
+
+		load(limiter, 10 * MS, 10);
+		assertEquals(100, limiter.stats().limit());
+
+		load(limiter, 50 * MS, 20);
+		int congested = limiter.stats().limit();
+		assertTrue(congested < 50, "limit "+congested);
+
+		load(limiter, 10 * MS, 50);
+		assertTrue(limiter.stats().limit() > congested);
+	}
+
+	@Test
+	void gradientBacksOffAsLatencyRises() {
+		var limiter = new Limiter(new Limiter.Gradient(), 100);
+
+		load(limiter, 10 * MS, 10);
+		assertEquals(100, limiter.stats().limit());
+
+		load(limiter, 100 * MS, 5);
+		int congested = limiter.stats().limit();
+		assertTrue(congested < 90, "limit "+congested);
+
+		load(limiter, 10 * MS, 20);
+		assertTrue(limiter.stats().limit() > congested);
+	}
+
+	@Test
+	void admissionShedsBeyondTheBacklog() {
+		var admission = new AdmissionController(new Limiter(new Limiter.Fixed(), 1),
+				new Limiter(new Limiter.Fixed(), 1), 2, Duration.ofMillis(10));
+
+		assertTrue(admission.accept());
+		assertTrue(admission.accept());
+		assertFalse(admission.accept());
+
+		assertTrue(admission.startHandshake());
+		assertFalse(admission.startHandshake());
+
+		assertTrue(admission.startTunnel());
+		assertFalse(admission.startTunnel());
+		admission.endHandshake(System.nanoTime(), false);
+
+		var stats = admission.stats();
+		assertEquals(0, stats.backlog());
+		assertEquals(1, stats.shedAtAccept());
+		assertEquals(1, stats.shedAtHandshake());
+		assertEquals(1, stats.shedAtTunnel());
+		assertEquals(0, stats.handshakes().inFlight());
+		assertEquals(1, stats.tunnels().inFlight());
+	}
+
+}
@@ -0,0 +1,121 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class MessageReaderTest {
+
+	/*
+	 * Hands out a few bytes per read, so heads and chunk lines straddle reads
+	 */
+	private static InputStream trickle(String s) {
+		return new ByteArrayInputStream(s.getBytes(StandardCharsets.US_ASCII)) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 3));
+			}
+		};
+	}
+
+	private static String body(MessageReader reader, long length) throws IOException {
+		var out = new ByteArrayOutputStream();
+		long[] counted = new long[1];
+		reader.copyBody(length, out, bytes -> counted[0] += bytes);
+		assertEquals(out.size(), counted[0]);
+		return out.toString(StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	void pipelinedMessagesAreKeptApart() throws IOException {
+		var reader = new MessageReader(trickle("POST / HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello"
+				+ "GET / HTTP/1.1\n\n"), new byte[64]);
+
+		int head = reader.readHead(64);
+		assertEquals(38, head);
+		assertEquals("hello", body(reader, 5));
+
+		assertEquals(16, reader.readHead(64));
+		assertEquals(0, reader.buffered());
+		assertEquals(-1, reader.readHead(64));
+	}
+
+	@Test
+	void chunkedBodiesPassVerbatim() throws IOException {
+		var chunked = "5;name=value\r\nhello\r\n1A\r\n" + "x".repeat(26) + "\r\n0\r\nTrailer: yes\r\n\r\n";
+		var reader = new MessageReader(trickle("H\r\n\r\n" + chunked + "NEXT"), new byte[48]);
+
+		reader.readHead(48);
+		assertEquals(chunked, body(reader, MessageReader.CHUNKED));
+		assertEquals("NEXT", body(reader, MessageReader.UNTIL_CLOSE));
+	}
+
+	@Test
+	void untilCloseAndShortBodies() throws IOException {
+		var reader = new MessageReader(trickle("H\r\n\r\nall the rest"), new byte[16]);
+		reader.readHead(16);
+		assertEquals("all the rest", body(reader, MessageReader.UNTIL_CLOSE));
+
+		var truncated = new MessageReader(trickle("H\r\n\r\nabc"), new byte[16]);
+		truncated.readHead(16);
+		assertThrows(EOFException.class, () -> body(truncated, 10));
+
+		var badChunk = new MessageReader(trickle("H\r\n\r\nzz\r\n"), new byte[16]);
+		badChunk.readHead(16);
+		assertThrows(IOException.class, () -> body(badChunk, MessageReader.CHUNKED));
+	}
+
+	@Test
+	void chunkFramingIsExact() throws IOException {
+		// a byte after the data isn't the end of the chunk, however short the line
+		var overrun = new MessageReader(trickle("H\r\n\r\n5\r\nhelloX\n0\r\n\r\n"), new byte[32]);
+		overrun.readHead(32);
+		assertThrows(MessageReader.MalformedException.class, () -> body(overrun, MessageReader.CHUNKED));
+
+		// nor is a short trailer line the blank one ending the message
+		var shortTrailer = new MessageReader(trickle("H\r\n\r\n0\r\nX\nGET / HTTP/1.1\r\n\r\n"), new byte[32]);
+		shortTrailer.readHead(32);
+		assertThrows(MessageReader.MalformedException.class, () -> body(shortTrailer, MessageReader.CHUNKED));
+
+		// bare line feeds are fine throughout, as they are in heads
+		var bare = new MessageReader(trickle("H\n\n2\nok\n0\nT: 1\n\nNEXT"), new byte[32]);
+		bare.readHead(32);
+		assertEquals("2\nok\n0\nT: 1\n\n", body(bare, MessageReader.CHUNKED));
+		assertEquals("NEXT", body(bare, MessageReader.UNTIL_CLOSE));
+	}
+
+	@Test
+	void headsLongerThanTheLimit() throws IOException {
+		var reader = new MessageReader(trickle("GET / HTTP/1.1\r\nX: " + "y".repeat(40) + "\r\n\r\n"), new byte[64]);
+		assertEquals(0, reader.readHead(32));
+	}
+
+	@Test
+	void headsAreTimedFromTheirFirstByte() throws IOException {
+		// a kept connection sitting idle before its next request
+		var idle = new ByteArrayInputStream("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII)) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {}
+				return super.read(b, off, len);
+			}
+		};
+
+		var reader = new MessageReader(idle, new byte[64]);
+		long before = System.nanoTime();
+		reader.readHead(64);
+		assertTrue(reader.headStarted() - before >= 200_000_000L);
+	}
+
+}
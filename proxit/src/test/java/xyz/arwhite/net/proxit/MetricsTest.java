@@ -0,0 +1,102 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import org.junit.jupiter.api.Test;
+
+class MetricsTest {
+
+	@Test
+	void bucketsCoverEveryValueInOrder() {
+		for ( int i = 0; i < 300; i++ ) {
+			long lower = Metrics.Histogram.lowerBound(i);
+			assertEquals(i, Metrics.Histogram.indexOf(lower));
+			assertEquals(i, Metrics.Histogram.indexOf(Metrics.Histogram.lowerBound(i + 1) - 1));
+		}
+	}
+
+	@Test
+	void quantilesAreWithinABucket() {
+		var histogram = new Metrics.Histogram();
+		for ( long micros = 1; micros <= 1000; micros++ )
+			histogram.record(micros * 1000);
+
+		assertEquals(1000, histogram.count());
+
+		long median = histogram.quantile(0.5);
+		assertTrue(median >= 500_000 && median < 500_000 * 1.125, "median "+median);
+
+		long p99 = histogram.quantile(0.99);
+		assertTrue(p99 >= 990_000 && p99 < 990_000 * 1.125, "p99 "+p99);
+	}
+
+	@Test
+	void scrapeIsPrometheusText() {
+		var metrics = new Metrics();
+		metrics.accepted.add(3);
+		metrics.gauge("test_depth", "Depth of the test", () -> 7, "queue", "a\"b");
+		metrics.connectPhase.record(2_000_000);
+
+		var text = metrics.scrape();
+
+		assertTrue(text.contains("# TYPE proxit_connections_accepted_total counter\nproxit_connections_accepted_total 3\n"));
+		assertTrue(text.contains("test_depth{queue=\"a\\\"b\"} 7\n"));
+
+		// once in the family header, then for each phase
+		assertEquals(1, text.split("# TYPE proxit_handshake_phase_seconds histogram").length - 1);
+		assertTrue(text.contains("proxit_handshake_phase_seconds_bucket{phase=\"connect\",le=\"0.001048576\"} 0\n"));
+		assertTrue(text.contains("proxit_handshake_phase_seconds_bucket{phase=\"connect\",le=\"0.004194304\"} 1\n"));
+		assertTrue(text.contains("proxit_handshake_phase_seconds_bucket{phase=\"connect\",le=\"+Inf\"} 1\n"));
+		assertTrue(text.contains("proxit_handshake_phase_seconds_sum{phase=\"connect\"} 0.002\n"));
+		assertTrue(text.contains("proxit_handshake_phase_seconds_count{phase=\"auth\"} 0\n"));
+
+		assertThrows(IllegalArgumentException.class, () -> metrics.gauge("proxit_connections_accepted_total", "clash"));
+	}
+
+	@Test
+	void histogramsAndNanosKeptElsewhere() {
+		var metrics = new Metrics();
+		var lookups = new Metrics.Histogram();
+		metrics.histogram("test_lookup_seconds", "Lookups", lookups);
+		metrics.nanosGauge("test_lookup_max_seconds", "Longest lookup", () -> 3_000_000);
+		lookups.record(1_000_000);
+		lookups.record(3_000_000);
+
+		var text = metrics.scrape();
+
+		assertTrue(text.contains("# TYPE test_lookup_seconds histogram\n"));
+		assertTrue(text.contains("test_lookup_seconds_count 2\n"));
+		assertTrue(text.contains("test_lookup_seconds_sum 0.004\n"));
+		assertTrue(text.contains("# TYPE test_lookup_max_seconds gauge\ntest_lookup_max_seconds 0.003\n"));
+	}
+
+	@Test
+	void endpointServesScrapes() throws Exception {
+		var metrics = new Metrics();
+		metrics.bytesIn.add(42);
+
+		var endpoint = new MetricsEndpoint(new InetSocketAddress("127.0.0.1", 0), metrics);
+		try {
+			var client = HttpClient.newHttpClient();
+			var uri = URI.create("http://127.0.0.1:"+endpoint.address().getPort()+"/metrics");
+
+			var response = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString());
+			assertEquals(200, response.statusCode());
+			assertTrue(response.body().contains("proxit_tunnel_bytes_in_total 42\n"));
+
+			var post = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.noBody()).build();
+			assertEquals(405, client.send(post, HttpResponse.BodyHandlers.discarding()).statusCode());
+		} finally {
+			endpoint.stop();
+		}
+	}
+
+}
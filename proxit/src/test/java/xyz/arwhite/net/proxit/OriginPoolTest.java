@@ -0,0 +1,124 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class OriginPoolTest {
+
+	private static final TimingWheel wheel = new TimingWheel(Duration.ofMillis(10), 64);
+
+	private ServerSocket origin;
+	private final AtomicInteger closed = new AtomicInteger();
+
+	@BeforeEach
+	void setUp() throws IOException {
+		origin = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		origin.close();
+	}
+
+	private OriginPool.Connection open(OriginPool pool) throws Exception {
+		var connection = pool.acquire("origin:80");
+		assertNull(connection.socket());
+		connection.opened(new Socket(InetAddress.getLoopbackAddress(), origin.getLocalPort()), closed::incrementAndGet);
+		origin.accept();
+		return connection;
+	}
+
+	@Test
+	void mostRecentlyIdleIsReused() throws Exception {
+		var pool = new OriginPool(new OriginPool.Config(4, Duration.ofSeconds(30), Duration.ZERO), wheel);
+		var first = open(pool);
+		var second = open(pool);
+
+		pool.release(first, true);
+		pool.release(second, true);
+		assertEquals(2, pool.idle());
+
+		var reused = pool.acquire("origin:80");
+		assertSame(second, reused);
+		assertTrue(reused.reused());
+		assertEquals(1, pool.reused());
+
+		// not reusable, closed and counted off the origin
+		pool.release(reused, false);
+		assertEquals(1, closed.get());
+		assertEquals(1, pool.open());
+	}
+
+	@Test
+	void capWaitsForAConnectionToComeBack() throws Exception {
+		var pool = new OriginPool(new OriginPool.Config(1, Duration.ofSeconds(30), Duration.ofMillis(200)), wheel);
+		var only = open(pool);
+
+		// nothing comes back within the wait
+		assertNull(pool.acquire("origin:80"));
+		assertEquals(1, pool.refused());
+
+		// until it does
+		var waiter = CompletableFuture.supplyAsync(() -> {
+			try {
+				return pool.acquire("origin:80");
+			} catch (InterruptedException e) {
+				return null;
+			}
+		});
+		Thread.sleep(50);
+		pool.release(only, true);
+		assertSame(only, waiter.get());
+
+		// other origins have their own cap
+		assertNotSame(only, pool.acquire("elsewhere:80"));
+	}
+
+	@Test
+	void sweepClosesIdleConnections() throws Exception {
+		var pool = new OriginPool(new OriginPool.Config(4, Duration.ofMillis(100), Duration.ZERO), wheel);
+		pool.release(open(pool), true);
+		assertEquals(1, pool.idle());
+
+		Thread.sleep(150);
+		pool.sweep();
+		assertEquals(0, pool.open());
+		assertEquals(1, pool.evicted());
+		assertEquals(1, closed.get());
+
+		// and a fresh one is opened next time
+		assertNull(pool.acquire("origin:80").socket());
+	}
+
+	@Test
+	void connectionWithUnaskedForBytesIsNotReused() throws Exception {
+		var pool = new OriginPool(new OriginPool.Config(4, Duration.ofSeconds(30), Duration.ZERO), wheel);
+		var connection = pool.acquire("origin:80");
+		connection.opened(new Socket(InetAddress.getLoopbackAddress(), origin.getLocalPort()), closed::incrementAndGet);
+		var server = origin.accept();
+		pool.release(connection, true);
+
+		server.getOutputStream().write("HTTP/1.1 408 Request Timeout\r\n\r\n".getBytes());
+		Thread.sleep(100);
+
+		assertNull(pool.acquire("origin:80").socket());
+		assertEquals(1, pool.evicted());
+		server.close();
+	}
+
+}
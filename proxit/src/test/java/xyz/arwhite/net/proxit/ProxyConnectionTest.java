@@ -0,0 +1,558 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProxyConnectionTest {
+
+	private static final TimingWheel wheel = new TimingWheel(Duration.ofMillis(10), 64);
+
+	private static final Timeouts.Policy DEFAULT_POLICY = new Timeouts.Policy(Duration.ofSeconds(30), 
+			Duration.ofSeconds(60), Duration.ZERO);
+
+	private final Breakers breakers = new Breakers(new Breakers.Config(50, 20, Duration.ofSeconds(30), 
+			Duration.ZERO, 100, 0), wheel);
+
+	private final OriginPool origins = new OriginPool(new OriginPool.Config(4, Duration.ofSeconds(30), 
+			Duration.ofMillis(500)), wheel);
+
+	private ExecutorService pool;
+	private ServerSocket proxit;
+	private ServerSocket targets;
+
+	/*
+	 * Shared by the connections a test opens, tests swapping in their own before connecting
+	 */
+	private Metrics metrics;
+	private Optional<ResponseCache> cache;
+	private Shaper shaper;
+	private Optional<DestinationPolicy> destinations;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		pool = Executors.newCachedThreadPool();
+		proxit = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		targets = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		metrics = new Metrics();
+		cache = Optional.empty();
+		shaper = new Shaper(0, 0, 0, 0);
+		destinations = Optional.empty();
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		proxit.close();
+		targets.close();
+		pool.shutdownNow();
+	}
+
+	/*
+	 * Opens a tunnel through a ProxyConnection relaying with threads, returning the
+	 * client's and the target's ends of it
+	 */
+	private Socket[] tunnel() throws IOException {
+		return tunnel(DEFAULT_POLICY);
+	}
+
+	private Socket[] tunnel(Timeouts.Policy policy) throws IOException {
+		var client = connect(policy);
+		request(client, "127.0.0.1:"+targets.getLocalPort());
+
+		var target = targets.accept();
+		target.setSoTimeout(5000);
+
+		assertArrayEquals(Responses.OK, client.getInputStream().readNBytes(Responses.OK.length));
+
+		return new Socket[] { client, target };
+	}
+
+	private static void request(Socket client, String target) throws IOException {
+		var credentials = Base64.getEncoder().encodeToString("fred:flintstone".getBytes(StandardCharsets.UTF_8));
+		var request = "CONNECT "+target+" HTTP/1.1\r\n"
+				+ "Proxy-Authorization: Basic "+credentials+"\r\n\r\n";
+		client.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/*
+	 * Connects a client to a ProxyConnection held to the policy
+	 */
+	private Socket connect(Timeouts.Policy policy) throws IOException {
+		return connect(policy, new AdmissionController(new Limiter(new Limiter.Fixed(), 10),
+				new Limiter(new Limiter.Fixed(), 10), 10, Duration.ofSeconds(1)));
+	}
+
+	private Socket connect(Timeouts.Policy policy, AdmissionController admission) throws IOException {
+		var client = new Socket(InetAddress.getLoopbackAddress(), proxit.getLocalPort());
+		client.setSoTimeout(5000);
+
+		var connector = new Connector(new Resolver(Duration.ofMinutes(1), Duration.ofSeconds(10)),
+				Duration.ofSeconds(2), Duration.ofSeconds(5));
+		var context = new ProxyContext(pool, Optional.empty(), destinations, Optional.empty(), false, 
+				new BufferPool(1 << 20, false), connector, breakers, Optional.empty(), origins, cache, admission, 
+				shaper, Optional.empty(), new Timeouts(wheel, policy), metrics, Optional.empty());
+
+		pool.execute(new ProxyConnection(proxit.accept(), context));
+
+		return client;
+	}
+
+	@Test
+	void halfCloseReachesTheOtherSide() throws IOException {
+		var ends = tunnel();
+		var client = ends[0];
+		var target = ends[1];
+
+		// client finishes sending, the target sees end of stream but can still reply
+		client.getOutputStream().write("done".getBytes());
+		client.shutdownOutput();
+
+		assertArrayEquals("done".getBytes(), target.getInputStream().readAllBytes());
+
+		var reply = new byte[64 * 1024];
+		target.getOutputStream().write(reply);
+		target.shutdownOutput();
+
+		assertEquals(reply.length, client.getInputStream().readAllBytes().length);
+
+		client.close();
+		target.close();
+	}
+
+	@Test
+	void resetTearsDownTheTunnel() throws IOException {
+		var ends = tunnel();
+		var client = ends[0];
+		var target = ends[1];
+
+		client.getOutputStream().write("ping".getBytes());
+		assertArrayEquals("ping".getBytes(), target.getInputStream().readNBytes(4));
+
+		// the target resets, the client hears about it well within its read timeout
+		long start = System.nanoTime();
+		target.setSoLinger(true, 0);
+		target.close();
+
+		try {
+			assertEquals(-1, client.getInputStream().read());
+		} catch (SocketException e) {
+			// reset rather than closed, either way the tunnel is gone
+		}
+		assertTrue(System.nanoTime() - start < Duration.ofSeconds(2).toNanos());
+
+		client.close();
+	}
+
+	@Test
+	void slowHandshakeTimesOut() throws IOException {
+		var client = connect(new Timeouts.Policy(Duration.ofMillis(300), Duration.ofSeconds(60), Duration.ZERO));
+
+		// a byte now and then, never finishing the request head
+		client.getOutputStream().write("CONNECT ".getBytes());
+		var response = client.getInputStream().readAllBytes();
+
+		assertArrayEquals(Responses.REQUEST_TIMEOUT, response);
+		client.close();
+	}
+
+	@Test
+	void shedConnectionLeavesNoDeadlineBehind() throws Exception {
+		var admission = new AdmissionController(new Limiter(new Limiter.Fixed(), 1),
+				new Limiter(new Limiter.Fixed(), 10), 10, Duration.ofMillis(50));
+		assertTrue(admission.startHandshake());
+
+		// the only handshake slot's taken, so it's shed well inside the handshake timeout
+		var client = connect(new Timeouts.Policy(Duration.ofMillis(200), Duration.ofSeconds(60), Duration.ZERO),
+				admission);
+		assertArrayEquals(Responses.SERVICE_UNAVAILABLE, client.getInputStream().readAllBytes());
+		client.close();
+
+		Thread.sleep(500);
+		assertEquals(0, metrics.timedOut.get());
+		assertEquals(1, admission.stats().shedAtHandshake());
+	}
+
+	@Test
+	void idleTunnelIsClosedButBusyOneIsNot() throws Exception {
+		var policy = new Timeouts.Policy(Duration.ofSeconds(30), Duration.ofMillis(500), Duration.ZERO);
+		var ends = tunnel(policy);
+		var client = ends[0];
+		var target = ends[1];
+
+		// busy for longer than the idle timeout
+		for ( int i = 0; i < 10; i++ ) {
+			client.getOutputStream().write("ping".getBytes());
+			assertArrayEquals("ping".getBytes(), target.getInputStream().readNBytes(4));
+			Thread.sleep(100);
+		}
+
+		// then quiet, and closed shortly after the idle timeout
+		long start = System.nanoTime();
+		assertEquals(-1, target.getInputStream().read());
+		assertTrue(System.nanoTime() - start < Duration.ofSeconds(2).toNanos());
+
+		client.close();
+		target.close();
+	}
+
+	@Test
+	void lifetimeEndsBusyTunnel() throws Exception {
+		var policy = new Timeouts.Policy(Duration.ofSeconds(30), Duration.ofSeconds(60), Duration.ofMillis(500));
+		var ends = tunnel(policy);
+		var client = ends[0];
+		var target = ends[1];
+
+		long start = System.nanoTime();
+		try {
+			while ( true ) {
+				target.getOutputStream().write("pong".getBytes());
+				if ( client.getInputStream().readNBytes(4).length < 4 )
+					break;
+				Thread.sleep(50);
+			}
+		} catch (SocketException e) {
+			// closed under us
+		}
+
+		long took = System.nanoTime() - start;
+		assertTrue(took > Duration.ofMillis(400).toNanos() && took < Duration.ofSeconds(2).toNanos(), "took "+took);
+
+		client.close();
+		target.close();
+	}
+
+	@Test
+	void deadTargetOpensItsCircuit() throws IOException {
+		int deadPort;
+		try ( var dead = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()) ) {
+			deadPort = dead.getLocalPort();
+		}
+
+		// refused outright until half the window has failed
+		for ( int i = 0; i < 10; i++ ) {
+			var client = connect(DEFAULT_POLICY);
+			request(client, "127.0.0.1:"+deadPort);
+			assertArrayEquals(Responses.INTERNAL_ERROR, client.getInputStream().readAllBytes());
+			client.close();
+		}
+
+		var client = connect(DEFAULT_POLICY);
+		request(client, "127.0.0.1:"+deadPort);
+		assertArrayEquals(Responses.BAD_GATEWAY, client.getInputStream().readAllBytes());
+		client.close();
+
+		assertEquals(Breakers.State.OPEN, breakers.stats("127.0.0.1:"+deadPort).state());
+
+		// other targets are unaffected, and their tunnels counted while open
+		var ends = tunnel();
+		assertEquals(1, breakers.stats("127.0.0.1:"+targets.getLocalPort()).tunnels());
+		ends[0].close();
+		ends[1].close();
+	}
+
+	private static String readHead(InputStream in) throws IOException {
+		var head = new StringBuilder();
+		while ( !head.toString().endsWith("\r\n\r\n") ) {
+			int b = in.read();
+			if ( b < 0 )
+				throw new IOException("Ended in a head: "+head);
+			head.append((char) b);
+		}
+		return head.toString();
+	}
+
+	@Test
+	void forwardsRequestsOverAKeptConnection() throws IOException {
+		var client = connect(DEFAULT_POLICY);
+		var credentials = Base64.getEncoder().encodeToString("fred:flintstone".getBytes(StandardCharsets.UTF_8));
+		var authority = "127.0.0.1:"+targets.getLocalPort();
+
+		client.getOutputStream().write(("GET http://"+authority+"/one?x=1 HTTP/1.1\r\n"
+				+ "Host: "+authority+"\r\n"
+				+ "Proxy-Authorization: Basic "+credentials+"\r\n"
+				+ "Proxy-Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+		var origin = targets.accept();
+		origin.setSoTimeout(5000);
+		var request = readHead(origin.getInputStream());
+		assertTrue(request.startsWith("GET /one?x=1 HTTP/1.1\r\nHost: "+authority+"\r\n"), request);
+		assertTrue(!request.contains("Proxy-") && request.contains("Via: 1.1 proxit"), request);
+
+		origin.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nKeep-Alive: timeout=5\r\n\r\nhello"
+				.getBytes(StandardCharsets.US_ASCII));
+
+		var response = readHead(client.getInputStream());
+		assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n") && !response.contains("Keep-Alive"), response);
+		assertArrayEquals("hello".getBytes(), client.getInputStream().readNBytes(5));
+		assertEquals(1, metrics.activeTunnels.get());
+
+		// a chunked upload on the same client connection goes over the same origin connection
+		var chunked = "4;ext=1\r\nabcd\r\n3\r\nefg\r\n0\r\nX-Trailer: t\r\n\r\n";
+		client.getOutputStream().write(("POST http://"+authority+"/two HTTP/1.1\r\n"
+				+ "Proxy-Authorization: Basic "+credentials+"\r\n"
+				+ "Transfer-Encoding: chunked\r\n\r\n"+chunked).getBytes(StandardCharsets.US_ASCII));
+
+		request = readHead(origin.getInputStream());
+		assertTrue(request.startsWith("POST /two HTTP/1.1\r\n"), request);
+		assertArrayEquals(chunked.getBytes(), origin.getInputStream().readNBytes(chunked.length()));
+
+		origin.getOutputStream().write("HTTP/1.1 201 Created\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nok\r\n0\r\n\r\n"
+				.getBytes(StandardCharsets.US_ASCII));
+
+		response = readHead(client.getInputStream());
+		assertTrue(response.startsWith("HTTP/1.1 201 Created\r\n"), response);
+		assertArrayEquals("2\r\nok\r\n0\r\n\r\n".getBytes(), client.getInputStream().readNBytes(12));
+
+		assertEquals(1, origins.opened());
+		assertEquals(1, origins.reused());
+
+		// closing the client leaves the origin connection kept for the next one
+		client.close();
+		origin.close();
+	}
+
+	@Test
+	void staleKeptConnectionIsRetriedOnANewOne() throws IOException {
+		var credentials = Base64.getEncoder().encodeToString("fred:flintstone".getBytes(StandardCharsets.UTF_8));
+		var get = ("GET http://127.0.0.1:"+targets.getLocalPort()+"/ HTTP/1.1\r\n"
+				+ "Proxy-Authorization: Basic "+credentials+"\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+		var client = connect(DEFAULT_POLICY);
+		client.getOutputStream().write(get);
+		var origin = targets.accept();
+		readHead(origin.getInputStream());
+		origin.getOutputStream().write("HTTP/1.1 204 No Content\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+		assertTrue(readHead(client.getInputStream()).startsWith("HTTP/1.1 204"));
+		client.close();
+
+		// the origin drops the kept connection, the next request finds out and goes on a new one
+		origin.close();
+
+		client = connect(DEFAULT_POLICY);
+		client.getOutputStream().write(get);
+		var fresh = targets.accept();
+		fresh.setSoTimeout(5000);
+		readHead(fresh.getInputStream());
+		fresh.getOutputStream().write("HTTP/1.0 200 OK\r\n\r\nuntil close".getBytes(StandardCharsets.US_ASCII));
+		fresh.close();
+
+		var response = readHead(client.getInputStream());
+		assertTrue(response.contains("Connection: close"), response);
+		assertArrayEquals("until close".getBytes(), client.getInputStream().readAllBytes());
+		client.close();
+	}
+
+	@Test
+	void unansweredRequestIsCountedAsAFailure() throws IOException {
+		var credentials = Base64.getEncoder().encodeToString("fred:flintstone".getBytes(StandardCharsets.UTF_8));
+		var client = connect(DEFAULT_POLICY);
+		client.getOutputStream().write(("GET http://127.0.0.1:"+targets.getLocalPort()+"/ HTTP/1.1\r\n"
+				+ "Proxy-Authorization: Basic "+credentials+"\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+		// a new connection, so not retried
+		var origin = targets.accept();
+		readHead(origin.getInputStream());
+		origin.close();
+
+		assertArrayEquals(Responses.BAD_GATEWAY, client.getInputStream().readAllBytes());
+		assertEquals(1, metrics.forwardFailed.get());
+		client.close();
+	}
+
+	@Test
+	void idleClientLeavesItsReleasedOriginConnectionAlone() throws Exception {
+		var credentials = Base64.getEncoder().encodeToString("fred:flintstone".getBytes(StandardCharsets.UTF_8));
+		var get = ("GET http://127.0.0.1:"+targets.getLocalPort()+"/ HTTP/1.1\r\n"
+				+ "Proxy-Authorization: Basic "+credentials+"\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+		var idler = connect(new Timeouts.Policy(Duration.ofSeconds(30), Duration.ofMillis(300), Duration.ZERO));
+		idler.getOutputStream().write(get);
+		var origin = targets.accept();
+		origin.setSoTimeout(5000);
+		readHead(origin.getInputStream());
+		origin.getOutputStream().write("HTTP/1.1 204 No Content\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+		assertTrue(readHead(idler.getInputStream()).startsWith("HTTP/1.1 204"));
+
+		// the response can reach the client before the connection is back in the pool
+		long deadline = System.currentTimeMillis() + 2000;
+		while ( origins.idle() < 1 && System.currentTimeMillis() < deadline )
+			Thread.sleep(10);
+
+		// another client's request goes over the same origin connection, and is still out when the first idles out
+		var busy = connect(DEFAULT_POLICY);
+		busy.getOutputStream().write(get);
+		readHead(origin.getInputStream());
+		assertEquals(-1, idler.getInputStream().read());
+		Thread.sleep(100);
+
+		origin.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(StandardCharsets.US_ASCII));
+		assertTrue(readHead(busy.getInputStream()).startsWith("HTTP/1.1 200 OK\r\n"));
+		assertArrayEquals("ok".getBytes(), busy.getInputStream().readNBytes(2));
+		assertEquals(1, origins.reused());
+
+		idler.close();
+		busy.close();
+		origin.close();
+	}
+
+	@Test
+	void answersFromTheCacheAndRevalidatesWithTheOrigin() throws IOException {
+		var responses = new ResponseCache(new ResponseCache.Config(1 << 20, 1 << 16, Optional.empty(), 0,
+				Duration.ofSeconds(5)));
+		cache = Optional.of(responses);
+		var client = connect(DEFAULT_POLICY);
+		var credentials = Base64.getEncoder().encodeToString("fred:flintstone".getBytes(StandardCharsets.UTF_8));
+		var authority = "127.0.0.1:"+targets.getLocalPort();
+		var get = ("GET http://"+authority+"/lib.jar HTTP/1.1\r\n"
+				+ "Proxy-Authorization: Basic "+credentials+"\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+		client.getOutputStream().write(get);
+		var origin = targets.accept();
+		origin.setSoTimeout(5000);
+		readHead(origin.getInputStream());
+		origin.getOutputStream().write(("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nETag: \"v1\"\r\n"
+				+ "Content-Length: 3\r\n\r\njar").getBytes(StandardCharsets.US_ASCII));
+		assertTrue(readHead(client.getInputStream()).startsWith("HTTP/1.1 200 OK\r\n"));
+		assertArrayEquals("jar".getBytes(), client.getInputStream().readNBytes(3));
+
+		// again, without the origin hearing of it
+		client.getOutputStream().write(get);
+		var response = readHead(client.getInputStream());
+		assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n") && response.contains("\r\nAge: ")
+				&& response.contains("ETag: \"v1\""), response);
+		assertArrayEquals("jar".getBytes(), client.getInputStream().readNBytes(3));
+
+		// a client with the same copy is told so
+		client.getOutputStream().write(("GET http://"+authority+"/lib.jar HTTP/1.1\r\n"
+				+ "Proxy-Authorization: Basic "+credentials+"\r\n"
+				+ "If-None-Match: \"v1\"\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		assertTrue(readHead(client.getInputStream()).startsWith("HTTP/1.1 304 Not Modified\r\n"));
+		assertEquals(2, responses.hits());
+
+		// one insisting on revalidation has the origin asked whether the stored copy's good
+		client.getOutputStream().write(("GET http://"+authority+"/lib.jar HTTP/1.1\r\n"
+				+ "Proxy-Authorization: Basic "+credentials+"\r\n"
+				+ "Cache-Control: no-cache\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		var request = readHead(origin.getInputStream());
+		assertTrue(request.contains("If-None-Match: \"v1\"\r\n"), request);
+		origin.getOutputStream().write("HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\n\r\n"
+				.getBytes(StandardCharsets.US_ASCII));
+		assertTrue(readHead(client.getInputStream()).startsWith("HTTP/1.1 200 OK\r\n"));
+		assertArrayEquals("jar".getBytes(), client.getInputStream().readNBytes(3));
+
+		// both went to the origin
+		assertEquals(2, responses.misses());
+		assertEquals(1, responses.revalidated());
+		assertEquals(1, origins.opened());
+
+		client.close();
+		origin.close();
+	}
+
+	@Test
+	void anotherSubjectOnAKeptConnectionIsChargedToItself() throws IOException {
+		// a second's worth for each subject
+		shaper = new Shaper(0, 0, 1000, 1000);
+		var client = connect(DEFAULT_POLICY);
+		Socket origin = null;
+		var body = "x".repeat(1000);
+
+		for ( var user : List.of("fred", "barney") ) {
+			var credentials = Base64.getEncoder().encodeToString((user+":pass").getBytes(StandardCharsets.UTF_8));
+			client.getOutputStream().write(("GET http://127.0.0.1:"+targets.getLocalPort()+"/"+user+" HTTP/1.1\r\n"
+					+ "Proxy-Authorization: Basic "+credentials+"\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+			if ( origin == null ) {
+				origin = targets.accept();
+				origin.setSoTimeout(5000);
+			}
+			readHead(origin.getInputStream());
+			origin.getOutputStream().write(("HTTP/1.1 200 OK\r\nContent-Length: 1000\r\n\r\n"+body)
+					.getBytes(StandardCharsets.US_ASCII));
+
+			// fred has used his second's worth, barney still has his
+			long start = System.nanoTime();
+			readHead(client.getInputStream());
+			assertEquals(1000, client.getInputStream().readNBytes(1000).length);
+			assertTrue(System.nanoTime() - start < 500_000_000L, user);
+		}
+
+		client.close();
+		origin.close();
+	}
+
+	@Test
+	void deniedDestinationIsToldApartFromBadCredentials(@TempDir Path dir) throws Exception {
+		var acl = dir.resolve("acl.json");
+		Files.writeString(acl, """
+				{ "rules": [ { "roles": [ "*" ], "hosts": [ "allowed.example.org" ] } ] }
+				""");
+		destinations = Optional.of(new DestinationPolicy(acl, Duration.ZERO));
+
+		var client = connect(DEFAULT_POLICY);
+		request(client, "127.0.0.1:"+targets.getLocalPort());
+		assertArrayEquals(Responses.DESTINATION_NOT_PERMITTED, client.getInputStream().readAllBytes());
+		client.close();
+
+		client = connect(DEFAULT_POLICY);
+		client.getOutputStream().write(("CONNECT allowed.example.org:443 HTTP/1.1\r\n"
+				+ "Proxy-Authorization: Basic\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		assertArrayEquals(Responses.FORBIDDEN, client.getInputStream().readAllBytes());
+		client.close();
+	}
+
+	@Test
+	void brokenChunkedBodyIsRefused() throws IOException {
+		var credentials = Base64.getEncoder().encodeToString("fred:flintstone".getBytes(StandardCharsets.UTF_8));
+		var client = connect(DEFAULT_POLICY);
+		client.getOutputStream().write(("POST http://127.0.0.1:"+targets.getLocalPort()+"/ HTTP/1.1\r\n"
+				+ "Proxy-Authorization: Basic "+credentials+"\r\n"
+				+ "Transfer-Encoding: chunked\r\n\r\n"
+				+ "5\r\nhelloX\n0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+		var origin = targets.accept();
+		origin.setSoTimeout(5000);
+		readHead(origin.getInputStream());
+
+		// and the origin connection isn't kept, what it's been sent can't be framed
+		assertArrayEquals(Responses.BAD_REQUEST, client.getInputStream().readAllBytes());
+		assertEquals(0, origins.idle());
+		client.close();
+		origin.close();
+	}
+
+	@Test
+	void onlyAbsoluteHttpTargetsAreForwarded() throws IOException {
+		var client = connect(DEFAULT_POLICY);
+		client.getOutputStream().write("GET /local HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+		assertArrayEquals(Responses.BAD_REQUEST, client.getInputStream().readAllBytes());
+		client.close();
+
+		client = connect(DEFAULT_POLICY);
+		client.getOutputStream().write("GET ftp://example.com/ HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+		assertArrayEquals(Responses.NOT_IMPLEMENTED, client.getInputStream().readAllBytes());
+		client.close();
+	}
+
+}
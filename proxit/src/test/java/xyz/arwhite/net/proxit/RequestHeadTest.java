@@ -0,0 +1,130 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class RequestHeadTest {
+
+	private static int parse(RequestHead head, String request) {
+		var bytes = request.getBytes(StandardCharsets.US_ASCII);
+		return head.parse(bytes, bytes.length);
+	}
+
+	@Test
+	void connectRequest() {
+		var head = new RequestHead();
+		var result = parse(head, "CONNECT example.com:443 HTTP/1.1\r\n"
+				+ "Host: example.com:443\r\n"
+				+ "Proxy-Authorization:  Basic dTpw \r\n"
+				+ "\r\n");
+
+		assertEquals(RequestHead.OK, result);
+		assertTrue(head.methodIs("CONNECT"));
+		assertFalse(head.methodIs("CONNEC"));
+		assertEquals("example.com:443", head.target());
+		assertEquals("HTTP/1.1", head.version());
+		assertEquals(2, head.headerCount());
+
+		int auth = head.indexOf("proxy-authorization");
+		assertEquals(1, auth);
+		assertEquals("Proxy-Authorization", head.name(auth));
+		assertEquals("Basic dTpw", head.value(auth));
+		assertEquals(-1, head.indexOf("proxy-authenticate"));
+	}
+
+	@Test
+	void bareLineFeeds() {
+		var head = new RequestHead();
+		var result = parse(head, "CONNECT example.com:22 HTTP/1.1\n"
+				+ "proxy-authorization: one\n"
+				+ "PROXY-AUTHORIZATION: two\n"
+				+ "\n");
+
+		assertEquals(RequestHead.OK, result);
+		assertEquals(2, head.count("proxy-authorization"));
+		assertEquals("one", head.value(head.indexOf("proxy-authorization")));
+	}
+
+	@Test
+	void malformedRequestLines() {
+		var head = new RequestHead();
+		assertEquals(RequestHead.BAD_REQUEST, parse(head, "CONNECT example.com:443\r\n\r\n"));
+		assertEquals(RequestHead.BAD_REQUEST, parse(head, "CONNECT  example.com:443 HTTP/1.1\r\n\r\n"));
+		assertEquals(RequestHead.BAD_REQUEST, parse(head, "CONNECT a b HTTP/1.1\r\n\r\n"));
+		assertEquals(RequestHead.BAD_REQUEST, parse(head, "CONNECT a:1 HTTP/1.1\r\nNoColon\r\n\r\n"));
+		assertEquals(RequestHead.BAD_REQUEST, parse(head, "CONNECT a:1 HTTP/1.1\r\nHost: a\r\n"));
+	}
+
+	@Test
+	void ambiguousHeaderLines() {
+		var head = new RequestHead();
+
+		// names and colons together, or the head could frame differently at the origin
+		assertEquals(RequestHead.BAD_REQUEST, parse(head, "POST http://a/ HTTP/1.1\r\n"
+				+ "Content-Length : 5\r\n\r\n"));
+		assertEquals(RequestHead.BAD_REQUEST, parse(head, "POST http://a/ HTTP/1.1\r\n"
+				+ "Transfer-Encoding\t: chunked\r\n\r\n"));
+		assertEquals(RequestHead.BAD_REQUEST, parse(head, "GET http://a/ HTTP/1.1\r\n: empty\r\n\r\n"));
+
+		// and nothing folded
+		assertEquals(RequestHead.BAD_REQUEST, parse(head, "GET http://a/ HTTP/1.1\r\n"
+				+ "X-Long: one\r\n two\r\n\r\n"));
+		assertEquals(RequestHead.BAD_REQUEST, parse(head, "GET http://a/ HTTP/1.1\r\n"
+				+ "\tContent-Length: 5\r\n\r\n"));
+
+		var bytes = "HTTP/1.1 200 OK\r\nContent-Length : 5\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+		assertEquals(RequestHead.BAD_REQUEST, head.parseResponse(bytes, bytes.length));
+		bytes = "HTTP/1.1 200 OK\r\nX: a\r\n  b\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+		assertEquals(RequestHead.BAD_REQUEST, head.parseResponse(bytes, bytes.length));
+
+		// whitespace after the colon is fine
+		assertEquals(RequestHead.OK, parse(head, "GET http://a/ HTTP/1.1\r\nContent-Length:\t5 \r\n\r\n"));
+		assertEquals(5, head.number(head.indexOf("content-length")));
+	}
+
+	@Test
+	void limits() {
+		var head = new RequestHead();
+
+		var longValue = "x".repeat(RequestHead.MAX_LINE_LENGTH);
+		assertEquals(RequestHead.TOO_LARGE, parse(head, "CONNECT a:1 HTTP/1.1\r\nX: "+longValue+"\r\n\r\n"));
+
+		var manyHeaders = new StringBuilder("CONNECT a:1 HTTP/1.1\r\n");
+		for ( int i = 0; i <= RequestHead.MAX_HEADERS; i++ )
+			manyHeaders.append("X-"+i+": y\r\n");
+		manyHeaders.append("\r\n");
+		assertEquals(RequestHead.TOO_LARGE, parse(head, manyHeaders.toString()));
+	}
+
+	@Test
+	void responseHeads() {
+		var head = new RequestHead();
+		var bytes = ("HTTP/1.1 404 Not Found\r\n"
+				+ "Content-Length: 12\r\n"
+				+ "Connection: keep-alive, X-Hop\r\n"
+				+ "x-hop: 1\r\n"
+				+ "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+		assertEquals(RequestHead.OK, head.parseResponse(bytes, bytes.length));
+		assertEquals(404, head.status());
+		assertTrue(head.versionIs("HTTP/1.1"));
+		assertEquals(12, head.number(head.indexOf("content-length")));
+		assertTrue(head.lists("connection", "keep-alive"));
+		assertFalse(head.lists("connection", "close"));
+		assertTrue(head.listsNameOf("connection", head.indexOf("x-hop")));
+		assertFalse(head.listsNameOf("connection", head.indexOf("content-length")));
+
+		bytes = "HTTP/1.0 200\n\n".getBytes(StandardCharsets.US_ASCII);
+		assertEquals(RequestHead.OK, head.parseResponse(bytes, bytes.length));
+		assertEquals(200, head.status());
+
+		bytes = "HTTP/1.1 2OO OK\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+		assertEquals(RequestHead.BAD_REQUEST, head.parseResponse(bytes, bytes.length));
+	}
+
+}
@@ -0,0 +1,90 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.UnknownHostException;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+class ResolverTest {
+
+	@Test
+	void answersAreCached() throws Exception {
+		var resolver = new Resolver(Duration.ofMinutes(1), Duration.ofSeconds(10));
+
+		var first = resolver.resolve("localhost");
+		var second = resolver.resolve("localhost");
+
+		assertTrue(first.length > 0);
+		assertSame(first, second);
+		assertEquals(1, resolver.stats().misses());
+		assertEquals(1, resolver.stats().hits());
+		assertEquals(1, resolver.stats().lookups());
+		assertEquals(1, resolver.lookupTimes().count());
+		assertEquals(resolver.stats().lookupNanos(), resolver.lookupTimes().sum());
+	}
+
+	@Test
+	void failuresAreCached() {
+		var resolver = new Resolver(Duration.ofMinutes(1), Duration.ofSeconds(10));
+
+		var first = assertThrows(UnknownHostException.class, () -> resolver.resolve("no-such-host.invalid"));
+		var second = assertThrows(UnknownHostException.class, () -> resolver.resolve("no-such-host.invalid"));
+		assertNotSame(first, second);
+		assertEquals(first.getMessage(), second.getMessage());
+
+		assertEquals(1, resolver.stats().lookups());
+		assertEquals(1, resolver.stats().failures());
+		assertEquals(1, resolver.stats().negativeHits());
+	}
+
+	@Test
+	void hotEntriesAreRefreshedAhead() throws Exception {
+		var resolver = new Resolver(Duration.ofMillis(500), Duration.ofSeconds(10));
+
+		resolver.resolve("localhost");
+		Thread.sleep(420);
+		resolver.resolve("localhost");
+
+		// served from the cache while the refresh runs in the background
+		assertEquals(1, resolver.stats().misses());
+		assertEquals(1, resolver.stats().refreshes());
+
+		long deadline = System.currentTimeMillis() + 2000;
+		while ( resolver.stats().lookups() < 2 && System.currentTimeMillis() < deadline )
+			Thread.sleep(10);
+		assertEquals(2, resolver.stats().lookups());
+
+		Thread.sleep(200);
+		resolver.resolve("localhost");
+		assertEquals(1, resolver.stats().misses());
+	}
+
+	@Test
+	void concurrentMissesShareOneLookup() throws Exception {
+		var resolver = new Resolver(Duration.ofMinutes(1), Duration.ofSeconds(10));
+
+		var threads = new Thread[8];
+		for ( int i = 0; i < threads.length; i++ ) {
+			threads[i] = new Thread(() -> {
+				try {
+					resolver.resolve("localhost");
+				} catch (UnknownHostException e) {
+					e.printStackTrace();
+				}
+			});
+		}
+		for ( var t : threads )
+			t.start();
+		for ( var t : threads )
+			t.join();
+
+		assertEquals(1, resolver.stats().lookups());
+	}
+
+}
@@ -0,0 +1,304 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ResponseCacheTest {
+
+	private static final String KEY = "example.com:80/artifact.jar";
+
+	private static RequestHead request(String head) {
+		var bytes = head.getBytes(StandardCharsets.US_ASCII);
+		var request = new RequestHead();
+		assertEquals(RequestHead.OK, request.parse(bytes, bytes.length));
+		return request;
+	}
+
+	private static RequestHead response(String head) {
+		var bytes = head.getBytes(StandardCharsets.US_ASCII);
+		var response = new RequestHead();
+		assertEquals(RequestHead.OK, response.parseResponse(bytes, bytes.length));
+		return response;
+	}
+
+	private static final RequestHead GET = request("GET http://example.com/artifact.jar HTTP/1.1\r\n\r\n");
+
+	private static ResponseCache cache() throws IOException {
+		return new ResponseCache(new ResponseCache.Config(1 << 20, 1 << 16, Optional.empty(), 0,
+				Duration.ofSeconds(5)));
+	}
+
+	/*
+	 * Fills the cache with the response as if it had been relayed, returning whether it
+	 * was stored
+	 */
+	private static boolean fill(ResponseCache cache, RequestHead request, String head, byte[] body)
+			throws IOException {
+		var fill = cache.uncollapsedFill(KEY);
+		long now = System.currentTimeMillis();
+		if ( !fill.begin(request, response(head), body.length, now, now) )
+			return false;
+
+		var relayed = new ByteArrayOutputStream();
+		fill.tee(relayed).write(body);
+		fill.complete();
+		assertArrayEquals(body, relayed.toByteArray());
+		return true;
+	}
+
+	private static byte[] bytes(ByteBuffer buffer) {
+		var bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private static ResponseCache.Use use(ResponseCache cache, RequestHead request) {
+		return cache.lookup(KEY, request, CacheControl.of(request)).use();
+	}
+
+	@Test
+	void cacheControlDirectives() {
+		var control = CacheControl.of(response("HTTP/1.1 200 OK\r\n"
+				+ "Cache-Control: public, max-age=\"60\", S-MaxAge=30\r\n"
+				+ "Cache-Control: stale-while-revalidate=5, must-revalidate, x-unknown=1\r\n\r\n"));
+		assertTrue(control.isPublic() && control.mustRevalidate() && !control.noStore());
+		assertEquals(60, control.maxAge());
+		assertEquals(30, control.sMaxAge());
+		assertEquals(5, control.staleWhileRevalidate());
+
+		assertEquals(1L << 31, CacheControl.of(response("HTTP/1.1 200 OK\r\n"
+				+ "Cache-Control: max-age=99999999999999999999\r\n\r\n")).maxAge());
+		assertEquals(-1, CacheControl.of(response("HTTP/1.1 200 OK\r\nCache-Control: max-age=soon\r\n\r\n")).maxAge());
+		assertTrue(CacheControl.of(request("GET / HTTP/1.1\r\nPragma: no-cache\r\n\r\n")).noCache());
+	}
+
+	@Test
+	void freshUntilMaxAgeThenRevalidated() throws IOException {
+		var cache = cache();
+		var body = "jar bytes".getBytes();
+		assertTrue(fill(cache, GET, "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nAge: 10\r\n"
+				+ "ETag: \"1\"\r\nContent-Length: 9\r\n\r\n", body));
+
+		var found = cache.lookup(KEY, GET, CacheControl.NONE);
+		assertEquals(ResponseCache.Use.FRESH, found.use());
+		assertEquals(200, found.entry().status());
+		assertArrayEquals(body, bytes(found.entry().body()));
+		long age = found.entry().age(System.currentTimeMillis());
+		assertTrue(age >= 10000 && age < 11000);
+		assertEquals(1, cache.hits());
+
+		// the client can insist, by its own max-age or no-cache
+		assertEquals(ResponseCache.Use.REVALIDATE, use(cache, request("GET / HTTP/1.1\r\n"
+				+ "Cache-Control: max-age=5\r\n\r\n")));
+		assertEquals(ResponseCache.Use.REVALIDATE, use(cache, request("GET / HTTP/1.1\r\n"
+				+ "Cache-Control: no-cache\r\n\r\n")));
+
+		// already older than its max-age when it arrived
+		assertTrue(fill(cache, GET, "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nAge: 100\r\nETag: \"2\"\r\n"
+				+ "Content-Length: 9\r\n\r\n", body));
+		var stale = cache.lookup(KEY, GET, CacheControl.NONE);
+		assertEquals(ResponseCache.Use.REVALIDATE, stale.use());
+		assertEquals("If-None-Match: \"2\"\r\n", new String(stale.entry().validators(), StandardCharsets.US_ASCII));
+
+		// a 304 renews it
+		long now = System.currentTimeMillis();
+		cache.revalidated(stale.entry(), response("HTTP/1.1 304 Not Modified\r\n\r\n"), now, now);
+		assertEquals(ResponseCache.Use.FRESH, use(cache, GET));
+		assertEquals(1, cache.revalidated());
+		assertEquals(1, cache.entries());
+	}
+
+	@Test
+	void revalidationUpdatesTheStoredHead() throws IOException {
+		var cache = cache();
+		assertTrue(fill(cache, GET, "HTTP/1.1 200 OK\r\nDate: Sun, 06 Nov 1994 08:49:37 GMT\r\n"
+				+ "Cache-Control: max-age=60\r\nAge: 100\r\nETag: \"1\"\r\nContent-Length: 3\r\n\r\n", "jar".getBytes()));
+		var entry = cache.lookup(KEY, GET, CacheControl.NONE).entry();
+
+		long now = System.currentTimeMillis();
+		var date = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+				ZonedDateTime.now(ZoneOffset.UTC));
+		cache.revalidated(entry, response("HTTP/1.1 304 Not Modified\r\nDate: "+date+"\r\n"
+				+ "Cache-Control: max-age=120, must-revalidate\r\nETag: \"2\"\r\n\r\n"), now, now);
+
+		// served and revalidated from now on as the 304 says
+		var head = new String(entry.head(), StandardCharsets.US_ASCII);
+		assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 3\r\nDate: "+date+"\r\n"
+				+ "Cache-Control: max-age=120, must-revalidate\r\nETag: \"2\"\r\n\r\n", head);
+		assertEquals("If-None-Match: \"2\"\r\n", new String(entry.validators(), StandardCharsets.US_ASCII));
+		assertTrue(entry.age(now) < 1000);
+		assertEquals(ResponseCache.Use.FRESH, use(cache, GET));
+		assertArrayEquals("jar".getBytes(), bytes(entry.body()));
+	}
+
+	@Test
+	void staleWhileRevalidateUnlessItMustBe() throws IOException {
+		var cache = cache();
+		assertTrue(fill(cache, GET, "HTTP/1.1 200 OK\r\nCache-Control: max-age=1, stale-while-revalidate=60\r\n"
+				+ "Age: 5\r\nContent-Length: 0\r\n\r\n", new byte[0]));
+		assertEquals(ResponseCache.Use.STALE_WHILE_REVALIDATE, use(cache, GET));
+		assertEquals(1, cache.staleHits());
+
+		assertTrue(fill(cache, GET, "HTTP/1.1 200 OK\r\n"
+				+ "Cache-Control: max-age=1, stale-while-revalidate=60, must-revalidate\r\n"
+				+ "Age: 5\r\nLast-Modified: Sun, 06 Nov 1994 08:49:37 GMT\r\nContent-Length: 0\r\n\r\n", new byte[0]));
+		assertEquals(ResponseCache.Use.REVALIDATE, use(cache, GET));
+	}
+
+	@Test
+	void onlyWhatASharedCacheMayKeepIsStored() throws IOException {
+		var cache = cache();
+		var body = new byte[4];
+		assertFalse(fill(cache, GET, "HTTP/1.1 200 OK\r\nCache-Control: no-store, max-age=60\r\n\r\n", body));
+		assertFalse(fill(cache, GET, "HTTP/1.1 200 OK\r\nCache-Control: private, max-age=60\r\n\r\n", body));
+		assertFalse(fill(cache, GET, "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nSet-Cookie: a=b\r\n\r\n", body));
+		assertFalse(fill(cache, GET, "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nVary: *\r\n\r\n", body));
+		assertFalse(fill(cache, GET, "HTTP/1.1 206 Partial Content\r\nCache-Control: max-age=60\r\n\r\n", body));
+
+		// nothing to say it's fresh, nothing to revalidate it with
+		assertFalse(fill(cache, GET, "HTTP/1.1 200 OK\r\n\r\n", body));
+		assertFalse(fill(cache, GET, "HTTP/1.1 302 Found\r\nLast-Modified: Sun, 06 Nov 1994 08:49:37 GMT\r\n\r\n",
+				body));
+
+		// the origin's own credentials, unless it says the response is for anyone
+		var authorized = request("GET / HTTP/1.1\r\nAuthorization: Bearer x\r\n\r\n");
+		assertFalse(fill(cache, authorized, "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\n\r\n", body));
+		assertTrue(fill(cache, authorized, "HTTP/1.1 200 OK\r\nCache-Control: public, max-age=60\r\n\r\n", body));
+
+		// and nothing bigger than the largest object
+		assertFalse(fill(cache, GET, "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\n\r\n", new byte[1 << 17]));
+		assertEquals(1, cache.entries());
+	}
+
+	@Test
+	void variantsAreChosenByWhatTheyVaryOn() throws IOException {
+		var cache = cache();
+		var gzip = request("GET / HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n");
+		var plain = request("GET / HTTP/1.1\r\n\r\n");
+		var head = "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nVary: accept-encoding\r\n\r\n";
+
+		assertTrue(fill(cache, gzip, head, "zipped".getBytes()));
+		assertTrue(fill(cache, plain, head, "plain".getBytes()));
+		assertEquals(2, cache.entries());
+
+		assertArrayEquals("zipped".getBytes(), bytes(cache.lookup(KEY, gzip, CacheControl.NONE).entry().body()));
+		assertArrayEquals("plain".getBytes(), bytes(cache.lookup(KEY, plain, CacheControl.NONE).entry().body()));
+		assertNull(cache.lookup(KEY, request("GET / HTTP/1.1\r\nAccept-Encoding: br\r\n\r\n"), CacheControl.NONE));
+
+		// a newer copy of a variant replaces it
+		assertTrue(fill(cache, gzip, head, "rezipped".getBytes()));
+		assertEquals(2, cache.entries());
+
+		cache.invalidate(KEY);
+		assertEquals(0, cache.entries());
+		assertEquals(0, cache.memoryBytes());
+	}
+
+	@Test
+	void concurrentRequestsWaitOnOneFill() throws Exception {
+		var cache = cache();
+		var fill = cache.fill(KEY);
+		assertNotNull(fill);
+
+		var waiting = CompletableFuture.supplyAsync(() -> {
+			try {
+				return cache.fill(KEY);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		Thread.sleep(100);
+		assertFalse(waiting.isDone());
+
+		long now = System.currentTimeMillis();
+		assertTrue(fill.begin(GET, response("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\n"
+				+ "Transfer-Encoding: chunked\r\n\r\n"), MessageReader.CHUNKED, now, now));
+		fill.tee(new ByteArrayOutputStream()).write("3\r\nabc\r\n0\r\n\r\n".getBytes());
+		fill.complete();
+
+		// let go once it's stored, to find it there
+		assertNull(waiting.get(1, TimeUnit.SECONDS));
+		assertEquals(ResponseCache.Use.FRESH, use(cache, GET));
+		assertEquals(1, cache.collapsed());
+		assertEquals(1, cache.misses());
+
+		// one that can't be stored lets its waiters go as soon as that's known
+		cache.invalidate(KEY);
+		fill = cache.fill(KEY);
+		waiting = CompletableFuture.supplyAsync(() -> cache.tryFill(KEY));
+		assertNull(waiting.get(1, TimeUnit.SECONDS));
+		assertFalse(fill.begin(GET, response("HTTP/1.1 200 OK\r\nCache-Control: no-store\r\n\r\n"), 10, now, now));
+		assertNotNull(cache.tryFill(KEY));
+	}
+
+	@Test
+	void conditionalRequestsForWhatsStored() throws IOException {
+		var cache = cache();
+		assertTrue(fill(cache, GET, "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nETag: W/\"7\"\r\n"
+				+ "Last-Modified: Sun, 06 Nov 1994 08:49:37 GMT\r\n\r\n", new byte[1]));
+		var entry = cache.lookup(KEY, GET, CacheControl.NONE).entry();
+
+		assertTrue(entry.notModifiedFor(request("GET / HTTP/1.1\r\nIf-None-Match: \"6\", \"7\"\r\n\r\n")));
+		assertTrue(entry.notModifiedFor(request("GET / HTTP/1.1\r\nIf-None-Match: *\r\n\r\n")));
+		assertFalse(entry.notModifiedFor(request("GET / HTTP/1.1\r\nIf-None-Match: \"8\"\r\n"
+				+ "If-Modified-Since: Mon, 07 Nov 1994 08:49:37 GMT\r\n\r\n")));
+		assertTrue(entry.notModifiedFor(request("GET / HTTP/1.1\r\n"
+				+ "If-Modified-Since: Mon, 07 Nov 1994 08:49:37 GMT\r\n\r\n")));
+		assertFalse(entry.notModifiedFor(request("GET / HTTP/1.1\r\n"
+				+ "If-Modified-Since: Sat, 05 Nov 1994 08:49:37 GMT\r\n\r\n")));
+		assertFalse(entry.notModifiedFor(GET));
+	}
+
+	@Test
+	void whatMemoryCantHoldGoesToDisk(@TempDir Path dir) throws IOException {
+		Files.writeString(dir.resolve("proxit-leftover.body"), "from before");
+		var cache = new ResponseCache(new ResponseCache.Config(1000, 1 << 16, Optional.of(dir), 5000,
+				Duration.ofSeconds(5)));
+		assertFalse(Files.exists(dir.resolve("proxit-leftover.body")));
+
+		var big = new byte[3000];
+		big[2999] = 9;
+		var head = "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 3000\r\n\r\n";
+		assertTrue(fill(cache, GET, head, big));
+
+		var found = cache.lookup(KEY, GET, CacheControl.NONE);
+		assertEquals(ResponseCache.Use.FRESH, found.use());
+		assertArrayEquals(big, bytes(found.entry().body()));
+		assertEquals(0, cache.memoryBytes());
+		assertEquals(3000, cache.diskBytes());
+
+		// another variant pushes the first off the disk too
+		var other = request("GET / HTTP/1.1\r\nX-Variant: 2\r\n\r\n");
+		assertTrue(fill(cache, other, "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nVary: X-Variant\r\n\r\n", big));
+		assertNull(cache.lookup(KEY, GET, CacheControl.NONE));
+		assertNotNull(cache.lookup(KEY, other, CacheControl.NONE));
+		assertEquals(3000, cache.diskBytes());
+		assertEquals(1, cache.evicted());
+
+		try ( var files = Files.list(dir) ) {
+			assertEquals(1, files.count());
+		}
+	}
+
+}
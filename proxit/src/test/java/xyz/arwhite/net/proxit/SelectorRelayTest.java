@@ -0,0 +1,119 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Optional;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class SelectorRelayTest {
+
+	private static SelectorRelay relay;
+
+	@BeforeAll
+	static void setUpBeforeClass() throws Exception {
+		relay = new SelectorRelay(2, new BufferPool(1 << 20, true));
+	}
+
+	/*
+	 * Returns the two ends of a loopback connection, both backed by channels
+	 */
+	private static Socket[] socketPair() throws IOException {
+		try (var server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			var connecting = SocketChannel.open(server.getLocalAddress());
+			var accepted = server.accept();
+			return new Socket[] { connecting.socket(), accepted.socket() };
+		}
+	}
+
+	@Test
+	void relaysBothWays() throws IOException {
+		var clientSide = socketPair();
+		var targetSide = socketPair();
+
+		// clientSide[0] is the proxy client, targetSide[1] is the target
+		relay.relay(clientSide[1], targetSide[0]);
+
+		var client = clientSide[0];
+		var target = targetSide[1];
+		client.setSoTimeout(5000);
+		target.setSoTimeout(5000);
+
+		client.getOutputStream().write("ping".getBytes());
+		assertArrayEquals("ping".getBytes(), target.getInputStream().readNBytes(4));
+
+		target.getOutputStream().write("pong".getBytes());
+		assertArrayEquals("pong".getBytes(), client.getInputStream().readNBytes(4));
+
+		client.close();
+		target.close();
+	}
+
+	@Test
+	void propagatesHalfClose() throws IOException {
+		var clientSide = socketPair();
+		var targetSide = socketPair();
+
+		relay.relay(clientSide[1], targetSide[0]);
+
+		var client = clientSide[0];
+		var target = targetSide[1];
+		client.setSoTimeout(5000);
+		target.setSoTimeout(5000);
+
+		// client finishes sending, target should see end of stream but still be able to reply
+		client.getOutputStream().write("done".getBytes());
+		client.shutdownOutput();
+
+		assertArrayEquals("done".getBytes(), target.getInputStream().readAllBytes());
+
+		var reply = new byte[64 * 1024];
+		target.getOutputStream().write(reply);
+		target.shutdownOutput();
+
+		assertEquals(reply.length, client.getInputStream().readAllBytes().length);
+
+		client.close();
+		target.close();
+	}
+
+	@Test
+	void survivesAThrowingCloseListener() throws IOException {
+		// one loop, so both tunnels are on it
+		var single = new SelectorRelay(1, new BufferPool(1 << 20, true));
+
+		var clientSide = socketPair();
+		var targetSide = socketPair();
+		single.relay(clientSide[1], targetSide[0], (bytesIn, bytesOut, reason) -> {
+			throw new IllegalStateException("listener bug");
+		}, Optional.empty(), Optional.empty());
+
+		clientSide[0].close();
+		targetSide[1].close();
+
+		clientSide = socketPair();
+		targetSide = socketPair();
+		single.relay(clientSide[1], targetSide[0]);
+
+		var client = clientSide[0];
+		var target = targetSide[1];
+		client.setSoTimeout(5000);
+		target.setSoTimeout(5000);
+
+		client.getOutputStream().write("ping".getBytes());
+		assertArrayEquals("ping".getBytes(), target.getInputStream().readNBytes(4));
+
+		client.close();
+		target.close();
+	}
+
+}
@@ -0,0 +1,86 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class ShaperTest {
+
+	@Test
+	void burstGoesStraightThrough() {
+		var bucket = new TokenBucket(1_000_000, 64 * 1024);
+
+		assertEquals(0, bucket.consume(32 * 1024));
+		assertEquals(0, bucket.consume(32 * 1024));
+
+		// the bucket is empty now so the next 1000 bytes wait their 1ms
+		long wait = bucket.consume(1000);
+		assertTrue(wait > TimeUnit.MICROSECONDS.toNanos(900) && wait <= TimeUnit.MILLISECONDS.toNanos(1), "waited "+wait);
+	}
+
+	@Test
+	void sustainedRateIsHeld() {
+		var bucket = new TokenBucket(10_000_000, 16384);
+
+		// 10MB at 10MB/s should be owed about a second, less the burst
+		long wait = 0;
+		for ( int i = 0; i < 640; i++ )
+			wait = bucket.consume(16384);
+
+		long millis = TimeUnit.NANOSECONDS.toMillis(wait);
+		assertTrue(millis > 950 && millis < 1100, "waited "+millis+"ms");
+	}
+
+	@Test
+	void concurrentConsumersShareTheRate() throws Exception {
+		var bucket = new TokenBucket(100_000_000, 1);
+
+		var threads = new Thread[4];
+		for ( int i = 0; i < threads.length; i++ ) {
+			threads[i] = new Thread(() -> {
+				for ( int j = 0; j < 10000; j++ )
+					bucket.consume(1000);
+			});
+			threads[i].start();
+		}
+		for ( var t : threads )
+			t.join();
+
+		// every byte accounted for, 40MB at 100MB/s
+		long millis = TimeUnit.NANOSECONDS.toMillis(bucket.consume(0));
+		assertTrue(millis > 250 && millis <= 400, "owed "+millis+"ms");
+	}
+
+	@Test
+	void unlimitedUnlessConfiguredOrClaimed() {
+		var shaper = new Shaper(0, 0, 0, 0);
+
+		assertTrue(shaper.bucketsFor("fred", Map.of()).isEmpty());
+		assertTrue(shaper.bucketsFor("fred", Map.of(Shaper.RATE_CLAIM, 1000)).isPresent());
+		assertTrue(shaper.bucketsFor("fred", Map.of(Shaper.RATE_CLAIM, "1000")).isPresent());
+		assertTrue(shaper.bucketsFor("fred", Map.of(Shaper.RATE_CLAIM, "lots")).isEmpty());
+	}
+
+	@Test
+	void subjectTunnelsShareABucket() {
+		var shaper = new Shaper(0, 0, 1_000_000, 1000);
+
+		var first = shaper.bucketsFor("wilma", Map.of()).orElseThrow();
+		var second = shaper.bucketsFor("wilma", Map.of()).orElseThrow();
+		var other = shaper.bucketsFor("betty", Map.of()).orElseThrow();
+
+		assertEquals(0, first.consume(1000));
+		assertTrue(second.consume(1000) > 0);
+		assertEquals(0, other.consume(1000));
+
+		// a claim gives the subject its own rate
+		var claimed = shaper.bucketsFor("wilma", Map.of(Shaper.RATE_CLAIM, 10_000_000, Shaper.BURST_CLAIM, 5000))
+				.orElseThrow();
+		assertEquals(0, claimed.consume(5000));
+	}
+
+}
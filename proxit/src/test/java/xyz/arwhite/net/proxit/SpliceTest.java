@@ -0,0 +1,121 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+class SpliceTest {
+
+	/*
+	 * Returns the two ends of a loopback connection, plain sockets as the thread relays use
+	 */
+	private static Socket[] socketPair() throws IOException {
+		try (var server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			var connecting = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+			var accepted = server.accept();
+			return new Socket[] { connecting, accepted };
+		}
+	}
+
+	private static CompletableFuture<Boolean> relay(Socket in, Socket out, AtomicLong counted) {
+		var relayed = new CompletableFuture<Boolean>();
+		new Thread(() -> relayed.complete(Splice.relay(in, out, counted::addAndGet))).start();
+		return relayed;
+	}
+
+	@Test
+	@EnabledOnOs(OS.LINUX)
+	void relaysBothWaysAndPassesOnEndOfStream() throws Exception {
+		assumeTrue(Splice.isAvailable(), "jvm not started with the access splice needs");
+
+		var clientSide = socketPair();
+		var targetSide = socketPair();
+		var client = clientSide[0];
+		var target = targetSide[1];
+		client.setSoTimeout(5000);
+		target.setSoTimeout(5000);
+
+		// more than a pipe's worth, so it goes round more than once
+		var payload = new byte[1 << 20];
+		new Random(42).nextBytes(payload);
+
+		var upstream = new AtomicLong();
+		var downstream = new AtomicLong();
+		var up = relay(clientSide[1], targetSide[0], upstream);
+		var down = relay(targetSide[0], clientSide[1], downstream);
+
+		var writing = CompletableFuture.runAsync(() -> {
+			try {
+				client.getOutputStream().write(payload);
+				client.shutdownOutput();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+
+		// readAllBytes only returns once the target sees end of stream
+		assertArrayEquals(payload, target.getInputStream().readAllBytes());
+		writing.get(5, TimeUnit.SECONDS);
+		assertTrue(up.get(5, TimeUnit.SECONDS));
+		assertEquals(payload.length, upstream.get());
+
+		// the other way still works after the half close
+		target.getOutputStream().write(payload, 0, 1000);
+		target.shutdownOutput();
+		assertArrayEquals(Arrays.copyOf(payload, 1000), client.getInputStream().readAllBytes());
+		assertTrue(down.get(5, TimeUnit.SECONDS));
+		assertEquals(1000, downstream.get());
+
+		for ( var socket : new Socket[] { client, target, clientSide[1], targetSide[0] } )
+			socket.close();
+	}
+
+	@Test
+	void declinesSocketsItCannotSplice() throws IOException {
+		// channel sockets have no impl to take a descriptor from, and off Linux nothing can be spliced
+		try (var server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			var connecting = SocketChannel.open(server.getLocalAddress());
+			var accepted = server.accept();
+
+			var counted = new AtomicLong();
+			assertFalse(Splice.relay(connecting.socket(), accepted.socket(), counted::addAndGet));
+			assertEquals(0, counted.get());
+
+			connecting.close();
+			accepted.close();
+		}
+	}
+
+	@Test
+	@DisabledOnOs(OS.LINUX)
+	void unavailableOffLinux() throws IOException {
+		assertFalse(Splice.isAvailable());
+
+		var pair = socketPair();
+		assertFalse(Splice.relay(pair[0], pair[1], bytes -> {}));
+		pair[0].close();
+		pair[1].close();
+	}
+
+}
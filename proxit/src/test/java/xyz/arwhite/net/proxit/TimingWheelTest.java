@@ -0,0 +1,107 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+
+	@Test
+	void firesAfterTheDelayNotBefore() throws Exception {
+		var wheel = new TimingWheel(Duration.ofMillis(10), 8);
+		var fired = new CountDownLatch(1);
+		var firedAt = new AtomicLong();
+
+		long start = System.nanoTime();
+		// longer than a turn of the wheel, so it waits out a round
+		wheel.schedule(Duration.ofMillis(250), () -> {
+			firedAt.set(System.nanoTime());
+			fired.countDown();
+		});
+
+		assertTrue(fired.await(2, TimeUnit.SECONDS));
+		long took = firedAt.get() - start;
+		assertTrue(took >= Duration.ofMillis(250).toNanos(), "fired early "+took);
+		assertTrue(took < Duration.ofMillis(500).toNanos(), "fired late "+took);
+		assertEquals(0, wheel.pending());
+	}
+
+	@Test
+	void cancelledNeverFires() throws Exception {
+		var wheel = new TimingWheel(Duration.ofMillis(10), 16);
+		var fired = new AtomicInteger();
+
+		var cancelled = wheel.schedule(Duration.ofMillis(50), fired::incrementAndGet);
+		var kept = wheel.schedule(Duration.ofMillis(50), fired::incrementAndGet);
+		assertTrue(cancelled.cancel());
+		assertFalse(cancelled.cancel());
+
+		Thread.sleep(200);
+		assertEquals(1, fired.get());
+		assertTrue(kept.isExpired());
+		assertFalse(cancelled.isExpired());
+		assertFalse(kept.cancel());
+		assertEquals(0, wheel.pending());
+	}
+
+	@Test
+	void manyTimeoutsAllFire() throws Exception {
+		var wheel = new TimingWheel(Duration.ofMillis(5), 64);
+		int count = 50_000;
+		var fired = new CountDownLatch(count);
+
+		for ( int i = 0; i < count; i++ )
+			wheel.schedule(Duration.ofMillis(i % 400), fired::countDown);
+
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+		assertEquals(count, wheel.expired());
+	}
+
+	@Test
+	void idleDeadlineFollowsActivity() throws Exception {
+		var timeouts = new Timeouts(new TimingWheel(Duration.ofMillis(10), 64),
+				new Timeouts.Policy(Duration.ofSeconds(30), Duration.ofMillis(200), Duration.ZERO));
+		var expired = new CountDownLatch(1);
+		var lastActivity = new AtomicLong(System.nanoTime());
+
+		long start = System.nanoTime();
+		var deadlines = timeouts.track(expired::countDown);
+		deadlines.handshake();
+		deadlines.tunnel(timeouts.policy(), lastActivity::get);
+
+		// activity keeps pushing the deadline back
+		for ( int i = 0; i < 5; i++ ) {
+			Thread.sleep(100);
+			lastActivity.set(System.nanoTime());
+		}
+		assertEquals(1, expired.getCount());
+
+		assertTrue(expired.await(1, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= Duration.ofMillis(700).toNanos());
+	}
+
+	@Test
+	void claimsOverrideThePolicy() {
+		var timeouts = new Timeouts(new TimingWheel(Duration.ofMillis(10), 8),
+				new Timeouts.Policy(Duration.ofSeconds(30), Duration.ofSeconds(60), Duration.ZERO));
+
+		assertEquals(timeouts.policy(), timeouts.policyFor(Map.of()));
+
+		var policy = timeouts.policyFor(Map.of(Timeouts.IDLE_CLAIM, 5, Timeouts.LIFETIME_CLAIM, "3600"));
+		assertEquals(Duration.ofSeconds(5), policy.idle());
+		assertEquals(Duration.ofHours(1), policy.lifetime());
+		assertEquals(Duration.ofSeconds(30), policy.handshake());
+
+		assertEquals(timeouts.policy(), timeouts.policyFor(Map.of(Timeouts.IDLE_CLAIM, "soon")));
+	}
+
+}
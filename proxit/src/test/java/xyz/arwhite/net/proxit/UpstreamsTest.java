@@ -0,0 +1,188 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class UpstreamsTest {
+
+	private static final String CREDENTIALS = "Basic "
+			+ Base64.getEncoder().encodeToString("proxit:secret".getBytes(StandardCharsets.UTF_8));
+
+	private ServerSocket parent;
+	private final ConcurrentLinkedQueue<Socket> accepted = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<String> requests = new ConcurrentLinkedQueue<>();
+	private volatile String reply = "HTTP/1.1 200 Connection established\r\n\r\n";
+
+	private final Connector connector = new Connector(new Resolver(Duration.ofMinutes(1), Duration.ofSeconds(10)),
+			Duration.ofSeconds(2), Duration.ofSeconds(5));
+
+	/*
+	 * A parent proxy that answers every CONNECT with the reply, then says hello as the
+	 * target would
+	 */
+	@BeforeEach
+	void startParent() throws IOException {
+		parent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		serve(parent);
+	}
+
+	private void serve(ServerSocket server) {
+		Thread.ofVirtual().start(() -> {
+			while ( !server.isClosed() ) {
+				try {
+					var conn = server.accept();
+					accepted.add(conn);
+					Thread.ofVirtual().start(() -> answer(conn));
+				} catch (IOException e) {}
+			}
+		});
+	}
+
+	private void answer(Socket conn) {
+		try ( conn ) {
+			var head = new StringBuilder();
+			int b;
+			while ( !head.toString().endsWith("\r\n\r\n") && (b = conn.getInputStream().read()) >= 0 )
+				head.append((char) b);
+			if ( head.isEmpty() )
+				return;
+
+			requests.add(head.toString());
+			conn.getOutputStream().write((reply+"hello").getBytes(StandardCharsets.US_ASCII));
+			conn.getInputStream().read();
+		} catch (IOException e) {}
+	}
+
+	@AfterEach
+	void stopParent() throws IOException {
+		parent.close();
+	}
+
+	private Upstreams upstreams(int spares) throws IOException {
+		var config = new ObjectMapper().readTree("""
+				{ "upstreams": [
+					{ "name": "internal", "proxy": "DIRECT", "hosts": [ ".corp.example" ], "cidrs": [ "10.0.0.0/8" ] },
+					{ "name": "corp", "proxy": "127.0.0.1:%d", "user": "proxit", "password": "secret",
+					  "hosts": [ "*" ], "spares": %d }
+				] }
+				""".formatted(parent.getLocalPort(), spares));
+		return new Upstreams(config, connector, Socket::new, Duration.ofSeconds(2));
+	}
+
+	@Test
+	void firstMatchingRouteWins() throws IOException {
+		var upstreams = upstreams(0);
+		var corp = upstreams.upstreams().get(0);
+
+		assertNull(upstreams.route("db.corp.example:5432"));
+		assertNull(upstreams.route("10.1.2.3:22"));
+		assertSame(corp, upstreams.route("www.arwhite.xyz:443"));
+		assertSame(corp, upstreams.route("[2001:db8::1]:443"));
+	}
+
+	@Test
+	void connectGoesThroughTheParentWithCredentials() throws Exception {
+		var upstreams = upstreams(0);
+		var corp = upstreams.route("www.arwhite.xyz:443");
+
+		var connected = corp.connect("www.arwhite.xyz:443");
+		var request = requests.poll();
+		assertTrue(request.startsWith("CONNECT www.arwhite.xyz:443 HTTP/1.1\r\n"), request);
+		assertTrue(request.contains("Proxy-Authorization: "+CREDENTIALS+"\r\n"), request);
+
+		// the target's hello came in with the reply, or follows it
+		var early = connected.early() == null ? new byte[0] : connected.early();
+		var hello = new byte[5 - early.length];
+		connected.socket().getInputStream().readNBytes(hello, 0, hello.length);
+		var both = new byte[5];
+		System.arraycopy(early, 0, both, 0, early.length);
+		System.arraycopy(hello, 0, both, early.length, hello.length);
+		assertArrayEquals("hello".getBytes(), both);
+
+		connected.socket().close();
+		assertEquals(1, corp.connects());
+	}
+
+	@Test
+	void sparesSaveTheHandshakeAndStaleOnesAreSkipped() throws Exception {
+		var upstreams = upstreams(2);
+		var corp = upstreams.upstreams().get(0);
+
+		long deadline = System.nanoTime() + Duration.ofSeconds(2).toNanos();
+		while ( corp.spares() < 2 && System.nanoTime() < deadline )
+			Thread.sleep(10);
+		assertEquals(2, corp.spares());
+
+		corp.connect("www.arwhite.xyz:443").socket().close();
+		assertEquals(1, corp.sparesUsed());
+
+		// the parent drops its idle connections, so the spares are dead, once it's accepted the replacement
+		deadline = System.nanoTime() + Duration.ofSeconds(2).toNanos();
+		while ( (corp.spares() < 2 || accepted.size() < 3) && System.nanoTime() < deadline )
+			Thread.sleep(10);
+		Socket conn;
+		while ( (conn = accepted.poll()) != null )
+			conn.close();
+		Thread.sleep(100);
+
+		var connected = corp.connect("www.arwhite.xyz:443");
+		connected.socket().close();
+		assertEquals(0, corp.failures());
+		assertEquals(1, corp.sparesUsed());
+		assertEquals(2, requests.size());
+	}
+
+	@Test
+	void refusalCarriesTheParentsStatus() throws Exception {
+		var upstreams = upstreams(0);
+		var corp = upstreams.upstreams().get(0);
+		reply = "HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\n\r\n";
+
+		var refused = assertThrows(Upstreams.RefusedException.class, () -> corp.connect("blocked.example:443"));
+		assertEquals(403, refused.status());
+		assertEquals(1, corp.failures());
+	}
+
+	@Test
+	void responseHeadsParse() {
+		var head = "HTTP/1.0 200 OK\r\n\r\nrest".getBytes();
+		int end = Upstreams.endOfHead(head, head.length);
+		assertEquals(19, end);
+		assertEquals(200, Upstreams.status(head, end));
+		assertEquals(-1, Upstreams.endOfHead(head, 17));
+		assertEquals(0, Upstreams.status("SSH-2.0-OpenSSH\r\n\r\n".getBytes(), 19));
+	}
+
+	@Test
+	void badRoutesAreRefused() {
+		var mapper = new ObjectMapper();
+		assertThrows(IllegalArgumentException.class, () -> new Upstreams(mapper.readTree("""
+				{ "upstreams": [ { "proxy": "nowhere", "hosts": [ "*" ] } ] }"""), connector, Socket::new, 
+				Duration.ofSeconds(1)));
+		assertThrows(IllegalArgumentException.class, () -> new Upstreams(mapper.readTree("""
+				{ "upstreams": [ { "proxy": "DIRECT" } ] }"""), connector, Socket::new, Duration.ofSeconds(1)));
+		assertThrows(IllegalArgumentException.class, () -> new Upstreams(mapper.readTree("""
+				{ "upstreams": [ { "proxy": "p:3128", "user": "u", "hosts": [ "*" ] } ] }"""), connector, 
+				Socket::new, Duration.ofSeconds(1)));
+	}
+
+}
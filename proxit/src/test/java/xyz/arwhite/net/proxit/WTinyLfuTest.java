@@ -0,0 +1,72 @@
+package xyz.arwhite.net.proxit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class WTinyLfuTest {
+
+	@Test
+	void sketchCountsAndAges() {
+		var sketch = new WTinyLfu.FrequencySketch(64);
+		for ( int i = 0; i < 5; i++ )
+			sketch.increment(42);
+		assertEquals(5, sketch.frequency(42));
+		assertEquals(0, sketch.frequency(43));
+
+		// counters top out at 15
+		for ( int i = 0; i < 20; i++ )
+			sketch.increment(7);
+		assertEquals(15, sketch.frequency(7));
+
+		// and are halved once enough has been counted
+		for ( int i = 0; i < 10 * 64; i++ )
+			sketch.increment(1000 + i);
+		assertTrue(sketch.frequency(7) <= 8, "still "+sketch.frequency(7));
+	}
+
+	@Test
+	void popularEntriesSurviveAScan() {
+		var policy = new WTinyLfu<String>(1000, 100);
+
+		// ten entries asked for again and again
+		for ( int i = 0; i < 10; i++ ) {
+			var key = "hot"+i;
+			for ( int j = 0; j < 5; j++ )
+				policy.record(key.hashCode());
+			assertTrue(policy.add(key, key.hashCode(), 90).isEmpty());
+			policy.hit(key);
+		}
+
+		// then a run of one-offs, each turned away rather than evicting one of them
+		for ( int i = 0; i < 50; i++ ) {
+			var key = "cold"+i;
+			policy.record(key.hashCode());
+			policy.add(key, key.hashCode(), 90);
+		}
+
+		for ( int i = 0; i < 10; i++ )
+			assertTrue(policy.contains("hot"+i), "hot"+i+" evicted");
+		assertTrue(policy.weight() <= 1000);
+	}
+
+	@Test
+	void tooHeavyIsTurnedAwayAndRemovalIsWeighed() {
+		var policy = new WTinyLfu<String>(1000, 100);
+		assertEquals(List.of("huge"), policy.add("huge", 1, 2000));
+		assertFalse(policy.contains("huge"));
+
+		policy.add("a", 2, 100);
+		policy.add("b", 3, 200);
+		assertEquals(300, policy.weight());
+		assertTrue(policy.remove("a"));
+		assertFalse(policy.remove("a"));
+		assertEquals(200, policy.weight());
+		assertEquals(1, policy.size());
+	}
+
+}